@@ -0,0 +1,670 @@
+package org.javastack.jhttpcli;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Non-blocking HTTP/1.1 connection driven by an {@link EventLoop}
+ */
+final class AsyncConnection {
+	private static final int MAX_LINE = 16 * 1024;
+	private static final int MAX_HEADERS = 256;
+	private static final int MAX_READS = 16;
+
+	private static enum State {
+		CONNECTING, WRITING, STATUS, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE,
+		IDLE, CLOSED;
+	}
+
+	final EventLoop loop;
+	final HttpClient cli;
+	/**
+	 * Key of connection (scheme://host:port)
+	 */
+	final String route;
+	final SocketChannel channel;
+	final SelectionKey key;
+	/**
+	 * Time (millis) to expire current operation or zero
+	 */
+	long deadline = 0L;
+	private State state;
+	private int exchanges = 0;
+	private boolean keepAlive = true;
+	private EventLoop.Call call = null;
+	// Request
+	private ByteBuffer out = null;
+	private InputStream bodyIn = null;
+	private byte[] bodyBuf = null;
+	private FileChannel bodyFile = null;
+	private ByteBuffer bodyBuffer = null;
+	private long bodyPos = 0;
+	private long bodySize = 0;
+	/**
+	 * Bytes of request head to report to trace when written, or zero
+	 */
+	private int headTraced = 0;
+	// Response
+	private final StringBuilder line = new StringBuilder(64);
+	private boolean received = false;
+	private String statusLine = null;
+	private int status = -1;
+	private TreeMap<String, List<String>> hdrs = null;
+	private int hdrsCount = 0;
+	private long remaining = 0;
+	/**
+	 * Body in memory (written in loop thread) or null
+	 */
+	private ContentSink sink = null;
+	/**
+	 * Body that may reach the disk (written in executor) or null
+	 */
+	private AsyncSink spool = null;
+	/**
+	 * Reads stopped until spool is drained
+	 */
+	private boolean paused = false;
+	private URL redirect = null;
+	/**
+	 * Remote address (counted in load of address until closed)
+	 */
+	private InetAddress address = null;
+
+	private AsyncConnection(final EventLoop loop, final String route, final SocketChannel channel) throws IOException {
+		this.loop = loop;
+		this.cli = loop.cli;
+		this.route = route;
+		this.channel = channel;
+		this.key = channel.register(loop.selector, 0, this);
+	}
+
+	/**
+	 * Open new connection and begin exchange when connected
+	 *
+	 * @param loop owner
+	 * @param route of connection
+	 * @param call to execute
+	 * @throws IOException if error
+	 */
+	static void open(final EventLoop loop, final String route, final EventLoop.Call call) throws IOException {
+		final HttpClient cli = loop.cli;
+		final SocketChannel ch = SocketChannel.open();
+		AsyncConnection conn = null;
+		try {
+			ch.configureBlocking(false);
+			final Socket s = ch.socket();
+			s.setTcpNoDelay(cli.tcpNoDelay);
+			s.setKeepAlive(true);
+			if (cli.socketBufferSize > 0) {
+				s.setReceiveBufferSize(cli.socketBufferSize);
+				s.setSendBufferSize(cli.socketBufferSize);
+			}
+			conn = new AsyncConnection(loop, route, ch);
+			conn.call = call;
+			// Counted in load of address before the exchange, which may close the connection
+			conn.address = call.address.getAddress();
+			cli.dns.connected(conn.address);
+			if (call.trace != null) {
+				call.trace.connectStart(call.address);
+			}
+			if (ch.connect(call.address)) {
+				if (call.trace != null) {
+					call.trace.connectEnd(call.address);
+				}
+				conn.begin(call);
+			} else {
+				conn.state = State.CONNECTING;
+				conn.deadline = timeout(cli.connectionTimeoutMillis);
+				conn.key.interestOps(SelectionKey.OP_CONNECT);
+			}
+		} catch (IOException | RuntimeException e) {
+			if (conn != null) {
+				conn.close();
+			} else {
+				IOUtil.closeSilent(ch);
+			}
+			if ((call.trace != null) && (e instanceof IOException)) {
+				call.trace.connectFailed(call.address, (IOException) e);
+			}
+			throw e;
+		}
+	}
+
+	private static long timeout(final int millis) {
+		return ((millis > 0) ? (System.currentTimeMillis() + millis) : 0L);
+	}
+
+	boolean isIdle() {
+		return (state == State.IDLE) && channel.isOpen();
+	}
+
+	/**
+	 * Send request of call
+	 *
+	 * @param call to execute
+	 */
+	void begin(final EventLoop.Call call) {
+		this.call = call;
+		exchanges++;
+		received = false;
+		redirect = null;
+		statusLine = null;
+		status = -1;
+		hdrs = null;
+		hdrsCount = 0;
+		line.setLength(0);
+		try {
+			out = ByteBuffer.wrap(HttpConnection.requestHead(call.url, call.method, call.headers(), //
+					call.body, call.ifModifiedSince));
+			headTraced = ((call.trace != null) ? out.remaining() : 0);
+			if (!HttpConnection.hasBody(call.method, call.body)) {
+				// No body
+			} else if (call.body.type == Content.Type.DIRECT) {
+				bodyBuffer = call.body.asByteBuffer();
+			} else if (call.body.hasFile()) {
+				bodySize = call.body.size();
+				bodyPos = 0;
+				bodyFile = call.body.openChannel();
+			} else {
+				bodyIn = call.body.getInputStream();
+			}
+			state = State.WRITING;
+			onWrite();
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	void onConnect() {
+		try {
+			channel.finishConnect();
+			if (call.trace != null) {
+				call.trace.connectEnd(call.address);
+			}
+			begin(call);
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	void onWrite() {
+		try {
+			while (true) {
+				if (out.hasRemaining()) {
+					channel.write(out);
+					if (out.hasRemaining()) {
+						deadline = timeout(cli.readTimeoutMillis);
+						key.interestOps(SelectionKey.OP_WRITE);
+						return;
+					}
+				}
+				if (headTraced > 0) {
+					call.trace.requestHeadersEnd(headTraced);
+					headTraced = 0;
+				}
+				if (bodyBuffer != null) {
+					// Off-heap body written as is
+					out = bodyBuffer;
+					bodyBuffer = null;
+					continue;
+				}
+				if (bodyFile != null) {
+					// Zero-copy from file to socket
+					while (bodyPos < bodySize) {
+						final long len = bodyFile.transferTo(bodyPos, bodySize - bodyPos, channel);
+						if (len <= 0) {
+							if (bodyPos >= bodyFile.size()) {
+								throw new EOFException("File truncated, expected=" + bodySize + " sent=" + bodyPos);
+							}
+							deadline = timeout(cli.readTimeoutMillis);
+							key.interestOps(SelectionKey.OP_WRITE);
+							return;
+						}
+						bodyPos += len;
+					}
+					IOUtil.closeSilent(bodyFile);
+					bodyFile = null;
+					break;
+				}
+				if (bodyIn == null) {
+					break;
+				}
+				if (bodyBuf == null) {
+					bodyBuf = BufferPool.DEFAULT.acquire();
+					out = ByteBuffer.wrap(bodyBuf);
+				}
+				final int len = bodyIn.read(bodyBuf, 0, bodyBuf.length);
+				if (len < 0) {
+					IOUtil.closeSilent(bodyIn);
+					bodyIn = null;
+					break;
+				}
+				out.position(0).limit(len);
+			}
+			// Request sent
+			out = null;
+			releaseBodyBuffer();
+			if ((call.trace != null) && HttpConnection.hasBody(call.method, call.body)) {
+				call.trace.requestBodyEnd(call.body.size());
+			}
+			state = State.STATUS;
+			deadline = timeout(cli.readTimeoutMillis);
+			key.interestOps(SelectionKey.OP_READ);
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	void onRead(final ByteBuffer buf) {
+		try {
+			for (int i = 0; i < MAX_READS; i++) {
+				buf.clear();
+				final int len = channel.read(buf);
+				if (len < 0) {
+					onEof();
+					return;
+				}
+				if (len == 0) {
+					return;
+				}
+				if (state == State.IDLE) {
+					// Unexpected data in idle connection
+					close();
+					return;
+				}
+				if (!received && (call.trace != null)) {
+					call.trace.responseStart();
+				}
+				received = true;
+				deadline = timeout(cli.readTimeoutMillis);
+				buf.flip();
+				parse(buf);
+				if (state == State.DONE) {
+					finish(buf.hasRemaining());
+					return;
+				}
+				if (paused) {
+					return;
+				}
+			}
+		} catch (Exception e) {
+			fail(e);
+		}
+	}
+
+	private void onEof() throws IOException {
+		if (state == State.UNTIL_CLOSE) {
+			keepAlive = false;
+			finish(false);
+			return;
+		}
+		if (state == State.IDLE) {
+			close();
+			return;
+		}
+		fail(new EOFException(received ? "Unexpected end of stream" : "Connection closed by peer"));
+	}
+
+	void onTimeout() {
+		if (state == State.IDLE) {
+			close();
+			return;
+		}
+		fail(new SocketTimeoutException((state == State.CONNECTING) ? "Connect timed out" : "Read timed out"));
+	}
+
+	private void parse(final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			switch (state) {
+				case STATUS:
+				case HEADERS:
+				case CHUNK_SIZE:
+				case CHUNK_END:
+				case TRAILERS: {
+					final String l = readLine(buf);
+					if (l == null) {
+						return;
+					}
+					onLine(l);
+					break;
+				}
+				case BODY: {
+					final int len = (int) Math.min(remaining, buf.remaining());
+					consume(buf, len);
+					remaining -= len;
+					if (remaining <= 0) {
+						state = State.DONE;
+					}
+					break;
+				}
+				case CHUNK_DATA: {
+					final int len = (int) Math.min(remaining, buf.remaining());
+					consume(buf, len);
+					remaining -= len;
+					if (remaining <= 0) {
+						state = State.CHUNK_END;
+					}
+					break;
+				}
+				case UNTIL_CLOSE:
+					consume(buf, buf.remaining());
+					break;
+				default:
+					return;
+			}
+			if (state == State.DONE) {
+				return;
+			}
+		}
+	}
+
+	private void consume(final ByteBuffer buf, final int len) throws IOException {
+		if (sink != null) {
+			sink.write(buf, len);
+		} else if (spool != null) {
+			if (spool.write(buf, len) && !paused) {
+				// Disk slower than network, stop reading
+				paused = true;
+				deadline = 0L;
+				key.interestOps(0);
+			}
+		} else {
+			buf.position(buf.position() + len);
+		}
+	}
+
+	/**
+	 * Called by spool (in executor) when drained after a pause
+	 *
+	 * @param drained spool
+	 */
+	private void resume(final AsyncSink drained) {
+		loop.execute(() -> {
+			if ((spool == drained) && paused && channel.isOpen()) {
+				paused = false;
+				deadline = timeout(cli.readTimeoutMillis);
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		});
+	}
+
+	/**
+	 * Create destination of body: in memory if it fits, or spooled to the executor
+	 *
+	 * @param outFile to write or in memory if null
+	 */
+	private void openSink(final File outFile) {
+		if (outFile == null) {
+			sink = cli.newMemorySink(call.method, hdrs);
+			if (sink != null) {
+				return;
+			}
+		}
+		final Request.Method method = call.method;
+		final Map<String, List<String>> h = hdrs;
+		spool = new AsyncSink(cli, () -> cli.newContentSink(outFile, method, h), this::resume);
+	}
+
+	private String readLine(final ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			final char c = (char) (buf.get() & 0xFF);
+			if (c == '\n') {
+				int len = line.length();
+				if ((len > 0) && (line.charAt(len - 1) == '\r')) {
+					len--;
+				}
+				final String l = line.substring(0, len);
+				line.setLength(0);
+				return l;
+			}
+			if (line.length() >= MAX_LINE) {
+				throw new ProtocolException("Line too long");
+			}
+			line.append(c);
+		}
+		return null;
+	}
+
+	private void onLine(final String l) throws IOException {
+		switch (state) {
+			case STATUS:
+				statusLine = l;
+				status = HttpConnection.parseStatus(l);
+				hdrs = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+				hdrsCount = 0;
+				state = State.HEADERS;
+				break;
+			case HEADERS:
+				if (l.isEmpty()) {
+					onHeaders();
+					break;
+				}
+				if (++hdrsCount > MAX_HEADERS) {
+					throw new ProtocolException("Too many headers");
+				}
+				final int idx = l.indexOf(':');
+				if (idx > 0) {
+					hdrs.computeIfAbsent(l.substring(0, idx).trim(), k -> new ArrayList<>(1)) //
+							.add(l.substring(idx + 1).trim());
+				}
+				break;
+			case CHUNK_SIZE: {
+				final int ext = l.indexOf(';');
+				final String size = ((ext >= 0) ? l.substring(0, ext) : l).trim();
+				try {
+					remaining = Long.parseLong(size, 16);
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Invalid chunk size: " + l);
+				}
+				if (remaining < 0) {
+					throw new ProtocolException("Invalid chunk size: " + l);
+				}
+				state = ((remaining == 0) ? State.TRAILERS : State.CHUNK_DATA);
+				break;
+			}
+			case CHUNK_END:
+				if (!l.isEmpty()) {
+					throw new ProtocolException("Invalid chunk terminator");
+				}
+				state = State.CHUNK_SIZE;
+				break;
+			case TRAILERS:
+				if (l.isEmpty()) {
+					state = State.DONE;
+				}
+				break;
+			default:
+				throw new ProtocolException("Unexpected state: " + state);
+		}
+	}
+
+	private void onHeaders() throws IOException {
+		if ((status >= 100) && (status <= 199) && (status != 101)) {
+			// Skip interim responses (100 Continue, 102 Processing,...)
+			state = State.STATUS;
+			return;
+		}
+		final String connection = Headers.getValue(hdrs, "Connection");
+		if (statusLine.startsWith("HTTP/1.0")) {
+			keepAlive = "keep-alive".equalsIgnoreCase(connection);
+		} else {
+			keepAlive = !"close".equalsIgnoreCase(connection);
+		}
+		if (cli.followRedirects && NioTransport.isRedirect(status) //
+				&& (call.redirects < NioTransport.MAX_REDIRECTS)) {
+			final String location = Headers.getValue(hdrs, "Location");
+			if (location != null) {
+				final URL target = new URL(call.url, location);
+				if (target.getProtocol().equalsIgnoreCase(call.url.getProtocol())) {
+					redirect = target;
+				}
+			}
+		}
+		sink = null;
+		spool = null;
+		if (redirect != null) {
+			// Body discarded
+		} else if ((status >= 200) && (status <= 299)) {
+			openSink(call.outFile);
+		} else if (status == 304) {
+			// No body
+		} else {
+			openSink(null);
+		}
+		if (!call.method.resBody || (status == 204) || (status == 304) || (status == 101)) {
+			state = State.DONE;
+		} else if (Headers.isChunked(hdrs)) {
+			state = State.CHUNK_SIZE;
+		} else {
+			final String cl = Headers.getValue(hdrs, "Content-Length");
+			if (cl != null) {
+				try {
+					remaining = Long.parseLong(cl.trim());
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Invalid Content-Length: " + cl);
+				}
+				state = ((remaining > 0) ? State.BODY : State.DONE);
+			} else {
+				keepAlive = false;
+				state = State.UNTIL_CLOSE;
+			}
+		}
+	}
+
+	/**
+	 * Response completely readed
+	 *
+	 * @param leftover unexpected data after response
+	 * @throws IOException if error
+	 */
+	private void finish(final boolean leftover) throws IOException {
+		final Content body = ((sink != null) ? sink.finish() : Content.EMPTY);
+		final AsyncSink s = spool;
+		sink = null;
+		spool = null;
+		if (paused) {
+			paused = false;
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		final EventLoop.Call c = call;
+		final Map<String, List<String>> h = Collections.unmodifiableMap(hdrs);
+		call = null;
+		if (keepAlive && !leftover && (cli.keepAliveMillis > 0)) {
+			state = State.IDLE;
+			deadline = timeout(cli.keepAliveMillis);
+			loop.releaseIdle(this);
+		} else {
+			close();
+		}
+		if (redirect != null) {
+			final Request.Method method = NioTransport.redirectMethod(status, c.method);
+			if (method != c.method) {
+				c.method = method;
+				c.body = Content.EMPTY;
+			}
+			if (!HttpConnection.route(redirect).equals(HttpConnection.route(c.url))) {
+				c.address = null;
+			}
+			c.url = redirect;
+			c.redirects++;
+			loop.start(c);
+			return;
+		}
+		final Response.Code code = Response.Code.valueOf(status);
+		if (s != null) {
+			// Completed by executor when body is written
+			s.finish((content, ex) -> loop.complete(c, code, h, content, ex));
+			return;
+		}
+		loop.complete(c, code, h, body, null);
+	}
+
+	/**
+	 * Abort exchange (a stale reused connection is retried)
+	 *
+	 * @param e error
+	 */
+	void fail(final Exception e) {
+		final boolean connecting = (state == State.CONNECTING);
+		final boolean written = ((state != State.CONNECTING) && (state != State.WRITING));
+		close();
+		final EventLoop.Call c = call;
+		call = null;
+		if (c == null) {
+			return;
+		}
+		Exception error = e;
+		if (connecting && (e instanceof IOException)) {
+			if (c.trace != null) {
+				c.trace.connectFailed(c.address, (IOException) e);
+			}
+			if (c.nextAddress((IOException) e)) {
+				// Try other address of host
+				loop.start(c);
+				return;
+			}
+			error = c.connectError;
+		}
+		if (!received && (exchanges > 1) && (e instanceof IOException) //
+				&& !(e instanceof SocketTimeoutException) && (!written || c.method.idempotent)) {
+			// Stale persistent connection closed by peer, retry with other (a written request only if
+			// idempotent, the server may have processed it)
+			loop.start(c);
+			return;
+		}
+		final Map<String, List<String>> h = ((hdrs != null) ? Collections.unmodifiableMap(hdrs) : null);
+		loop.complete(c, Response.Code.valueOf(status), h, null, error);
+	}
+
+	private void releaseBodyBuffer() {
+		if (bodyBuf != null) {
+			BufferPool.DEFAULT.release(bodyBuf);
+			bodyBuf = null;
+		}
+	}
+
+	void close() {
+		if (state == State.IDLE) {
+			loop.removeIdle(this);
+		}
+		state = State.CLOSED;
+		deadline = 0L;
+		key.cancel();
+		IOUtil.closeSilent(channel);
+		if (address != null) {
+			cli.dns.closed(address);
+			address = null;
+		}
+		IOUtil.closeSilent(bodyIn);
+		bodyIn = null;
+		IOUtil.closeSilent(bodyFile);
+		bodyFile = null;
+		bodyBuffer = null;
+		releaseBodyBuffer();
+		if (sink != null) {
+			sink.abort();
+			sink = null;
+		}
+		if (spool != null) {
+			spool.abort();
+			spool = null;
+		}
+		paused = false;
+	}
+}
@@ -0,0 +1,219 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Response body of an {@link EventLoop} written by the client executor: the loop thread only copies
+ * data to a bounded queue, the {@link ContentSink} (output file, overflow to temporal file) is opened
+ * and written in the executor, so the loop never blocks on disk
+ */
+final class AsyncSink {
+	/**
+	 * Bytes queued before the loop stops reading (resumed at half)
+	 */
+	static final int MAX_QUEUED = 256 * 1024;
+
+	/**
+	 * Creator of sink (called in executor)
+	 */
+	interface Factory {
+		ContentSink open() throws IOException;
+	}
+
+	/**
+	 * Receiver of content when whole body is written
+	 */
+	interface Callback {
+		void done(Content content, IOException ex);
+	}
+
+	private final HttpClient cli;
+	private final Factory factory;
+	/**
+	 * Called (in executor) when queue is drained after a pause
+	 */
+	private final Consumer<AsyncSink> resume;
+	private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+	private int queued = 0;
+	private boolean running = false;
+	private boolean paused = false;
+	private boolean aborted = false;
+	private Callback callback = null;
+	// Confined to running task
+	private ContentSink sink = null;
+	private IOException error = null;
+	/**
+	 * Error of sink, visible to loop thread
+	 */
+	private volatile IOException failed = null;
+
+	AsyncSink(final HttpClient cli, final Factory factory, final Consumer<AsyncSink> resume) {
+		this.cli = cli;
+		this.factory = factory;
+		this.resume = resume;
+	}
+
+	/**
+	 * Queue copy of bytes to write
+	 *
+	 * @param src buffer, position is advanced
+	 * @param len length of data
+	 * @return true if queue is full (caller must stop reading until resumed)
+	 * @throws IOException if sink failed
+	 */
+	boolean write(final ByteBuffer src, int len) throws IOException {
+		final IOException e = failed;
+		if (e != null) {
+			throw e;
+		}
+		final boolean start;
+		final boolean full;
+		synchronized (this) {
+			while (len > 0) {
+				final byte[] buf = BufferPool.DEFAULT.acquire();
+				final int n = Math.min(len, buf.length);
+				src.get(buf, 0, n);
+				queue.add(ByteBuffer.wrap(buf, 0, n));
+				queued += n;
+				len -= n;
+			}
+			// Cleared only by drain, that resumes the loop
+			paused |= (queued > MAX_QUEUED);
+			full = paused;
+			start = !running;
+			running = true;
+		}
+		if (start) {
+			schedule();
+		}
+		return full;
+	}
+
+	/**
+	 * Finish writing when queue is drained
+	 *
+	 * @param callback receiver of content (called in executor)
+	 */
+	void finish(final Callback callback) {
+		final boolean start;
+		synchronized (this) {
+			this.callback = callback;
+			paused = false;
+			start = !running;
+			running = true;
+		}
+		if (start) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Discard content (queued data is dropped, the sink is aborted in executor)
+	 */
+	void abort() {
+		final boolean start;
+		synchronized (this) {
+			aborted = true;
+			paused = false;
+			callback = null;
+			start = !running;
+			running = true;
+		}
+		if (start) {
+			schedule();
+		}
+	}
+
+	private void schedule() {
+		try {
+			cli.getExecutor().execute(this::drain);
+		} catch (RejectedExecutionException e) {
+			drain();
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			final ByteBuffer chunk;
+			final Callback done;
+			boolean wake = false;
+			synchronized (this) {
+				if (aborted) {
+					discard();
+					break;
+				}
+				chunk = queue.poll();
+				done = ((chunk == null) ? callback : null);
+				if (chunk != null) {
+					queued -= chunk.remaining();
+					if (paused && (queued <= (MAX_QUEUED / 2))) {
+						paused = false;
+						wake = true;
+					}
+				} else if (done == null) {
+					running = false;
+					return;
+				}
+			}
+			if (wake) {
+				resume.accept(this);
+			}
+			if (chunk == null) {
+				complete(done);
+				return;
+			}
+			try {
+				if (error == null) {
+					if (sink == null) {
+						sink = factory.open();
+					}
+					sink.write(chunk.array(), chunk.position(), chunk.remaining());
+				}
+			} catch (IOException e) {
+				fail(e);
+			} finally {
+				BufferPool.DEFAULT.release(chunk.array());
+			}
+		}
+		if (sink != null) {
+			sink.abort();
+			sink = null;
+		}
+	}
+
+	private void discard() {
+		ByteBuffer chunk;
+		while ((chunk = queue.poll()) != null) {
+			BufferPool.DEFAULT.release(chunk.array());
+		}
+		queued = 0;
+	}
+
+	private void fail(final IOException e) {
+		error = failed = e;
+		if (sink != null) {
+			sink.abort();
+			sink = null;
+		}
+	}
+
+	private void complete(final Callback done) {
+		Content content = null;
+		if (error == null) {
+			try {
+				if (sink == null) {
+					sink = factory.open();
+				}
+				content = sink.finish();
+				sink = null;
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+		done.done(content, error);
+	}
+}
@@ -0,0 +1,184 @@
+package org.javastack.jhttpcli;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Execution of a set of requests with a global limit and a limit per host of requests in progress.
+ * Requests of each host are queued, hosts with free slots are served in round-robin so a slow host only
+ * holds its own slots
+ */
+final class Batch {
+	private final HttpClient cli;
+	private final int maxTotal;
+	private final int maxPerHost;
+	private final Listener listener;
+	private final Map<String, Host> hosts = new HashMap<>();
+	/**
+	 * Hosts with pending requests and free slots
+	 */
+	private final ArrayDeque<Host> ready = new ArrayDeque<>();
+	private final CompletableFuture<Void> future = new CompletableFuture<>();
+	private int active = 0;
+	private boolean dispatching = false;
+	private int remaining;
+	private Throwable error = null;
+
+	Batch(final HttpClient cli, final int maxTotal, final int maxPerHost, final List<Request> reqs, //
+			final Listener listener) {
+		this.cli = cli;
+		this.maxTotal = maxTotal;
+		this.maxPerHost = maxPerHost;
+		this.listener = listener;
+		this.remaining = reqs.size();
+		for (int i = 0; i < reqs.size(); i++) {
+			final Request req = reqs.get(i);
+			final String key = HttpConnection.route(req.url);
+			Host host = hosts.get(key);
+			if (host == null) {
+				host = new Host();
+				hosts.put(key, host);
+				host.queued = true;
+				ready.add(host);
+			}
+			host.pending.add(new Task(i, req));
+		}
+	}
+
+	/**
+	 * Start execution
+	 *
+	 * @return future completed when all requests are finished
+	 */
+	CompletableFuture<Void> start() {
+		if (remaining == 0) {
+			future.complete(null);
+		} else {
+			dispatch();
+		}
+		return future;
+	}
+
+	/**
+	 * Start requests while there are free slots (not reentrant: completions inline with start, like cache
+	 * hits, are picked up by the loop in progress)
+	 */
+	private void dispatch() {
+		synchronized (this) {
+			if (dispatching) {
+				return;
+			}
+			dispatching = true;
+		}
+		final List<Task> tasks = new ArrayList<>();
+		while (true) {
+			synchronized (this) {
+				while ((active < maxTotal) && !ready.isEmpty()) {
+					final Host host = ready.poll();
+					final Task task = host.pending.poll();
+					task.host = host;
+					host.active++;
+					active++;
+					tasks.add(task);
+					host.queued = (!host.pending.isEmpty() && (host.active < maxPerHost));
+					if (host.queued) {
+						ready.add(host);
+					}
+				}
+				if (tasks.isEmpty()) {
+					dispatching = false;
+					return;
+				}
+			}
+			for (final Task task : tasks) {
+				CompletableFuture<Response> f;
+				try {
+					f = cli.executeAsync(task.req);
+				} catch (RuntimeException e) {
+					f = new CompletableFuture<>();
+					f.completeExceptionally(e);
+				}
+				f.whenComplete((res, t) -> complete(task, res, t));
+			}
+			tasks.clear();
+		}
+	}
+
+	private void complete(final Task task, Response res, final Throwable t) {
+		if (t != null) {
+			final Throwable e = (((t instanceof CompletionException) && (t.getCause() != null)) //
+					? t.getCause() //
+					: t);
+			res = new Response(Response.Code.UNKNOWN, null, null, //
+					((e instanceof Exception) ? (Exception) e : new CompletionException(e)));
+		}
+		try {
+			listener.completed(task.index, task.req, res);
+		} catch (Throwable e) {
+			synchronized (this) {
+				if (error == null) {
+					error = e;
+				}
+			}
+		}
+		final boolean finished;
+		synchronized (this) {
+			final Host host = task.host;
+			host.active--;
+			active--;
+			if (!host.queued && !host.pending.isEmpty()) {
+				host.queued = true;
+				ready.add(host);
+			}
+			finished = (--remaining == 0);
+		}
+		if (finished) {
+			if (error != null) {
+				future.completeExceptionally(error);
+			} else {
+				future.complete(null);
+			}
+		} else {
+			dispatch();
+		}
+	}
+
+	/**
+	 * Receive each finished request
+	 */
+	interface Listener {
+		/**
+		 * Request finished
+		 *
+		 * @param index of request in batch
+		 * @param req executed
+		 * @param res response
+		 */
+		void completed(int index, Request req, Response res);
+	}
+
+	private static final class Host {
+		final ArrayDeque<Task> pending = new ArrayDeque<>();
+		int active = 0;
+		/**
+		 * Is in ready queue?
+		 */
+		boolean queued = false;
+	}
+
+	private static final class Task {
+		final int index;
+		final Request req;
+		Host host;
+
+		Task(final int index, final Request req) {
+			this.index = index;
+			this.req = req;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package org.javastack.jhttpcli;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of reusable I/O buffers, striped by thread and bounded in total bytes
+ */
+final class BufferPool {
+	private static final int SLOTS_PER_STRIPE = 4;
+	private static final int DIRECT_SIZE = 256 * 1024;
+	private static final int DIRECT_MAX = 32;
+
+	/**
+	 * Pool shared by the whole library
+	 */
+	static final BufferPool DEFAULT = new BufferPool(8192, 8L * 1024 * 1024);
+
+	private final int stripeMask;
+	private final AtomicReferenceArray<byte[]> slots;
+	private final AtomicLong pooledBytes = new AtomicLong();
+	private final ConcurrentLinkedQueue<ByteBuffer> direct = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger directCount = new AtomicInteger();
+	private volatile int bufferSize;
+	private volatile long maxBytes;
+
+	BufferPool(final int bufferSize, final long maxBytes) {
+		int stripes = 1;
+		while (stripes < (Runtime.getRuntime().availableProcessors() * 2)) {
+			stripes <<= 1;
+		}
+		this.stripeMask = stripes - 1;
+		this.slots = new AtomicReferenceArray<>(stripes * SLOTS_PER_STRIPE);
+		this.bufferSize = bufferSize;
+		this.maxBytes = maxBytes;
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Set size of buffers (buffers of previous size are discarded)
+	 *
+	 * @param size in bytes
+	 */
+	void setBufferSize(final int size) {
+		if (size <= 0) {
+			throw new IllegalArgumentException("invalid size: " + size);
+		}
+		this.bufferSize = size;
+	}
+
+	/**
+	 * Set max bytes retained in pool
+	 *
+	 * @param max bytes
+	 */
+	void setMaxBytes(final long max) {
+		this.maxBytes = max;
+	}
+
+	private int stripe() {
+		final long id = Thread.currentThread().getId();
+		final int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((h ^ (h >>> 16)) & stripeMask) * SLOTS_PER_STRIPE;
+	}
+
+	/**
+	 * Get a buffer from pool or allocate a new one
+	 *
+	 * @return buffer of configured size
+	 */
+	byte[] acquire() {
+		final int size = bufferSize;
+		final int base = stripe();
+		for (int i = 0; i < SLOTS_PER_STRIPE; i++) {
+			if (slots.get(base + i) == null) {
+				continue;
+			}
+			final byte[] buf = slots.getAndSet(base + i, null);
+			if (buf != null) {
+				pooledBytes.addAndGet(-buf.length);
+				if (buf.length == size) {
+					return buf;
+				}
+			}
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Return buffer to pool (discarded if pool is full or size changed)
+	 *
+	 * @param buf to release
+	 */
+	void release(final byte[] buf) {
+		if ((buf == null) || (buf.length != bufferSize)) {
+			return;
+		}
+		if ((pooledBytes.get() + buf.length) > maxBytes) {
+			return;
+		}
+		final int base = stripe();
+		for (int i = 0; i < SLOTS_PER_STRIPE; i++) {
+			if (slots.compareAndSet(base + i, null, buf)) {
+				pooledBytes.addAndGet(buf.length);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Get a large direct buffer (for channel to channel transfers) from pool or allocate a new one
+	 *
+	 * @return cleared direct buffer
+	 */
+	ByteBuffer acquireDirect() {
+		final ByteBuffer buf = direct.poll();
+		if (buf != null) {
+			directCount.decrementAndGet();
+			buf.clear();
+			return buf;
+		}
+		return ByteBuffer.allocateDirect(DIRECT_SIZE);
+	}
+
+	/**
+	 * Return direct buffer to pool (discarded if pool is full)
+	 *
+	 * @param buf to release
+	 */
+	void releaseDirect(final ByteBuffer buf) {
+		if ((buf == null) || !buf.isDirect()) {
+			return;
+		}
+		if (directCount.incrementAndGet() > DIRECT_MAX) {
+			directCount.decrementAndGet();
+			return;
+		}
+		direct.offer(buf);
+	}
+}
@@ -0,0 +1,61 @@
+package org.javastack.jhttpcli;
+
+/**
+ * Snapshot of response cache statistics
+ *
+ * @see HttpCache#getStats()
+ */
+public class CacheStats {
+	/**
+	 * Requests served from cache without contacting the server
+	 */
+	public final long hits;
+	/**
+	 * Requests without usable entry in cache
+	 */
+	public final long misses;
+	/**
+	 * Conditional requests sent to revalidate stale entries
+	 */
+	public final long revalidations;
+	/**
+	 * Revalidations answered with 304 Not Modified (served from cache)
+	 */
+	public final long notModified;
+	/**
+	 * Entries in memory tier
+	 */
+	public final int memoryEntries;
+	/**
+	 * Bytes of bodies in memory tier
+	 */
+	public final long memoryBytes;
+	/**
+	 * Entries in disk tier
+	 */
+	public final int diskEntries;
+	/**
+	 * Bytes of bodies in disk tier
+	 */
+	public final long diskBytes;
+
+	CacheStats(final long hits, final long misses, final long revalidations, final long notModified, //
+			final int memoryEntries, final long memoryBytes, final int diskEntries, final long diskBytes) {
+		this.hits = hits;
+		this.misses = misses;
+		this.revalidations = revalidations;
+		this.notModified = notModified;
+		this.memoryEntries = memoryEntries;
+		this.memoryBytes = memoryBytes;
+		this.diskEntries = diskEntries;
+		this.diskBytes = diskBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats[hits=" + hits + ", misses=" + misses + ", revalidations=" + revalidations //
+				+ ", notModified=" + notModified + ", memoryEntries=" + memoryEntries //
+				+ ", memoryBytes=" + memoryBytes + ", diskEntries=" + diskEntries //
+				+ ", diskBytes=" + diskBytes + "]";
+	}
+}
@@ -0,0 +1,338 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker per host (scheme://host:port). Outcomes of last calls are kept in a rolling window, when
+ * the rate of failures (errors of connection and 5xx responses) or slow calls reach a threshold the circuit
+ * opens and requests fail immediately with {@link OpenException}. After a wait, a few calls are let through
+ * (half-open): if they succeed the circuit closes, otherwise it opens again. Settings are read when the
+ * state of a host is created, configure before use
+ *
+ * @see HttpClient#setCircuitBreaker(CircuitBreaker)
+ */
+public class CircuitBreaker {
+	private static final int MAX_HOSTS = 4096;
+	private static final byte FAILURE = 1;
+	private static final byte SLOW = 2;
+
+	private volatile int windowSize = 100;
+	private volatile int minimumCalls = 20;
+	private volatile int failureRateThreshold = 50;
+	private volatile int slowCallRateThreshold = 100;
+	private volatile long slowCallNanos = TimeUnit.SECONDS.toNanos(60);
+	private volatile long openMillis = 30_000;
+	private volatile int halfOpenCalls = 5;
+	private volatile Listener listener = null;
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * Set rolling window: outcomes of last calls evaluated and min calls in window before evaluate
+	 * (default: 100, 20)
+	 *
+	 * @param size calls in window
+	 * @param minimum calls to evaluate
+	 * @return this
+	 */
+	public CircuitBreaker setWindow(final int size, final int minimum) {
+		this.windowSize = Math.max(1, size);
+		this.minimumCalls = Math.max(1, Math.min(minimum, this.windowSize));
+		return this;
+	}
+
+	/**
+	 * Set percentage of failed calls that opens the circuit (default: 50)
+	 *
+	 * @param percent 1-100
+	 * @return this
+	 */
+	public CircuitBreaker setFailureRateThreshold(final int percent) {
+		this.failureRateThreshold = Math.max(1, Math.min(100, percent));
+		return this;
+	}
+
+	/**
+	 * Set slow calls: duration and percentage of calls slower than duration that opens the circuit
+	 * (default: 60s, 100)
+	 *
+	 * @param millis duration of a slow call
+	 * @param percent 1-100
+	 * @return this
+	 */
+	public CircuitBreaker setSlowCall(final long millis, final int percent) {
+		this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+		this.slowCallRateThreshold = Math.max(1, Math.min(100, percent));
+		return this;
+	}
+
+	/**
+	 * Set time the circuit stays open before try calls again (default: 30s)
+	 *
+	 * @param millis open
+	 * @return this
+	 */
+	public CircuitBreaker setOpenMs(final long millis) {
+		this.openMillis = Math.max(0, millis);
+		return this;
+	}
+
+	/**
+	 * Set calls allowed in half-open state, all must finish to decide the next state (default: 5)
+	 *
+	 * @param calls trial
+	 * @return this
+	 */
+	public CircuitBreaker setHalfOpenCalls(final int calls) {
+		this.halfOpenCalls = Math.max(1, calls);
+		return this;
+	}
+
+	/**
+	 * Set listener of state changes (invoked in the thread of the call that changes the state)
+	 *
+	 * @param listener or null
+	 * @return this
+	 */
+	public CircuitBreaker setListener(final Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Get state of circuit of a host
+	 *
+	 * @param url of host
+	 * @return state (CLOSED if never called)
+	 */
+	public State getState(final URL url) {
+		final Host host = hosts.get(HttpConnection.route(url));
+		if (host == null) {
+			return State.CLOSED;
+		}
+		synchronized (host) {
+			return host.state;
+		}
+	}
+
+	/**
+	 * Acquire permission of call
+	 *
+	 * @param url destination
+	 * @return null if allowed or failed response if circuit is open
+	 */
+	Response acquire(final URL url) {
+		final String route = HttpConnection.route(url);
+		final Host host = host(route);
+		State from = null;
+		final boolean allowed;
+		synchronized (host) {
+			if ((host.state == State.OPEN) && ((System.nanoTime() - host.openedAt) >= //
+					TimeUnit.MILLISECONDS.toNanos(openMillis))) {
+				from = host.transition(State.HALF_OPEN);
+			}
+			if (host.state == State.CLOSED) {
+				allowed = true;
+			} else if ((host.state == State.HALF_OPEN) && (host.permits > 0)) {
+				host.permits--;
+				allowed = true;
+			} else {
+				allowed = false;
+			}
+		}
+		if (from != null) {
+			notify(route, from, State.HALF_OPEN);
+		}
+		if (allowed) {
+			return null;
+		}
+		return new Response(Response.Code.UNKNOWN, null, null, new OpenException(route));
+	}
+
+	/**
+	 * Record outcome of an allowed call
+	 *
+	 * @param url destination
+	 * @param res response
+	 * @param nanos duration
+	 */
+	void record(final URL url, final Response res, final long nanos) {
+		if (res.exception instanceof OpenException) {
+			return;
+		}
+		final String route = HttpConnection.route(url);
+		final Host host = host(route);
+		final byte outcome = (byte) ((isFailure(res) ? FAILURE : 0) | ((nanos >= slowCallNanos) ? SLOW : 0));
+		State from = null;
+		State to = null;
+		synchronized (host) {
+			if (host.state == State.OPEN) {
+				// Call started before open
+				return;
+			}
+			host.add(outcome);
+			if (host.state == State.CLOSED) {
+				if ((host.count >= minimumCalls) && host.isOverThreshold()) {
+					to = State.OPEN;
+				}
+			} else if (host.count >= host.window.length) {
+				to = (host.isOverThreshold() ? State.OPEN : State.CLOSED);
+			}
+			if (to != null) {
+				from = host.transition(to);
+			}
+		}
+		if (from != null) {
+			notify(route, from, to);
+		}
+	}
+
+	/**
+	 * Allowed call not sent (returns a half-open permit)
+	 *
+	 * @param url destination
+	 */
+	void cancel(final URL url) {
+		final Host host = hosts.get(HttpConnection.route(url));
+		if (host != null) {
+			synchronized (host) {
+				if (host.state == State.HALF_OPEN) {
+					host.permits++;
+				}
+			}
+		}
+	}
+
+	private Host host(final String route) {
+		Host host = hosts.get(route);
+		if (host == null) {
+			if (hosts.size() >= MAX_HOSTS) {
+				hosts.values().removeIf(h -> h.isIdle());
+			}
+			host = hosts.computeIfAbsent(route, k -> new Host());
+		}
+		return host;
+	}
+
+	private void notify(final String route, final State from, final State to) {
+		final Listener l = listener;
+		if (l != null) {
+			try {
+				l.stateChanged(route, from, to);
+			} catch (RuntimeException e) {
+				// Listener does not break requests
+			}
+		}
+	}
+
+	private static boolean isFailure(final Response res) {
+		return (RetryPolicy.isTransportError(res) || (res.code.code >= 500));
+	}
+
+	/**
+	 * State of circuit
+	 */
+	public static enum State {
+		/**
+		 * Calls allowed, outcomes recorded
+		 */
+		CLOSED,
+		/**
+		 * Calls rejected
+		 */
+		OPEN,
+		/**
+		 * Limited calls allowed to test the host
+		 */
+		HALF_OPEN
+	}
+
+	/**
+	 * Receive state changes of circuits
+	 */
+	@FunctionalInterface
+	public static interface Listener {
+		/**
+		 * State of circuit of a host changed
+		 *
+		 * @param host scheme://host:port
+		 * @param from previous state
+		 * @param to new state
+		 */
+		void stateChanged(String host, State from, State to);
+	}
+
+	/**
+	 * Request rejected without being sent because circuit is open
+	 */
+	public static class OpenException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		OpenException(final String host) {
+			super("Circuit open: " + host);
+		}
+	}
+
+	/**
+	 * State of a host (guarded by itself)
+	 */
+	private final class Host {
+		State state = State.CLOSED;
+		/**
+		 * Outcomes of calls (ring), in half-open only the trial calls
+		 */
+		byte[] window = new byte[windowSize];
+		int pos = 0;
+		int count = 0;
+		int failures = 0;
+		int slows = 0;
+		long openedAt = 0;
+		int permits = 0;
+
+		void add(final byte outcome) {
+			if (count == window.length) {
+				final byte old = window[pos];
+				failures -= (old & FAILURE);
+				slows -= ((old & SLOW) >> 1);
+			} else {
+				count++;
+			}
+			window[pos] = outcome;
+			pos = ((pos + 1) % window.length);
+			failures += (outcome & FAILURE);
+			slows += ((outcome & SLOW) >> 1);
+		}
+
+		boolean isOverThreshold() {
+			return ((failures * 100 >= failureRateThreshold * count) //
+					|| (slows * 100 >= slowCallRateThreshold * count));
+		}
+
+		/**
+		 * Change state and reset window
+		 *
+		 * @param to new state
+		 * @return previous state
+		 */
+		State transition(final State to) {
+			final State from = state;
+			state = to;
+			window = new byte[(to == State.HALF_OPEN) ? halfOpenCalls : windowSize];
+			pos = 0;
+			count = 0;
+			failures = 0;
+			slows = 0;
+			permits = ((to == State.HALF_OPEN) ? halfOpenCalls : 0);
+			if (to == State.OPEN) {
+				openedAt = System.nanoTime();
+			}
+			return from;
+		}
+
+		synchronized boolean isIdle() {
+			return ((state == State.CLOSED) && (failures == 0));
+		}
+	}
+}
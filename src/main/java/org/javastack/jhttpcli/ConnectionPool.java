@@ -0,0 +1,366 @@
+package org.javastack.jhttpcli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of persistent connections with limits per host and total, idle eviction and fair waiting
+ */
+final class ConnectionPool implements Closeable {
+	private final NioTransport transport;
+	private final HttpClient cli;
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final HashMap<String, RoutePool> routes = new HashMap<>();
+	private final LinkedList<Waiter> pending = new LinkedList<>();
+	private int leased = 0;
+	private int idle = 0;
+	private long created = 0;
+	private long evicted = 0;
+	private long lastEviction = 0;
+	private boolean closed = false;
+
+	ConnectionPool(final NioTransport transport) {
+		this.transport = transport;
+		this.cli = transport.cli;
+	}
+
+	/**
+	 * Get an idle connection to destination or open a new one, waiting if limits are reached. Idle
+	 * connections are validated after leased, outside of lock (validation does syscalls)
+	 *
+	 * @param url destination
+	 * @return connection
+	 * @throws IOException if error or timeout
+	 */
+	HttpConnection lease(final URL url) throws IOException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cli.poolTimeoutMillis);
+		while (true) {
+			final HttpConnection conn = lease(url, deadline);
+			if ((conn.exchanges == 0) //
+					|| ((System.currentTimeMillis() - conn.lastUsed) < cli.validateAfterInactivityMillis) //
+					|| !conn.isStale()) {
+				return conn;
+			}
+			evict(conn);
+		}
+	}
+
+	private HttpConnection lease(final URL url, final long deadline) throws IOException {
+		final String route = HttpConnection.route(url);
+		final List<HttpConnection> discarded = new ArrayList<>();
+		HttpConnection conn = null;
+		Waiter waiter = null;
+		long timeout = deadline - System.nanoTime();
+		lock.lock();
+		try {
+			while (true) {
+				if (closed) {
+					throw new IOException("Connection pool closed");
+				}
+				evictExpired(discarded);
+				final RoutePool rp = routes.computeIfAbsent(route, RoutePool::new);
+				if (!hasWaiterAhead(route, waiter)) {
+					conn = pollIdle(rp, discarded);
+					if (conn != null) {
+						break;
+					}
+					if (rp.leased < cli.maxConnPerHost) {
+						if ((leased + idle) >= cli.maxConnTotal) {
+							closeOldestIdle(discarded);
+						}
+						if ((leased + idle) < cli.maxConnTotal) {
+							// Reserve slot, connection will be opened outside of lock
+							rp.leased++;
+							leased++;
+							break;
+						}
+					}
+				}
+				if (waiter == null) {
+					waiter = new Waiter(route, lock.newCondition());
+					pending.addLast(waiter);
+				}
+				if (timeout <= 0L) {
+					throw new SocketTimeoutException("Timeout waiting for connection from pool");
+				}
+				try {
+					timeout = waiter.cond.awaitNanos(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for connection from pool");
+				}
+			}
+		} finally {
+			if (waiter != null) {
+				pending.remove(waiter);
+				signalNext();
+			}
+			lock.unlock();
+			discarded.forEach(HttpConnection::close);
+		}
+		if (conn != null) {
+			return conn;
+		}
+		try {
+			conn = HttpConnection.open(transport, url);
+		} catch (IOException | RuntimeException e) {
+			lock.lock();
+			try {
+				unreserve(route);
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+		lock.lock();
+		try {
+			created++;
+			conn.leased = true;
+		} finally {
+			lock.unlock();
+		}
+		return conn;
+	}
+
+	/**
+	 * Return connection to pool (or close it if not reusable)
+	 *
+	 * @param conn to release
+	 */
+	void release(final HttpConnection conn) {
+		boolean close = true;
+		lock.lock();
+		try {
+			if (!conn.leased) {
+				return;
+			}
+			conn.leased = false;
+			final long now = System.currentTimeMillis();
+			final RoutePool rp = routes.get(conn.route);
+			if (rp == null) {
+				// Should never happen
+				return;
+			}
+			rp.leased--;
+			leased--;
+			if (!closed && conn.keepAlive && conn.isOpen() && !isExpired(conn, now)) {
+				conn.lastUsed = now;
+				rp.idle.addFirst(conn);
+				idle++;
+				close = false;
+			} else if (rp.isUnused()) {
+				routes.remove(rp.route);
+			}
+			signalNext();
+		} finally {
+			lock.unlock();
+			if (close) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Close a leased connection that failed validation, freeing its slot
+	 *
+	 * @param conn stale
+	 */
+	private void evict(final HttpConnection conn) {
+		lock.lock();
+		try {
+			conn.leased = false;
+			evicted++;
+			unreserve(conn.route);
+		} finally {
+			lock.unlock();
+		}
+		conn.close();
+	}
+
+	private void unreserve(final String route) {
+		final RoutePool rp = routes.get(route);
+		if (rp != null) {
+			rp.leased--;
+			leased--;
+			if (rp.isUnused()) {
+				routes.remove(route);
+			}
+		}
+		signalNext();
+	}
+
+	private HttpConnection pollIdle(final RoutePool rp, final List<HttpConnection> discarded) {
+		final long now = System.currentTimeMillis();
+		HttpConnection conn;
+		while ((conn = rp.idle.pollFirst()) != null) {
+			idle--;
+			if (isExpired(conn, now) || !conn.isOpen()) {
+				evicted++;
+				discarded.add(conn);
+				continue;
+			}
+			rp.leased++;
+			leased++;
+			conn.leased = true;
+			return conn;
+		}
+		return null;
+	}
+
+	private boolean isExpired(final HttpConnection conn, final long now) {
+		return ((now - conn.lastUsed) >= cli.keepAliveMillis) //
+				|| ((cli.connTimeToLiveMillis > 0) && ((now - conn.created) >= cli.connTimeToLiveMillis));
+	}
+
+	private boolean hasWaiterAhead(final String route, final Waiter waiter) {
+		for (final Waiter w : pending) {
+			if (w == waiter) {
+				return false;
+			}
+			if (w.route.equals(route)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void signalNext() {
+		// Wake up first waiter of each route (FIFO), they recheck the limits
+		final ArrayList<String> signaled = new ArrayList<>();
+		for (final Waiter w : pending) {
+			if (!signaled.contains(w.route)) {
+				signaled.add(w.route);
+				w.cond.signal();
+			}
+		}
+	}
+
+	private void closeOldestIdle(final List<HttpConnection> discarded) {
+		HttpConnection oldest = null;
+		RoutePool oldestRoute = null;
+		for (final RoutePool rp : routes.values()) {
+			final HttpConnection conn = rp.idle.peekLast();
+			if ((conn != null) && ((oldest == null) || (conn.lastUsed < oldest.lastUsed))) {
+				oldest = conn;
+				oldestRoute = rp;
+			}
+		}
+		if (oldest != null) {
+			oldestRoute.idle.pollLast();
+			idle--;
+			evicted++;
+			discarded.add(oldest);
+		}
+	}
+
+	private void evictExpired(final List<HttpConnection> discarded) {
+		final long now = System.currentTimeMillis();
+		if ((now - lastEviction) < 1000L) {
+			return;
+		}
+		lastEviction = now;
+		final Iterator<RoutePool> it = routes.values().iterator();
+		while (it.hasNext()) {
+			final RoutePool rp = it.next();
+			final Iterator<HttpConnection> itc = rp.idle.iterator();
+			while (itc.hasNext()) {
+				final HttpConnection conn = itc.next();
+				if (isExpired(conn, now) || !conn.isOpen()) {
+					itc.remove();
+					idle--;
+					evicted++;
+					discarded.add(conn);
+				}
+			}
+			if (rp.isUnused()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Close idle connections expired
+	 */
+	void evictExpired() {
+		final List<HttpConnection> discarded = new ArrayList<>();
+		lock.lock();
+		try {
+			lastEviction = 0;
+			evictExpired(discarded);
+		} finally {
+			lock.unlock();
+		}
+		discarded.forEach(HttpConnection::close);
+	}
+
+	/**
+	 * Get statistics
+	 *
+	 * @return snapshot of stats
+	 */
+	PoolStats getStats() {
+		lock.lock();
+		try {
+			return new PoolStats(leased, idle, pending.size(), cli.maxConnTotal, created, evicted);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Close all idle connections, leased connections are closed on release
+	 */
+	@Override
+	public void close() {
+		final List<HttpConnection> discarded = new ArrayList<>();
+		lock.lock();
+		try {
+			closed = true;
+			for (final RoutePool rp : routes.values()) {
+				discarded.addAll(rp.idle);
+				idle -= rp.idle.size();
+				rp.idle.clear();
+			}
+			pending.forEach(w -> w.cond.signal());
+		} finally {
+			lock.unlock();
+		}
+		discarded.forEach(HttpConnection::close);
+	}
+
+	private static final class RoutePool {
+		final String route;
+		final ArrayDeque<HttpConnection> idle = new ArrayDeque<>();
+		int leased = 0;
+
+		RoutePool(final String route) {
+			this.route = route;
+		}
+
+		boolean isUnused() {
+			return (leased == 0) && idle.isEmpty();
+		}
+	}
+
+	private static final class Waiter {
+		final String route;
+		final Condition cond;
+
+		Waiter(final String route, final Condition cond) {
+			this.route = route;
+			this.cond = cond;
+		}
+	}
+}
@@ -10,8 +10,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**
@@ -29,23 +33,46 @@ public class Content {
 	public final Content.Type type;
 	private final byte[] buf;
 	private final File file;
+	private final ByteBuffer bb;
+	/**
+	 * Array shared with other contents (read-only, not cleared on delete)
+	 */
+	private final boolean shared;
+	/**
+	 * Memory reserved from budget of client, returned on delete
+	 */
+	volatile MemoryBudget.Lease lease = null;
 
 	private Content() {
 		this.type = Type.MEMORY;
 		this.buf = null;
 		this.file = null;
+		this.bb = null;
+		this.shared = false;
 	}
 
-	private Content(final byte[] buf) {
+	private Content(final byte[] buf, final boolean shared) {
 		this.type = Type.MEMORY;
 		this.buf = buf;
 		this.file = null;
+		this.bb = null;
+		this.shared = shared;
 	}
 
 	private Content(final File file) {
 		this.type = Type.FILE;
 		this.buf = null;
 		this.file = file;
+		this.bb = null;
+		this.shared = false;
+	}
+
+	private Content(final Content.Type type, final File file, final ByteBuffer bb) {
+		this.type = type;
+		this.buf = null;
+		this.file = file;
+		this.bb = bb.asReadOnlyBuffer();
+		this.shared = false;
 	}
 
 	/**
@@ -62,6 +89,9 @@ public class Content {
 				return ((buf != null) ? buf.length : 0);
 			case FILE:
 				return ((file != null) ? file.length() : 0);
+			case MAPPED:
+			case DIRECT:
+				return bb.remaining();
 		}
 		throw new IllegalArgumentException("invalid type: " + type);
 	}
@@ -80,21 +110,33 @@ public class Content {
 				return ((buf == null) || (buf.length == 0));
 			case FILE:
 				return ((file == null) || (file.length() <= 0));
+			case MAPPED:
+			case DIRECT:
+				return !bb.hasRemaining();
 		}
 		throw new IllegalArgumentException("invalid type: " + type);
 	}
 
 	/**
-	 * Delete content and remove backed file from disk if content is persistent
+	 * Delete content and remove backed file from disk if content is persistent (off-heap memory is
+	 * released by GC), memory reserved from budget of client is returned
 	 */
 	public void delete() {
+		final MemoryBudget.Lease l = lease;
+		if (l != null) {
+			lease = null;
+			l.release();
+		}
 		switch (type) {
 			case MEMORY:
-				if ((buf != null) && (buf.length > 0)) {
+				if ((buf != null) && (buf.length > 0) && !shared) {
 					Arrays.fill(buf, (byte) 0);
 				}
 				break;
-			case FILE: {
+			case DIRECT:
+				break;
+			case FILE:
+			case MAPPED: {
 				if (file != null) {
 					try {
 						file.delete();
@@ -121,10 +163,80 @@ public class Content {
 				return new ByteArrayInputStream(buf);
 			case FILE:
 				return new BufferedInputStream(new FileInputStream(file), 4096);
+			case MAPPED:
+			case DIRECT:
+				return new ByteBufferInputStream(bb.duplicate());
 		}
 		throw new IllegalArgumentException("invalid type: " + type);
 	}
 
+	/**
+	 * Get read-only ByteBuffer view of content, without copy for MEMORY, MAPPED and DIRECT (FILE is
+	 * mapped in memory)
+	 * 
+	 * @return buffer with position zero and limit the size of content
+	 * @throws IOException if error
+	 */
+	public ByteBuffer asByteBuffer() throws IOException {
+		if (isEmpty()) {
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		}
+		switch (type) {
+			case MEMORY:
+				return ByteBuffer.wrap(buf).asReadOnlyBuffer();
+			case FILE:
+				return mapFile(file);
+			case MAPPED:
+			case DIRECT:
+				return bb.duplicate();
+		}
+		throw new IllegalArgumentException("invalid type: " + type);
+	}
+
+	/**
+	 * Get file backing the content
+	 * 
+	 * @return file or null if not FILE or MAPPED
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Get a MAPPED content from a FILE content (the file is the same)
+	 * 
+	 * @return mapped content or this if not FILE type
+	 * @throws IOException if error
+	 */
+	public Content map() throws IOException {
+		if (type != Type.FILE) {
+			return this;
+		}
+		return fromMappedFile(file);
+	}
+
+	/**
+	 * Open channel to backed file (only FILE and MAPPED types)
+	 * 
+	 * @return channel for read
+	 * @throws IOException if error
+	 */
+	FileChannel openChannel() throws IOException {
+		if (!hasFile()) {
+			throw new IllegalArgumentException("invalid type: " + type);
+		}
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Is content backed by a file?
+	 * 
+	 * @return true if FILE or MAPPED
+	 */
+	boolean hasFile() {
+		return ((type == Type.FILE) || (type == Type.MAPPED));
+	}
+
 	/**
 	 * Write content to outputstream
 	 * 
@@ -144,6 +256,21 @@ public class Content {
 					IOUtil.transfer(is, os);
 				}
 				return;
+			case MAPPED:
+			case DIRECT: {
+				final ByteBuffer src = bb.duplicate();
+				final byte[] tmp = BufferPool.DEFAULT.acquire();
+				try {
+					while (src.hasRemaining()) {
+						final int len = Math.min(tmp.length, src.remaining());
+						src.get(tmp, 0, len);
+						os.write(tmp, 0, len);
+					}
+				} finally {
+					BufferPool.DEFAULT.release(tmp);
+				}
+				return;
+			}
 		}
 		throw new IllegalArgumentException("invalid type: " + type);
 	}
@@ -158,6 +285,40 @@ public class Content {
 		return new Content(file);
 	}
 
+	/**
+	 * Content of a file mapped in memory (read-only)
+	 * 
+	 * @param file backed file
+	 * @return reference object
+	 * @throws IOException if error
+	 */
+	public static Content fromMappedFile(final File file) throws IOException {
+		return new Content(Type.MAPPED, file, mapFile(file));
+	}
+
+	/**
+	 * Wrapper content of a ByteBuffer (remaining bytes), stored off-heap: direct buffers are not copied,
+	 * heap buffers are copied to a new direct buffer
+	 * 
+	 * @param value buffer
+	 * @return reference object
+	 */
+	public static Content fromByteBuffer(final ByteBuffer value) {
+		ByteBuffer bb = value.slice();
+		if (!bb.isDirect()) {
+			final ByteBuffer copy = ByteBuffer.allocateDirect(bb.remaining());
+			copy.put(bb).flip();
+			bb = copy;
+		}
+		return new Content(Type.DIRECT, null, bb);
+	}
+
+	private static MappedByteBuffer mapFile(final File file) throws IOException {
+		try (final FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+		}
+	}
+
 	/**
 	 * Wrapper content of a byte array
 	 * 
@@ -165,7 +326,17 @@ public class Content {
 	 * @return reference object
 	 */
 	public static Content fromBytes(final byte[] value) {
-		return new Content(value);
+		return new Content(value, false);
+	}
+
+	/**
+	 * Content of an array shared by many contents, without copy (never modified)
+	 * 
+	 * @param value array
+	 * @return reference object
+	 */
+	static Content fromSharedBytes(final byte[] value) {
+		return new Content(value, true);
 	}
 
 	/**
@@ -176,7 +347,7 @@ public class Content {
 	 * @return reference object
 	 */
 	public static Content fromString(final String value, final Charset cs) {
-		return new Content(value.getBytes(cs));
+		return new Content(value.getBytes(cs), false);
 	}
 
 	/**
@@ -214,15 +385,19 @@ public class Content {
 			case MEMORY:
 				return new String(buf, cs);
 			case FILE:
-				try (final FileInputStream is = new FileInputStream(file)) {
-					final long size = file.length();
-					if (size > Integer.MAX_VALUE) {
-						throw new BufferOverflowException();
+				// Streaming decode, a mapping is limited to 2GB and kept until GC
+				try (final InputStreamReader r = new InputStreamReader(getInputStream(), cs)) {
+					final StringBuilder sb = new StringBuilder((int) Math.min(size(), 1024 * 1024));
+					final char[] cbuf = new char[8192];
+					int len;
+					while ((len = r.read(cbuf)) != -1) {
+						sb.append(cbuf, 0, len);
 					}
-					final int len = (int) size;
-					is.read(buf, 0, len);
-					return new String(buf, 0, len, cs);
+					return sb.toString();
 				}
+			case MAPPED:
+			case DIRECT:
+				return cs.decode(asByteBuffer()).toString();
 		}
 		throw new IllegalArgumentException("invalid type: " + type);
 	}
@@ -280,6 +455,55 @@ public class Content {
 		/**
 		 * File stored content
 		 */
-		FILE;
+		FILE,
+		/**
+		 * File stored content mapped in memory (read-only {@link MappedByteBuffer})
+		 */
+		MAPPED,
+		/**
+		 * Off-heap memory content (direct {@link ByteBuffer})
+		 */
+		DIRECT;
+	}
+
+	/**
+	 * InputStream over a ByteBuffer
+	 */
+	private static final class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer src;
+
+		ByteBufferInputStream(final ByteBuffer src) {
+			this.src = src;
+		}
+
+		@Override
+		public int read() {
+			return (src.hasRemaining() ? (src.get() & 0xFF) : -1);
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!src.hasRemaining()) {
+				return -1;
+			}
+			final int n = Math.min(len, src.remaining());
+			src.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) {
+			final int k = (int) Math.max(0, Math.min(n, src.remaining()));
+			src.position(src.position() + k);
+			return k;
+		}
+
+		@Override
+		public int available() {
+			return src.remaining();
+		}
 	}
 }
\ No newline at end of file
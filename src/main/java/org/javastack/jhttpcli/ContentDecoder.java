@@ -0,0 +1,304 @@
+package org.javastack.jhttpcli;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Push decoder of compressed content (gzip / deflate), bytes are decoded as they are received
+ */
+final class ContentDecoder {
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	private final boolean gzip;
+	private final CRC32 crc = new CRC32();
+	/**
+	 * Scratch of header and trailer bytes
+	 */
+	private final byte[] head = new byte[10];
+	private Inflater inflater = null;
+	private byte[] out = null;
+	private State state;
+	private int pos = 0;
+	private int flags = 0;
+	private int extra = 0;
+	private long total = 0;
+	private boolean started = false;
+
+	private ContentDecoder(final boolean gzip) {
+		this.gzip = gzip;
+		this.state = (gzip ? State.HEADER : State.ZLIB_HEADER);
+	}
+
+	/**
+	 * Create decoder for encoding
+	 *
+	 * @param encoding value of Content-Encoding
+	 * @return decoder or null if identity or not supported
+	 */
+	static ContentDecoder of(final String encoding) {
+		if (encoding == null) {
+			return null;
+		}
+		final String e = encoding.trim();
+		if ("gzip".equalsIgnoreCase(e) || "x-gzip".equalsIgnoreCase(e)) {
+			return new ContentDecoder(true);
+		}
+		if ("deflate".equalsIgnoreCase(e)) {
+			return new ContentDecoder(false);
+		}
+		return null;
+	}
+
+	/**
+	 * Wrap stream with a decoder for encoding
+	 *
+	 * @param is source of compressed content
+	 * @param encoding value of Content-Encoding
+	 * @return stream of decoded content (the same stream if encoding is identity or not supported)
+	 * @throws IOException if error
+	 */
+	static InputStream decode(final InputStream is, final String encoding) throws IOException {
+		final ContentDecoder d = of(encoding);
+		if (d == null) {
+			return is;
+		}
+		final PushbackInputStream pis = new PushbackInputStream(is, 1);
+		final int b = pis.read();
+		if (b == -1) {
+			// Empty body
+			return pis;
+		}
+		pis.unread(b);
+		if (d.gzip) {
+			return new GZIPInputStream(pis, BufferPool.DEFAULT.getBufferSize());
+		}
+		final BufferedInputStream bis = new BufferedInputStream(pis, 2);
+		bis.mark(2);
+		final int cmf = bis.read();
+		final int flg = bis.read();
+		bis.reset();
+		return new InflaterInputStream(bis, new Inflater(!isZlib(cmf, flg)), //
+				BufferPool.DEFAULT.getBufferSize());
+	}
+
+	private static boolean isZlib(final int cmf, final int flg) {
+		return ((cmf & 0x0F) == 8) && (flg >= 0) && ((((cmf << 8) | flg) % 31) == 0);
+	}
+
+	/**
+	 * Decode bytes, decoded content is written to sink
+	 *
+	 * @param b buffer
+	 * @param off offset in buffer
+	 * @param len length of data
+	 * @param sink destination of decoded content
+	 * @throws IOException if error
+	 */
+	void decode(final byte[] b, int off, final int len, final ContentSink sink) throws IOException {
+		final int end = off + len;
+		if (len > 0) {
+			started = true;
+		}
+		while (off < end) {
+			switch (state) {
+				case DATA:
+					off = inflate(b, off, end, sink);
+					break;
+				case DONE:
+					if (!gzip) {
+						// Ignore trailing garbage
+						return;
+					}
+					// Concatenated gzip member
+					crc.reset();
+					inflater.reset();
+					total = 0;
+					pos = 0;
+					state = State.HEADER;
+					break;
+				default:
+					header(b[off++] & 0xFF, sink);
+					break;
+			}
+		}
+	}
+
+	private void header(final int c, final ContentSink sink) throws IOException {
+		switch (state) {
+			case ZLIB_HEADER:
+				head[pos++] = (byte) c;
+				if (pos == 2) {
+					startInflater(!isZlib(head[0] & 0xFF, head[1] & 0xFF));
+					state = State.DATA;
+					pos = 0;
+					inflate(head, 0, 2, sink);
+				}
+				return;
+			case HEADER:
+				head[pos++] = (byte) c;
+				if (pos == head.length) {
+					if (((head[0] & 0xFF) != 0x1F) || ((head[1] & 0xFF) != 0x8B)) {
+						throw new ZipException("Not in GZIP format");
+					}
+					if (head[2] != 8) {
+						throw new ZipException("Unsupported compression method");
+					}
+					flags = head[3] & 0xFF;
+					pos = 0;
+					nextHeader();
+				}
+				return;
+			case EXTRA_LEN:
+				extra |= (c << (8 * pos++));
+				if (pos == 2) {
+					pos = 0;
+					if (extra > 0) {
+						state = State.EXTRA;
+					} else {
+						nextHeader();
+					}
+				}
+				return;
+			case EXTRA:
+				if (--extra == 0) {
+					nextHeader();
+				}
+				return;
+			case NAME:
+			case COMMENT:
+				if (c == 0) {
+					nextHeader();
+				}
+				return;
+			case HCRC:
+				if (++pos == 2) {
+					pos = 0;
+					nextHeader();
+				}
+				return;
+			case TRAILER:
+				head[pos++] = (byte) c;
+				if (pos == 8) {
+					if (readInt(0) != (int) crc.getValue()) {
+						throw new ZipException("Corrupt GZIP trailer");
+					}
+					if (readInt(4) != (int) total) {
+						throw new ZipException("Corrupt GZIP trailer");
+					}
+					pos = 0;
+					state = State.DONE;
+				}
+				return;
+			default:
+				throw new IllegalStateException("invalid state: " + state);
+		}
+	}
+
+	private int readInt(final int off) {
+		return (head[off] & 0xFF) | ((head[off + 1] & 0xFF) << 8) //
+				| ((head[off + 2] & 0xFF) << 16) | ((head[off + 3] & 0xFF) << 24);
+	}
+
+	private void nextHeader() {
+		if ((flags & FEXTRA) != 0) {
+			flags &= ~FEXTRA;
+			extra = 0;
+			state = State.EXTRA_LEN;
+		} else if ((flags & FNAME) != 0) {
+			flags &= ~FNAME;
+			state = State.NAME;
+		} else if ((flags & FCOMMENT) != 0) {
+			flags &= ~FCOMMENT;
+			state = State.COMMENT;
+		} else if ((flags & FHCRC) != 0) {
+			flags &= ~FHCRC;
+			state = State.HCRC;
+		} else {
+			startInflater(true);
+			state = State.DATA;
+		}
+	}
+
+	private void startInflater(final boolean nowrap) {
+		if (inflater == null) {
+			inflater = new Inflater(nowrap);
+			out = BufferPool.DEFAULT.acquire();
+		}
+	}
+
+	private int inflate(final byte[] b, final int off, final int end, final ContentSink sink)
+			throws IOException {
+		inflater.setInput(b, off, end - off);
+		try {
+			while (true) {
+				final int n = inflater.inflate(out);
+				if (n > 0) {
+					if (gzip) {
+						crc.update(out, 0, n);
+					}
+					total += n;
+					sink.put(out, 0, n);
+					continue;
+				}
+				if (inflater.finished()) {
+					pos = 0;
+					state = (gzip ? State.TRAILER : State.DONE);
+					return end - inflater.getRemaining();
+				}
+				if (inflater.needsDictionary()) {
+					throw new ZipException("Preset dictionary not supported");
+				}
+				return end;
+			}
+		} catch (DataFormatException e) {
+			throw new ZipException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Check that compressed content is complete
+	 *
+	 * @throws IOException if content is truncated
+	 */
+	void finish() throws IOException {
+		if (started && (state != State.DONE)) {
+			throw new EOFException("Unexpected end of compressed content");
+		}
+	}
+
+	/**
+	 * Release resources
+	 */
+	void close() {
+		if (inflater != null) {
+			inflater.end();
+			BufferPool.DEFAULT.release(out);
+			out = null;
+		}
+	}
+
+	private static enum State {
+		ZLIB_HEADER,
+		HEADER,
+		EXTRA_LEN,
+		EXTRA,
+		NAME,
+		COMMENT,
+		HCRC,
+		DATA,
+		TRAILER,
+		DONE;
+	}
+}
@@ -0,0 +1,477 @@
+package org.javastack.jhttpcli;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Destination of response body: a file, or memory up to a limit with overflow to off-heap memory (up
+ * to a second limit) and then to a temporal file. Memory is drawn from an optional shared budget,
+ * overflow happens early when the budget is exhausted
+ */
+final class ContentSink implements Closeable {
+	private static final int RESERVE_CHUNK = 8192;
+
+	private final int limit;
+	private final int directLimit;
+	private final boolean map;
+	private final MemoryBudget budget;
+	/**
+	 * Decoder of compressed content (null if identity)
+	 */
+	private final ContentDecoder decoder;
+	/**
+	 * Bytes reserved from budget
+	 */
+	private long reserved = 0;
+	/**
+	 * Pooled buffers with content in memory (null if backed by file)
+	 */
+	private ArrayList<byte[]> mem = null;
+	private int memPos = 0;
+	/**
+	 * First segment allocated with declared length (not pooled)
+	 */
+	private byte[] exact = null;
+	/**
+	 * Off-heap content (null if not in use)
+	 */
+	private ByteBuffer direct = null;
+	private FileOutputStream os = null;
+	private FileChannel fc = null;
+	private File file = null;
+	private boolean temp = false;
+	private long size = 0;
+
+	/**
+	 * Create sink
+	 *
+	 * @param outFile to write or in memory if null
+	 * @param limit of memory before overflow to temporal file
+	 * @throws IOException if error
+	 */
+	ContentSink(final File outFile, final int limit) throws IOException {
+		this(outFile, limit, 0, false, null, -1, null);
+	}
+
+	/**
+	 * Create sink
+	 *
+	 * @param outFile to write or in memory if null
+	 * @param limit of heap memory before overflow
+	 * @param directLimit of off-heap memory before overflow to temporal file (0 = disabled)
+	 * @param map file-backed content is returned mapped in memory
+	 * @param budget shared memory or null if unlimited
+	 * @param length declared length of content or -1 if unknown
+	 * @param decoder of compressed content or null
+	 * @throws IOException if error
+	 */
+	ContentSink(final File outFile, final int limit, final int directLimit, final boolean map, //
+			final MemoryBudget budget, final long length, final ContentDecoder decoder) throws IOException {
+		this.limit = limit;
+		this.directLimit = directLimit;
+		this.map = map;
+		this.budget = budget;
+		this.decoder = decoder;
+		if (outFile != null) {
+			file = outFile;
+			os = new FileOutputStream(outFile, false);
+			fc = os.getChannel();
+		} else if (length < 0) {
+			mem = new ArrayList<>();
+		} else if ((length < limit) && reserve(length)) {
+			mem = new ArrayList<>();
+			if (length > 0) {
+				// Single array of declared size, returned without copy
+				exact = new byte[(int) length];
+				mem.add(exact);
+			}
+		} else if ((length >= limit) && (length < directLimit) && reserve(length)) {
+			direct = ByteBuffer.allocateDirect((int) length);
+		} else {
+			overflowToFile();
+		}
+	}
+
+	private ContentSink(final int limit, final MemoryBudget budget, final long length) {
+		this.limit = limit;
+		this.directLimit = 0;
+		this.map = false;
+		this.budget = budget;
+		this.decoder = null;
+		this.reserved = ((budget != null) ? length : 0);
+		this.mem = new ArrayList<>();
+		if (length > 0) {
+			exact = new byte[(int) length];
+			mem.add(exact);
+		}
+	}
+
+	/**
+	 * Create sink in heap memory for a body of declared length, never backed by file (no disk I/O)
+	 *
+	 * @param limit of heap memory
+	 * @param budget shared memory or null if unlimited
+	 * @param length declared length of content
+	 * @return sink or null if length is unknown or over limit, or budget is exhausted
+	 */
+	static ContentSink memory(final int limit, final MemoryBudget budget, final long length) {
+		if ((length < 0) || (length >= limit) || ((budget != null) && !budget.reserve(length))) {
+			return null;
+		}
+		return new ContentSink(limit, budget, length);
+	}
+
+	private boolean reserve(final long bytes) {
+		if (budget == null) {
+			return true;
+		}
+		if (budget.reserve(bytes)) {
+			reserved += bytes;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reserve memory from budget to hold current size
+	 *
+	 * @param capacity to hold
+	 * @return true if reserved, false if budget is exhausted
+	 */
+	private boolean reserveUpTo(final long capacity) {
+		if ((budget == null) || (capacity <= reserved)) {
+			return true;
+		}
+		final long chunk = Math.max(capacity - reserved, RESERVE_CHUNK);
+		return reserve(chunk) || reserve(capacity - reserved);
+	}
+
+	private void releaseReserved() {
+		if (budget != null) {
+			budget.release(reserved);
+		}
+		reserved = 0;
+	}
+
+	/**
+	 * Write bytes to sink
+	 *
+	 * @param b buffer
+	 * @param off offset in buffer
+	 * @param len length of data
+	 * @throws IOException if error
+	 */
+	void write(final byte[] b, final int off, final int len) throws IOException {
+		if (decoder != null) {
+			decoder.decode(b, off, len, this);
+			return;
+		}
+		put(b, off, len);
+	}
+
+	/**
+	 * Write decoded bytes to sink
+	 *
+	 * @param b buffer
+	 * @param off offset in buffer
+	 * @param len length of data
+	 * @throws IOException if error
+	 */
+	void put(final byte[] b, int off, int len) throws IOException {
+		size += len;
+		if ((mem != null) && !reserveMemory()) {
+			overflow();
+		}
+		if ((direct != null) && reserveDirect()) {
+			direct.put(b, off, len);
+			return;
+		}
+		if (mem == null) {
+			os.write(b, off, len);
+			return;
+		}
+		while (len > 0) {
+			final byte[] seg = segment();
+			final int n = Math.min(len, seg.length - memPos);
+			System.arraycopy(b, off, seg, memPos, n);
+			memPos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Write bytes to sink (file is written from buffer without copy to heap)
+	 *
+	 * @param src buffer, position is advanced
+	 * @param len length of data
+	 * @throws IOException if error
+	 */
+	void write(final ByteBuffer src, int len) throws IOException {
+		if (decoder != null) {
+			final byte[] tmp = BufferPool.DEFAULT.acquire();
+			try {
+				while (len > 0) {
+					final int n = Math.min(len, tmp.length);
+					src.get(tmp, 0, n);
+					decoder.decode(tmp, 0, n, this);
+					len -= n;
+				}
+			} finally {
+				BufferPool.DEFAULT.release(tmp);
+			}
+			return;
+		}
+		size += len;
+		if ((mem != null) && !reserveMemory()) {
+			overflow();
+		}
+		if ((direct != null) && reserveDirect()) {
+			final int limit = src.limit();
+			src.limit(src.position() + len);
+			direct.put(src);
+			src.limit(limit);
+			return;
+		}
+		if (mem == null) {
+			final int limit = src.limit();
+			src.limit(src.position() + len);
+			try {
+				while (src.hasRemaining()) {
+					fc.write(src);
+				}
+			} finally {
+				src.limit(limit);
+			}
+			return;
+		}
+		while (len > 0) {
+			final byte[] seg = segment();
+			final int n = Math.min(len, seg.length - memPos);
+			src.get(seg, memPos, n);
+			memPos += n;
+			len -= n;
+		}
+	}
+
+	private byte[] segment() {
+		byte[] seg = (mem.isEmpty() ? null : mem.get(mem.size() - 1));
+		if ((seg == null) || (memPos == seg.length)) {
+			seg = BufferPool.DEFAULT.acquire();
+			mem.add(seg);
+			memPos = 0;
+		}
+		return seg;
+	}
+
+	/**
+	 * Check that current size fits in heap memory
+	 *
+	 * @return true if fits in limit and budget
+	 */
+	private boolean reserveMemory() {
+		return (size < limit) && reserveUpTo(size);
+	}
+
+	private void overflow() throws IOException {
+		// Buffer overflow
+		if (size < directLimit) {
+			final int capacity = (int) Math.min(directLimit, Math.max(size, Math.max(limit, 1) * 2L));
+			if (reserveUpTo(capacity)) {
+				direct = ByteBuffer.allocateDirect(capacity);
+				copyMemory();
+				return;
+			}
+		}
+		overflowToFile();
+		copyMemory();
+		releaseReserved();
+	}
+
+	/**
+	 * Ensure space in off-heap buffer for current size (growing it), or overflow to temporal file
+	 *
+	 * @return true if data fits in off-heap buffer
+	 * @throws IOException if error
+	 */
+	private boolean reserveDirect() throws IOException {
+		if (size <= direct.capacity()) {
+			return true;
+		}
+		final int capacity = (int) Math.min(directLimit, Math.max(size, direct.capacity() * 2L));
+		if ((size < directLimit) && reserveUpTo(capacity)) {
+			final ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+			direct.flip();
+			grown.put(direct);
+			direct = grown;
+			return true;
+		}
+		overflowToFile();
+		direct.flip();
+		while (direct.hasRemaining()) {
+			fc.write(direct);
+		}
+		direct = null;
+		releaseReserved();
+		return false;
+	}
+
+	private void overflowToFile() throws IOException {
+		file = File.createTempFile("overflow-", ".tmp");
+		temp = true;
+		os = new FileOutputStream(file, false);
+		fc = os.getChannel();
+	}
+
+	private void copyMemory() throws IOException {
+		final int last = mem.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			final byte[] seg = mem.get(i);
+			final int len = ((i == last) ? memPos : seg.length);
+			if (direct != null) {
+				direct.put(seg, 0, len);
+			} else {
+				os.write(seg, 0, len);
+			}
+		}
+		releaseMemory();
+	}
+
+	private void releaseMemory() {
+		if (mem != null) {
+			mem.forEach(BufferPool.DEFAULT::release);
+			mem = null;
+		}
+	}
+
+	/**
+	 * Is writing to output file (not in memory)?
+	 *
+	 * @return true if output file was specified and content is not decoded
+	 */
+	boolean isFile() {
+		return ((mem == null) && (direct == null) && !temp && (decoder == null));
+	}
+
+	/**
+	 * Write whole body to output file from channel (zero-copy when possible)
+	 *
+	 * @param is source of body
+	 * @throws IOException if error
+	 */
+	void transferFrom(final HttpConnection.BodyInputStream is) throws IOException {
+		size += is.transferTo(fc);
+	}
+
+	/**
+	 * Get OutputStream that writes to sink (close does nothing)
+	 *
+	 * @return stream
+	 */
+	OutputStream stream() {
+		return new OutputStream() {
+			@Override
+			public void write(final int b) throws IOException {
+				ContentSink.this.write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+				ContentSink.this.write(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * Bytes written
+	 *
+	 * @return size in bytes
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Finish writing and get content
+	 *
+	 * @return content
+	 * @throws IOException if error
+	 */
+	Content finish() throws IOException {
+		if (decoder != null) {
+			decoder.finish();
+			decoder.close();
+		}
+		if (mem != null) {
+			final byte[] buf;
+			if ((exact != null) && (exact.length == size)) {
+				// Declared length matched, no copy
+				buf = exact;
+				mem = null;
+			} else {
+				// Single copy to an array of exact size
+				buf = join();
+			}
+			final Content content = Content.fromBytes(buf);
+			if (budget != null) {
+				budget.release(reserved - size);
+				budget.track(content, size);
+				reserved = 0;
+			}
+			return content;
+		}
+		if (direct != null) {
+			direct.flip();
+			final Content content = Content.fromByteBuffer(direct);
+			direct = null;
+			if (budget != null) {
+				budget.track(content, reserved);
+				reserved = 0;
+			}
+			return content;
+		}
+		os.close();
+		return (map ? Content.fromMappedFile(file) : Content.fromFile(file));
+	}
+
+	private byte[] join() {
+		final byte[] buf = new byte[(int) size];
+		int pos = 0;
+		final int last = mem.size() - 1;
+		for (int i = 0; i <= last; i++) {
+			final byte[] seg = mem.get(i);
+			final int len = ((i == last) ? memPos : seg.length);
+			System.arraycopy(seg, 0, buf, pos, len);
+			pos += len;
+		}
+		releaseMemory();
+		return buf;
+	}
+
+	/**
+	 * Discard content (temporal file is deleted)
+	 */
+	void abort() {
+		close();
+		releaseMemory();
+		direct = null;
+		releaseReserved();
+		if (decoder != null) {
+			decoder.close();
+		}
+		if (temp && (file != null)) {
+			file.delete();
+		}
+	}
+
+	@Override
+	public void close() {
+		IOUtil.closeSilent(os);
+	}
+}
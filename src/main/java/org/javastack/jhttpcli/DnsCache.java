@@ -0,0 +1,196 @@
+package org.javastack.jhttpcli;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of resolved host names of a client, with positive and negative TTL, refresh in background before
+ * expiration and selection between all addresses of a host (round-robin or least connections)
+ */
+final class DnsCache {
+	private static final int MAX_ENTRIES = 4096;
+	/**
+	 * Fraction of TTL after which an entry in use is refreshed in background
+	 */
+	private static final double REFRESH_AHEAD = 0.8;
+
+	private final HttpClient cli;
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+	/**
+	 * Lookups in progress, concurrent misses of a host wait the same lookup
+	 */
+	private final ConcurrentHashMap<String, CompletableFuture<Entry>> lookups = new ConcurrentHashMap<>();
+	/**
+	 * Open connections to each address
+	 */
+	private final ConcurrentHashMap<InetAddress, Integer> load = new ConcurrentHashMap<>();
+
+	DnsCache(final HttpClient cli) {
+		this.cli = cli;
+	}
+
+	/**
+	 * Resolve host
+	 *
+	 * @param host name
+	 * @return addresses in order of preference (selected first, rest as fallback)
+	 * @throws UnknownHostException if host is not resolved
+	 */
+	InetAddress[] resolve(final String host) throws UnknownHostException {
+		final String key = host.toLowerCase(Locale.ROOT);
+		final long now = System.currentTimeMillis();
+		Entry e = entries.get(key);
+		if ((e == null) || (now >= e.expires)) {
+			e = lookup(key, false);
+		} else if ((now >= e.refresh) && (e.addresses != null)) {
+			lookup(key, true);
+		}
+		if (e.addresses == null) {
+			throw new UnknownHostException(host);
+		}
+		return select(e);
+	}
+
+	/**
+	 * Resolve host with resolver of client, waiting a lookup of same host in progress
+	 *
+	 * @param key host in lowercase
+	 * @param async refresh in background (return null)
+	 * @return entry
+	 */
+	private Entry lookup(final String key, final boolean async) {
+		final CompletableFuture<Entry> f = new CompletableFuture<>();
+		final CompletableFuture<Entry> running = lookups.putIfAbsent(key, f);
+		if (running != null) {
+			return (async ? null : join(running));
+		}
+		if (async) {
+			try {
+				cli.getExecutor().execute(() -> query(key, f));
+			} catch (RuntimeException e) {
+				lookups.remove(key, f);
+			}
+			return null;
+		}
+		query(key, f);
+		return join(f);
+	}
+
+	private void query(final String key, final CompletableFuture<Entry> f) {
+		try {
+			final long now = System.currentTimeMillis();
+			Entry e;
+			try {
+				final InetAddress[] addresses = cli.resolver.resolve(key);
+				if ((addresses == null) || (addresses.length == 0)) {
+					throw new UnknownHostException(key);
+				}
+				e = new Entry(addresses, now, cli.dnsTtlMillis);
+			} catch (UnknownHostException ex) {
+				final Entry old = entries.get(key);
+				// A failed refresh keeps addresses until expiration
+				e = (((old != null) && (old.addresses != null) && (now < old.expires)) //
+						? old //
+						: new Entry(null, now, cli.dnsNegativeTtlMillis));
+			}
+			if (entries.size() >= MAX_ENTRIES) {
+				entries.values().removeIf(x -> (now >= x.expires));
+			}
+			entries.put(key, e);
+			f.complete(e);
+		} catch (RuntimeException ex) {
+			f.completeExceptionally(ex);
+		} finally {
+			lookups.remove(key, f);
+		}
+	}
+
+	private static Entry join(final CompletableFuture<Entry> f) {
+		try {
+			return f.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private InetAddress[] select(final Entry e) {
+		final InetAddress[] src = e.addresses;
+		final int n = src.length;
+		if (n == 1) {
+			return src;
+		}
+		int first = (e.next.getAndIncrement() & Integer.MAX_VALUE) % n;
+		if (cli.addressSelection == HttpClient.AddressSelection.LEAST_LOADED) {
+			// Ties are rotated
+			int min = Integer.MAX_VALUE;
+			for (int i = 0, j = first; i < n; i++, j = ((j + 1) % n)) {
+				final Integer count = load.get(src[j]);
+				final int c = ((count != null) ? count : 0);
+				if (c < min) {
+					min = c;
+					first = j;
+				}
+			}
+		}
+		final InetAddress[] res = new InetAddress[n];
+		for (int i = 0; i < n; i++) {
+			res[i] = src[(first + i) % n];
+		}
+		return res;
+	}
+
+	/**
+	 * Connection opened to address
+	 *
+	 * @param address connected
+	 */
+	void connected(final InetAddress address) {
+		load.merge(address, 1, Integer::sum);
+	}
+
+	/**
+	 * Connection to address closed
+	 *
+	 * @param address disconnected
+	 */
+	void closed(final InetAddress address) {
+		if (address == null) {
+			return;
+		}
+		load.computeIfPresent(address, (k, v) -> ((v > 1) ? (v - 1) : null));
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	void clear() {
+		entries.clear();
+	}
+
+	private static final class Entry {
+		/**
+		 * Resolved addresses or null if not resolved (negative entry)
+		 */
+		final InetAddress[] addresses;
+		final long expires;
+		final long refresh;
+		/**
+		 * Counter of round-robin
+		 */
+		final AtomicInteger next = new AtomicInteger();
+
+		Entry(final InetAddress[] addresses, final long now, final long ttl) {
+			this.addresses = addresses;
+			this.expires = now + ttl;
+			this.refresh = now + (long) (ttl * REFRESH_AHEAD);
+		}
+	}
+}
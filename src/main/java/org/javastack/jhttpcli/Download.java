@@ -0,0 +1,191 @@
+package org.javastack.jhttpcli;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Conditional download of a file: validators (ETag / Last-Modified) are kept in a sidecar file, body is
+ * written to a temporal file in the same directory and renamed over the target on success
+ */
+final class Download {
+	/**
+	 * Suffix of sidecar file with validators
+	 */
+	static final String META_SUFFIX = ".meta";
+	private static final String PART_SUFFIX = ".part";
+	private static final String ETAG = "etag";
+	private static final String LAST_MODIFIED = "last-modified";
+	private static final String LENGTH = "length";
+	private static final String MTIME = "mtime";
+
+	final File target;
+	final File meta;
+	/**
+	 * Temporal file (created when body is received)
+	 */
+	final File temp;
+	/**
+	 * Request to send (with conditional headers)
+	 */
+	final Request request;
+
+	Download(final Request req, final File target) {
+		final File dir = target.getAbsoluteFile().getParentFile();
+		this.target = target;
+		this.meta = new File(dir, target.getName() + META_SUFFIX);
+		// Not created here, lastModified of absent file is zero (no If-Modified-Since from file)
+		this.temp = new File(dir, "." + target.getName() + "." //
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + PART_SUFFIX);
+		this.request = conditional(req);
+	}
+
+	private Request conditional(final Request req) {
+		if (!target.isFile()) {
+			return req;
+		}
+		final Properties p = readMeta();
+		String etag = null;
+		String lastModified = null;
+		if (p != null) {
+			etag = p.getProperty(ETAG);
+			lastModified = p.getProperty(LAST_MODIFIED);
+		}
+		if (lastModified == null) {
+			lastModified = HttpConnection.formatDate(target.lastModified());
+		}
+		final Map<String, List<String>> hdrs = new LinkedHashMap<>(req.hdrs);
+		if ((etag != null) && (Headers.getValue(req.hdrs, "If-None-Match") == null)) {
+			hdrs.put("If-None-Match", Collections.singletonList(etag));
+		}
+		if (Headers.getValue(req.hdrs, "If-Modified-Since") == null) {
+			hdrs.put("If-Modified-Since", Collections.singletonList(lastModified));
+		}
+		return new Request(req.url, req.method, hdrs, req.body);
+	}
+
+	/**
+	 * Read validators of target
+	 *
+	 * @return properties or null if absent, unreadable or target was modified since written
+	 */
+	private Properties readMeta() {
+		if (!meta.isFile()) {
+			return null;
+		}
+		final Properties p = new Properties();
+		try (final InputStream is = new FileInputStream(meta)) {
+			p.load(is);
+			if ((Long.parseLong(p.getProperty(LENGTH, "-1")) != target.length())
+					|| (Long.parseLong(p.getProperty(MTIME, "-1")) != target.lastModified())) {
+				return null;
+			}
+			return p;
+		} catch (IOException | NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Commit or discard temporal file (blocking disk operations, event loop calls run it on the client
+	 * executor)
+	 *
+	 * @param res response to conditional request
+	 * @return response with body of target (200), without body if other 2xx, or the same response
+	 */
+	Response update(final Response res) {
+		if ((res.code != Response.Code.OK) || (res.exception != null)) {
+			if (temp.delete()) {
+				// Partial or 2xx not replacing the target (204, 206...)
+				return new Response(res.code, res.hdrs, null, res.exception);
+			}
+			return res;
+		}
+		try {
+			if (!temp.exists()) {
+				new FileOutputStream(temp).close();
+			}
+			final long length = HttpClient.contentLength(res.hdrs);
+			if ((length >= 0) && (temp.length() != length) //
+					&& (Headers.getValue(res.hdrs, "Content-Encoding") == null)) {
+				// Some transports don't detect a premature close
+				throw new EOFException("Unexpected end of stream");
+			}
+			final boolean map = (res.body.type == Content.Type.MAPPED);
+			return new Response(res.code, res.hdrs, commit(temp, res.hdrs, map), null);
+		} catch (IOException e) {
+			temp.delete();
+			return new Response(res.code, res.hdrs, null, e);
+		}
+	}
+
+	/**
+	 * Replace target with a complete body and store its validators
+	 *
+	 * @param src complete body (in the same directory)
+	 * @param hdrs of response
+	 * @param map return MAPPED content
+	 * @return content of target
+	 * @throws IOException if error
+	 */
+	Content commit(final File src, final Map<String, List<String>> hdrs, final boolean map)
+			throws IOException {
+		final String lastModified = Headers.getValue(hdrs, "Last-Modified");
+		final long mtime = HttpCache.parseDate(lastModified);
+		if (mtime > 0) {
+			src.setLastModified(mtime);
+		}
+		move(src, target);
+		// After body: a stale sidecar is harmless (full download), a newer one is not
+		writeMeta(Headers.getValue(hdrs, "ETag"), lastModified);
+		return (map ? Content.fromMappedFile(target) : Content.fromFile(target));
+	}
+
+	private void writeMeta(final String etag, final String lastModified) throws IOException {
+		if ((etag == null) && (lastModified == null)) {
+			meta.delete();
+			return;
+		}
+		final Properties p = new Properties();
+		if (etag != null) {
+			p.setProperty(ETAG, etag);
+		}
+		if (lastModified != null) {
+			p.setProperty(LAST_MODIFIED, lastModified);
+		}
+		p.setProperty(LENGTH, String.valueOf(target.length()));
+		p.setProperty(MTIME, String.valueOf(target.lastModified()));
+		final File tmp = new File(meta.getParentFile(), "." + meta.getName() + "." //
+				+ Long.toHexString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE) + PART_SUFFIX);
+		try {
+			try (final OutputStream os = new FileOutputStream(tmp)) {
+				p.store(os, null);
+			}
+			move(tmp, meta);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	static void move(final File src, final File dst) throws IOException {
+		try {
+			Files.move(src.toPath(), dst.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+}
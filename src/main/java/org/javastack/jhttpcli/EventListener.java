@@ -0,0 +1,153 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Listener of phases of requests with timestamps of {@link System#nanoTime()}. Each attempt sent to the
+ * network (retries and hedged copies included; responses from cache and pipelined requests of
+ * {@link HttpClient#executePipelined(java.util.List)} excluded) is a call from
+ * {@link #callStart(Request, long)} to {@link #callEnd(Request, Response, long)}, events of a call are
+ * received with the same request instance (the request sent, a copy with validators if the cache revalidates
+ * an entry). Phases without a connection or transport that does not expose them are not received: DNS,
+ * connect and TLS only when a new connection is opened (URLCONNECTION reports connect including DNS and TLS,
+ * without address). Methods are invoked in the thread of the request (the loop thread in EVENT_LOOP
+ * transport) and must be fast; an exception fails the request
+ *
+ * @see HttpClient#setEventListener(EventListener)
+ */
+public interface EventListener {
+	/**
+	 * Call started
+	 *
+	 * @param req request
+	 * @param nanos timestamp
+	 */
+	default void callStart(final Request req, final long nanos) {
+	}
+
+	/**
+	 * Resolution of host started (may be served from DNS cache)
+	 *
+	 * @param req request
+	 * @param host name
+	 * @param nanos timestamp
+	 */
+	default void dnsStart(final Request req, final String host, final long nanos) {
+	}
+
+	/**
+	 * Resolution of host finished
+	 *
+	 * @param req request
+	 * @param host name
+	 * @param addresses resolved, in order of preference (null if failed)
+	 * @param nanos timestamp
+	 */
+	default void dnsEnd(final Request req, final String host, final InetAddress[] addresses, //
+			final long nanos) {
+	}
+
+	/**
+	 * Connect to an address started
+	 *
+	 * @param req request
+	 * @param address remote (null in URLCONNECTION)
+	 * @param nanos timestamp
+	 */
+	default void connectStart(final Request req, final InetSocketAddress address, final long nanos) {
+	}
+
+	/**
+	 * Connected to address
+	 *
+	 * @param req request
+	 * @param address remote (null in URLCONNECTION)
+	 * @param nanos timestamp
+	 */
+	default void connectEnd(final Request req, final InetSocketAddress address, final long nanos) {
+	}
+
+	/**
+	 * Connect to an address failed (next address is tried if there are more)
+	 *
+	 * @param req request
+	 * @param address remote (null in URLCONNECTION)
+	 * @param e error
+	 * @param nanos timestamp
+	 */
+	default void connectFailed(final Request req, final InetSocketAddress address, final IOException e, //
+			final long nanos) {
+	}
+
+	/**
+	 * TLS handshake started
+	 *
+	 * @param req request
+	 * @param nanos timestamp
+	 */
+	default void tlsStart(final Request req, final long nanos) {
+	}
+
+	/**
+	 * TLS handshake finished
+	 *
+	 * @param req request
+	 * @param session negotiated
+	 * @param nanos timestamp
+	 */
+	default void tlsEnd(final Request req, final SSLSession session, final long nanos) {
+	}
+
+	/**
+	 * Request line and headers written
+	 *
+	 * @param req request
+	 * @param bytes of head (HPACK encoded in H2C)
+	 * @param nanos timestamp
+	 */
+	default void requestHeadersEnd(final Request req, final long bytes, final long nanos) {
+	}
+
+	/**
+	 * Request body written
+	 *
+	 * @param req request
+	 * @param bytes of body
+	 * @param nanos timestamp
+	 */
+	default void requestBodyEnd(final Request req, final long bytes, final long nanos) {
+	}
+
+	/**
+	 * First byte of response received (time to first byte)
+	 *
+	 * @param req request
+	 * @param nanos timestamp
+	 */
+	default void responseStart(final Request req, final long nanos) {
+	}
+
+	/**
+	 * Response body read
+	 *
+	 * @param req request
+	 * @param bytes of body (decoded if compression is enabled)
+	 * @param nanos timestamp
+	 */
+	default void responseBodyEnd(final Request req, final long bytes, final long nanos) {
+	}
+
+	/**
+	 * Call finished
+	 *
+	 * @param req request
+	 * @param res response (with exception if failed)
+	 * @param nanos timestamp
+	 */
+	default void callEnd(final Request req, final Response res, final long nanos) {
+	}
+}
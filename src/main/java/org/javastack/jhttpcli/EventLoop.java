@@ -0,0 +1,430 @@
+package org.javastack.jhttpcli;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Thread that multiplexes non-blocking connections over a {@link Selector}
+ */
+final class EventLoop implements Runnable, Closeable {
+	private static final long TICK_MILLIS = 100L;
+
+	final HttpClient cli;
+	final Selector selector;
+	/**
+	 * Shared buffer for reads (confined to loop thread)
+	 */
+	final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+	private final Thread thread;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final HashMap<String, ArrayDeque<AsyncConnection>> idle = new HashMap<>();
+	private volatile boolean closed = false;
+
+	EventLoop(final HttpClient cli, final String name) throws IOException {
+		this.cli = cli;
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queue request to be executed in this loop
+	 *
+	 * @param call to execute
+	 */
+	void submit(final Call call) {
+		execute(() -> start(call));
+	}
+
+	/**
+	 * Queue task to run in loop thread
+	 *
+	 * @param task to run
+	 */
+	void execute(final Runnable task) {
+		tasks.add(task);
+		if (closed) {
+			runTasks();
+			return;
+		}
+		if (Thread.currentThread() != thread) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Start exchange of call in an idle or new connection (only in loop thread)
+	 *
+	 * @param call to execute
+	 */
+	void start(final Call call) {
+		if (closed) {
+			complete(call, Response.Code.UNKNOWN, null, null, new IOException("Event loop closed"));
+			return;
+		}
+		final String route = HttpConnection.route(call.url);
+		final ArrayDeque<AsyncConnection> queue = idle.get(route);
+		if (queue != null) {
+			AsyncConnection conn;
+			while ((conn = queue.pollFirst()) != null) {
+				if (conn.isIdle()) {
+					if (queue.isEmpty()) {
+						idle.remove(route);
+					}
+					conn.begin(call);
+					return;
+				}
+			}
+			idle.remove(route);
+		}
+		if (call.address == null) {
+			// Redirected to other host
+			resolve(call);
+			return;
+		}
+		while (true) {
+			try {
+				AsyncConnection.open(this, route, call);
+			} catch (IOException e) {
+				if (call.nextAddress(e)) {
+					continue;
+				}
+				complete(call, Response.Code.UNKNOWN, null, null, call.connectError);
+			} catch (RuntimeException e) {
+				complete(call, Response.Code.UNKNOWN, null, null, e);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Resolve address of call in client executor (never blocks the loop) and start it again
+	 *
+	 * @param call without address
+	 */
+	private void resolve(final Call call) {
+		try {
+			cli.getExecutor().execute(() -> {
+				try {
+					call.resolve(cli);
+				} catch (IOException | RuntimeException e) {
+					complete(call, Response.Code.UNKNOWN, null, null, e);
+					return;
+				}
+				submit(call);
+			});
+		} catch (RejectedExecutionException e) {
+			complete(call, Response.Code.UNKNOWN, null, null, e);
+		}
+	}
+
+	/**
+	 * Keep connection for reuse
+	 *
+	 * @param conn idle connection
+	 */
+	void releaseIdle(final AsyncConnection conn) {
+		idle.computeIfAbsent(conn.route, k -> new ArrayDeque<>()).addFirst(conn);
+	}
+
+	/**
+	 * Remove connection from idle queue
+	 *
+	 * @param conn closed connection
+	 */
+	void removeIdle(final AsyncConnection conn) {
+		final ArrayDeque<AsyncConnection> queue = idle.get(conn.route);
+		if ((queue != null) && queue.remove(conn) && queue.isEmpty()) {
+			idle.remove(conn.route);
+		}
+	}
+
+	/**
+	 * Complete call with a response
+	 *
+	 * @param call finished
+	 * @param code http
+	 * @param hdrs headers
+	 * @param body content
+	 * @param ex error or null
+	 */
+	void complete(final Call call, final Response.Code code, final Map<String, List<String>> hdrs, //
+			final Content body, final Exception ex) {
+		final Response res = new Response(code, hdrs, body, ex);
+		final Trace trace = call.trace;
+		if (trace != null) {
+			call.trace = null;
+			if (ex == null) {
+				trace.responseBodyEnd(res.body.size());
+			}
+			trace.end(res);
+		}
+		final CircuitBreaker breaker = cli.circuitBreaker;
+		final Metrics metrics = cli.metrics;
+		if ((breaker != null) || (metrics != null)) {
+			final long elapsed = System.nanoTime() - call.started;
+			if (breaker != null) {
+				breaker.record(call.sent.url, res, elapsed);
+			}
+			if (metrics != null) {
+				metrics.record(call.sent, res, elapsed);
+			}
+		}
+		if (!cli.retry(call, res)) {
+			finish(cli, call, res);
+		}
+	}
+
+	/**
+	 * Complete call with the final response (update and hooks)
+	 *
+	 * @param cli client (hooks)
+	 * @param call finished
+	 * @param res response
+	 */
+	static void finish(final HttpClient cli, final Call call, final Response res) {
+		if (call.update == null) {
+			deliver(cli, call, res);
+			return;
+		}
+		// Update blocks on disk (cache store, download commit), never on the loop thread
+		try {
+			cli.getExecutor().execute(() -> deliver(cli, call, res));
+		} catch (RejectedExecutionException e) {
+			deliver(cli, call, res);
+		}
+	}
+
+	private static void deliver(final HttpClient cli, final Call call, final Response res) {
+		try {
+			call.future.complete(cli.done(call.req, ((call.update != null) ? call.update.apply(res) : res)));
+		} catch (Throwable t) {
+			call.future.completeExceptionally(t);
+		}
+	}
+
+	@Override
+	public void run() {
+		long nextTick = System.currentTimeMillis() + TICK_MILLIS;
+		while (!closed) {
+			try {
+				selector.select(TICK_MILLIS);
+				runTasks();
+				final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					final AsyncConnection conn = (AsyncConnection) key.attachment();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isConnectable()) {
+							conn.onConnect();
+						} else if (key.isWritable()) {
+							conn.onWrite();
+						} else if (key.isReadable()) {
+							conn.onRead(readBuffer);
+						}
+					} catch (CancelledKeyException e) {
+						continue;
+					}
+				}
+				final long now = System.currentTimeMillis();
+				if (now >= nextTick) {
+					nextTick = now + TICK_MILLIS;
+					checkTimeouts(now);
+				}
+			} catch (Throwable t) {
+				// Keep loop alive
+				continue;
+			}
+		}
+		shutdown();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (Throwable t) {
+				continue;
+			}
+		}
+	}
+
+	private void checkTimeouts(final long now) {
+		final List<AsyncConnection> expired = new ArrayList<>();
+		for (final SelectionKey key : selector.keys()) {
+			final AsyncConnection conn = (AsyncConnection) key.attachment();
+			if ((conn != null) && (conn.deadline > 0L) && (now >= conn.deadline)) {
+				expired.add(conn);
+			}
+		}
+		expired.forEach(AsyncConnection::onTimeout);
+	}
+
+	private void shutdown() {
+		final List<AsyncConnection> conns = new ArrayList<>();
+		for (final SelectionKey key : selector.keys()) {
+			conns.add((AsyncConnection) key.attachment());
+		}
+		final IOException ex = new IOException("Event loop closed");
+		conns.forEach(conn -> conn.fail(ex));
+		idle.clear();
+		runTasks();
+		IOUtil.closeSilent(selector);
+	}
+
+	/**
+	 * Stop loop, pending requests fail
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Request in progress (following redirects)
+	 */
+	static final class Call {
+		/**
+		 * Original request (for hooks)
+		 */
+		final Request req;
+		/**
+		 * Request to send (encoded)
+		 */
+		final Request sent;
+		final File outFile;
+		/**
+		 * Applied to response before hooks (cache update, download commit) or null
+		 */
+		final UnaryOperator<Response> update;
+		final long ifModifiedSince;
+		final CompletableFuture<Response> future = new CompletableFuture<>();
+		URL url;
+		Request.Method method;
+		Content body;
+		/**
+		 * Address to connect (null until resolved)
+		 */
+		InetSocketAddress address;
+		/**
+		 * Resolved addresses of host in order of preference, tried until one connects
+		 */
+		InetSocketAddress[] addresses;
+		/**
+		 * Index of next address to try
+		 */
+		int next;
+		/**
+		 * First error of connect (errors of other addresses are suppressed) or null
+		 */
+		IOException connectError;
+		int redirects = 0;
+		/**
+		 * Attempts done (retries of {@link RetryPolicy})
+		 */
+		int attempts = 1;
+		/**
+		 * Start of current attempt (nanoTime)
+		 */
+		long started;
+		/**
+		 * Events of current attempt or null
+		 */
+		Trace trace;
+
+		Call(final Request req, final Request sent, final File outFile, //
+				final UnaryOperator<Response> update) {
+			this.req = req;
+			this.sent = sent;
+			this.update = update;
+			this.outFile = outFile;
+			this.ifModifiedSince = (((outFile != null) && (outFile.lastModified() > 0L)) //
+					? outFile.lastModified() //
+					: 0L);
+			this.url = sent.url;
+			this.method = sent.method;
+			this.body = sent.body;
+		}
+
+		/**
+		 * Prepare for a new attempt from the original request
+		 */
+		void restart() {
+			this.url = sent.url;
+			this.method = sent.method;
+			this.body = sent.body;
+			this.address = null;
+			this.redirects = 0;
+			this.attempts++;
+		}
+
+		/**
+		 * Resolve addresses of current URL, the first one is used
+		 *
+		 * @param cli client (resolver and cache)
+		 * @throws UnknownHostException if not resolved
+		 */
+		void resolve(final HttpClient cli) throws UnknownHostException {
+			final InetAddress[] resolved = HttpConnection.resolve(cli, url.getHost(), trace);
+			final int port = HttpConnection.port(url);
+			final InetSocketAddress[] list = new InetSocketAddress[resolved.length];
+			for (int i = 0; i < resolved.length; i++) {
+				list[i] = new InetSocketAddress(resolved[i], port);
+			}
+			this.addresses = list;
+			this.next = 1;
+			this.connectError = null;
+			this.address = list[0];
+		}
+
+		/**
+		 * Select next resolved address after a connect error
+		 *
+		 * @param e error of current address
+		 * @return true if other address is available, false if all failed (see {@link #connectError})
+		 */
+		boolean nextAddress(final IOException e) {
+			if (connectError == null) {
+				connectError = e;
+			} else if (connectError != e) {
+				connectError.addSuppressed(e);
+			}
+			if ((addresses == null) || (next >= addresses.length)) {
+				return false;
+			}
+			address = addresses[next++];
+			return true;
+		}
+
+		Map<String, List<String>> headers() {
+			return ((sent.hdrs != null) ? sent.hdrs : Collections.emptyMap());
+		}
+	}
+}
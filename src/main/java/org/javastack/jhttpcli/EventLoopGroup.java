@@ -0,0 +1,123 @@
+package org.javastack.jhttpcli;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+/**
+ * Group of {@link EventLoop} threads, requests are distributed in round-robin
+ */
+final class EventLoopGroup implements Closeable {
+	private final EventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+	EventLoopGroup(final HttpClient cli, final int threads) throws IOException {
+		final int count = Math.max(1, threads);
+		this.loops = new EventLoop[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				loops[i] = new EventLoop(cli, "jhttpcli-loop-" + i);
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Execute request in next loop
+	 *
+	 * @param req to execute (for hooks)
+	 * @param sent request to send (encoded)
+	 * @param outFile to write body response
+	 * @param update applied to response before hooks or null
+	 * @return future response
+	 */
+	CompletableFuture<Response> execute(final Request req, final Request sent, final File outFile, //
+			final UnaryOperator<Response> update) {
+		return execute(new EventLoop.Call(req, sent, outFile, update), true);
+	}
+
+	/**
+	 * Execute retried call in next loop (from scheduler thread, address is resolved in executor)
+	 *
+	 * @param call to execute
+	 * @return future response
+	 */
+	CompletableFuture<Response> execute(final EventLoop.Call call) {
+		return execute(call, false);
+	}
+
+	/**
+	 * Execute call in next loop
+	 *
+	 * @param call to execute
+	 * @param resolve address in caller thread (else in client executor)
+	 * @return future response
+	 */
+	private CompletableFuture<Response> execute(final EventLoop.Call call, final boolean resolve) {
+		final EventLoop loop = loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+		final HttpClient cli = loop.cli;
+		final CircuitBreaker breaker = cli.circuitBreaker;
+		if (breaker != null) {
+			final Response rejected = breaker.acquire(call.url);
+			if (rejected != null) {
+				EventLoop.finish(cli, call, rejected);
+				return call.future;
+			}
+		}
+		final RateLimiter limiter = cli.rateLimiter;
+		final long wait = ((limiter != null) ? limiter.reserve(call.url) : 0);
+		if (wait < 0) {
+			if (breaker != null) {
+				breaker.cancel(call.url);
+			}
+			EventLoop.finish(cli, call, limiter.rejected(call.url));
+		} else if (wait == 0) {
+			start(loop, call, resolve);
+		} else {
+			// Wait a token without hold a thread
+			final Response closed = new Response(Response.Code.UNKNOWN, null, null, //
+					new IOException("Client closed"));
+			if (!cli.schedule(call, closed, () -> start(loop, call, false), wait)) {
+				EventLoop.finish(cli, call, closed);
+			}
+		}
+		return call.future;
+	}
+
+	/**
+	 * Resolve address and submit call to loop
+	 *
+	 * @param loop to execute
+	 * @param call to execute
+	 * @param resolve address in caller thread, else the loop resolves it in client executor (the
+	 *            scheduler thread never blocks on DNS)
+	 */
+	private static void start(final EventLoop loop, final EventLoop.Call call, final boolean resolve) {
+		call.started = System.nanoTime();
+		call.trace = Trace.start(loop.cli, call.sent);
+		if (resolve) {
+			try {
+				// Resolve in caller thread to avoid block the loop
+				call.resolve(loop.cli);
+			} catch (IOException e) {
+				loop.complete(call, Response.Code.UNKNOWN, null, null, e);
+				return;
+			}
+		}
+		loop.submit(call);
+	}
+
+	@Override
+	public void close() {
+		for (final EventLoop loop : loops) {
+			if (loop != null) {
+				loop.close();
+			}
+		}
+	}
+}
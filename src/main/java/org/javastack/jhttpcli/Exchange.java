@@ -0,0 +1,56 @@
+package org.javastack.jhttpcli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Request sent and response head received, body pending to be read
+ */
+abstract class Exchange implements Closeable {
+	/**
+	 * Numerical HTTP status
+	 */
+	final int status;
+	/**
+	 * HTTP Response code
+	 */
+	final Response.Code code;
+	/**
+	 * HTTP Response headers
+	 */
+	final Map<String, List<String>> hdrs;
+
+	Exchange(final int status, //
+			final Map<String, List<String>> hdrs) {
+		this.status = status;
+		this.code = Response.Code.valueOf(status);
+		this.hdrs = hdrs;
+	}
+
+	/**
+	 * Get InputStream to response body
+	 *
+	 * @return inputstream
+	 * @throws IOException if error
+	 */
+	abstract InputStream getBody() throws IOException;
+
+	/**
+	 * Get InputStream to response body, including body of error responses
+	 *
+	 * @return inputstream
+	 * @throws IOException if error
+	 */
+	InputStream getStream() throws IOException {
+		return getBody();
+	}
+
+	/**
+	 * Release resources (unread body will discard the connection)
+	 */
+	@Override
+	public abstract void close();
+}
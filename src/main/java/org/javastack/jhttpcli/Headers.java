@@ -106,4 +106,53 @@ public class Headers {
 		return this;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Get first value of key from a map of headers (case insensitive)
+	 * 
+	 * @param hdrs map with keys and values
+	 * @param key to search
+	 * @return value or null if not found
+	 */
+	public static String getValue(final Map<String, List<String>> hdrs, final String key) {
+		final List<String> values = getValues(hdrs, key);
+		return (values.isEmpty() ? null : values.get(0));
+	}
+
+	/**
+	 * Get all values of key from a map of headers (case insensitive)
+	 * 
+	 * @param hdrs map with keys and values
+	 * @param key to search
+	 * @return values or empty list if not found
+	 */
+	public static List<String> getValues(final Map<String, List<String>> hdrs, final String key) {
+		if ((hdrs == null) || hdrs.isEmpty() || (key == null)) {
+			return Collections.emptyList();
+		}
+		List<String> values = hdrs.get(key);
+		if (values == null) {
+			for (final Map.Entry<String, List<String>> e : hdrs.entrySet()) {
+				if (key.equalsIgnoreCase(e.getKey())) {
+					values = e.getValue();
+					break;
+				}
+			}
+		}
+		return ((values == null) ? Collections.emptyList() : values);
+	}
+
+	/**
+	 * Is body framed with chunked transfer coding? (the last coding applied, like "gzip, chunked")
+	 * 
+	 * @param hdrs of response
+	 * @return true if chunked
+	 */
+	static boolean isChunked(final Map<String, List<String>> hdrs) {
+		final List<String> values = getValues(hdrs, "Transfer-Encoding");
+		if (values.isEmpty()) {
+			return false;
+		}
+		final String codings = values.get(values.size() - 1);
+		return "chunked".equalsIgnoreCase(codings.substring(codings.lastIndexOf(',') + 1).trim());
+	}
+}
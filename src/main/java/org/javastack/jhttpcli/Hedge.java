@@ -0,0 +1,291 @@
+package org.javastack.jhttpcli;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Execution of a hedged request: copies run in the executor of client, caller waits the first response.
+ * Losers are cancelled with a flag of the copy, the connection in use is closed (HTTP/1) or its stream
+ * reset (HTTP/2) from the caller, and their bodies deleted when finished. Copies are never interrupted: a
+ * write of an interrupted thread closes the channel, shared by all streams of an HTTP/2 connection
+ */
+final class Hedge {
+	/**
+	 * Copy run by current thread
+	 */
+	private static final ThreadLocal<Copy> CURRENT = new ThreadLocal<>();
+
+	private final HttpClient cli;
+	private final HedgePolicy policy;
+	private final Request target;
+	private final LinkedBlockingQueue<Copy> finished = new LinkedBlockingQueue<>();
+	private final List<Copy> copies = new ArrayList<>();
+
+	Hedge(final HttpClient cli, final HedgePolicy policy, final Request target) {
+		this.cli = cli;
+		this.policy = policy;
+		this.target = target;
+	}
+
+	/**
+	 * Send request and copies, return the first response
+	 *
+	 * @return response (a failed copy only wins if there are no copies in progress)
+	 */
+	Response send() {
+		policy.request();
+		launch();
+		final int max = policy.getMaxHedges();
+		int pending = 1;
+		boolean hedging = true;
+		Copy winner = null;
+		try {
+			while (winner == null) {
+				final Copy c = ((hedging && (copies.size() <= max)) || isQueued() //
+						? finished.poll(policy.delay(), TimeUnit.NANOSECONDS) //
+						: finished.take());
+				if (c == null) {
+					final Copy queued = steal();
+					if (queued != null) {
+						// Executor is busy, run in caller thread instead of wait (or send more copies)
+						queued.exchange();
+					} else if (hedging && (copies.size() <= max)) {
+						hedging = (policy.hedge() && launch());
+						pending += (hedging ? 1 : 0);
+					}
+					continue;
+				}
+				pending--;
+				if ((c.res.exception == null) || (pending == 0)) {
+					winner = c;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Cancel before restore interrupt, aborts may write (RST_STREAM)
+			copies.forEach(Copy::cancel);
+			Thread.currentThread().interrupt();
+			return new Response(Response.Code.UNKNOWN, null, null, //
+					new InterruptedIOException("Interrupted waiting hedged request"));
+		}
+		for (final Copy c : copies) {
+			if (c != winner) {
+				c.cancel();
+			}
+		}
+		return winner.res;
+	}
+
+	/**
+	 * Bind the connection used by the hedged copy of current thread (if any), aborted if the copy is
+	 * cancelled. Unbind before the connection is released
+	 *
+	 * @param abort action of connection
+	 * @throws InterruptedIOException if the copy is cancelled
+	 */
+	static void bind(final Closeable abort) throws InterruptedIOException {
+		final Copy c = CURRENT.get();
+		if (c != null) {
+			c.bind(abort);
+		}
+	}
+
+	/**
+	 * Unbind a connection of current thread
+	 *
+	 * @param abort action bound
+	 */
+	static void unbind(final Closeable abort) {
+		final Copy c = CURRENT.get();
+		if (c != null) {
+			c.unbind(abort);
+		}
+	}
+
+	/**
+	 * Is the hedged copy of current thread cancelled?
+	 *
+	 * @return true if cancelled (false if not a hedged copy)
+	 */
+	static boolean isCancelled() {
+		final Copy c = CURRENT.get();
+		return ((c != null) && c.isCancelled());
+	}
+
+	/**
+	 * Sleep current thread, a hedged copy wakes up when cancelled
+	 *
+	 * @param nanos to sleep
+	 * @return false if the copy is cancelled
+	 * @throws InterruptedException if interrupted
+	 */
+	static boolean sleep(final long nanos) throws InterruptedException {
+		final Copy c = CURRENT.get();
+		if (c == null) {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+			return true;
+		}
+		return c.sleep(nanos);
+	}
+
+	private boolean isQueued() {
+		for (final Copy c : copies) {
+			if (c.isQueued()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Take a copy not started by executor
+	 *
+	 * @return copy or null
+	 */
+	private Copy steal() {
+		for (final Copy c : copies) {
+			if (c.claim()) {
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Start a copy in executor
+	 *
+	 * @return false if executor rejects it
+	 */
+	private boolean launch() {
+		final Copy c = new Copy();
+		copies.add(c);
+		try {
+			cli.getExecutor().execute(c);
+		} catch (RejectedExecutionException e) {
+			if (copies.size() > 1) {
+				copies.remove(c);
+				return false;
+			}
+			// First copy is stolen by caller
+		}
+		return true;
+	}
+
+	private final class Copy implements Runnable {
+		/**
+		 * Abort action of connection in use
+		 */
+		private Closeable abort = null;
+		private boolean started = false;
+		private boolean cancelled = false;
+		private boolean done = false;
+		volatile Response res = null;
+
+		@Override
+		public void run() {
+			if (claim()) {
+				exchange();
+			}
+		}
+
+		synchronized boolean isQueued() {
+			return (!started && !cancelled);
+		}
+
+		/**
+		 * Mark as started
+		 *
+		 * @return false if already started or cancelled
+		 */
+		synchronized boolean claim() {
+			if (started || cancelled) {
+				return false;
+			}
+			started = true;
+			return true;
+		}
+
+		/**
+		 * Send request in current thread (claimed)
+		 */
+		void exchange() {
+			// Caller may run a stolen copy inside other
+			final Copy previous = CURRENT.get();
+			CURRENT.set(this);
+			final long start = System.nanoTime();
+			Response r;
+			try {
+				r = cli.sendRetrying(target, null);
+			} catch (RuntimeException e) {
+				r = new Response(Response.Code.UNKNOWN, null, null, e);
+			} finally {
+				CURRENT.set(previous);
+			}
+			res = r;
+			final boolean lost;
+			synchronized (this) {
+				abort = null;
+				done = true;
+				lost = cancelled;
+			}
+			if (lost) {
+				r.body.delete();
+				return;
+			}
+			if (r.exception == null) {
+				policy.record(System.nanoTime() - start);
+			}
+			finished.add(this);
+		}
+
+		synchronized void bind(final Closeable abort) throws InterruptedIOException {
+			if (cancelled) {
+				throw new InterruptedIOException("Hedged request cancelled");
+			}
+			this.abort = abort;
+		}
+
+		synchronized void unbind(final Closeable abort) {
+			if (this.abort == abort) {
+				this.abort = null;
+			}
+		}
+
+		synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		synchronized boolean sleep(final long nanos) throws InterruptedException {
+			final long end = System.nanoTime() + nanos;
+			long left = nanos;
+			while (!cancelled && (left > 0)) {
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+				left = end - System.nanoTime();
+			}
+			return !cancelled;
+		}
+
+		/**
+		 * Abort copy in progress or delete its response
+		 */
+		void cancel() {
+			synchronized (this) {
+				cancelled = true;
+				notifyAll();
+				if (abort != null) {
+					// Under lock, the connection is not released to pool meanwhile
+					IOUtil.closeSilent(abort);
+					abort = null;
+				}
+				if (!done) {
+					return;
+				}
+			}
+			res.body.delete();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package org.javastack.jhttpcli;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hedged requests: if the response of an idempotent request does not arrive in a delay (fixed or a
+ * percentile of observed latencies), a copy of the request is sent. The first response wins, the others
+ * are cancelled and their bodies deleted. Copies are limited by a budget, a fraction of requests. Only
+ * blocking execution without output file is hedged (URLCONNECTION, NIO and H2C transports; a request of
+ * URLCONNECTION can not be aborted, the loser is read and discarded in background)
+ *
+ * @see HttpClient#setHedgePolicy(HedgePolicy)
+ */
+public class HedgePolicy {
+	/**
+	 * Latencies kept to calculate percentile
+	 */
+	private static final int SAMPLES = 1024;
+	/**
+	 * Samples recorded between calculations of percentile
+	 */
+	private static final int REFRESH = 64;
+
+	private volatile long delayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+	private volatile long minDelayNanos = 0;
+	private volatile double percentile = 0;
+	private volatile int maxHedges = 1;
+	private volatile RetryBudget budget = new RetryBudget(0.1, 10);
+	private final AtomicLongArray samples = new AtomicLongArray(SAMPLES);
+	private final AtomicInteger recorded = new AtomicInteger();
+	private volatile long percentileNanos = -1;
+
+	/**
+	 * Set fixed delay before send a copy, used also until there are latencies for percentile
+	 * (default: 100ms)
+	 *
+	 * @param millis delay
+	 * @return this
+	 */
+	public HedgePolicy setDelayMs(final long millis) {
+		this.delayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+		return this;
+	}
+
+	/**
+	 * Set delay as a percentile of latencies of last requests, like 0.95 (default: 0, fixed delay)
+	 *
+	 * @param percentile 0-1 (exclusive)
+	 * @param minMillis min delay
+	 * @return this
+	 */
+	public HedgePolicy setPercentile(final double percentile, final long minMillis) {
+		this.percentile = Math.max(0, Math.min(0.9999, percentile));
+		this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minMillis));
+		return this;
+	}
+
+	/**
+	 * Set max copies of a request sent besides the first, each after the delay (default: 1)
+	 *
+	 * @param hedges max
+	 * @return this
+	 */
+	public HedgePolicy setMaxHedges(final int hedges) {
+		this.maxHedges = Math.max(1, hedges);
+		return this;
+	}
+
+	/**
+	 * Set hedge budget: each request allows ratio copies, with a reserve of burst copies
+	 * (default: 0.1, 10)
+	 *
+	 * @param ratio of copies per request (0.1 = 10%)
+	 * @param burst copies allowed over ratio
+	 * @return this
+	 */
+	public HedgePolicy setBudget(final double ratio, final int burst) {
+		this.budget = new RetryBudget(ratio, burst);
+		return this;
+	}
+
+	int getMaxHedges() {
+		return maxHedges;
+	}
+
+	/**
+	 * Request started (adds to budget)
+	 */
+	void request() {
+		budget.deposit();
+	}
+
+	/**
+	 * Take budget for a copy
+	 *
+	 * @return true if copy is allowed
+	 */
+	boolean hedge() {
+		return budget.withdraw();
+	}
+
+	/**
+	 * Wait before send a copy
+	 *
+	 * @return nanos
+	 */
+	long delay() {
+		final long p = percentileNanos;
+		if ((percentile > 0) && (p >= 0)) {
+			return Math.max(minDelayNanos, p);
+		}
+		return delayNanos;
+	}
+
+	/**
+	 * Record latency of a completed request (lock-free, percentile is recalculated every 64
+	 * samples by the recording thread)
+	 *
+	 * @param nanos latency
+	 */
+	void record(final long nanos) {
+		final int n = recorded.getAndIncrement() & Integer.MAX_VALUE;
+		samples.set(n % SAMPLES, nanos);
+		if ((percentile > 0) && (((n + 1) % REFRESH) == 0)) {
+			final int count = ((n < SAMPLES) ? (n + 1) : SAMPLES);
+			final long[] copy = new long[count];
+			for (int i = 0; i < count; i++) {
+				copy[i] = samples.get(i);
+			}
+			Arrays.sort(copy);
+			percentileNanos = copy[(int) (percentile * count)];
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.javastack.jhttpcli;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of fixed memory with log-linear buckets: exact values below 8, then each power of 2
+ * is split in 8 buckets (relative error under 12.5%) up to 2^36. Counts are striped by thread, so
+ * threads of different cores rarely update the same counter; stripes are merged on read
+ */
+final class Histogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB = (1 << SUB_BITS);
+	/**
+	 * Highest bit of last power of 2 (greater values are counted in last bucket)
+	 */
+	private static final int MAX_MSB = 35;
+	static final int BUCKETS = ((MAX_MSB - SUB_BITS + 2) << SUB_BITS);
+	private static final int STRIPES = Integer.highestOneBit( //
+			Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors())));
+
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+
+	/**
+	 * Count a value
+	 *
+	 * @param value positive
+	 */
+	void record(final long value) {
+		final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+		counts.incrementAndGet((stripe * BUCKETS) + index(value));
+	}
+
+	/**
+	 * Add counts of all stripes to buckets
+	 *
+	 * @param buckets destination (size {@link #BUCKETS})
+	 */
+	void addTo(final long[] buckets) {
+		for (int s = 0; s < STRIPES; s++) {
+			final int off = s * BUCKETS;
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] += counts.get(off + i);
+			}
+		}
+	}
+
+	static int index(final long value) {
+		if (value < SUB) {
+			return (int) Math.max(0, value);
+		}
+		final int msb = 63 - Long.numberOfLeadingZeros(value);
+		if (msb > MAX_MSB) {
+			return BUCKETS - 1;
+		}
+		final int shift = msb - SUB_BITS;
+		return ((shift + 1) << SUB_BITS) + (int) ((value >>> shift) & (SUB - 1));
+	}
+
+	/**
+	 * Highest value counted in bucket
+	 *
+	 * @param index of bucket
+	 * @return value
+	 */
+	static long highest(final int index) {
+		if (index < SUB) {
+			return index;
+		}
+		final int shift = (index >> SUB_BITS) - 1;
+		return ((long) (SUB + (index & (SUB - 1))) << shift) + (1L << shift) - 1;
+	}
+
+	/**
+	 * Value at percentile of merged buckets
+	 *
+	 * @param buckets counts
+	 * @param total sum of counts
+	 * @param percentile 0-1
+	 * @return highest value of bucket of percentile or zero if empty
+	 */
+	static long percentile(final long[] buckets, final long total, final double percentile) {
+		if (total <= 0) {
+			return 0;
+		}
+		final long rank = Math.max(1, (long) Math.ceil(Math.max(0, Math.min(1, percentile)) * total));
+		long count = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			count += buckets[i];
+			if (count >= rank) {
+				return highest(i);
+			}
+		}
+		return highest(buckets.length - 1);
+	}
+}
@@ -0,0 +1,503 @@
+package org.javastack.jhttpcli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541): static and dynamic tables, Huffman coding
+ */
+final class Hpack {
+	/**
+	 * Default size of dynamic table (SETTINGS_HEADER_TABLE_SIZE)
+	 */
+	static final int DEFAULT_TABLE_SIZE = 4096;
+	private static final int ENTRY_OVERHEAD = 32;
+	private static final String[][] STATIC_TABLE = {
+			{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+			{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+			{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+			{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" },
+			{ "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+			{ "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+			{ "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+			{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+			{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" },
+			{ "host", "" }, { "if-match", "" }, { "if-modified-since", "" }, { "if-none-match", "" },
+			{ "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" },
+			{ "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+			{ "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+			{ "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+			{ "strict-transport-security", "" },
+			{ "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+			{ "www-authenticate", "" }
+	};
+	/**
+	 * First index of each name in static table
+	 */
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+	/**
+	 * Index of each name and value in static table
+	 */
+	private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+	/**
+	 * Huffman codes of symbols 0-255 and EOS (RFC 7541, Appendix B)
+	 */
+	private static final int[] CODES = {
+			0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+			0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+			0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+			0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+			0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+			0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+			0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+			0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+			0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+			0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+			0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+			0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+			0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+			0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+			0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+			0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+			0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+			0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+			0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+			0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+			0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+			0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+			0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+			0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+			0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+			0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+			0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+			0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+			0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+			0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+			0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+			0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+			0x3fffffff
+	};
+	private static final byte[] LENGTHS = {
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+			28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+			5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+			7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+			6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+			24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+			21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+			19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+			26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			30
+	};
+	private static final int EOS = 256;
+	/**
+	 * Huffman decoding tree: children of node n at 2n (bit 0) and 2n+1 (bit 1), positive is a node,
+	 * negative is a leaf (~symbol), zero is not used (root is never a child)
+	 */
+	private static final int[] TREE = new int[2 * EOS];
+
+	static {
+		for (int i = STATIC_TABLE.length; i > 0; i--) {
+			final String[] e = STATIC_TABLE[i - 1];
+			STATIC_NAMES.put(e[0], i);
+			STATIC_FIELDS.put(e[0] + '\0' + e[1], i);
+		}
+		int nodes = 0;
+		for (int sym = 0; sym <= EOS; sym++) {
+			final int code = CODES[sym];
+			int node = 0;
+			for (int i = LENGTHS[sym] - 1; i > 0; i--) {
+				final int idx = (2 * node) + ((code >>> i) & 1);
+				if (TREE[idx] == 0) {
+					TREE[idx] = ++nodes;
+				}
+				node = TREE[idx];
+			}
+			TREE[(2 * node) + (code & 1)] = ~sym;
+		}
+	}
+
+	private Hpack() {
+	}
+
+	/**
+	 * Decoder of header blocks, one per connection (blocks must be decoded in order of arrival)
+	 */
+	static final class Decoder {
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+		/**
+		 * Max size of dynamic table allowed to the peer (our SETTINGS_HEADER_TABLE_SIZE)
+		 */
+		private final int maxTableSize;
+		private byte[] buf;
+		private int pos;
+		private int end;
+
+		Decoder(final int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+		}
+
+		/**
+		 * Decode a complete header block
+		 *
+		 * @param block encoded headers
+		 * @param len length of block
+		 * @param sink receive each header (name, value)
+		 * @throws IOException if block is invalid (connection error)
+		 */
+		void decode(final byte[] block, final int len, final BiConsumer<String, String> sink)
+				throws IOException {
+			this.buf = block;
+			this.pos = 0;
+			this.end = len;
+			try {
+				while (pos < end) {
+					final int b = buf[pos] & 0xFF;
+					if ((b & 0x80) != 0) {
+						// Indexed
+						final String[] e = get(readInt(7));
+						sink.accept(e[0], e[1]);
+					} else if ((b & 0x40) != 0) {
+						// Literal with incremental indexing
+						final String[] e = literal(6);
+						table.add(e[0], e[1]);
+						sink.accept(e[0], e[1]);
+					} else if ((b & 0x20) != 0) {
+						final int size = readInt(5);
+						if (size > maxTableSize) {
+							throw new ProtocolException("HPACK table size too large: " + size);
+						}
+						table.setMaxSize(size);
+					} else {
+						// Literal without indexing / never indexed
+						final String[] e = literal(4);
+						sink.accept(e[0], e[1]);
+					}
+				}
+			} finally {
+				this.buf = null;
+			}
+		}
+
+		private String[] literal(final int prefix) throws IOException {
+			final int index = readInt(prefix);
+			final String name = ((index == 0) ? readString() : get(index)[0]);
+			return new String[] {
+					name, readString()
+			};
+		}
+
+		private String[] get(final int index) throws IOException {
+			if ((index > 0) && (index <= STATIC_TABLE.length)) {
+				return STATIC_TABLE[index - 1];
+			}
+			final String[] e = table.get(index - STATIC_TABLE.length);
+			if (e == null) {
+				throw new ProtocolException("HPACK invalid index: " + index);
+			}
+			return e;
+		}
+
+		private int readInt(final int prefix) throws IOException {
+			final int mask = (1 << prefix) - 1;
+			int value = next() & mask;
+			if (value < mask) {
+				return value;
+			}
+			int shift = 0;
+			int b;
+			do {
+				if (shift > 21) {
+					throw new ProtocolException("HPACK integer overflow");
+				}
+				b = next();
+				value += (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		private String readString() throws IOException {
+			final boolean huffman = ((buf[checkPos()] & 0x80) != 0);
+			final int len = readInt(7);
+			if ((len < 0) || (len > (end - pos))) {
+				throw new ProtocolException("HPACK string too long: " + len);
+			}
+			final String s = (huffman //
+					? huffmanDecode(buf, pos, len) //
+					: new String(buf, pos, len, StandardCharsets.ISO_8859_1));
+			pos += len;
+			return s;
+		}
+
+		private int checkPos() throws IOException {
+			if (pos >= end) {
+				throw new ProtocolException("HPACK truncated block");
+			}
+			return pos;
+		}
+
+		private int next() throws IOException {
+			checkPos();
+			return buf[pos++] & 0xFF;
+		}
+	}
+
+	/**
+	 * Encoder of header blocks, one per connection (blocks must be sent in order of encoding)
+	 */
+	static final class Encoder {
+		private final Table table = new Table(DEFAULT_TABLE_SIZE);
+		private int sizeUpdate = -1;
+
+		/**
+		 * Apply SETTINGS_HEADER_TABLE_SIZE of peer
+		 *
+		 * @param size max size of table
+		 */
+		void setMaxTableSize(final int size) {
+			final int max = Math.min(size, DEFAULT_TABLE_SIZE);
+			if (max != table.maxSize) {
+				table.setMaxSize(max);
+				sizeUpdate = max;
+			}
+		}
+
+		/**
+		 * Start a header block
+		 *
+		 * @param out destination
+		 */
+		void begin(final ByteArrayOutputStream out) {
+			if (sizeUpdate >= 0) {
+				writeInt(out, 0x20, 5, sizeUpdate);
+				sizeUpdate = -1;
+			}
+		}
+
+		/**
+		 * Encode a header
+		 *
+		 * @param out destination
+		 * @param name lowercase
+		 * @param value of header
+		 */
+		void encode(final ByteArrayOutputStream out, final String name, final String value) {
+			final Integer full = STATIC_FIELDS.get(name + '\0' + value);
+			if (full != null) {
+				writeInt(out, 0x80, 7, full);
+				return;
+			}
+			final int dynamic = table.indexOf(name, value);
+			if (dynamic > 0) {
+				writeInt(out, 0x80, 7, STATIC_TABLE.length + dynamic);
+				return;
+			}
+			Integer nameIndex = STATIC_NAMES.get(name);
+			if (nameIndex == null) {
+				final int dynamicName = table.indexOfName(name);
+				nameIndex = ((dynamicName > 0) ? (STATIC_TABLE.length + dynamicName) : 0);
+			}
+			if (isSensitive(name)) {
+				// Never indexed
+				writeInt(out, 0x10, 4, nameIndex);
+			} else if (isVolatile(name)) {
+				// Without indexing
+				writeInt(out, 0x00, 4, nameIndex);
+			} else {
+				writeInt(out, 0x40, 6, nameIndex);
+				table.add(name, value);
+			}
+			if (nameIndex == 0) {
+				writeString(out, name);
+			}
+			writeString(out, value);
+		}
+
+		private static boolean isSensitive(final String name) {
+			return "authorization".equals(name) || "proxy-authorization".equals(name) //
+					|| "cookie".equals(name);
+		}
+
+		/**
+		 * Values that change in each request don't go to dynamic table
+		 */
+		private static boolean isVolatile(final String name) {
+			return ":path".equals(name) || "content-length".equals(name) || "range".equals(name) //
+					|| name.startsWith("if-");
+		}
+
+		private static void writeInt(final ByteArrayOutputStream out, final int flags, final int prefix, //
+				int value) {
+			final int mask = (1 << prefix) - 1;
+			if (value < mask) {
+				out.write(flags | value);
+				return;
+			}
+			out.write(flags | mask);
+			value -= mask;
+			while (value >= 0x80) {
+				out.write((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+
+		private static void writeString(final ByteArrayOutputStream out, final String value) {
+			final byte[] raw = value.getBytes(StandardCharsets.ISO_8859_1);
+			final int hlen = huffmanLength(raw);
+			if (hlen < raw.length) {
+				writeInt(out, 0x80, 7, hlen);
+				huffmanEncode(raw, out);
+			} else {
+				writeInt(out, 0x00, 7, raw.length);
+				out.write(raw, 0, raw.length);
+			}
+		}
+	}
+
+	private static int huffmanLength(final byte[] raw) {
+		long bits = 0;
+		for (final byte b : raw) {
+			bits += LENGTHS[b & 0xFF];
+		}
+		return (int) ((bits + 7) >>> 3);
+	}
+
+	private static void huffmanEncode(final byte[] raw, final ByteArrayOutputStream out) {
+		long acc = 0;
+		int bits = 0;
+		for (final byte b : raw) {
+			final int sym = b & 0xFF;
+			acc = (acc << LENGTHS[sym]) | (CODES[sym] & 0xFFFFFFFFL);
+			bits += LENGTHS[sym];
+			while (bits >= 8) {
+				bits -= 8;
+				out.write((int) (acc >>> bits));
+			}
+		}
+		if (bits > 0) {
+			// Padding with most significant bits of EOS (all ones)
+			out.write((int) ((acc << (8 - bits)) | (0xFF >>> bits)));
+		}
+	}
+
+	static String huffmanDecode(final byte[] buf, final int off, final int len) throws IOException {
+		final StringBuilder sb = new StringBuilder(len + (len >>> 1));
+		int node = 0;
+		int depth = 0;
+		boolean ones = true;
+		for (int i = off; i < (off + len); i++) {
+			final int b = buf[i] & 0xFF;
+			for (int bit = 7; bit >= 0; bit--) {
+				final int v = (b >>> bit) & 1;
+				final int next = TREE[(2 * node) + v];
+				if (next < 0) {
+					final int sym = ~next;
+					if (sym == EOS) {
+						throw new ProtocolException("HPACK EOS in string");
+					}
+					sb.append((char) sym);
+					node = 0;
+					depth = 0;
+					ones = true;
+				} else {
+					node = next;
+					depth++;
+					ones &= (v == 1);
+				}
+			}
+		}
+		if ((depth > 7) || !ones) {
+			throw new ProtocolException("HPACK invalid padding");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Dynamic table (newest entry has index 1)
+	 */
+	private static final class Table {
+		private final ArrayDeque<String[]> entries = new ArrayDeque<>();
+		private int size = 0;
+		int maxSize;
+
+		Table(final int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		void setMaxSize(final int maxSize) {
+			this.maxSize = maxSize;
+			evict(0);
+		}
+
+		void add(final String name, final String value) {
+			final int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+			if (entrySize > maxSize) {
+				entries.clear();
+				size = 0;
+				return;
+			}
+			evict(entrySize);
+			entries.addFirst(new String[] {
+					name, value
+			});
+			size += entrySize;
+		}
+
+		private void evict(final int room) {
+			while ((size + room) > maxSize) {
+				final String[] e = entries.removeLast();
+				size -= e[0].length() + e[1].length() + ENTRY_OVERHEAD;
+			}
+		}
+
+		String[] get(final int index) {
+			if ((index <= 0) || (index > entries.size())) {
+				return null;
+			}
+			final Iterator<String[]> it = entries.iterator();
+			for (int i = 1; i < index; i++) {
+				it.next();
+			}
+			return it.next();
+		}
+
+		int indexOf(final String name, final String value) {
+			int i = 1;
+			for (final String[] e : entries) {
+				if (e[0].equals(name) && e[1].equals(value)) {
+					return i;
+				}
+				i++;
+			}
+			return 0;
+		}
+
+		int indexOfName(final String name) {
+			int i = 1;
+			for (final String[] e : entries) {
+				if (e[0].equals(name)) {
+					return i;
+				}
+				i++;
+			}
+			return 0;
+		}
+	}
+}
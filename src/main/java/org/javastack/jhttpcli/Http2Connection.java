@@ -0,0 +1,1307 @@
+package org.javastack.jhttpcli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * HTTP/2 connection over plain TCP with prior knowledge (h2c, RFC 7540). Requests are sent as concurrent
+ * streams multiplexed in the connection, a reader thread dispatches the frames received and callers wait
+ * for response head, data and flow-control window of their own stream. The reader never waits for the
+ * output: its control frames are queued and written by the executor of client or the holder of the output
+ */
+final class Http2Connection implements Closeable {
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n" //
+			.getBytes(StandardCharsets.ISO_8859_1);
+	// Frame types
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+	// Frame flags
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+	// Settings
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	// Error codes
+	private static final int NO_ERROR = 0x0;
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int CANCEL = 0x8;
+
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final int DEFAULT_FRAME_SIZE = 16384;
+	private static final int MAX_WINDOW = Integer.MAX_VALUE;
+	/**
+	 * Receive window of each stream (max body buffered per stream not yet read)
+	 */
+	private static final int STREAM_WINDOW = 1024 * 1024;
+	/**
+	 * Receive window of connection
+	 */
+	private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+	private static final int MAX_HEADER_BLOCK = 256 * 1024;
+
+	final NioTransport transport;
+	/**
+	 * Key of connection (scheme://host:port)
+	 */
+	final String route;
+	final long created;
+	private final HttpClient cli;
+	private final SocketChannel channel;
+	private final Socket socket;
+	/**
+	 * Remote address (connection counted in load of address until closed)
+	 */
+	private final InetAddress address;
+	private final DataInputStream in;
+	private final OutputStream out;
+	private final Thread reader;
+	/**
+	 * Guard state of connection and streams
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	/**
+	 * Signaled on changes of send window and free stream slots
+	 */
+	private final Condition changed = lock.newCondition();
+	/**
+	 * Guard output, encoder and allocation of stream ids (acquired before lock, never after)
+	 */
+	private final ReentrantLock writeLock = new ReentrantLock();
+	/**
+	 * Control frames (acks, window updates) written before releasing the output
+	 */
+	private final ConcurrentLinkedQueue<byte[]> control = new ConcurrentLinkedQueue<>();
+	/**
+	 * Flush of control frames pending in executor
+	 */
+	private final AtomicBoolean flushing = new AtomicBoolean();
+	/**
+	 * SETTINGS_HEADER_TABLE_SIZE of peer not yet applied to encoder or -1
+	 */
+	private final AtomicInteger tableSize = new AtomicInteger(-1);
+	private final HashMap<Integer, Stream> streams = new HashMap<>();
+	private final Hpack.Encoder encoder = new Hpack.Encoder();
+	private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+	// Guarded by writeLock
+	private int nextStreamId = 1;
+	// Guarded by lock
+	private int active = 0;
+	private int completed = 0;
+	private int maxStreams = Integer.MAX_VALUE;
+	private int initialWindow = DEFAULT_WINDOW;
+	private int maxFrameSize = DEFAULT_FRAME_SIZE;
+	private long sendWindow = DEFAULT_WINDOW;
+	private int lastStreamId = Integer.MAX_VALUE;
+	private int maxOpened = 0;
+	private boolean draining = false;
+	private IOException failure = null;
+	private long lastUsed;
+	// Confined to reader thread
+	private int received = 0;
+
+	private Http2Connection(final NioTransport transport, final String route, //
+			final SocketChannel channel, final Socket socket) throws IOException {
+		this.transport = transport;
+		this.cli = transport.cli;
+		this.route = route;
+		this.channel = channel;
+		this.socket = socket;
+		this.address = socket.getInetAddress();
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 16384));
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 16384);
+		this.created = System.currentTimeMillis();
+		this.lastUsed = created;
+		this.reader = new Thread(this::readLoop, "jhttpcli-h2-" + route);
+		this.reader.setDaemon(true);
+	}
+
+	/**
+	 * Open new connection to host of URL and send connection preface
+	 *
+	 * @param transport owner
+	 * @param url destination (http)
+	 * @return connection
+	 * @throws IOException if error
+	 */
+	static Http2Connection open(final NioTransport transport, final URL url) throws IOException {
+		final HttpClient cli = transport.cli;
+		final SocketChannel ch = HttpConnection.connect(cli, url);
+		final InetAddress address = ch.socket().getInetAddress();
+		try {
+			final Socket s = ch.socket();
+			// Reader thread waits frames of idle connection, timeouts are applied per stream
+			s.setSoTimeout(0);
+			final Http2Connection conn = new Http2Connection(transport, HttpConnection.route(url), ch, s);
+			conn.start();
+			return conn;
+		} catch (IOException | RuntimeException e) {
+			IOUtil.closeSilent(ch);
+			cli.dns.closed(address);
+			throw e;
+		}
+	}
+
+	private void start() throws IOException {
+		writeLock.lock();
+		try {
+			out.write(PREFACE);
+			final byte[] settings = new byte[12];
+			putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+			putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+			writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+			writeFrame(WINDOW_UPDATE, 0, 0, int31(CONNECTION_WINDOW - DEFAULT_WINDOW), 0, 4);
+			out.flush();
+		} finally {
+			writeLock.unlock();
+		}
+		reader.start();
+	}
+
+	/**
+	 * Can new streams be opened in this connection?
+	 *
+	 * @return true if usable
+	 */
+	boolean isUsable() {
+		lock.lock();
+		try {
+			return (failure == null) && !draining && (lastStreamId == Integer.MAX_VALUE);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Don't open new streams, close connection when streams in progress finish
+	 */
+	void drain() {
+		final boolean idle;
+		lock.lock();
+		try {
+			draining = true;
+			idle = (active == 0);
+		} finally {
+			lock.unlock();
+		}
+		if (idle) {
+			close();
+		}
+	}
+
+	/**
+	 * Is connection without streams for longer than keep-alive or older than max lifetime?
+	 *
+	 * @param now current millis
+	 * @return true if expired
+	 */
+	boolean isExpired(final long now) {
+		lock.lock();
+		try {
+			return ((active == 0) && ((now - lastUsed) >= cli.keepAliveMillis)) //
+					|| ((cli.connTimeToLiveMillis > 0) && ((now - created) >= cli.connTimeToLiveMillis));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send GOAWAY and close connection (streams in progress fail)
+	 */
+	@Override
+	public void close() {
+		if (writeLock.tryLock()) {
+			try {
+				if (socket.isConnected() && !socket.isClosed()) {
+					writeFrame(GOAWAY, 0, 0, goAway(0, NO_ERROR), 0, 8);
+					out.flush();
+				}
+			} catch (IOException ign) {
+			} finally {
+				writeLock.unlock();
+			}
+		}
+		IOUtil.closeSilent(socket);
+		IOUtil.closeSilent(channel);
+	}
+
+	/**
+	 * Send request in a new stream and wait response head
+	 *
+	 * @param url destination
+	 * @param method of request
+	 * @param hdrs of request
+	 * @param body of request
+	 * @param ifModifiedSince millis or zero
+	 * @return exchange with body pending to read
+	 * @throws RetryException if request was not processed and can be sent again in other connection
+	 * @throws IOException if error
+	 */
+	Exchange exchange(final URL url, final Request.Method method, //
+			final Map<String, List<String>> hdrs, final Content body, //
+			final long ifModifiedSince) throws IOException {
+		final boolean hasBody = HttpConnection.hasBody(method, body);
+		final Stream s = reserve();
+		boolean ok = false;
+		final Trace trace = Trace.current(cli);
+		try {
+			s.abort = () -> cancel(s);
+			Hedge.bind(s.abort);
+			final int head = writeHeaders(s, requestHeaders(url, method, hdrs, body, ifModifiedSince), //
+					!hasBody);
+			if (trace != null) {
+				trace.requestHeadersEnd(head);
+			}
+			if (hasBody) {
+				final long sent = writeBody(s, body);
+				if (trace != null) {
+					trace.requestBodyEnd(sent);
+				}
+			}
+			awaitHead(s);
+			if (trace != null) {
+				trace.responseStart();
+			}
+			// Without body (HEAD, 204, 304) the stream ends with the headers
+			final InputStream is = new StreamInputStream(s);
+			ok = true;
+			return new Exchange(s.status, Collections.unmodifiableMap(s.hdrs)) {
+				@Override
+				InputStream getBody() {
+					return is;
+				}
+
+				@Override
+				public void close() {
+					IOUtil.closeSilent(is);
+				}
+			};
+		} finally {
+			if (!ok) {
+				finish(s);
+			}
+		}
+	}
+
+	/**
+	 * Wait a free slot of concurrent streams
+	 *
+	 * @return stream without id
+	 * @throws IOException if error
+	 */
+	private Stream reserve() throws IOException {
+		lock.lock();
+		try {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(cli.readTimeoutMillis);
+			while (true) {
+				if ((failure != null) || draining || (lastStreamId != Integer.MAX_VALUE)) {
+					throw new RetryException("Connection not usable", failure);
+				}
+				if (active < maxStreams) {
+					break;
+				}
+				timeout = await(changed, timeout, "Timeout waiting for a free stream");
+			}
+			active++;
+			lastUsed = System.currentTimeMillis();
+			return new Stream(lock.newCondition(), (completed > 0));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stream completed or cancelled, free its slot
+	 *
+	 * @param s stream
+	 */
+	private void finish(final Stream s) {
+		boolean cancel = false;
+		boolean close = false;
+		lock.lock();
+		try {
+			if (s.finished) {
+				return;
+			}
+			s.finished = true;
+			if (s.id != 0) {
+				streams.remove(s.id);
+				cancel = !s.end && ((s.error == null) || s.cancelled) && (failure == null);
+			}
+			if (s.end) {
+				completed++;
+			}
+			active--;
+			lastUsed = System.currentTimeMillis();
+			close = (active == 0) && (draining || (lastStreamId != Integer.MAX_VALUE));
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		if (s.abort != null) {
+			Hedge.unbind(s.abort);
+		}
+		if (cancel) {
+			// Body not fully read, stop data of stream
+			sendControl(RST_STREAM, 0, s.id, int31(CANCEL));
+		}
+		if (close) {
+			close();
+		}
+	}
+
+	/**
+	 * Abort stream from other thread (hedged request lost), its caller fails and resets the stream
+	 *
+	 * @param s stream
+	 */
+	private void cancel(final Stream s) {
+		lock.lock();
+		try {
+			if (s.finished || s.end || (s.error != null)) {
+				return;
+			}
+			s.error = new InterruptedIOException("Stream cancelled");
+			s.cancelled = true;
+			s.cond.signalAll();
+			// Waiting for flow-control window
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private long await(final Condition cond, final long timeout, final String message) throws IOException {
+		if (timeout <= 0L) {
+			throw new SocketTimeoutException(message);
+		}
+		try {
+			return cond.awaitNanos(timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for stream");
+		}
+	}
+
+	/**
+	 * Build header list of request (pseudo-headers first, names in lowercase, without connection
+	 * specific headers)
+	 */
+	private static List<String[]> requestHeaders(final URL url, final Request.Method method, //
+			final Map<String, List<String>> hdrs, final Content body, //
+			final long ifModifiedSince) {
+		final List<String[]> list = new ArrayList<>();
+		final String file = url.getFile();
+		String authority = url.getHost();
+		if ((url.getPort() > 0) && (url.getPort() != url.getDefaultPort())) {
+			authority += ":" + url.getPort();
+		}
+		boolean hasUserAgent = false, hasAccept = false;
+		if ((hdrs != null) && !hdrs.isEmpty()) {
+			for (final Map.Entry<String, List<String>> e : hdrs.entrySet()) {
+				final List<String> values = e.getValue();
+				if ((e.getKey() == null) || (values == null) || values.isEmpty()) {
+					continue;
+				}
+				final String key = e.getKey().toLowerCase(Locale.ROOT);
+				switch (key) {
+					case "host":
+						authority = values.get(0);
+						continue;
+					case "connection":
+					case "keep-alive":
+					case "proxy-connection":
+					case "transfer-encoding":
+					case "upgrade":
+					case "te":
+					case "content-length":
+						continue;
+				}
+				hasUserAgent |= "user-agent".equals(key);
+				hasAccept |= "accept".equals(key);
+				for (final String value : values) {
+					list.add(new String[] {
+							key, value
+					});
+				}
+			}
+		}
+		list.add(0, new String[] {
+				":method", method.name()
+		});
+		list.add(1, new String[] {
+				":scheme", url.getProtocol().toLowerCase(Locale.ROOT)
+		});
+		list.add(2, new String[] {
+				":authority", authority
+		});
+		list.add(3, new String[] {
+				":path", (file.isEmpty() ? "/" : file)
+		});
+		if (!hasUserAgent) {
+			list.add(new String[] {
+					"user-agent", "jhttpcli"
+			});
+		}
+		if (!hasAccept) {
+			list.add(new String[] {
+					"accept", "*/*"
+			});
+		}
+		if (ifModifiedSince > 0L) {
+			list.add(new String[] {
+					"if-modified-since", HttpConnection.formatDate(ifModifiedSince)
+			});
+		}
+		if (HttpConnection.hasBody(method, body)) {
+			list.add(new String[] {
+					"content-length", String.valueOf(body.size())
+			});
+		} else if (method.reqBody) {
+			list.add(new String[] {
+					"content-length", "0"
+			});
+		}
+		return list;
+	}
+
+	/**
+	 * Assign stream id and send header block (ids must be sent in increasing order and blocks in order of
+	 * encoding, both under write lock)
+	 *
+	 * @return bytes of header block
+	 */
+	private int writeHeaders(final Stream s, final List<String[]> hdrs, final boolean endStream)
+			throws IOException {
+		lockWrite();
+		try {
+			if (nextStreamId <= 0) {
+				// Stream ids exhausted
+				drain();
+				throw new RetryException("Stream ids exhausted", null);
+			}
+			lock.lock();
+			try {
+				if (failure != null) {
+					throw new RetryException("Connection not usable", failure);
+				}
+				s.id = nextStreamId;
+				s.sendWindow = initialWindow;
+				maxOpened = s.id;
+				streams.put(s.id, s);
+			} finally {
+				lock.unlock();
+			}
+			nextStreamId += 2;
+			final ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+			encoder.begin(block);
+			for (final String[] h : hdrs) {
+				encoder.encode(block, h[0], h[1]);
+			}
+			final byte[] buf = block.toByteArray();
+			final int frameSize = frameSize();
+			int off = 0;
+			int type = HEADERS;
+			do {
+				final int len = Math.min(frameSize, buf.length - off);
+				int flags = (((off + len) == buf.length) ? FLAG_END_HEADERS : 0);
+				if ((type == HEADERS) && endStream) {
+					flags |= FLAG_END_STREAM;
+				}
+				writeFrame(type, flags, s.id, buf, off, len);
+				off += len;
+				type = CONTINUATION;
+			} while (off < buf.length);
+			out.flush();
+			return buf.length;
+		} catch (SocketException | EOFException e) {
+			fail(e);
+			throw retry(s, e);
+		} finally {
+			unlockWrite();
+		}
+	}
+
+	/**
+	 * Send body in DATA frames limited by flow-control windows of stream and connection
+	 *
+	 * @return bytes sent (less than size if response completed before)
+	 */
+	private long writeBody(final Stream s, final Content body) throws IOException {
+		final long size = body.size();
+		final byte[] buf = new byte[DEFAULT_FRAME_SIZE];
+		long sent = 0;
+		try (final InputStream is = body.getInputStream()) {
+			while (sent < size) {
+				final int len = is.read(buf, 0, (int) Math.min(buf.length, size - sent));
+				if (len < 0) {
+					throw new EOFException("Body truncated, expected=" + size + " sent=" + sent);
+				}
+				int off = 0;
+				while (off < len) {
+					final int n = acquireWindow(s, len - off);
+					if (n == 0) {
+						// Response complete before body was sent, the rest is not wanted
+						return sent + off;
+					}
+					final boolean last = ((sent + off + n) == size);
+					lockWrite();
+					try {
+						writeFrame(DATA, (last ? FLAG_END_STREAM : 0), s.id, buf, off, n);
+						// Peer may need the data to return window
+						out.flush();
+					} finally {
+						unlockWrite();
+					}
+					off += n;
+				}
+				sent += len;
+			}
+			return sent;
+		} catch (SocketException e) {
+			fail(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Wait for flow-control window
+	 *
+	 * @param s stream
+	 * @param want bytes to send
+	 * @return bytes allowed to send (between 1 and want) or zero if response is complete
+	 * @throws IOException if error or timeout
+	 */
+	private int acquireWindow(final Stream s, final int want) throws IOException {
+		lock.lock();
+		try {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(cli.readTimeoutMillis);
+			while (true) {
+				if (s.end) {
+					// Response complete before body was sent (like 413), returned as is
+					return 0;
+				}
+				if (s.error != null) {
+					throw s.error;
+				}
+				if ((s.sendWindow > 0) && (sendWindow > 0)) {
+					break;
+				}
+				timeout = await(changed, timeout, "Timeout waiting for flow-control window");
+			}
+			final int n = (int) Math.min(Math.min(want, maxFrameSize), Math.min(s.sendWindow, sendWindow));
+			s.sendWindow -= n;
+			sendWindow -= n;
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void awaitHead(final Stream s) throws IOException {
+		lock.lock();
+		try {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(cli.readTimeoutMillis);
+			while (s.status == 0) {
+				if (s.error != null) {
+					throw s.error;
+				}
+				timeout = await(s.cond, timeout, "Read timed out");
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read data of stream
+	 *
+	 * @return bytes read or -1 at end of stream
+	 */
+	private int read(final Stream s, final byte[] b, final int off, final int len) throws IOException {
+		int n = 0;
+		final int update;
+		lock.lock();
+		try {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(cli.readTimeoutMillis);
+			while (s.data.isEmpty()) {
+				if (s.end) {
+					return -1;
+				}
+				if (s.error != null) {
+					throw s.error;
+				}
+				timeout = await(s.cond, timeout, "Read timed out");
+			}
+			while ((n < len) && !s.data.isEmpty()) {
+				final byte[] chunk = s.data.peek();
+				final int k = Math.min(len - n, chunk.length - s.offset);
+				System.arraycopy(chunk, s.offset, b, off + n, k);
+				n += k;
+				s.offset += k;
+				if (s.offset == chunk.length) {
+					s.data.poll();
+					s.offset = 0;
+				}
+			}
+			s.consumed += n;
+			if (s.end || (s.consumed < (STREAM_WINDOW / 2))) {
+				return n;
+			}
+			update = s.consumed;
+			s.consumed = 0;
+		} finally {
+			lock.unlock();
+		}
+		sendControl(WINDOW_UPDATE, 0, s.id, int31(update));
+		return n;
+	}
+
+	private int available(final Stream s) {
+		lock.lock();
+		try {
+			int n = 0;
+			for (final byte[] chunk : s.data) {
+				n += chunk.length;
+			}
+			return (n - s.offset);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send a control frame without waiting for the output: written now if free, else by its holder (from
+	 * reader thread, always queued)
+	 */
+	private void sendControl(final int type, final int flags, final int streamId, final byte[] payload) {
+		final byte[] frame = new byte[9 + payload.length];
+		frame[0] = (byte) (payload.length >>> 16);
+		frame[1] = (byte) (payload.length >>> 8);
+		frame[2] = (byte) payload.length;
+		frame[3] = (byte) type;
+		frame[4] = (byte) flags;
+		putInt(frame, 5, streamId & 0x7FFFFFFF);
+		System.arraycopy(payload, 0, frame, 9, payload.length);
+		control.add(frame);
+		flushControl();
+	}
+
+	/**
+	 * Write queued control frames if output is free. Never by the reader thread, a write blocked by a
+	 * peer that is not reading would stop the reads; nor by an interrupted thread, its write would close
+	 * the channel (and fail all streams): they are written from executor of client or by next holder
+	 */
+	private void flushControl() {
+		final Thread current = Thread.currentThread();
+		if ((current != reader) && !current.isInterrupted()) {
+			if (writeLock.tryLock()) {
+				unlockWrite();
+			}
+			return;
+		}
+		if (!flushing.compareAndSet(false, true)) {
+			// Already pending, frames queued before it runs are written too
+			return;
+		}
+		try {
+			cli.getExecutor().execute(() -> {
+				flushing.set(false);
+				flushControl();
+			});
+		} catch (RejectedExecutionException e) {
+			flushing.set(false);
+			// Written by next holder of output
+		}
+	}
+
+	/**
+	 * Acquire output, control frames queued are written first
+	 *
+	 * @throws IOException if error writing control frames
+	 */
+	private void lockWrite() throws IOException {
+		if (Thread.currentThread().isInterrupted()) {
+			// Write of an interrupted thread closes the channel shared by all streams
+			throw new InterruptedIOException("Interrupted before write");
+		}
+		writeLock.lock();
+		boolean ok = false;
+		try {
+			writeControl();
+			ok = true;
+		} finally {
+			if (!ok) {
+				writeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Release output, control frames queued meanwhile are written (by this or next holder)
+	 */
+	private void unlockWrite() {
+		do {
+			try {
+				writeControl();
+			} catch (IOException e) {
+				fail(e);
+			}
+			writeLock.unlock();
+		} while (!control.isEmpty() && writeLock.tryLock());
+	}
+
+	/**
+	 * Write queued control frames (under write lock)
+	 */
+	private void writeControl() throws IOException {
+		final int size = tableSize.getAndSet(-1);
+		if (size >= 0) {
+			// Before the ack, next header block signals the change
+			encoder.setMaxTableSize(size);
+		}
+		byte[] frame = control.poll();
+		if (frame == null) {
+			return;
+		}
+		do {
+			out.write(frame);
+		} while ((frame = control.poll()) != null);
+		out.flush();
+	}
+
+	private void writeFrame(final int type, final int flags, final int streamId, //
+			final byte[] payload, final int off, final int len) throws IOException {
+		out.write(len >>> 16);
+		out.write(len >>> 8);
+		out.write(len);
+		out.write(type);
+		out.write(flags);
+		out.write(int31(streamId));
+		out.write(payload, off, len);
+	}
+
+	private int frameSize() {
+		lock.lock();
+		try {
+			return maxFrameSize;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Read and dispatch frames until connection is closed
+	 */
+	private void readLoop() {
+		final byte[] head = new byte[9];
+		ByteArrayOutputStream block = null;
+		int blockStream = 0;
+		int blockFlags = 0;
+		try {
+			while (true) {
+				in.readFully(head);
+				final int len = ((head[0] & 0xFF) << 16) | ((head[1] & 0xFF) << 8) | (head[2] & 0xFF);
+				final int type = head[3] & 0xFF;
+				final int flags = head[4] & 0xFF;
+				final int streamId = readInt31(head, 5);
+				if (len > DEFAULT_FRAME_SIZE) {
+					throw new ProtocolException("HTTP/2 frame too large: " + len);
+				}
+				final byte[] payload = new byte[len];
+				in.readFully(payload);
+				if ((block != null) && ((type != CONTINUATION) || (streamId != blockStream))) {
+					throw new ProtocolException("HTTP/2 expected CONTINUATION frame");
+				}
+				switch (type) {
+					case DATA:
+						onData(streamId, flags, payload);
+						break;
+					case HEADERS:
+						if (streamId == 0) {
+							throw new ProtocolException("HTTP/2 HEADERS without stream");
+						}
+						block = new ByteArrayOutputStream(Math.max(len, 256));
+						blockStream = streamId;
+						blockFlags = flags;
+						int off = 0;
+						int end = len;
+						if ((flags & FLAG_PADDED) != 0) {
+							end -= (payload[off++] & 0xFF);
+						}
+						if ((flags & FLAG_PRIORITY) != 0) {
+							off += 5;
+						}
+						if (off > end) {
+							throw new ProtocolException("HTTP/2 invalid padding");
+						}
+						block.write(payload, off, end - off);
+						break;
+					case CONTINUATION:
+						if (block == null) {
+							throw new ProtocolException("HTTP/2 unexpected CONTINUATION frame");
+						}
+						block.write(payload, 0, len);
+						blockFlags |= (flags & FLAG_END_HEADERS);
+						break;
+					case RST_STREAM:
+						onReset(streamId, readInt31(payload, 0));
+						break;
+					case SETTINGS:
+						onSettings(flags, payload);
+						break;
+					case PUSH_PROMISE:
+						// Disabled in our SETTINGS
+						throw new ProtocolException("HTTP/2 unexpected PUSH_PROMISE");
+					case PING:
+						if ((flags & FLAG_ACK) == 0) {
+							sendControl(PING, FLAG_ACK, 0, payload);
+						}
+						break;
+					case GOAWAY:
+						onGoAway(readInt31(payload, 0), readInt31(payload, 4));
+						break;
+					case WINDOW_UPDATE:
+						onWindowUpdate(streamId, readInt31(payload, 0));
+						break;
+					default:
+						// PRIORITY and unknown types are ignored
+						break;
+				}
+				if (block != null) {
+					if (block.size() > MAX_HEADER_BLOCK) {
+						throw new ProtocolException("HTTP/2 header block too large");
+					}
+					if ((blockFlags & FLAG_END_HEADERS) != 0) {
+						onHeaders(blockStream, blockFlags, block.toByteArray());
+						block = null;
+					}
+				}
+			}
+		} catch (ProtocolException e) {
+			sendControl(GOAWAY, 0, 0, goAway(0, PROTOCOL_ERROR));
+			fail(e);
+		} catch (EOFException e) {
+			fail(new EOFException("Connection closed by peer"));
+		} catch (IOException e) {
+			fail(e);
+		} catch (RuntimeException e) {
+			fail(new IOException(e));
+		}
+		IOUtil.closeSilent(socket);
+		IOUtil.closeSilent(channel);
+		cli.dns.closed(address);
+	}
+
+	private void onData(final int streamId, final int flags, final byte[] payload) throws IOException {
+		int off = 0;
+		int end = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			if (end == 0) {
+				throw new ProtocolException("HTTP/2 invalid padding");
+			}
+			end -= (payload[off++] & 0xFF);
+			if (off > end) {
+				throw new ProtocolException("HTTP/2 invalid padding");
+			}
+		}
+		final int padding = payload.length - (end - off);
+		lock.lock();
+		try {
+			final Stream s = streams.get(streamId);
+			if (s == null) {
+				if ((streamId == 0) || (streamId > maxOpened)) {
+					throw new ProtocolException("HTTP/2 DATA on idle stream: " + streamId);
+				}
+				// Cancelled or finished stream
+			} else {
+				if (end > off) {
+					final byte[] chunk = new byte[end - off];
+					System.arraycopy(payload, off, chunk, 0, chunk.length);
+					s.data.add(chunk);
+				}
+				if ((flags & FLAG_END_STREAM) != 0) {
+					s.end = true;
+					// Sender of body may be waiting for window
+					changed.signalAll();
+				}
+				s.consumed += padding;
+				s.cond.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		// Connection window is replenished on receipt, memory is bounded by windows of streams
+		received += payload.length;
+		if (received >= (CONNECTION_WINDOW / 2)) {
+			sendControl(WINDOW_UPDATE, 0, 0, int31(received));
+			received = 0;
+		}
+	}
+
+	private void onHeaders(final int streamId, final int flags, final byte[] block) throws IOException {
+		// Block must be decoded even if stream is gone, to keep the dynamic table in sync
+		final TreeMap<String, List<String>> hdrs = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		final int[] status = new int[1];
+		decoder.decode(block, block.length, (name, value) -> {
+			if (name.startsWith(":")) {
+				if (":status".equals(name)) {
+					try {
+						status[0] = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						status[0] = -1;
+					}
+				}
+				return;
+			}
+			hdrs.computeIfAbsent(name, k -> new ArrayList<>(1)).add(value);
+		});
+		lock.lock();
+		try {
+			final Stream s = streams.get(streamId);
+			if (s == null) {
+				return;
+			}
+			if (s.status == 0) {
+				if ((status[0] >= 100) && (status[0] <= 199)) {
+					// Interim response (100 Continue, 103 Early Hints...)
+					return;
+				}
+				if ((status[0] < 200) || (status[0] > 999)) {
+					s.error = new ProtocolException("HTTP/2 invalid :status");
+				} else {
+					s.status = status[0];
+					s.hdrs = hdrs;
+				}
+			}
+			// Else trailers, ignored
+			if ((flags & FLAG_END_STREAM) != 0) {
+				s.end = true;
+				changed.signalAll();
+			}
+			s.cond.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onReset(final int streamId, final int code) {
+		lock.lock();
+		try {
+			final Stream s = streams.get(streamId);
+			if ((s != null) && !s.end) {
+				final String message = "HTTP/2 stream reset by peer, error=" + code;
+				s.error = ((code == REFUSED_STREAM) //
+						? new RetryException(message, null) //
+						: new IOException(message));
+				s.cond.signalAll();
+				changed.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onSettings(final int flags, final byte[] payload) throws IOException {
+		if ((flags & FLAG_ACK) != 0) {
+			return;
+		}
+		if ((payload.length % 6) != 0) {
+			throw new ProtocolException("HTTP/2 invalid SETTINGS length");
+		}
+		lock.lock();
+		try {
+			for (int i = 0; i < payload.length; i += 6) {
+				final int id = ((payload[i] & 0xFF) << 8) | (payload[i + 1] & 0xFF);
+				final int value = readInt32(payload, i + 2);
+				switch (id) {
+					case SETTINGS_HEADER_TABLE_SIZE:
+						tableSize.set(value);
+						break;
+					case SETTINGS_MAX_CONCURRENT_STREAMS:
+						maxStreams = ((value < 0) ? Integer.MAX_VALUE : value);
+						break;
+					case SETTINGS_INITIAL_WINDOW_SIZE:
+						if (value < 0) {
+							throw new ProtocolException("HTTP/2 invalid initial window size");
+						}
+						// Change applies to open streams
+						final int delta = value - initialWindow;
+						initialWindow = value;
+						for (final Stream s : streams.values()) {
+							s.sendWindow += delta;
+						}
+						break;
+					case SETTINGS_MAX_FRAME_SIZE:
+						if ((value < DEFAULT_FRAME_SIZE) || (value > 0xFFFFFF)) {
+							throw new ProtocolException("HTTP/2 invalid max frame size");
+						}
+						maxFrameSize = value;
+						break;
+				}
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		sendControl(SETTINGS, FLAG_ACK, 0, new byte[0]);
+	}
+
+	private void onGoAway(final int lastId, final int code) {
+		lock.lock();
+		try {
+			lastStreamId = Math.min(lastStreamId, lastId);
+			for (final Stream s : streams.values()) {
+				if ((s.id > lastStreamId) && (s.error == null)) {
+					// Never processed by peer
+					s.error = new RetryException("HTTP/2 connection going away, error=" + code, null);
+					s.cond.signalAll();
+				}
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void onWindowUpdate(final int streamId, final int increment) throws IOException {
+		if (increment == 0) {
+			throw new ProtocolException("HTTP/2 invalid WINDOW_UPDATE");
+		}
+		lock.lock();
+		try {
+			if (streamId == 0) {
+				if ((sendWindow + increment) > MAX_WINDOW) {
+					throw new ProtocolException("HTTP/2 flow-control window overflow");
+				}
+				sendWindow += increment;
+			} else {
+				final Stream s = streams.get(streamId);
+				if (s != null) {
+					s.sendWindow += increment;
+				}
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Connection lost: fail streams in progress
+	 *
+	 * @param e cause
+	 */
+	private void fail(final IOException e) {
+		lock.lock();
+		try {
+			if (failure == null) {
+				failure = e;
+			}
+			for (final Stream s : streams.values()) {
+				if ((s.error == null) && !s.end) {
+					s.error = retry(s, e);
+					s.cond.signalAll();
+				}
+			}
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		IOUtil.closeSilent(socket);
+	}
+
+	/**
+	 * Error of stream: before any response in a connection used by previous streams, can be retried in
+	 * other connection (like a stale HTTP/1.1 persistent connection)
+	 */
+	private static IOException retry(final Stream s, final IOException e) {
+		if ((s.status == 0) && s.reused) {
+			return new RetryException("HTTP/2 connection closed", e);
+		}
+		final SocketException se = new SocketException("HTTP/2 connection closed: " + e.getMessage());
+		se.initCause(e);
+		return se;
+	}
+
+	private static byte[] int31(final int value) {
+		final byte[] b = new byte[4];
+		putInt(b, 0, value & 0x7FFFFFFF);
+		return b;
+	}
+
+	private static byte[] goAway(final int lastId, final int code) {
+		final byte[] b = new byte[8];
+		putInt(b, 0, lastId & 0x7FFFFFFF);
+		putInt(b, 4, code);
+		return b;
+	}
+
+	private static void putSetting(final byte[] b, final int off, final int id, final int value) {
+		b[off] = (byte) (id >>> 8);
+		b[off + 1] = (byte) id;
+		putInt(b, off + 2, value);
+	}
+
+	private static void putInt(final byte[] b, final int off, final int value) {
+		b[off] = (byte) (value >>> 24);
+		b[off + 1] = (byte) (value >>> 16);
+		b[off + 2] = (byte) (value >>> 8);
+		b[off + 3] = (byte) value;
+	}
+
+	private static int readInt32(final byte[] b, final int off) throws ProtocolException {
+		if ((off + 4) > b.length) {
+			throw new ProtocolException("HTTP/2 frame too short");
+		}
+		return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8)
+				| (b[off + 3] & 0xFF);
+	}
+
+	private static int readInt31(final byte[] b, final int off) throws ProtocolException {
+		return readInt32(b, off) & 0x7FFFFFFF;
+	}
+
+	/**
+	 * Request not processed by peer (stream refused or connection lost before response), can be sent again
+	 * in a new connection
+	 */
+	static final class RetryException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		RetryException(final String message, final Throwable cause) {
+			super(message, cause);
+		}
+	}
+
+	/**
+	 * State of a stream (guarded by connection lock)
+	 */
+	private static final class Stream {
+		final Condition cond;
+		/**
+		 * Opened after other streams completed in the connection
+		 */
+		final boolean reused;
+		final ArrayDeque<byte[]> data = new ArrayDeque<>();
+		int id = 0;
+		long sendWindow;
+		int status = 0;
+		Map<String, List<String>> hdrs;
+		/**
+		 * Offset in first chunk of data
+		 */
+		int offset = 0;
+		/**
+		 * Bytes read and not yet returned to peer with WINDOW_UPDATE
+		 */
+		int consumed = 0;
+		boolean end = false;
+		boolean finished = false;
+		/**
+		 * Aborted by other thread, reset by caller
+		 */
+		boolean cancelled = false;
+		IOException error;
+		/**
+		 * Abort action bound to hedged copy
+		 */
+		Closeable abort;
+
+		Stream(final Condition cond, final boolean reused) {
+			this.cond = cond;
+			this.reused = reused;
+		}
+	}
+
+	/**
+	 * Body of response, the stream is cancelled if closed before end
+	 */
+	private final class StreamInputStream extends InputStream {
+		private final Stream s;
+		private boolean closed = false;
+
+		StreamInputStream(final Stream s) {
+			this.s = s;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+			final int n = Http2Connection.this.read(s, b, off, len);
+			if (n < 0) {
+				finish(s);
+			}
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			final int len = read(b, 0, 1);
+			return ((len <= 0) ? -1 : (b[0] & 0xFF));
+		}
+
+		@Override
+		public int available() {
+			return (closed ? 0 : Http2Connection.this.available(s));
+		}
+
+		@Override
+		public void close() {
+			if (!closed) {
+				closed = true;
+				finish(s);
+			}
+		}
+	}
+}
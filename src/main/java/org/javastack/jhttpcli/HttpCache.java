@@ -0,0 +1,620 @@
+package org.javastack.jhttpcli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Private HTTP response cache (RFC 7234) with a memory LRU tier for small bodies and an optional disk
+ * tier for large ones. Honors Cache-Control, Expires, Age and Vary, stale entries with ETag or
+ * Last-Modified are revalidated with If-None-Match / If-Modified-Since. Only GET requests of
+ * {@link HttpClient#execute(Request)} and {@link HttpClient#executeAsync(Request)} without output file
+ * are served from cache. The index lives in memory, disk tier is emptied on creation
+ *
+ * @see HttpClient#setCache(HttpCache)
+ */
+public class HttpCache {
+	private static final String SUFFIX = ".jhttpcli-cache";
+	private static final long HEURISTIC_MAX = 24L * 3600 * 1000;
+
+	private final long maxMemory;
+	private final File dir;
+	private final long maxDisk;
+	private volatile int maxMemoryEntrySize = 64 * 1024;
+	private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes = 0;
+	private long diskBytes = 0;
+	private long seq = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong revalidations = new AtomicLong();
+	private final AtomicLong notModified = new AtomicLong();
+
+	/**
+	 * Create cache only in memory
+	 *
+	 * @param maxMemory bytes of bodies in memory
+	 */
+	public HttpCache(final long maxMemory) {
+		this.maxMemory = maxMemory;
+		this.dir = null;
+		this.maxDisk = 0;
+	}
+
+	/**
+	 * Create cache in memory and disk
+	 *
+	 * @param maxMemory bytes of bodies in memory
+	 * @param dir directory of disk tier
+	 * @param maxDisk bytes of bodies in disk
+	 * @throws IOException if directory can not be used
+	 */
+	public HttpCache(final long maxMemory, final File dir, final long maxDisk) throws IOException {
+		this.maxMemory = maxMemory;
+		this.dir = dir;
+		this.maxDisk = maxDisk;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Invalid cache directory: " + dir);
+		}
+		final File[] old = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (old != null) {
+			for (final File f : old) {
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Set max size of a body stored in memory tier, larger bodies go to disk tier (default: 64kb)
+	 *
+	 * @param size in bytes
+	 * @return this
+	 */
+	public HttpCache setMaxMemoryEntrySize(final int size) {
+		this.maxMemoryEntrySize = size;
+		return this;
+	}
+
+	/**
+	 * Get statistics of cache
+	 *
+	 * @return snapshot of stats
+	 */
+	public synchronized CacheStats getStats() {
+		return new CacheStats(hits.get(), misses.get(), revalidations.get(), notModified.get(), //
+				memory.size(), memoryBytes, disk.size(), diskBytes);
+	}
+
+	/**
+	 * Remove all entries
+	 */
+	public synchronized void clear() {
+		memory.clear();
+		memoryBytes = 0;
+		disk.values().forEach(e -> e.file.delete());
+		disk.clear();
+		diskBytes = 0;
+	}
+
+	/**
+	 * Prepare execution of request: response from cache, conditional request or request as is
+	 *
+	 * @param req to execute
+	 * @return lookup result
+	 */
+	Lookup lookup(final Request req) {
+		if (req.method != Request.Method.GET) {
+			// Unsafe methods invalidate stored response
+			return new Lookup(this, req, null, null, null, false, (req.method != Request.Method.HEAD));
+		}
+		final String key = req.url.toString();
+		final Map<String, String> cc = directives(req.hdrs);
+		if (cc.containsKey("no-store")) {
+			return new Lookup(this, req, null, null, null, false, false);
+		}
+		final Entry e = get(key);
+		if ((e != null) && e.matches(req)) {
+			final long now = System.currentTimeMillis();
+			final long age = e.age(now);
+			long lifetime = e.lifetime;
+			final long maxAge = seconds(cc, "max-age", -1);
+			if (maxAge >= 0) {
+				lifetime = Math.min(lifetime, maxAge * 1000);
+			}
+			final long minFresh = seconds(cc, "min-fresh", 0) * 1000;
+			long maxStale = 0;
+			if (cc.containsKey("max-stale") && !e.mustRevalidate) {
+				maxStale = ((cc.get("max-stale") == null) // any staleness
+						? (Long.MAX_VALUE / 2) //
+						: (seconds(cc, "max-stale", 0) * 1000));
+			}
+			final boolean fresh = !cc.containsKey("no-cache") && !e.noCache //
+					&& ((age + minFresh) < (lifetime + maxStale));
+			if (fresh) {
+				final Response res = e.response();
+				if (res != null) {
+					hits.incrementAndGet();
+					return new Lookup(this, req, null, null, res, false, false);
+				}
+				remove(key);
+			} else if (!cc.containsKey("only-if-cached") //
+					&& ((e.etag != null) || (e.lastModified != null))) {
+				// Body held while revalidating (evicted entry is a miss, a 304 can not be answered)
+				final Response stored = e.response();
+				if (stored == null) {
+					remove(key);
+					misses.incrementAndGet();
+					return new Lookup(this, req, null, null, null, true, false);
+				}
+				revalidations.incrementAndGet();
+				final Map<String, List<String>> hdrs = new LinkedHashMap<>(req.hdrs);
+				if (e.etag != null) {
+					hdrs.put("If-None-Match", Collections.singletonList(e.etag));
+				}
+				if (e.lastModified != null) {
+					hdrs.put("If-Modified-Since", Collections.singletonList(e.lastModified));
+				}
+				return new Lookup(this, new Request(req.url, req.method, hdrs, req.body), e, stored, null, //
+						true, false);
+			}
+		}
+		misses.incrementAndGet();
+		if (cc.containsKey("only-if-cached")) {
+			return new Lookup(this, req, null, null, new Response(Response.Code.GATEWAY_TIMEOUT), false, //
+					false);
+		}
+		return new Lookup(this, req, null, null, null, true, false);
+	}
+
+	/**
+	 * Update cache with response of server
+	 *
+	 * @param lookup prepared execution
+	 * @param res response of server
+	 * @return response to return (from cache if not modified)
+	 */
+	Response update(final Lookup lookup, final Response res) {
+		final Request req = lookup.request;
+		if (lookup.invalidate) {
+			if ((res.exception == null) && (res.code.code >= 200) && (res.code.code <= 399)) {
+				remove(req.url.toString());
+			}
+			return res;
+		}
+		final Response stored = lookup.stored;
+		if ((res.code == Response.Code.NOT_MODIFIED) && (stored != null) && (res.exception == null)) {
+			notModified.incrementAndGet();
+			final Entry e = lookup.entry.refresh(res.hdrs, lookup.requestTime, System.currentTimeMillis());
+			if ((e.file == null) || e.file.exists()) {
+				replace(e);
+			}
+			return new Response(e.code, e.hdrs, stored.body, null);
+		}
+		if (stored != null) {
+			stored.body.delete();
+		}
+		if (!lookup.store || (res.exception != null)) {
+			return res;
+		}
+		final long now = System.currentTimeMillis();
+		store(req, res, lookup.requestTime, now);
+		return res;
+	}
+
+	private void store(final Request req, final Response res, final long requestTime, //
+			final long responseTime) {
+		final String key = req.url.toString();
+		final Map<String, String> cc = directives(res.hdrs);
+		final List<String> vary = varyNames(res.hdrs);
+		final long lifetime = lifetime(res, cc);
+		final String etag = Headers.getValue(res.hdrs, "ETag");
+		final String lastModified = Headers.getValue(res.hdrs, "Last-Modified");
+		if (cc.containsKey("no-store") || (vary == null) || !isCacheable(res.code) //
+				|| ((lifetime <= 0) && (etag == null) && (lastModified == null))) {
+			remove(key);
+			return;
+		}
+		final Map<String, String> varyValues = new HashMap<>();
+		for (final String name : vary) {
+			varyValues.put(name, Headers.getValue(req.hdrs, name));
+		}
+		final long size = res.body.size();
+		Entry e = new Entry(key, res.code, copy(res.hdrs), varyValues, lifetime, requestTime, responseTime, //
+				cc.containsKey("no-cache"), cc.containsKey("must-revalidate"), etag, lastModified, size);
+		try {
+			if ((size <= maxMemoryEntrySize) && (size <= maxMemory) && (res.body.type != Content.Type.FILE) //
+					&& (res.body.type != Content.Type.MAPPED)) {
+				final byte[] buf = new byte[(int) size];
+				res.body.asByteBuffer().get(buf);
+				e.body = buf;
+			} else if ((dir != null) && (size <= maxDisk)) {
+				e.file = newFile();
+				if (res.body.hasFile()) {
+					link(res.body.getFile(), e.file);
+				} else {
+					try (final InputStream is = res.body.getInputStream()) {
+						Files.copy(is, e.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+				}
+			} else {
+				remove(key);
+				return;
+			}
+		} catch (IOException ex) {
+			if (e.file != null) {
+				e.file.delete();
+			}
+			remove(key);
+			return;
+		}
+		replace(e);
+	}
+
+	private synchronized File newFile() {
+		return new File(dir, Long.toHexString(System.nanoTime()) + "-" + (seq++) + SUFFIX);
+	}
+
+	private static void link(final File src, final File dst) throws IOException {
+		try {
+			Files.createLink(dst.toPath(), src.toPath());
+		} catch (FileAlreadyExistsException e) {
+			throw e;
+		} catch (IOException | UnsupportedOperationException e) {
+			// Other filesystem
+			Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private synchronized Entry get(final String key) {
+		final Entry e = memory.get(key);
+		return ((e != null) ? e : disk.get(key));
+	}
+
+	private synchronized void replace(final Entry e) {
+		final Entry old = remove0(e.key);
+		if ((old != null) && (old.file != null) && (old.file != e.file)) {
+			old.file.delete();
+		}
+		if (e.file == null) {
+			memory.put(e.key, e);
+			memoryBytes += e.size;
+			final Iterator<Entry> it = memory.values().iterator();
+			while ((memoryBytes > maxMemory) && it.hasNext()) {
+				final Entry eldest = it.next();
+				it.remove();
+				memoryBytes -= eldest.size;
+			}
+		} else {
+			disk.put(e.key, e);
+			diskBytes += e.size;
+			final Iterator<Entry> it = disk.values().iterator();
+			while ((diskBytes > maxDisk) && it.hasNext()) {
+				final Entry eldest = it.next();
+				it.remove();
+				diskBytes -= eldest.size;
+				eldest.file.delete();
+			}
+		}
+	}
+
+	private synchronized void remove(final String key) {
+		final Entry old = remove0(key);
+		if ((old != null) && (old.file != null)) {
+			old.file.delete();
+		}
+	}
+
+	private Entry remove0(final String key) {
+		Entry old = memory.remove(key);
+		if (old != null) {
+			memoryBytes -= old.size;
+			return old;
+		}
+		old = disk.remove(key);
+		if (old != null) {
+			diskBytes -= old.size;
+		}
+		return old;
+	}
+
+	private static boolean isCacheable(final Response.Code code) {
+		switch (code) {
+			case OK:
+			case NOT_AUTHORITATIVE:
+			case NO_CONTENT:
+			case MULT_CHOICE:
+			case MOVED_PERM:
+			case NOT_FOUND:
+			case BAD_METHOD:
+			case GONE:
+			case REQ_TOO_LONG:
+			case NOT_IMPLEMENTED:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Freshness lifetime: max-age, Expires or heuristic (10% of time since Last-Modified)
+	 */
+	private static long lifetime(final Response res, final Map<String, String> cc) {
+		final long maxAge = seconds(cc, "max-age", -1);
+		if (maxAge >= 0) {
+			return maxAge * 1000;
+		}
+		final long date = parseDate(Headers.getValue(res.hdrs, "Date"));
+		final long base = ((date > 0) ? date : System.currentTimeMillis());
+		final String expires = Headers.getValue(res.hdrs, "Expires");
+		if (expires != null) {
+			final long exp = parseDate(expires);
+			return ((exp > 0) ? Math.max(0, exp - base) : 0);
+		}
+		final long lastModified = parseDate(Headers.getValue(res.hdrs, "Last-Modified"));
+		if ((lastModified > 0) && (lastModified < base)) {
+			return Math.min((base - lastModified) / 10, HEURISTIC_MAX);
+		}
+		return 0;
+	}
+
+	/**
+	 * Names of Vary header
+	 *
+	 * @return names (lowercase) or null if Vary is "*"
+	 */
+	private static List<String> varyNames(final Map<String, List<String>> hdrs) {
+		final List<String> names = new ArrayList<>();
+		for (final String value : Headers.getValues(hdrs, "Vary")) {
+			for (final String name : value.split(",")) {
+				final String n = name.trim().toLowerCase(Locale.ROOT);
+				if (n.equals("*")) {
+					return null;
+				}
+				if (!n.isEmpty()) {
+					names.add(n);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Parse Cache-Control directives
+	 *
+	 * @param hdrs of request or response
+	 * @return map of directives (lowercase) to value or null if without value
+	 */
+	static Map<String, String> directives(final Map<String, List<String>> hdrs) {
+		final List<String> values = Headers.getValues(hdrs, "Cache-Control");
+		if (values.isEmpty()) {
+			return Collections.emptyMap();
+		}
+		final Map<String, String> cc = new HashMap<>();
+		for (final String value : values) {
+			for (final String d : value.split(",")) {
+				final int eq = d.indexOf('=');
+				final String name = ((eq < 0) ? d : d.substring(0, eq)).trim().toLowerCase(Locale.ROOT);
+				String arg = ((eq < 0) ? null : d.substring(eq + 1).trim());
+				if ((arg != null) && (arg.length() >= 2) && arg.startsWith("\"") && arg.endsWith("\"")) {
+					arg = arg.substring(1, arg.length() - 1);
+				}
+				if (!name.isEmpty()) {
+					cc.put(name, arg);
+				}
+			}
+		}
+		return cc;
+	}
+
+	private static long seconds(final Map<String, String> cc, final String name, final long def) {
+		final String value = cc.get(name);
+		if (value == null) {
+			return def;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			return def;
+		}
+	}
+
+	/**
+	 * Parse HTTP date
+	 *
+	 * @param value RFC 1123 date
+	 * @return millis or -1 if invalid
+	 */
+	static long parseDate(final String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return DateTimeFormatter.RFC_1123_DATE_TIME.parse(value.trim(), Instant::from).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	private static Map<String, List<String>> copy(final Map<String, List<String>> hdrs) {
+		final TreeMap<String, List<String>> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		hdrs.forEach((k, v) -> {
+			if ((k != null) && (v != null)) {
+				map.put(k, v);
+			}
+		});
+		return Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * Execution of a request through cache
+	 */
+	static final class Lookup {
+		final HttpCache cache;
+		/**
+		 * Request to send (conditional if revalidating)
+		 */
+		final Request request;
+		/**
+		 * Stale entry being revalidated or null
+		 */
+		final Entry entry;
+		/**
+		 * Response stored in entry being revalidated (returned if not modified) or null
+		 */
+		final Response stored;
+		/**
+		 * Response from cache or null if request must be sent
+		 */
+		final Response response;
+		final boolean store;
+		final boolean invalidate;
+		final long requestTime = System.currentTimeMillis();
+
+		Lookup(final HttpCache cache, final Request request, final Entry entry, final Response stored, //
+				final Response response, final boolean store, final boolean invalidate) {
+			this.cache = cache;
+			this.request = request;
+			this.entry = entry;
+			this.stored = stored;
+			this.response = response;
+			this.store = store;
+			this.invalidate = invalidate;
+		}
+
+		/**
+		 * Update cache with response of server
+		 *
+		 * @param res response of server
+		 * @return response to return
+		 */
+		Response update(final Response res) {
+			return cache.update(this, res);
+		}
+	}
+
+	/**
+	 * Stored response
+	 */
+	static final class Entry {
+		final String key;
+		final Response.Code code;
+		final Map<String, List<String>> hdrs;
+		final Map<String, String> vary;
+		final long lifetime;
+		final long requestTime;
+		final long responseTime;
+		final boolean noCache;
+		final boolean mustRevalidate;
+		final String etag;
+		final String lastModified;
+		final long size;
+		byte[] body = null;
+		File file = null;
+
+		Entry(final String key, final Response.Code code, final Map<String, List<String>> hdrs, //
+				final Map<String, String> vary, final long lifetime, final long requestTime, //
+				final long responseTime, final boolean noCache, final boolean mustRevalidate, //
+				final String etag, final String lastModified, final long size) {
+			this.key = key;
+			this.code = code;
+			this.hdrs = hdrs;
+			this.vary = vary;
+			this.lifetime = lifetime;
+			this.requestTime = requestTime;
+			this.responseTime = responseTime;
+			this.noCache = noCache;
+			this.mustRevalidate = mustRevalidate;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+		boolean matches(final Request req) {
+			for (final Map.Entry<String, String> e : vary.entrySet()) {
+				final String value = Headers.getValue(req.hdrs, e.getKey());
+				if ((value == null) ? (e.getValue() != null) : !value.equals(e.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Current age (RFC 7234 section 4.2.3)
+		 */
+		long age(final long now) {
+			final long date = parseDate(Headers.getValue(hdrs, "Date"));
+			final long apparentAge = ((date > 0) ? Math.max(0, responseTime - date) : 0);
+			long ageValue = 0;
+			try {
+				final String age = Headers.getValue(hdrs, "Age");
+				ageValue = ((age != null) ? Math.max(0, Long.parseLong(age.trim()) * 1000) : 0);
+			} catch (NumberFormatException e) {
+				ageValue = 0;
+			}
+			final long correctedAge = ageValue + (responseTime - requestTime);
+			return Math.max(apparentAge, correctedAge) + (now - responseTime);
+		}
+
+		/**
+		 * Entry updated with headers of a 304 response
+		 */
+		Entry refresh(final Map<String, List<String>> update, final long requestTime, //
+				final long responseTime) {
+			final TreeMap<String, List<String>> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			merged.putAll(hdrs);
+			update.forEach((k, v) -> {
+				if ((k != null) && (v != null) && !"Content-Length".equalsIgnoreCase(k)) {
+					merged.put(k, v);
+				}
+			});
+			final Response res = new Response(code, merged, null, null);
+			final Map<String, String> cc = directives(merged);
+			final String etag = Headers.getValue(merged, "ETag");
+			final String lastModified = Headers.getValue(merged, "Last-Modified");
+			final Entry e = new Entry(key, code, Collections.unmodifiableMap(merged), vary, //
+					lifetime(res, cc), requestTime, responseTime, cc.containsKey("no-cache"), //
+					cc.containsKey("must-revalidate"), etag, lastModified, size);
+			e.body = body;
+			e.file = file;
+			return e;
+		}
+
+		/**
+		 * Build response from stored entry (memory bodies are shared read-only, file bodies are returned
+		 * as a link or copy in temporal directory)
+		 *
+		 * @return response or null if body is not available
+		 */
+		Response response() {
+			if (body != null) {
+				return new Response(code, hdrs, Content.fromSharedBytes(body), null);
+			}
+			try {
+				final File tmp = File.createTempFile("cache-", ".tmp");
+				tmp.delete();
+				link(file, tmp);
+				return new Response(code, hdrs, Content.fromFile(tmp), null);
+			} catch (IOException e) {
+				return null;
+			}
+		}
+	}
+}
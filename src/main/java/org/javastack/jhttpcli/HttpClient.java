@@ -1,22 +1,44 @@
 package org.javastack.jhttpcli;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPOutputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 /**
  * The most simple http client facade
  */
-public class HttpClient {
+public class HttpClient implements Closeable {
+	protected Transport transport = Transport.URLCONNECTION;
 	protected boolean followRedirects = true;
 	protected boolean useCaches = false;
 	protected int connectionTimeoutMillis = 60_000;
@@ -25,6 +47,64 @@ public class HttpClient {
 	protected Consumer<HttpURLConnection> hookPostConnection = null;
 	protected BiConsumer<Request, Response> hookDone = null;
 	protected BiConsumer<Request, Response> hookFail = null;
+	protected boolean tcpNoDelay = true;
+	protected int socketBufferSize = 0;
+	protected int keepAliveMillis = 15_000;
+	protected int connTimeToLiveMillis = 0;
+	protected int validateAfterInactivityMillis = 2_000;
+	protected int maxConnPerHost = 32;
+	protected int maxConnTotal = 256;
+	protected int poolTimeoutMillis = 60_000;
+	protected boolean mapFileContent = false;
+	protected int directContentLimit = 0;
+	protected int memoryContentLimit = 64 * 1024;
+	protected boolean compression = false;
+	protected int requestCompressionMinSize = 0;
+	protected HttpCache cache = null;
+	protected RetryPolicy retryPolicy = null;
+	protected CircuitBreaker circuitBreaker = null;
+	protected RateLimiter rateLimiter = null;
+	protected HedgePolicy hedgePolicy = null;
+	protected EventListener eventListener = null;
+	protected Metrics metrics = null;
+	protected int downloadSegments = 1;
+	protected int batchConcurrency = 64;
+	protected int batchConcurrencyPerHost = 8;
+	protected int pipelineDepth = 8;
+	protected long downloadSegmentSize = 8L * 1024 * 1024;
+	protected Executor executor = null;
+	protected Resolver resolver = Resolver.SYSTEM;
+	protected int dnsTtlMillis = 60_000;
+	protected int dnsNegativeTtlMillis = 10_000;
+	protected AddressSelection addressSelection = AddressSelection.ROUND_ROBIN;
+	protected SSLContext sslContext = null;
+	protected int tlsSessionCacheSize = -1;
+	protected int tlsSessionTimeoutSecs = -1;
+	final NioTransport nio = new NioTransport(this);
+	final DnsCache dns = new DnsCache(this);
+	final TlsContext tls = new TlsContext(this);
+	protected int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+	private ExecutorService defaultExecutor = null;
+	private EventLoopGroup eventLoopGroup = null;
+	private ScheduledExecutorService scheduler = null;
+	/**
+	 * Calls of event loop waiting in scheduler (retry or rate limit), with the response if client is closed
+	 */
+	private final ConcurrentHashMap<EventLoop.Call, Response> delayed = new ConcurrentHashMap<>();
+	private volatile MemoryBudget memoryBudget = null;
+	private boolean closed = false;
+
+	/**
+	 * Set transport used to execute requests (default: URLCONNECTION)
+	 * 
+	 * @param transport to use
+	 * @return this
+	 * @see HttpClient.Transport
+	 */
+	public HttpClient setTransport(final Transport transport) {
+		this.transport = ((transport != null) ? transport : Transport.URLCONNECTION);
+		return this;
+	}
 
 	/**
 	 * Follow Redirects? (default: true)
@@ -75,191 +155,1539 @@ public class HttpClient {
 	}
 
 	/**
-	 * Set hook previous to connection
+	 * Set TCP_NODELAY on sockets (default: true, only NIO transport)
 	 * 
-	 * @param action The action to be performed before URLConnection is stablished
+	 * @param b boolean
 	 * @return this
+	 * @see java.net.Socket#setTcpNoDelay(boolean)
 	 */
-	public HttpClient setHookPreConnection(final Consumer<HttpURLConnection> action) {
-		this.hookPreConnection = action;
+	public HttpClient setTcpNoDelay(final boolean b) {
+		this.tcpNoDelay = b;
 		return this;
 	}
 
 	/**
-	 * Set hook after connection stablished
+	 * Set size of socket send and receive buffers (default: 0, system default, only NIO transport)
 	 * 
-	 * @param action The action to be performed after connection is stablished and before read body
+	 * @param size in bytes
 	 * @return this
+	 * @see java.net.Socket#setReceiveBufferSize(int)
+	 * @see java.net.Socket#setSendBufferSize(int)
 	 */
-	public HttpClient setHookPostConnection(final Consumer<HttpURLConnection> action) {
-		this.hookPostConnection = action;
+	public HttpClient setSocketBufferSize(final int size) {
+		this.socketBufferSize = size;
 		return this;
 	}
 
 	/**
-	 * Set hook after execution finish (without exception)
+	 * Set max time (millis) that an idle connection is kept in pool for reuse (default: 15 seconds, only
+	 * NIO transport, zero disable reuse)
 	 * 
-	 * @param action The action to be performed after request finish without errors
+	 * @param millis idle timeout
 	 * @return this
 	 */
-	public HttpClient setHookDone(final BiConsumer<Request, Response> action) {
-		this.hookDone = action;
+	public HttpClient setKeepAliveMs(final int millis) {
+		this.keepAliveMillis = millis;
 		return this;
 	}
 
 	/**
-	 * Set hook after execution fails (with exception)
+	 * Set max lifetime (millis) of a pooled connection (default: 0, unlimited, only NIO transport)
 	 * 
-	 * @param action The action to be performed after execution fails (with exception)
+	 * @param millis time to live
 	 * @return this
 	 */
-	public HttpClient setHookFail(final BiConsumer<Request, Response> action) {
-		this.hookFail = action;
+	public HttpClient setConnTimeToLiveMs(final int millis) {
+		this.connTimeToLiveMillis = millis;
 		return this;
 	}
 
 	/**
-	 * Execute the request
+	 * Set idle time (millis) after which a pooled connection is validated before reuse (default: 2
+	 * seconds, only NIO transport)
 	 * 
-	 * @param req to execute
-	 * @return response
+	 * @param millis inactivity time
+	 * @return this
 	 */
-	public Response execute(final Request req) {
-		return execute(req, null);
+	public HttpClient setValidateAfterInactivityMs(final int millis) {
+		this.validateAfterInactivityMillis = millis;
+		return this;
 	}
 
 	/**
-	 * Execute the request and write body response to a file
+	 * Set max connections per host (default: 32, only NIO transport)
 	 * 
-	 * @param req to execute
-	 * @param outFile to write body response
-	 * @return response
+	 * @param max connections
+	 * @return this
 	 */
-	public Response execute(final Request req, //
-			final File outFile) {
-		Response.Code code = Response.Code.UNKNOWN;
-		Map<String, List<String>> hdrs = Collections.emptyMap();
-		Content body = Content.EMPTY;
-		Exception ex = null;
-		try {
-			final HttpURLConnection conn = (HttpURLConnection) req.url.openConnection();
-			conn.setRequestMethod(req.method.name());
-			conn.setDoOutput(req.method.reqBody && (!req.body.isEmpty()));
-			conn.setDoInput(req.method.resBody);
-			conn.setInstanceFollowRedirects(followRedirects);
-			conn.setUseCaches(useCaches);
-			conn.setAllowUserInteraction(false);
-			conn.setConnectTimeout(connectionTimeoutMillis);
-			conn.setReadTimeout(readTimeoutMillis);
-			if ((req.hdrs != null) && !req.hdrs.isEmpty()) {
-				req.hdrs.forEach((key, list) -> {
-					if ((list != null) && !list.isEmpty()) {
-						list.forEach(value -> {
-							conn.addRequestProperty(key, value);
-						});
-					}
-				});
-			}
-			if ((outFile != null) && (outFile.lastModified() > 0L)) {
-				conn.setIfModifiedSince(outFile.lastModified());
-			}
-			if (conn.getDoOutput()) {
-				conn.setFixedLengthStreamingMode(req.body.size());
-			}
-			if (hookPreConnection != null) {
-				hookPreConnection.accept(conn);
-			}
-			conn.connect();
-			if (conn.getDoOutput()) {
-				try (final InputStream xis = req.body.getInputStream(); //
-						final OutputStream xos = conn.getOutputStream()) {
-					IOUtil.transfer(xis, xos);
-				}
-			}
-			final int httpCode = conn.getResponseCode();
-			code = Response.Code.valueOf(httpCode);
-			hdrs = conn.getHeaderFields();
-			if (hookPostConnection != null) {
-				hookPostConnection.accept(conn);
-			}
-			try (final InputStream is = conn.getInputStream()) {
-				if (httpCode >= 200 && httpCode <= 299) {
-					body = getContent(is, outFile);
-				} else if (code == Response.Code.NOT_MODIFIED) {
-					drop(is);
-				} else {
-					body = getContent(is, null);
-				}
-			}
-		} catch (final Exception e) {
-			ex = e;
-		}
-		final Response res = new Response(code, hdrs, body, ex);
-		if (ex == null) {
-			if (hookDone != null) {
-				hookDone.accept(req, res);
-			}
-		} else {
-			if (hookFail != null) {
-				hookFail.accept(req, res);
-			}
-		}
-		return res;
+	public HttpClient setMaxConnPerHost(final int max) {
+		this.maxConnPerHost = max;
+		return this;
 	}
 
 	/**
-	 * Consume inputstream (discard)
+	 * Set max connections in total (default: 256, only NIO transport)
 	 * 
-	 * @param is to consume
-	 * @throws IOException if error
+	 * @param max connections
+	 * @return this
 	 */
-	protected static final void drop(final InputStream is) throws IOException {
-		final byte[] buf = new byte[4096];
-		while (is.read(buf) != -1) {
-			// drop is
-		}
+	public HttpClient setMaxConnTotal(final int max) {
+		this.maxConnTotal = max;
+		return this;
 	}
 
 	/**
-	 * Retrieve content from InputStream and write to file if especified
+	 * Set max time (millis) waiting for a connection when the pool is full (default: 60 seconds, only NIO
+	 * transport)
 	 * 
-	 * @param is source of content
-	 * @param outFile to write or in memory if null
-	 * @return content
-	 * @throws IOException if error
+	 * @param millis wait timeout
+	 * @return this
 	 */
-	protected static final Content getContent(final InputStream is, File outFile) throws IOException {
-		final byte[] buf = new byte[4096];
-		OutputStream os = null;
-		Content body = Content.EMPTY;
-		int limit = Integer.MAX_VALUE;
-		if (outFile == null) {
-			os = new ByteArrayOutputStream(4096);
-			limit = 64 * 1024; // memory limit (64kb)
-		} else {
-			os = new FileOutputStream(outFile, false);
-			body = Content.fromFile(outFile);
-		}
-		int len;
-		while ((len = is.read(buf)) != -1) {
-			os.write(buf, 0, len);
-			limit -= len;
-			if (limit <= 0) {
-				// Buffer overflow
-				if (os instanceof ByteArrayOutputStream) {
-					outFile = File.createTempFile("overflow-", ".tmp");
-					final ByteArrayOutputStream osold = (ByteArrayOutputStream) os;
-					os = new FileOutputStream(outFile, false);
-					osold.writeTo(os);
-					body = Content.fromFile(outFile);
-				}
-				limit = Integer.MAX_VALUE;
-			}
-		}
-		if (os instanceof ByteArrayOutputStream) {
-			final ByteArrayOutputStream osold = (ByteArrayOutputStream) os;
-			body = Content.fromBytes(osold.toByteArray());
-		}
-		return body;
+	public HttpClient setPoolTimeoutMs(final int millis) {
+		this.poolTimeoutMillis = millis;
+		return this;
+	}
+
+	/**
+	 * Set resolver of host names (default: {@link Resolver#SYSTEM}, only NIO transports)
+	 * 
+	 * @param resolver to use
+	 * @return this
+	 */
+	public HttpClient setResolver(final Resolver resolver) {
+		this.resolver = ((resolver != null) ? resolver : Resolver.SYSTEM);
+		dns.clear();
+		return this;
+	}
+
+	/**
+	 * Set time (millis) that resolved addresses are cached (default: 60 seconds, only NIO transports).
+	 * Hosts in use are resolved again in background before expiration
+	 * 
+	 * @param millis time to live, zero disable cache
+	 * @return this
+	 */
+	public HttpClient setDnsTtlMs(final int millis) {
+		this.dnsTtlMillis = Math.max(0, millis);
+		return this;
+	}
+
+	/**
+	 * Set time (millis) that failed resolutions are cached (default: 10 seconds, only NIO transports)
+	 * 
+	 * @param millis time to live, zero disable cache
+	 * @return this
+	 */
+	public HttpClient setDnsNegativeTtlMs(final int millis) {
+		this.dnsNegativeTtlMillis = Math.max(0, millis);
+		return this;
+	}
+
+	/**
+	 * Set selection of address for new connections between all addresses of a host (default:
+	 * ROUND_ROBIN, only NIO transports). Other addresses are tried if connection fails
+	 * 
+	 * @param selection policy
+	 * @return this
+	 * @see HttpClient.AddressSelection
+	 */
+	public HttpClient setAddressSelection(final AddressSelection selection) {
+		this.addressSelection = ((selection != null) ? selection : AddressSelection.ROUND_ROBIN);
+		return this;
+	}
+
+	/**
+	 * Set SSLContext of https connections, shared by all connections of this client so TLS sessions are
+	 * resumed (default: null, JVM default)
+	 * 
+	 * @param context to use or null
+	 * @return this
+	 */
+	public HttpClient setSSLContext(final SSLContext context) {
+		this.sslContext = context;
+		tls.reset();
+		return this;
+	}
+
+	/**
+	 * Set max TLS sessions cached for resumption (default: from SSLContext). Without SSLContext, the
+	 * client uses its own context with default trust, leaving the JVM default untouched
+	 * 
+	 * @param size max sessions, zero for unlimited
+	 * @return this
+	 * @see SSLSessionContext#setSessionCacheSize(int)
+	 */
+	public HttpClient setTlsSessionCacheSize(final int size) {
+		this.tlsSessionCacheSize = Math.max(0, size);
+		tls.reset();
+		return this;
+	}
+
+	/**
+	 * Set time (seconds) that a cached TLS session can be resumed (default: from SSLContext). Without
+	 * SSLContext, the client uses its own context with default trust, leaving the JVM default untouched
+	 * 
+	 * @param seconds timeout, zero for unlimited
+	 * @return this
+	 * @see SSLSessionContext#setSessionTimeout(int)
+	 */
+	public HttpClient setTlsSessionTimeout(final int seconds) {
+		this.tlsSessionTimeoutSecs = Math.max(0, seconds);
+		tls.reset();
+		return this;
+	}
+
+	/**
+	 * Get statistics of TLS handshakes (only NIO transports)
+	 * 
+	 * @return snapshot of stats
+	 */
+	public TlsStats getTlsStats() {
+		return tls.getStats();
+	}
+
+	/**
+	 * Return file-backed response bodies mapped in memory as {@link Content.Type#MAPPED} (default: false)
+	 * 
+	 * @param b boolean
+	 * @return this
+	 */
+	public HttpClient setMapFileContent(final boolean b) {
+		this.mapFileContent = b;
+		return this;
+	}
+
+	/**
+	 * Set max size of a response body kept in heap memory before overflow to a temporal file (default:
+	 * 64kb)
+	 * 
+	 * @param limit in bytes
+	 * @return this
+	 * @see #setMemoryBudget(long)
+	 */
+	public HttpClient setMemoryContentLimit(final int limit) {
+		this.memoryContentLimit = limit;
+		return this;
+	}
+
+	/**
+	 * Set memory shared by in-memory response bodies of this client, while they are buffered and
+	 * referenced. Bodies overflow to a temporal file when the budget is exhausted, with Content-Length
+	 * known the body goes directly to file (default: 0, unlimited)
+	 * 
+	 * @param bytes total memory
+	 * @return this
+	 */
+	public HttpClient setMemoryBudget(final long bytes) {
+		this.memoryBudget = ((bytes > 0) ? new MemoryBudget(bytes) : null);
+		return this;
+	}
+
+	/**
+	 * Get memory in use by response bodies of this client (only with memory budget)
+	 * 
+	 * @return bytes in use
+	 * @see #setMemoryBudget(long)
+	 */
+	public long getMemoryInUse() {
+		final MemoryBudget budget = memoryBudget;
+		return ((budget != null) ? budget.getUsed() : 0L);
+	}
+
+	/**
+	 * Set max size of response bodies kept off-heap as {@link Content.Type#DIRECT} when they exceed heap
+	 * limit before overflow to a temporal file (default: 0, disabled)
+	 * 
+	 * @param limit in bytes
+	 * @return this
+	 */
+	public HttpClient setDirectContentLimit(final int limit) {
+		this.directContentLimit = limit;
+		return this;
+	}
+
+	/**
+	 * Advertise gzip and deflate encodings (Accept-Encoding) and decode compressed responses while they
+	 * are received, headers are returned as received (default: false)
+	 * 
+	 * @param b boolean
+	 * @return this
+	 */
+	public HttpClient setCompression(final boolean b) {
+		this.compression = b;
+		return this;
+	}
+
+	/**
+	 * Compress request bodies with gzip (Content-Encoding) when they are at least this size, the server
+	 * must support compressed requests (default: 0, disabled)
+	 * 
+	 * @param minSize in bytes
+	 * @return this
+	 */
+	public HttpClient setRequestCompression(final int minSize) {
+		this.requestCompressionMinSize = minSize;
+		return this;
+	}
+
+	/**
+	 * Set response cache, used by execute and executeAsync without output file (default: null, no
+	 * cache)
+	 * 
+	 * @param cache to use or null
+	 * @return this
+	 * @see HttpCache
+	 */
+	public HttpClient setCache(final HttpCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	/**
+	 * Set retry of failed requests (default: null, no retries)
+	 * 
+	 * @param policy to use or null
+	 * @return this
+	 * @see RetryPolicy
+	 */
+	public HttpClient setRetryPolicy(final RetryPolicy policy) {
+		this.retryPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Set circuit breaker per host, requests to a failing host fail immediately (default: null)
+	 * 
+	 * @param breaker to use or null
+	 * @return this
+	 * @see CircuitBreaker
+	 */
+	public HttpClient setCircuitBreaker(final CircuitBreaker breaker) {
+		this.circuitBreaker = breaker;
+		return this;
+	}
+
+	/**
+	 * Set client-side rate limits, global and per host (default: null, unlimited)
+	 * 
+	 * @param limiter to use or null
+	 * @return this
+	 * @see RateLimiter
+	 */
+	public HttpClient setRateLimiter(final RateLimiter limiter) {
+		this.rateLimiter = limiter;
+		return this;
+	}
+
+	/**
+	 * Set hedging of idempotent requests: a copy is sent if the response is late (default: null)
+	 * 
+	 * @param policy to use or null
+	 * @return this
+	 * @see HedgePolicy
+	 */
+	public HttpClient setHedgePolicy(final HedgePolicy policy) {
+		this.hedgePolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Set max requests in progress of {@link #executeAll(Collection)} (default: 64)
+	 * 
+	 * @param max requests
+	 * @return this
+	 */
+	public HttpClient setBatchConcurrency(final int max) {
+		this.batchConcurrency = Math.max(1, max);
+		return this;
+	}
+
+	/**
+	 * Set max requests in progress to same host (scheme, host and port) of {@link #executeAll(Collection)}
+	 * (default: 8)
+	 * 
+	 * @param max requests
+	 * @return this
+	 */
+	public HttpClient setBatchConcurrencyPerHost(final int max) {
+		this.batchConcurrencyPerHost = Math.max(1, max);
+		return this;
+	}
+
+	/**
+	 * Set max requests sent on a connection before reading responses in
+	 * {@link #executePipelined(List)} (default: 8)
+	 * 
+	 * @param depth of pipeline
+	 * @return this
+	 */
+	public HttpClient setPipelineDepth(final int depth) {
+		this.pipelineDepth = Math.max(1, depth);
+		return this;
+	}
+
+	/**
+	 * Set number of concurrent Range requests of {@link #download(Request, File)} (default: 1, no
+	 * segments). Servers without ranges are downloaded in a single stream
+	 * 
+	 * @param segments max per download
+	 * @return this
+	 */
+	public HttpClient setDownloadSegments(final int segments) {
+		this.downloadSegments = Math.max(1, segments);
+		return this;
+	}
+
+	/**
+	 * Set minimum size of a download segment, also the size of the first segment (default: 8MB)
+	 * 
+	 * @param size in bytes
+	 * @return this
+	 */
+	public HttpClient setDownloadSegmentSize(final long size) {
+		this.downloadSegmentSize = Math.max(1, size);
+		return this;
+	}
+
+	/**
+	 * Get statistics of connection pool (only NIO transport)
+	 * 
+	 * @return snapshot of stats
+	 */
+	public PoolStats getPoolStats() {
+		return nio.getPoolStats();
+	}
+
+	/**
+	 * Close pooled connections that exceed idle timeout or time to live
+	 * 
+	 * @return this
+	 */
+	public HttpClient closeExpiredConnections() {
+		nio.evictExpired();
+		return this;
+	}
+
+	/**
+	 * Set hook previous to connection (only URLCONNECTION transport)
+	 * 
+	 * @param action The action to be performed before URLConnection is stablished
+	 * @return this
+	 */
+	public HttpClient setHookPreConnection(final Consumer<HttpURLConnection> action) {
+		this.hookPreConnection = action;
+		return this;
+	}
+
+	/**
+	 * Set hook after connection stablished (only URLCONNECTION transport)
+	 * 
+	 * @param action The action to be performed after connection is stablished and before read body
+	 * @return this
+	 */
+	public HttpClient setHookPostConnection(final Consumer<HttpURLConnection> action) {
+		this.hookPostConnection = action;
+		return this;
+	}
+
+	/**
+	 * Set hook after execution finish (without exception)
+	 * 
+	 * @param action The action to be performed after request finish without errors
+	 * @return this
+	 */
+	public HttpClient setHookDone(final BiConsumer<Request, Response> action) {
+		this.hookDone = action;
+		return this;
+	}
+
+	/**
+	 * Set hook after execution fails (with exception)
+	 * 
+	 * @param action The action to be performed after execution fails (with exception)
+	 * @return this
+	 */
+	public HttpClient setHookFail(final BiConsumer<Request, Response> action) {
+		this.hookFail = action;
+		return this;
+	}
+
+	/**
+	 * Set listener of phases of requests with timing: DNS, connect, TLS, request written, first byte and
+	 * body read (default: null)
+	 * 
+	 * @param listener to use or null
+	 * @return this
+	 * @see EventListener
+	 */
+	public HttpClient setEventListener(final EventListener listener) {
+		this.eventListener = listener;
+		return this;
+	}
+
+	/**
+	 * Set metrics of requests per host, registered as MBean until client is closed (default: null)
+	 * 
+	 * @param metrics to record or null
+	 * @return this
+	 * @throws IllegalArgumentException if name of MBean is invalid or already registered
+	 * @see Metrics
+	 */
+	public HttpClient setMetrics(final Metrics metrics) {
+		if (metrics != null) {
+			metrics.register();
+		}
+		if ((this.metrics != null) && (this.metrics != metrics)) {
+			this.metrics.unregister();
+		}
+		this.metrics = metrics;
+		return this;
+	}
+
+	/**
+	 * Set count of event loop threads (default: available processors, only EVENT_LOOP transport, must be
+	 * set before first request)
+	 * 
+	 * @param threads count
+	 * @return this
+	 */
+	public HttpClient setEventLoopThreads(final int threads) {
+		this.eventLoopThreads = threads;
+		return this;
+	}
+
+	/**
+	 * Set executor used by async execution (default: virtual thread per task if available or a bounded
+	 * pool of daemon threads)
+	 * 
+	 * @param executor to run requests
+	 * @return this
+	 * @see #executeAsync(Request, File)
+	 */
+	public HttpClient setExecutor(final Executor executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	/**
+	 * Get executor used by async execution
+	 * 
+	 * @return executor
+	 */
+	protected synchronized Executor getExecutor() {
+		if (executor != null) {
+			return executor;
+		}
+		if (defaultExecutor == null) {
+			defaultExecutor = newDefaultExecutor();
+		}
+		return defaultExecutor;
+	}
+
+	private static ExecutorService newDefaultExecutor() {
+		try {
+			// Java 21+
+			return (ExecutorService) java.util.concurrent.Executors.class //
+					.getMethod("newVirtualThreadPerTaskExecutor") //
+					.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			final AtomicInteger seq = new AtomicInteger();
+			final int threads = Math.max(64, Runtime.getRuntime().availableProcessors() * 8);
+			final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, //
+					60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+						final Thread t = new Thread(r, "jhttpcli-async-" + seq.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			pool.allowCoreThreadTimeOut(true);
+			return pool;
+		}
+	}
+
+	/**
+	 * Execute the request asynchronously
+	 * 
+	 * @param req to execute
+	 * @return future response
+	 */
+	public CompletableFuture<Response> executeAsync(final Request req) {
+		return executeAsync(req, null);
+	}
+
+	/**
+	 * Execute the request asynchronously and write body response to a file
+	 * 
+	 * @param req to execute
+	 * @param outFile to write body response
+	 * @return future response
+	 */
+	public CompletableFuture<Response> executeAsync(final Request req, //
+			final File outFile) {
+		if ((transport == Transport.EVENT_LOOP) && "http".equalsIgnoreCase(req.url.getProtocol())) {
+			final HttpCache.Lookup lookup = lookup(req, outFile);
+			if ((lookup != null) && (lookup.response != null)) {
+				return CompletableFuture.completedFuture(done(req, lookup.response));
+			}
+			return submit(req, ((lookup != null) ? lookup.request : req), outFile, //
+					((lookup != null) ? lookup::update : null));
+		}
+		return CompletableFuture.supplyAsync(() -> execute(req, outFile), getExecutor());
+	}
+
+	/**
+	 * Submit request to event loop
+	 * 
+	 * @param req original request (for hooks)
+	 * @param target request to send (before encoding)
+	 * @param outFile to write body response
+	 * @param update applied to response before hooks or null
+	 * @return future response
+	 */
+	private CompletableFuture<Response> submit(final Request req, final Request target, //
+			final File outFile, final UnaryOperator<Response> update) {
+		try {
+			final Request sent = encode(target);
+			if (retryPolicy != null) {
+				retryPolicy.request();
+			}
+			final CompletableFuture<Response> future = getEventLoopGroup() //
+					.execute(req, sent, outFile, update);
+			if (sent != target) {
+				future.whenComplete((res, t) -> discard(target, sent));
+			}
+			return future;
+		} catch (IOException e) {
+			final Response res = new Response(Response.Code.UNKNOWN, null, null, e);
+			return CompletableFuture.completedFuture(done(req, ((update != null) ? update.apply(res) : res)));
+		}
+	}
+
+	/**
+	 * Execute a set of requests asynchronously, limited by {@link #setBatchConcurrency(int)} and
+	 * {@link #setBatchConcurrencyPerHost(int)}. Hosts are served in round-robin, a slow host does not delay
+	 * requests to other hosts
+	 * 
+	 * @param reqs to execute
+	 * @return future responses, in the same order of requests
+	 */
+	public List<CompletableFuture<Response>> executeAll(final Collection<Request> reqs) {
+		final List<Request> list = new ArrayList<>(reqs);
+		final List<CompletableFuture<Response>> futures = new ArrayList<>(list.size());
+		for (int i = 0; i < list.size(); i++) {
+			futures.add(new CompletableFuture<>());
+		}
+		new Batch(this, batchConcurrency, batchConcurrencyPerHost, list, //
+				(i, req, res) -> futures.get(i).complete(res)).start();
+		return futures;
+	}
+
+	/**
+	 * Execute a set of requests asynchronously, handling each response as it completes
+	 * 
+	 * @param reqs to execute
+	 * @param action invoked with each request and its response (concurrently from several threads)
+	 * @return future completed when all requests are finished (exceptionally if an action failed)
+	 * @see #executeAll(Collection)
+	 */
+	public CompletableFuture<Void> executeAll(final Collection<Request> reqs, //
+			final BiConsumer<Request, Response> action) {
+		return new Batch(this, batchConcurrency, batchConcurrencyPerHost, new ArrayList<>(reqs), //
+				(i, req, res) -> action.accept(req, res)).start();
+	}
+
+	private synchronized EventLoopGroup getEventLoopGroup() throws IOException {
+		if (closed) {
+			throw new IOException("Client closed");
+		}
+		if (eventLoopGroup == null) {
+			eventLoopGroup = new EventLoopGroup(this, eventLoopThreads);
+		}
+		return eventLoopGroup;
+	}
+
+	/**
+	 * Execute the request
+	 * 
+	 * @param req to execute
+	 * @return response
+	 */
+	public Response execute(final Request req) {
+		return execute(req, null);
+	}
+
+	/**
+	 * Execute the request and write body response to a file
+	 * 
+	 * @param req to execute
+	 * @param outFile to write body response
+	 * @return response
+	 */
+	public Response execute(final Request req, //
+			final File outFile) {
+		if ((transport == Transport.EVENT_LOOP) && "http".equalsIgnoreCase(req.url.getProtocol())) {
+			return executeAsync(req, outFile).join();
+		}
+		final HttpCache.Lookup lookup = lookup(req, outFile);
+		if ((lookup != null) && (lookup.response != null)) {
+			return done(req, lookup.response);
+		}
+		final Response res = send(((lookup != null) ? lookup.request : req), outFile);
+		return done(req, ((lookup != null) ? lookup.update(res) : res));
+	}
+
+	/**
+	 * Download a file only if modified. Validators of response (ETag / Last-Modified) are stored in a
+	 * sidecar file (name of file with suffix {@value Download#META_SUFFIX}) and sent in next download
+	 * (If-None-Match / If-Modified-Since). Body is written to a temporal file in the same directory and
+	 * renamed over the file on 200 OK, on any other response or error the file is untouched. With
+	 * {@link #setDownloadSegments(int)} the body is fetched in concurrent Range requests and an interrupted
+	 * download is resumed from the part file
+	 * 
+	 * @param req to execute
+	 * @param outFile destination file
+	 * @return response: 200 with body in outFile, 304 if not modified, or other
+	 */
+	public Response download(final Request req, //
+			final File outFile) {
+		if ((downloadSegments > 1) //
+				|| ((transport == Transport.EVENT_LOOP) && "http".equalsIgnoreCase(req.url.getProtocol()))) {
+			return downloadAsync(req, outFile).join();
+		}
+		final Download d = new Download(req, outFile);
+		return done(req, d.update(send(d.request, d.temp)));
+	}
+
+	/**
+	 * Download a file only if modified, asynchronously
+	 * 
+	 * @param req to execute
+	 * @param outFile destination file
+	 * @return future response
+	 * @see #download(Request, File)
+	 */
+	public CompletableFuture<Response> downloadAsync(final Request req, //
+			final File outFile) {
+		if (downloadSegments > 1) {
+			return new SegmentedDownload(this, req, outFile, downloadSegments, downloadSegmentSize) //
+					.execute().thenApply(res -> done(req, res));
+		}
+		if ((transport == Transport.EVENT_LOOP) && "http".equalsIgnoreCase(req.url.getProtocol())) {
+			final Download d = new Download(req, outFile);
+			return submit(req, d.request, d.temp, d::update);
+		}
+		return CompletableFuture.supplyAsync(() -> download(req, outFile), getExecutor());
+	}
+
+	/**
+	 * Send request and read response, hedged by {@link #setHedgePolicy(HedgePolicy)} (without hooks)
+	 * 
+	 * @param target request to send (before encoding)
+	 * @param outFile to write body response
+	 * @return response
+	 */
+	Response send(final Request target, final File outFile) {
+		final HedgePolicy hedge = hedgePolicy;
+		if ((hedge != null) && (outFile == null) && target.method.idempotent) {
+			return new Hedge(this, hedge, target).send();
+		}
+		return sendRetrying(target, outFile);
+	}
+
+	/**
+	 * Send request and read response, with retries of {@link #setRetryPolicy(RetryPolicy)} (without hooks)
+	 * 
+	 * @param target request to send (before encoding)
+	 * @param outFile to write body response
+	 * @return response
+	 */
+	Response sendRetrying(final Request target, final File outFile) {
+		final RetryPolicy retry = retryPolicy;
+		Response res = attempt(target, outFile);
+		if (retry == null) {
+			return res;
+		}
+		retry.request();
+		for (int attempt = 1;; attempt++) {
+			final long delay = retry.delay(target, res, attempt);
+			if ((delay < 0) || Thread.currentThread().isInterrupted() || Hedge.isCancelled()) {
+				return res;
+			}
+			try {
+				if (!Hedge.sleep(TimeUnit.MILLISECONDS.toNanos(delay))) {
+					return res;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return res;
+			}
+			// Retried responses are errors, body never goes to outFile
+			res.body.delete();
+			res = attempt(target, outFile);
+		}
+	}
+
+	/**
+	 * Retry a call of event loop after backoff
+	 * 
+	 * @param call finished
+	 * @param res response of last attempt
+	 * @return true if retry is scheduled (response discarded), false to complete the call
+	 */
+	boolean retry(final EventLoop.Call call, final Response res) {
+		final RetryPolicy retry = retryPolicy;
+		if (retry == null) {
+			return false;
+		}
+		final long delay = retry.delay(call.sent, res, call.attempts);
+		if (delay < 0) {
+			return false;
+		}
+		return schedule(call, res, () -> {
+			final EventLoopGroup group;
+			try {
+				group = getEventLoopGroup();
+			} catch (IOException e) {
+				EventLoop.finish(this, call, res);
+				return;
+			}
+			res.body.delete();
+			call.restart();
+			group.execute(call);
+		}, TimeUnit.MILLISECONDS.toNanos(delay));
+	}
+
+	/**
+	 * Run a task of a call of event loop after a delay, without hold a thread
+	 * 
+	 * @param call waiting
+	 * @param res response that completes the call if client is closed before run
+	 * @param task to run
+	 * @param nanos delay
+	 * @return false if client is closed (task not scheduled)
+	 */
+	synchronized boolean schedule(final EventLoop.Call call, final Response res, final Runnable task, //
+			final long nanos) {
+		if (closed) {
+			return false;
+		}
+		if (scheduler == null) {
+			final ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, r -> {
+				final Thread t = new Thread(r, "jhttpcli-scheduler");
+				t.setDaemon(true);
+				return t;
+			});
+			s.setRemoveOnCancelPolicy(true);
+			scheduler = s;
+		}
+		delayed.put(call, res);
+		scheduler.schedule(() -> {
+			// Removed by close: completed with its response
+			if (delayed.remove(call, res)) {
+				task.run();
+			}
+		}, nanos, TimeUnit.NANOSECONDS);
+		return true;
+	}
+
+	/**
+	 * Send request and read response, one attempt through {@link #setCircuitBreaker(CircuitBreaker)} and
+	 * {@link #setRateLimiter(RateLimiter)}
+	 * 
+	 * @param target request to send (before encoding)
+	 * @param outFile to write body response
+	 * @return response
+	 */
+	private Response attempt(final Request target, final File outFile) {
+		final CircuitBreaker breaker = circuitBreaker;
+		final Response rejected = admit(breaker, target.url);
+		if (rejected != null) {
+			return rejected;
+		}
+		final Metrics m = metrics;
+		if ((breaker == null) && (m == null)) {
+			return sendOnce(target, outFile);
+		}
+		final long start = System.nanoTime();
+		final Response res = sendOnce(target, outFile);
+		final long elapsed = System.nanoTime() - start;
+		if (breaker != null) {
+			if (Hedge.isCancelled()) {
+				// Aborted copy of hedged request, not an outcome of host
+				breaker.cancel(target.url);
+			} else {
+				breaker.record(target.url, res, elapsed);
+			}
+		}
+		if (m != null) {
+			m.record(target, res, elapsed);
+		}
+		return res;
+	}
+
+	/**
+	 * Acquire permission of circuit breaker and rate limiter, waiting for a token in current thread
+	 * 
+	 * @param breaker of client or null
+	 * @param url destination
+	 * @return null if allowed or failed response
+	 */
+	private Response admit(final CircuitBreaker breaker, final URL url) {
+		final Response rejected = ((breaker != null) ? breaker.acquire(url) : null);
+		if (rejected != null) {
+			return rejected;
+		}
+		final RateLimiter limiter = rateLimiter;
+		final Response limited = ((limiter != null) ? limiter.acquire(url) : null);
+		if ((limited != null) && (breaker != null)) {
+			breaker.cancel(url);
+		}
+		return limited;
+	}
+
+	/**
+	 * Return permission and token of a request admitted and not sent
+	 * 
+	 * @param breaker of client or null
+	 * @param url destination
+	 */
+	private void unadmit(final CircuitBreaker breaker, final URL url) {
+		if (breaker != null) {
+			breaker.cancel(url);
+		}
+		final RateLimiter limiter = rateLimiter;
+		if (limiter != null) {
+			limiter.cancel(url);
+		}
+	}
+
+	/**
+	 * Send request and read response, one attempt
+	 * 
+	 * @param target request to send (before encoding)
+	 * @param outFile to write body response
+	 * @return response
+	 */
+	private Response sendOnce(final Request target, final File outFile) {
+		final Trace trace = Trace.begin(this, target);
+		Response.Code code = Response.Code.UNKNOWN;
+		Map<String, List<String>> hdrs = Collections.emptyMap();
+		Content body = Content.EMPTY;
+		Exception ex = null;
+		Request sent = target;
+		try {
+			sent = encode(target);
+			try (final Exchange x = open(sent, outFile)) {
+				code = x.code;
+				hdrs = x.hdrs;
+				try (final InputStream is = x.getBody()) {
+					if (x.status >= 200 && x.status <= 299) {
+						body = getContent(is, newContentSink(outFile, sent.method, hdrs));
+					} else if (code == Response.Code.NOT_MODIFIED) {
+						drop(is);
+					} else {
+						body = getContent(is, newContentSink(null, sent.method, hdrs));
+					}
+				}
+				if (trace != null) {
+					trace.responseBodyEnd(body.size());
+				}
+			}
+		} catch (final Exception e) {
+			ex = e;
+		} finally {
+			discard(target, sent);
+			if (trace != null) {
+				trace.end(new Response(code, hdrs, body, ex));
+			}
+		}
+		return new Response(code, hdrs, body, ex);
+	}
+
+	/**
+	 * Execute requests with HTTP/1.1 pipelining: idempotent requests without body to the same host are
+	 * written back-to-back on a persistent connection, up to {@link #setPipelineDepth(int)}, and responses
+	 * are read in order. Other requests, redirects, URLCONNECTION transport and requests not answered
+	 * because the server closes the connection without pipelining support are executed one by one. Each
+	 * pipelined request is allowed by circuit breaker and takes a token of rate limiter before it is
+	 * queued (waiting in the current thread or failing, see {@link RateLimiter.Mode}). With H2C transport
+	 * all requests are sent concurrently as streams of {@link #executeAll(Collection)}
+	 * 
+	 * @param reqs to execute
+	 * @return responses, in the same order of requests
+	 */
+	public List<Response> executePipelined(final List<Request> reqs) {
+		if (transport == Transport.H2C) {
+			final List<Response> results = new ArrayList<>(reqs.size());
+			for (final CompletableFuture<Response> f : executeAll(reqs)) {
+				results.add(f.join());
+			}
+			return results;
+		}
+		final Response[] results = new Response[reqs.size()];
+		final HttpCache.Lookup[] lookups = new HttpCache.Lookup[reqs.size()];
+		if ((transport != Transport.URLCONNECTION) && (pipelineDepth > 1)) {
+			final Map<String, List<Integer>> routes = new LinkedHashMap<>();
+			for (int i = 0; i < reqs.size(); i++) {
+				final Request req = reqs.get(i);
+				if (req.method.idempotent && !HttpConnection.hasBody(req.method, req.body)) {
+					routes.computeIfAbsent(HttpConnection.route(req.url), k -> new ArrayList<>()).add(i);
+				}
+			}
+			for (final List<Integer> route : routes.values()) {
+				if (route.size() > 1) {
+					pipeline(reqs, route, lookups, results);
+				}
+			}
+		}
+		for (int i = 0; i < results.length; i++) {
+			if (results[i] != null) {
+				continue;
+			}
+			final Request req = reqs.get(i);
+			final HttpCache.Lookup lookup = lookups[i];
+			results[i] = ((lookup != null) //
+					? done(req, lookup.update(send(lookup.request, null))) //
+					: execute(req));
+		}
+		return Arrays.asList(results);
+	}
+
+	private void pipeline(final List<Request> reqs, final List<Integer> route, //
+			final HttpCache.Lookup[] lookups, final Response[] results) {
+		final CircuitBreaker breaker = circuitBreaker;
+		final List<Integer> index = new ArrayList<>(route.size());
+		final List<Request> targets = new ArrayList<>(route.size());
+		final List<Request> sent = new ArrayList<>(route.size());
+		for (final int i : route) {
+			final Request req = reqs.get(i);
+			final HttpCache.Lookup lookup = lookup(req, null);
+			lookups[i] = lookup;
+			if ((lookup != null) && (lookup.response != null)) {
+				results[i] = done(req, lookup.response);
+				continue;
+			}
+			final Request target = ((lookup != null) ? lookup.request : req);
+			final Request encoded;
+			try {
+				encoded = encode(target);
+			} catch (IOException e) {
+				// Sent one by one
+				continue;
+			}
+			final Response rejected = admit(breaker, target.url);
+			if (rejected != null) {
+				discard(target, encoded);
+				results[i] = done(req, ((lookup != null) ? lookup.update(rejected) : rejected));
+				continue;
+			}
+			sent.add(encoded);
+			index.add(i);
+			targets.add(target);
+		}
+		if (sent.size() < 2) {
+			// Sent one by one, admitted again
+			for (int k = 0; k < sent.size(); k++) {
+				discard(targets.get(k), sent.get(k));
+				unadmit(breaker, targets.get(k).url);
+			}
+			return;
+		}
+		final Metrics m = metrics;
+		final long start = System.nanoTime();
+		final Response[] res = nio.pipeline(sent, pipelineDepth);
+		final long elapsed = System.nanoTime() - start;
+		for (int k = 0; k < res.length; k++) {
+			final Request target = targets.get(k);
+			discard(target, sent.get(k));
+			final Response r = res[k];
+			if (r == null) {
+				unadmit(breaker, target.url);
+				continue;
+			}
+			if (breaker != null) {
+				// Responses are read in order, each one waited the whole pipeline
+				breaker.record(target.url, r, elapsed);
+			}
+			if (m != null) {
+				m.record(target, r, elapsed);
+			}
+			final int i = index.get(k);
+			results[i] = done(reqs.get(i), ((lookups[i] != null) ? lookups[i].update(r) : r));
+		}
+	}
+
+	/**
+	 * Execute the request and handle body response in streaming
+	 * 
+	 * @param <T> type of result
+	 * @param req to execute
+	 * @param handler of response, receive a live stream of body
+	 * @return result of handler
+	 * @throws IOException if error
+	 */
+	public <T> T executeStream(final Request req, //
+			final ResponseHandler<T> handler) throws IOException {
+		return stream(req, handler, true);
+	}
+
+	/**
+	 * Execute the request and handle body response in streaming
+	 * 
+	 * @param <T> type of result
+	 * @param req to execute
+	 * @param handler of response, receive a live stream of body
+	 * @param hooks invoke hooks of finished request
+	 * @return result of handler
+	 * @throws IOException if error
+	 */
+	<T> T stream(final Request req, //
+			final ResponseHandler<T> handler, final boolean hooks) throws IOException {
+		Response.Code code = Response.Code.UNKNOWN;
+		Map<String, List<String>> hdrs = Collections.emptyMap();
+		final Request sent = encode(req);
+		final CircuitBreaker breaker = circuitBreaker;
+		final Response rejected = admit(breaker, req.url);
+		if (rejected != null) {
+			discard(req, sent);
+			if (hooks) {
+				done(req, rejected);
+			}
+			throw (IOException) rejected.exception;
+		}
+		final long start = System.nanoTime();
+		boolean recorded = (breaker == null);
+		final Trace trace = Trace.begin(this, req);
+		Exception error = null;
+		try (final Exchange x = open(sent, null)) {
+			code = x.code;
+			hdrs = x.hdrs;
+			if (!recorded) {
+				// Outcome of a stream is its head
+				recorded = true;
+				breaker.record(req.url, new Response(code, hdrs, null, null), System.nanoTime() - start);
+			}
+			final String encoding = (compression ? Headers.getValue(hdrs, "Content-Encoding") : null);
+			final T result;
+			try (final InputStream is = ContentDecoder.decode(x.getStream(), encoding)) {
+				result = handler.handle(code, hdrs, is);
+			}
+			if (hooks) {
+				done(req, new Response(code, hdrs, null, null));
+			}
+			return result;
+		} catch (IOException | RuntimeException e) {
+			error = e;
+			if (!recorded) {
+				breaker.record(req.url, new Response(code, hdrs, null, e), System.nanoTime() - start);
+			}
+			if (hooks) {
+				done(req, new Response(code, hdrs, null, e));
+			}
+			throw e;
+		} finally {
+			discard(req, sent);
+			final Metrics m = metrics;
+			if ((trace != null) || (m != null)) {
+				final Response res = new Response(code, hdrs, null, error);
+				if (m != null) {
+					// Bytes of a stream are read by handler, not counted
+					m.record(req, res, System.nanoTime() - start);
+				}
+				if (trace != null) {
+					trace.end(res);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Execute the request asynchronously and handle body response in streaming
+	 * 
+	 * @param <T> type of result
+	 * @param req to execute
+	 * @param handler of response, receive a live stream of body
+	 * @return future result of handler
+	 */
+	public <T> CompletableFuture<T> executeStreamAsync(final Request req, //
+			final ResponseHandler<T> handler) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return executeStream(req, handler);
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, getExecutor());
+	}
+
+	/**
+	 * Look up request in cache
+	 * 
+	 * @param req to execute
+	 * @param outFile to write body response
+	 * @return lookup or null if cache is not used
+	 */
+	private HttpCache.Lookup lookup(final Request req, final File outFile) {
+		final HttpCache c = cache;
+		return (((c != null) && (outFile == null)) ? c.lookup(req) : null);
+	}
+
+	/**
+	 * Apply encoding options to request (Accept-Encoding, body compression)
+	 * 
+	 * @param req original request
+	 * @return request to send (original if nothing changed)
+	 * @throws IOException if error
+	 */
+	Request encode(final Request req) throws IOException {
+		final boolean accept = compression && (Headers.getValue(req.hdrs, "Accept-Encoding") == null);
+		final boolean compress = (requestCompressionMinSize > 0) && req.method.reqBody //
+				&& (req.body.size() >= requestCompressionMinSize) //
+				&& (Headers.getValue(req.hdrs, "Content-Encoding") == null);
+		if (!accept && !compress) {
+			return req;
+		}
+		final Map<String, List<String>> hdrs = new LinkedHashMap<>(req.hdrs);
+		if (accept) {
+			hdrs.put("Accept-Encoding", Collections.singletonList("gzip, deflate"));
+		}
+		Content body = req.body;
+		if (compress) {
+			hdrs.put("Content-Encoding", Collections.singletonList("gzip"));
+			body = gzip(req.body);
+		}
+		return new Request(req.url, req.method, hdrs, body);
+	}
+
+	private Content gzip(final Content content) throws IOException {
+		final ContentSink sink = new ContentSink(null, memoryContentLimit);
+		try (final InputStream is = content.getInputStream(); //
+				final OutputStream os = new GZIPOutputStream(sink.stream(), //
+						BufferPool.DEFAULT.getBufferSize())) {
+			IOUtil.transfer(is, os);
+		} catch (IOException | RuntimeException e) {
+			sink.abort();
+			throw e;
+		}
+		return sink.finish();
+	}
+
+	/**
+	 * Remove temporal body of encoded request
+	 * 
+	 * @param req original request
+	 * @param sent encoded request
+	 */
+	private static void discard(final Request req, final Request sent) {
+		if (sent.body != req.body) {
+			sent.body.delete();
+		}
+	}
+
+	/**
+	 * Invoke hooks of finished request
+	 * 
+	 * @param req executed
+	 * @param res response
+	 * @return response
+	 */
+	Response done(final Request req, final Response res) {
+		if (res.exception == null) {
+			if (hookDone != null) {
+				hookDone.accept(req, res);
+			}
+		} else {
+			if (hookFail != null) {
+				hookFail.accept(req, res);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Send the request with configured transport and read response head
+	 * 
+	 * @param req to execute
+	 * @param outFile to write body response
+	 * @return exchange with body pending to read
+	 * @throws IOException if error
+	 */
+	Exchange open(final Request req, //
+			final File outFile) throws IOException {
+		switch (transport) {
+			case NIO:
+			case EVENT_LOOP:
+			case H2C:
+				return nio.open(req, outFile);
+			case URLCONNECTION:
+				break;
+		}
+		final HttpURLConnection conn = (HttpURLConnection) req.url.openConnection();
+		if ((conn instanceof HttpsURLConnection) && tls.isCustomized()) {
+			((HttpsURLConnection) conn).setSSLSocketFactory(tls.getSocketFactory());
+		}
+		conn.setRequestMethod(req.method.name());
+		conn.setDoOutput(req.method.reqBody && (!req.body.isEmpty()));
+		conn.setDoInput(req.method.resBody);
+		conn.setInstanceFollowRedirects(followRedirects);
+		conn.setUseCaches(useCaches);
+		conn.setAllowUserInteraction(false);
+		conn.setConnectTimeout(connectionTimeoutMillis);
+		conn.setReadTimeout(readTimeoutMillis);
+		if ((req.hdrs != null) && !req.hdrs.isEmpty()) {
+			req.hdrs.forEach((key, list) -> {
+				if ((list != null) && !list.isEmpty()) {
+					list.forEach(value -> {
+						conn.addRequestProperty(key, value);
+					});
+				}
+			});
+		}
+		if ((outFile != null) && (outFile.lastModified() > 0L)) {
+			conn.setIfModifiedSince(outFile.lastModified());
+		}
+		if (conn.getDoOutput()) {
+			conn.setFixedLengthStreamingMode(req.body.size());
+		}
+		if (hookPreConnection != null) {
+			hookPreConnection.accept(conn);
+		}
+		final Trace trace = Trace.current(this);
+		if (trace != null) {
+			trace.connectStart(null);
+		}
+		try {
+			conn.connect();
+		} catch (IOException e) {
+			if (trace != null) {
+				trace.connectFailed(null, e);
+			}
+			throw e;
+		}
+		if (trace != null) {
+			trace.connectEnd(null);
+		}
+		if (conn.getDoOutput()) {
+			try (final InputStream xis = req.body.getInputStream(); //
+					final OutputStream xos = conn.getOutputStream()) {
+				IOUtil.transfer(xis, xos);
+			}
+			if (trace != null) {
+				trace.requestBodyEnd(req.body.size());
+			}
+		}
+		final int httpCode = conn.getResponseCode();
+		if (trace != null) {
+			trace.responseStart();
+		}
+		final Map<String, List<String>> hdrs = conn.getHeaderFields();
+		if (hookPostConnection != null) {
+			hookPostConnection.accept(conn);
+		}
+		return new Exchange(httpCode, hdrs) {
+			@Override
+			InputStream getBody() throws IOException {
+				return conn.getInputStream();
+			}
+
+			@Override
+			InputStream getStream() throws IOException {
+				if (status >= 400) {
+					final InputStream es = conn.getErrorStream();
+					return ((es != null) ? es : Content.EMPTY.getInputStream());
+				}
+				return conn.getInputStream();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * Close connection pool (idle connections are closed, leased are closed on release), event loops,
+	 * default executor and delayed requests; unregister MBean of metrics
+	 */
+	@Override
+	public void close() {
+		nio.close();
+		if (metrics != null) {
+			metrics.unregister();
+		}
+		synchronized (this) {
+			closed = true;
+			if (eventLoopGroup != null) {
+				eventLoopGroup.close();
+				eventLoopGroup = null;
+			}
+			if (defaultExecutor != null) {
+				defaultExecutor.shutdown();
+				defaultExecutor = null;
+			}
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+		// Delayed calls are completed with their response
+		for (final EventLoop.Call call : delayed.keySet()) {
+			final Response res = delayed.remove(call);
+			if (res != null) {
+				EventLoop.finish(this, call, res);
+			}
+		}
+	}
+
+	/**
+	 * Consume inputstream (discard)
+	 * 
+	 * @param is to consume
+	 * @throws IOException if error
+	 */
+	protected static final void drop(final InputStream is) throws IOException {
+		final byte[] buf = BufferPool.DEFAULT.acquire();
+		try {
+			while (is.read(buf) != -1) {
+				// drop is
+			}
+		} finally {
+			BufferPool.DEFAULT.release(buf);
+		}
+	}
+
+	/**
+	 * Retrieve content from InputStream and write to file if especified
+	 * 
+	 * @param is source of content
+	 * @param outFile to write or in memory if null
+	 * @return content
+	 * @throws IOException if error
+	 */
+	protected static final Content getContent(final InputStream is, final File outFile) throws IOException {
+		return getContent(is, new ContentSink(outFile, 64 * 1024)); // memory limit (64kb)
+	}
+
+	/**
+	 * Create sink for response body with content options of this client
+	 * 
+	 * @param outFile to write or in memory if null
+	 * @param method of request
+	 * @param hdrs of response
+	 * @return sink
+	 * @throws IOException if error
+	 */
+	ContentSink newContentSink(final File outFile, final Request.Method method, //
+			final Map<String, List<String>> hdrs) throws IOException {
+		final ContentDecoder decoder = (compression //
+				? ContentDecoder.of(Headers.getValue(hdrs, "Content-Encoding")) //
+				: null);
+		final long length = ((method.resBody && (decoder == null)) ? contentLength(hdrs) : -1);
+		return new ContentSink(outFile, memoryContentLimit, directContentLimit, mapFileContent, //
+				memoryBudget, length, decoder);
+	}
+
+	/**
+	 * Create sink of body in memory, for the event loop thread (never blocks on disk)
+	 * 
+	 * @param method of request
+	 * @param hdrs of response
+	 * @return sink or null if body may be written to disk (compressed, unknown or large length, budget
+	 *         exhausted)
+	 */
+	ContentSink newMemorySink(final Request.Method method, final Map<String, List<String>> hdrs) {
+		if (compression && (ContentDecoder.of(Headers.getValue(hdrs, "Content-Encoding")) != null)) {
+			return null;
+		}
+		final long length = (method.resBody ? contentLength(hdrs) : 0);
+		return ContentSink.memory(memoryContentLimit, memoryBudget, length);
+	}
+
+	/**
+	 * Get declared length of body
+	 * 
+	 * @param hdrs of response
+	 * @return length or -1 if unknown
+	 */
+	static long contentLength(final Map<String, List<String>> hdrs) {
+		if (Headers.getValue(hdrs, "Transfer-Encoding") != null) {
+			return -1;
+		}
+		final String cl = Headers.getValue(hdrs, "Content-Length");
+		if (cl == null) {
+			return -1;
+		}
+		try {
+			final long len = Long.parseLong(cl.trim());
+			return ((len >= 0) ? len : -1);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	static Content getContent(final InputStream is, final ContentSink sink) throws IOException {
+		if (sink.isFile() && (is instanceof HttpConnection.BodyInputStream)) {
+			// Channel fast path
+			try {
+				sink.transferFrom((HttpConnection.BodyInputStream) is);
+				return sink.finish();
+			} catch (IOException | RuntimeException e) {
+				sink.abort();
+				throw e;
+			}
+		}
+		final byte[] buf = BufferPool.DEFAULT.acquire();
+		try {
+			int len;
+			while ((len = is.read(buf)) != -1) {
+				sink.write(buf, 0, len);
+			}
+			return sink.finish();
+		} catch (IOException | RuntimeException e) {
+			sink.abort();
+			throw e;
+		} finally {
+			BufferPool.DEFAULT.release(buf);
+		}
+	}
+
+	/**
+	 * Transport used to execute requests
+	 */
+	public static enum Transport {
+		/**
+		 * JDK {@link HttpURLConnection}
+		 */
+		URLCONNECTION,
+		/**
+		 * Native HTTP/1.1 over {@link java.nio.channels.SocketChannel} with persistent connections (error
+		 * responses are returned with body instead of exception)
+		 */
+		NIO,
+		/**
+		 * Non-blocking HTTP/1.1 multiplexed over {@link java.nio.channels.Selector} event loops, one per
+		 * core. Async requests don't use a thread per request and complete in the loop thread (dependent
+		 * actions should use async variants of {@link CompletableFuture}). Only plain http, https use NIO
+		 * transport
+		 */
+		EVENT_LOOP,
+		/**
+		 * HTTP/2 with prior knowledge over plain http (h2c), requests to the same host are concurrent
+		 * streams multiplexed in a single connection. Only plain http, https use NIO transport
+		 */
+		H2C;
+	}
+
+	/**
+	 * Selection of address for new connections to a host with several addresses
+	 */
+	public static enum AddressSelection {
+		/**
+		 * Each new connection uses the next address
+		 */
+		ROUND_ROBIN,
+		/**
+		 * Address with fewer open connections of this client (ties in round-robin)
+		 */
+		LEAST_LOADED;
 	}
 }
@@ -0,0 +1,978 @@
+package org.javastack.jhttpcli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Persistent HTTP/1.1 connection over a {@link SocketChannel}
+ */
+final class HttpConnection implements Closeable {
+	private static final int MAX_LINE = 16 * 1024;
+	private static final int MAX_HEADERS = 256;
+	/**
+	 * Min size of body to use direct transfer to file
+	 */
+	private static final long DIRECT_THRESHOLD = 256 * 1024;
+
+	final NioTransport transport;
+	/**
+	 * Key of connection (scheme://host:port)
+	 */
+	final String route;
+	final SocketChannel channel;
+	final Socket socket;
+	/**
+	 * Remote address (connection counted in load of address until closed)
+	 */
+	final InetAddress address;
+	final ConnectionInputStream in;
+	final OutputStream out;
+	final long created;
+	long lastUsed;
+	/**
+	 * Count of exchanges done with this connection
+	 */
+	int exchanges = 0;
+	private boolean written = false;
+	/**
+	 * Selector for reads with timeout of channel in non-blocking mode (created on first use)
+	 */
+	private Selector selector = null;
+	/**
+	 * Can be reused after current exchange?
+	 */
+	boolean keepAlive = true;
+	/**
+	 * In use (guarded by pool lock)
+	 */
+	boolean leased = false;
+	/**
+	 * Responses of pipelined requests pending to read after current, connection is released after last
+	 */
+	int pending = 0;
+	private boolean closed = false;
+
+	private HttpConnection(final NioTransport transport, final String route, //
+			final SocketChannel channel, final Socket socket) throws IOException {
+		this.transport = transport;
+		this.route = route;
+		this.channel = channel;
+		this.socket = socket;
+		this.address = channel.socket().getInetAddress();
+		this.in = new ConnectionInputStream(socket.getInputStream(), 8192);
+		this.out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+		this.created = System.currentTimeMillis();
+		this.lastUsed = created;
+	}
+
+	/**
+	 * Open new connection to host of URL
+	 *
+	 * @param transport owner
+	 * @param url destination
+	 * @return connection
+	 * @throws IOException if error
+	 */
+	static HttpConnection open(final NioTransport transport, final URL url) throws IOException {
+		final HttpClient cli = transport.cli;
+		final String host = url.getHost();
+		final int port = port(url);
+		final SocketChannel ch = connect(cli, url);
+		final InetAddress address = ch.socket().getInetAddress();
+		try {
+			final Socket s = ch.socket();
+			s.setSoTimeout(cli.readTimeoutMillis);
+			Socket io = s;
+			if (isSecure(url)) {
+				final Trace trace = Trace.current(cli);
+				if (trace != null) {
+					trace.tlsStart();
+				}
+				final SSLSocket ssl = cli.tls.handshake(s, host, port);
+				if (trace != null) {
+					trace.tlsEnd(ssl.getSession());
+				}
+				io = ssl;
+			}
+			return new HttpConnection(transport, route(url), ch, io);
+		} catch (IOException | RuntimeException e) {
+			IOUtil.closeSilent(ch);
+			cli.dns.closed(address);
+			throw e;
+		}
+	}
+
+	/**
+	 * Open a socket to host of URL, trying resolved addresses in order of preference until one connects
+	 *
+	 * @param cli client (options of socket and resolver)
+	 * @param url destination
+	 * @return connected channel (counted in load of its address)
+	 * @throws IOException if error
+	 */
+	static SocketChannel connect(final HttpClient cli, final URL url) throws IOException {
+		final int port = port(url);
+		final Trace trace = Trace.current(cli);
+		IOException error = null;
+		for (final InetAddress address : resolve(cli, url.getHost(), trace)) {
+			final InetSocketAddress remote = new InetSocketAddress(address, port);
+			final SocketChannel ch = SocketChannel.open();
+			try {
+				final Socket s = ch.socket();
+				s.setTcpNoDelay(cli.tcpNoDelay);
+				s.setKeepAlive(true);
+				if (cli.socketBufferSize > 0) {
+					s.setReceiveBufferSize(cli.socketBufferSize);
+					s.setSendBufferSize(cli.socketBufferSize);
+				}
+				if (trace != null) {
+					trace.connectStart(remote);
+				}
+				s.connect(remote, cli.connectionTimeoutMillis);
+				cli.dns.connected(address);
+				if (trace != null) {
+					trace.connectEnd(remote);
+				}
+				return ch;
+			} catch (IOException e) {
+				IOUtil.closeSilent(ch);
+				if (trace != null) {
+					trace.connectFailed(remote, e);
+				}
+				if (error == null) {
+					error = e;
+				} else {
+					error.addSuppressed(e);
+				}
+			} catch (RuntimeException e) {
+				IOUtil.closeSilent(ch);
+				throw e;
+			}
+		}
+		throw error;
+	}
+
+	/**
+	 * Resolve host with DNS cache of client
+	 *
+	 * @param cli client
+	 * @param host name
+	 * @param trace of call or null
+	 * @return addresses in order of preference
+	 * @throws UnknownHostException if not resolved
+	 */
+	static InetAddress[] resolve(final HttpClient cli, final String host, final Trace trace) //
+			throws UnknownHostException {
+		if (trace == null) {
+			return cli.dns.resolve(host);
+		}
+		trace.dnsStart(host);
+		InetAddress[] addresses = null;
+		try {
+			addresses = cli.dns.resolve(host);
+			return addresses;
+		} finally {
+			trace.dnsEnd(host, addresses);
+		}
+	}
+
+	static boolean isSecure(final URL url) {
+		return "https".equalsIgnoreCase(url.getProtocol());
+	}
+
+	static int port(final URL url) {
+		final int port = url.getPort();
+		return ((port > 0) ? port : url.getDefaultPort());
+	}
+
+	/**
+	 * Key to group connections to same destination
+	 *
+	 * @param url destination
+	 * @return scheme://host:port
+	 */
+	static String route(final URL url) {
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port(url);
+	}
+
+	/**
+	 * Is this connection used in a previous exchange?
+	 *
+	 * @return true if reused
+	 */
+	boolean isReused() {
+		return (exchanges > 1);
+	}
+
+	/**
+	 * Was the request of current exchange completely written?
+	 *
+	 * @return true if written (the server may have processed it)
+	 */
+	boolean isWritten() {
+		return written;
+	}
+
+	boolean isOpen() {
+		return channel.isOpen() && !socket.isClosed();
+	}
+
+	/**
+	 * Check if an idle connection was closed by peer or has unexpected data. TLS connections are not probed:
+	 * a byte of the channel is part of a record (like a post-handshake NewSessionTicket of TLS 1.3), not of
+	 * the response, and can not be read without blocking at record layer
+	 *
+	 * @return true if connection can not be reused
+	 */
+	boolean isStale() {
+		if (in.buffered() > 0) {
+			return true;
+		}
+		if (!isPlain()) {
+			return !isOpen();
+		}
+		try {
+			channel.configureBlocking(false);
+			try {
+				return (channel.read(ByteBuffer.allocate(1)) != 0);
+			} finally {
+				channel.configureBlocking(true);
+			}
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Close connection and return leased slot to pool
+	 */
+	void abort() {
+		keepAlive = false;
+		pending = 0;
+		transport.release(this);
+	}
+
+	@Override
+	public void close() {
+		keepAlive = false;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		IOUtil.closeSilent(socket);
+		IOUtil.closeSilent(channel);
+		IOUtil.closeSilent(selector);
+		transport.cli.dns.closed(address);
+	}
+
+	/**
+	 * Send request and read response head
+	 *
+	 * @param url destination
+	 * @param method of request
+	 * @param hdrs of request
+	 * @param body of request
+	 * @param ifModifiedSince millis or zero
+	 * @return exchange with body pending to read
+	 * @throws IOException if error
+	 */
+	Exchange exchange(final URL url, final Request.Method method, //
+			final Map<String, List<String>> hdrs, final Content body, //
+			final long ifModifiedSince) throws IOException {
+		exchanges++;
+		lastUsed = System.currentTimeMillis();
+		written = false;
+		final Trace trace = Trace.current(transport.cli);
+		writeRequest(url, method, hdrs, body, ifModifiedSince, trace);
+		written = true;
+		return readResponse(method, trace);
+	}
+
+	/**
+	 * Send requests back-to-back without waiting for responses (pipelining), responses must be read in
+	 * order with {@link #readResponse(Request.Method)}
+	 *
+	 * @param reqs to send (without body)
+	 * @throws IOException if error
+	 */
+	void pipeline(final List<Request> reqs) throws IOException {
+		exchanges++;
+		lastUsed = System.currentTimeMillis();
+		pending = reqs.size() - 1;
+		for (final Request req : reqs) {
+			out.write(requestHead(req.url, req.method, req.hdrs, req.body, 0L));
+		}
+		out.flush();
+	}
+
+	private void writeRequest(final URL url, final Request.Method method, //
+			final Map<String, List<String>> hdrs, final Content body, //
+			final long ifModifiedSince, final Trace trace) throws IOException {
+		final byte[] head = requestHead(url, method, hdrs, body, ifModifiedSince);
+		out.write(head);
+		if (!hasBody(method, body)) {
+			out.flush();
+			if (trace != null) {
+				trace.requestHeadersEnd(head.length);
+			}
+			return;
+		}
+		if (trace != null) {
+			// Head is buffered until flush with the body (or before zero-copy)
+			trace.requestHeadersEnd(head.length);
+		}
+		if (body.hasFile() && isPlain()) {
+			out.flush();
+			// Zero-copy from file to socket
+			final long size = body.size();
+			try (final FileChannel fc = body.openChannel()) {
+				long pos = 0;
+				while (pos < size) {
+					final long len;
+					try {
+						len = fc.transferTo(pos, size - pos, channel);
+					} catch (SocketException e) {
+						throw e;
+					} catch (IOException e) {
+						throw closed(e);
+					}
+					if ((len <= 0) && (pos >= fc.size())) {
+						throw new EOFException("File truncated, expected=" + size + " sent=" + pos);
+					}
+					pos += len;
+				}
+			}
+		} else if ((body.type == Content.Type.DIRECT) && isPlain()) {
+			out.flush();
+			// Off-heap buffer to socket without copy to heap
+			final ByteBuffer src = body.asByteBuffer();
+			try {
+				while (src.hasRemaining()) {
+					channel.write(src);
+				}
+			} catch (SocketException e) {
+				throw e;
+			} catch (IOException e) {
+				throw closed(e);
+			}
+		} else {
+			body.writeTo(out);
+			out.flush();
+		}
+		if (trace != null) {
+			trace.requestBodyEnd(body.size());
+		}
+	}
+
+	/**
+	 * Channel writes report a connection closed by peer as plain IOException (socket streams as
+	 * SocketException), convert to retry stale connections
+	 *
+	 * @param e error of channel
+	 * @return socket exception
+	 */
+	private static SocketException closed(final IOException e) {
+		final SocketException se = new SocketException(e.getMessage());
+		se.initCause(e);
+		return se;
+	}
+
+	/**
+	 * Is socket without TLS (bytes of channel are the bytes of HTTP)
+	 *
+	 * @return true if plain
+	 */
+	boolean isPlain() {
+		return (socket == channel.socket());
+	}
+
+	/**
+	 * Read bytes of body from connection directly to a file, using a direct buffer (only plain
+	 * connections)
+	 *
+	 * @param fc destination
+	 * @param count of bytes to transfer
+	 * @return bytes transferred
+	 * @throws IOException if error
+	 */
+	long transferTo(final FileChannel fc, final long count) throws IOException {
+		long done = 0;
+		// Bytes already buffered in stream
+		final int buffered = (int) Math.min(in.buffered(), count);
+		if (buffered > 0) {
+			final byte[] buf = new byte[buffered];
+			int off = 0;
+			while (off < buffered) {
+				off += in.read(buf, off, buffered - off);
+			}
+			final ByteBuffer bb = ByteBuffer.wrap(buf);
+			while (bb.hasRemaining()) {
+				fc.write(bb);
+			}
+			done += buffered;
+		}
+		if (done >= count) {
+			return done;
+		}
+		if (selector == null) {
+			selector = Selector.open();
+		}
+		final ByteBuffer bb = BufferPool.DEFAULT.acquireDirect();
+		channel.configureBlocking(false);
+		final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+		try {
+			final int timeout = transport.cli.readTimeoutMillis;
+			while (done < count) {
+				bb.clear();
+				if ((count - done) < bb.capacity()) {
+					bb.limit((int) (count - done));
+				}
+				final int len = channel.read(bb);
+				if (len < 0) {
+					throw new EOFException("Premature end of body, remaining=" + (count - done));
+				}
+				if (len == 0) {
+					if (selector.select(timeout) == 0) {
+						throw new SocketTimeoutException("Read timed out");
+					}
+					selector.selectedKeys().clear();
+					continue;
+				}
+				bb.flip();
+				while (bb.hasRemaining()) {
+					fc.write(bb);
+				}
+				done += len;
+			}
+		} finally {
+			BufferPool.DEFAULT.releaseDirect(bb);
+			key.cancel();
+			if (channel.isOpen()) {
+				// Deregister cancelled key before return to blocking mode
+				selector.selectNow();
+				channel.configureBlocking(true);
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * Request has body to send?
+	 *
+	 * @param method of request
+	 * @param body of request
+	 * @return true if body must be sent
+	 */
+	static boolean hasBody(final Request.Method method, final Content body) {
+		return (method.reqBody && !body.isEmpty());
+	}
+
+	/**
+	 * Build request line and headers
+	 *
+	 * @param url destination
+	 * @param method of request
+	 * @param hdrs of request
+	 * @param body of request
+	 * @param ifModifiedSince millis or zero
+	 * @return bytes of request head
+	 * @throws IllegalArgumentException if a header name is not a token or a value has CR, LF or NUL
+	 */
+	static byte[] requestHead(final URL url, final Request.Method method, //
+			final Map<String, List<String>> hdrs, final Content body, //
+			final long ifModifiedSince) {
+		final StringBuilder sb = new StringBuilder(256);
+		final String file = url.getFile();
+		sb.append(method.name()).append(' ') //
+				.append(file.isEmpty() ? "/" : file) //
+				.append(" HTTP/1.1\r\n");
+		boolean hasHost = false, hasUserAgent = false, hasAccept = false;
+		if ((hdrs != null) && !hdrs.isEmpty()) {
+			for (final Map.Entry<String, List<String>> e : hdrs.entrySet()) {
+				final String key = e.getKey();
+				final List<String> list = e.getValue();
+				if ((key == null) || (list == null) || list.isEmpty() //
+						|| "content-length".equalsIgnoreCase(key) //
+						|| "transfer-encoding".equalsIgnoreCase(key)) {
+					continue;
+				}
+				hasHost |= "host".equalsIgnoreCase(key);
+				hasUserAgent |= "user-agent".equalsIgnoreCase(key);
+				hasAccept |= "accept".equalsIgnoreCase(key);
+				checkName(key);
+				for (final String value : list) {
+					if (value == null) {
+						continue;
+					}
+					checkValue(key, value);
+					sb.append(key).append(": ").append(value).append("\r\n");
+				}
+			}
+		}
+		if (!hasHost) {
+			sb.append("Host: ").append(url.getHost());
+			if ((url.getPort() > 0) && (url.getPort() != url.getDefaultPort())) {
+				sb.append(':').append(url.getPort());
+			}
+			sb.append("\r\n");
+		}
+		if (!hasUserAgent) {
+			sb.append("User-Agent: jhttpcli\r\n");
+		}
+		if (!hasAccept) {
+			sb.append("Accept: */*\r\n");
+		}
+		if (ifModifiedSince > 0L) {
+			sb.append("If-Modified-Since: ").append(formatDate(ifModifiedSince)).append("\r\n");
+		}
+		if (hasBody(method, body)) {
+			sb.append("Content-Length: ").append(body.size()).append("\r\n");
+		} else if (method.reqBody) {
+			sb.append("Content-Length: 0\r\n");
+		}
+		sb.append("\r\n");
+		return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Read response head
+	 *
+	 * @param method of request
+	 * @return exchange with body pending to read
+	 * @throws IOException if error
+	 */
+	Exchange readResponse(final Request.Method method) throws IOException {
+		return readResponse(method, null);
+	}
+
+	private Exchange readResponse(final Request.Method method, final Trace trace) throws IOException {
+		String statusLine = readLine(true);
+		if (trace != null) {
+			trace.responseStart();
+		}
+		int status = parseStatus(statusLine);
+		Map<String, List<String>> hdrs = readHeaders();
+		// Skip interim responses (100 Continue, 102 Processing,...)
+		while ((status >= 100) && (status <= 199) && (status != 101)) {
+			statusLine = readLine(false);
+			status = parseStatus(statusLine);
+			hdrs = readHeaders();
+		}
+		final boolean http10 = statusLine.startsWith("HTTP/1.0");
+		final String connection = Headers.getValue(hdrs, "Connection");
+		if (http10) {
+			keepAlive = "keep-alive".equalsIgnoreCase(connection);
+		} else {
+			keepAlive = !"close".equalsIgnoreCase(connection);
+		}
+		final InputStream body;
+		if (!method.resBody || (status == 204) || (status == 304) || (status == 101)) {
+			body = new FixedLengthInputStream(this, 0);
+		} else if (Headers.isChunked(hdrs)) {
+			body = new ChunkedInputStream(this);
+		} else {
+			final String cl = Headers.getValue(hdrs, "Content-Length");
+			if (cl != null) {
+				final long len;
+				try {
+					len = Long.parseLong(cl.trim());
+				} catch (NumberFormatException e) {
+					throw new ProtocolException("Invalid Content-Length: " + cl);
+				}
+				body = new FixedLengthInputStream(this, len);
+			} else {
+				keepAlive = false;
+				body = new UntilCloseInputStream(this);
+			}
+		}
+		return new Exchange(status, Collections.unmodifiableMap(hdrs)) {
+			@Override
+			InputStream getBody() {
+				return body;
+			}
+
+			@Override
+			public void close() {
+				IOUtil.closeSilent(body);
+			}
+		};
+	}
+
+	/**
+	 * Header name must be a token (RFC 7230)
+	 */
+	private static void checkName(final String name) {
+		if (name.isEmpty()) {
+			throw new IllegalArgumentException("Empty header name");
+		}
+		for (int i = 0; i < name.length(); i++) {
+			final char c = name.charAt(i);
+			if (((c < 'a') || (c > 'z')) && ((c < 'A') || (c > 'Z')) && ((c < '0') || (c > '9')) //
+					&& ("!#$%&'*+-.^_`|~".indexOf(c) < 0)) {
+				throw new IllegalArgumentException("Invalid header name: " + name);
+			}
+		}
+	}
+
+	/**
+	 * Header value without CR, LF or NUL (would inject headers or a request in a persistent connection)
+	 */
+	private static void checkValue(final String name, final String value) {
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if ((c == '\r') || (c == '\n') || (c == 0)) {
+				throw new IllegalArgumentException("Invalid value of header: " + name);
+			}
+		}
+	}
+
+	static int parseStatus(final String line) throws IOException {
+		// HTTP/1.1 200 OK
+		if (!line.startsWith("HTTP/1.") || (line.length() < 12) || (line.charAt(8) != ' ')) {
+			throw new ProtocolException("Invalid status line: " + line);
+		}
+		try {
+			return Integer.parseInt(line.substring(9, 12));
+		} catch (NumberFormatException e) {
+			throw new ProtocolException("Invalid status line: " + line);
+		}
+	}
+
+	private Map<String, List<String>> readHeaders() throws IOException {
+		final TreeMap<String, List<String>> hdrs = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		String line;
+		int count = 0;
+		while (!(line = readLine(false)).isEmpty()) {
+			if (++count > MAX_HEADERS) {
+				throw new ProtocolException("Too many headers");
+			}
+			final int idx = line.indexOf(':');
+			if (idx <= 0) {
+				continue;
+			}
+			final String key = line.substring(0, idx).trim();
+			final String value = line.substring(idx + 1).trim();
+			List<String> values = hdrs.get(key);
+			if (values == null) {
+				values = new ArrayList<>(1);
+				hdrs.put(key, values);
+			}
+			values.add(value);
+		}
+		return hdrs;
+	}
+
+	/**
+	 * Read a line terminated in CRLF (or LF)
+	 *
+	 * @param first is first line of response
+	 * @return line without terminator
+	 * @throws IOException if error
+	 */
+	String readLine(final boolean first) throws IOException {
+		final StringBuilder sb = new StringBuilder(64);
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				final int len = sb.length();
+				if ((len > 0) && (sb.charAt(len - 1) == '\r')) {
+					sb.setLength(len - 1);
+				}
+				return sb.toString();
+			}
+			if (sb.length() >= MAX_LINE) {
+				throw new ProtocolException("Line too long");
+			}
+			sb.append((char) c);
+		}
+		if (first && (sb.length() == 0)) {
+			throw new EOFException("Connection closed by peer");
+		}
+		throw new EOFException("Unexpected end of stream");
+	}
+
+	static String formatDate(final long millis) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format( //
+				Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC));
+	}
+
+	/**
+	 * Body of response completely readed
+	 */
+	void done() {
+		if (pending > 0) {
+			pending--;
+			return;
+		}
+		transport.release(this);
+	}
+
+	/**
+	 * Buffered stream that expose count of buffered bytes
+	 */
+	static final class ConnectionInputStream extends BufferedInputStream {
+		ConnectionInputStream(final InputStream in, final int size) {
+			super(in, size);
+		}
+
+		/**
+		 * Bytes available in buffer without blocking
+		 *
+		 * @return count of bytes
+		 */
+		int buffered() {
+			return (count - pos);
+		}
+	}
+
+	/**
+	 * Base of response body streams, release the connection at end of body
+	 */
+	abstract static class BodyInputStream extends InputStream {
+		final HttpConnection conn;
+		boolean eof = false;
+		boolean closed = false;
+
+		BodyInputStream(final HttpConnection conn) {
+			this.conn = conn;
+		}
+
+		/**
+		 * Transfer all remaining body to a file
+		 *
+		 * @param fc destination
+		 * @return bytes transferred
+		 * @throws IOException if error
+		 */
+		long transferTo(final FileChannel fc) throws IOException {
+			final byte[] buf = BufferPool.DEFAULT.acquire();
+			try {
+				long total = 0;
+				int len;
+				while ((len = read(buf, 0, buf.length)) != -1) {
+					final ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+					while (bb.hasRemaining()) {
+						fc.write(bb);
+					}
+					total += len;
+				}
+				return total;
+			} finally {
+				BufferPool.DEFAULT.release(buf);
+			}
+		}
+
+		final void finish() {
+			if (!eof) {
+				eof = true;
+				conn.done();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] b = new byte[1];
+			final int len = read(b, 0, 1);
+			return ((len <= 0) ? -1 : (b[0] & 0xFF));
+		}
+
+		@Override
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			if (!eof) {
+				// Body not fully consumed, connection can not be reused
+				conn.abort();
+			}
+		}
+	}
+
+	/**
+	 * Body delimited by Content-Length
+	 */
+	static final class FixedLengthInputStream extends BodyInputStream {
+		long remaining;
+
+		FixedLengthInputStream(final HttpConnection conn, final long len) {
+			super(conn);
+			this.remaining = len;
+			if (len <= 0) {
+				finish();
+			}
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (remaining <= 0) {
+				finish();
+				return -1;
+			}
+			final int rlen = conn.in.read(b, off, (int) Math.min(len, remaining));
+			if (rlen < 0) {
+				throw new EOFException("Premature end of body, remaining=" + remaining);
+			}
+			remaining -= rlen;
+			if (remaining <= 0) {
+				finish();
+			}
+			return rlen;
+		}
+
+		@Override
+		long transferTo(final FileChannel fc) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (!conn.isPlain() || (remaining < DIRECT_THRESHOLD)) {
+				return super.transferTo(fc);
+			}
+			final long len = conn.transferTo(fc, remaining);
+			remaining -= len;
+			if (remaining <= 0) {
+				finish();
+			}
+			return len;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(conn.in.buffered(), remaining);
+		}
+	}
+
+	/**
+	 * Body with Transfer-Encoding: chunked
+	 */
+	static final class ChunkedInputStream extends BodyInputStream {
+		long chunkRemaining = 0;
+		boolean lastChunk = false;
+
+		ChunkedInputStream(final HttpConnection conn) {
+			super(conn);
+		}
+
+		private boolean nextChunk() throws IOException {
+			if (lastChunk) {
+				return false;
+			}
+			String line = conn.readLine(false);
+			final int ext = line.indexOf(';');
+			if (ext >= 0) {
+				line = line.substring(0, ext);
+			}
+			try {
+				chunkRemaining = Long.parseLong(line.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new ProtocolException("Invalid chunk size: " + line);
+			}
+			if (chunkRemaining < 0) {
+				throw new ProtocolException("Invalid chunk size: " + line);
+			}
+			if (chunkRemaining == 0) {
+				lastChunk = true;
+				// Trailers (ignored)
+				while (!conn.readLine(false).isEmpty()) {
+					continue;
+				}
+				finish();
+				return false;
+			}
+			return true;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (eof) {
+				return -1;
+			}
+			if ((chunkRemaining <= 0) && !nextChunk()) {
+				return -1;
+			}
+			final int rlen = conn.in.read(b, off, (int) Math.min(len, chunkRemaining));
+			if (rlen < 0) {
+				throw new EOFException("Premature end of chunk, remaining=" + chunkRemaining);
+			}
+			chunkRemaining -= rlen;
+			if (chunkRemaining == 0) {
+				// CRLF after chunk data
+				if (!conn.readLine(false).isEmpty()) {
+					throw new ProtocolException("Invalid chunk terminator");
+				}
+			}
+			return rlen;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(conn.in.buffered(), chunkRemaining);
+		}
+	}
+
+	/**
+	 * Body delimited by close of connection
+	 */
+	static final class UntilCloseInputStream extends BodyInputStream {
+		UntilCloseInputStream(final HttpConnection conn) {
+			super(conn);
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			if (eof) {
+				return -1;
+			}
+			final int rlen = conn.in.read(b, off, len);
+			if (rlen < 0) {
+				finish();
+			}
+			return rlen;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return conn.in.buffered();
+		}
+	}
+}
@@ -15,13 +15,35 @@ public class IOUtil {
 	 */
 	public static final void transfer(final InputStream is, //
 			final OutputStream os) throws IOException {
-		final byte[] buf = new byte[4096];
-		int len;
-		while ((len = is.read(buf)) != -1) {
-			os.write(buf, 0, len);
+		final byte[] buf = BufferPool.DEFAULT.acquire();
+		try {
+			int len;
+			while ((len = is.read(buf)) != -1) {
+				os.write(buf, 0, len);
+			}
+		} finally {
+			BufferPool.DEFAULT.release(buf);
 		}
 	}
 
+	/**
+	 * Set size of pooled I/O buffers shared by the library (default: 8KB)
+	 * 
+	 * @param size in bytes
+	 */
+	public static final void setBufferSize(final int size) {
+		BufferPool.DEFAULT.setBufferSize(size);
+	}
+
+	/**
+	 * Set max bytes retained in the pool of I/O buffers (default: 8MB)
+	 * 
+	 * @param max bytes
+	 */
+	public static final void setBufferPoolLimit(final long max) {
+		BufferPool.DEFAULT.setMaxBytes(max);
+	}
+
 	/**
 	 * Close unconditional
 	 * 
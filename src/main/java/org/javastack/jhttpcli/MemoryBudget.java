@@ -0,0 +1,112 @@
+package org.javastack.jhttpcli;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory shared by response bodies of a client. Bytes are reserved while a body is buffered and stay
+ * reserved until the returned {@link Content} is deleted, or garbage collected if it is never deleted
+ */
+final class MemoryBudget {
+	private final long max;
+	private final AtomicLong used = new AtomicLong();
+	private final ReferenceQueue<Content> queue = new ReferenceQueue<>();
+	private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+	MemoryBudget(final long max) {
+		this.max = max;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	/**
+	 * Bytes in use
+	 *
+	 * @return reserved bytes
+	 */
+	long getUsed() {
+		expunge();
+		return used.get();
+	}
+
+	/**
+	 * Try to reserve memory
+	 *
+	 * @param bytes to reserve
+	 * @return true if reserved, false if budget is exhausted
+	 */
+	boolean reserve(final long bytes) {
+		expunge();
+		while (true) {
+			final long current = used.get();
+			if ((current + bytes) > max) {
+				return false;
+			}
+			if (used.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Return reserved memory
+	 *
+	 * @param bytes to release
+	 */
+	void release(final long bytes) {
+		if (bytes > 0) {
+			used.addAndGet(-bytes);
+		}
+	}
+
+	/**
+	 * Keep reserved memory until content is deleted or garbage collected
+	 *
+	 * @param content holding memory
+	 * @param bytes reserved
+	 */
+	void track(final Content content, final long bytes) {
+		if (bytes > 0) {
+			final Lease lease = new Lease(content, bytes);
+			leases.add(lease);
+			content.lease = lease;
+		}
+	}
+
+	private void expunge() {
+		Lease lease;
+		while ((lease = (Lease) queue.poll()) != null) {
+			if (leases.remove(lease)) {
+				release(lease.bytes);
+			}
+		}
+	}
+
+	/**
+	 * Memory held by a content, the reference queue is the fallback of contents never deleted
+	 */
+	final class Lease extends PhantomReference<Content> {
+		final long bytes;
+
+		Lease(final Content content, final long bytes) {
+			super(content, queue);
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Return memory now (only once)
+		 */
+		void release() {
+			clear();
+			if (leases.remove(this)) {
+				MemoryBudget.this.release(bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package org.javastack.jhttpcli;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of requests per host (scheme://host:port): latency histogram, status classes, errors and bytes of
+ * bodies. Each attempt sent to the network is recorded (retries, hedged copies and pipelined requests
+ * included, a pipelined request with the latency of the whole pipeline; responses from cache and requests
+ * rejected by circuit breaker or rate limiter excluded). Counters are lock-free and striped, memory is fixed
+ * per host and hosts over the limit are merged in "*". Published as a JMX MXBean while set in a client, use
+ * one instance per client
+ *
+ * @see HttpClient#setMetrics(Metrics)
+ */
+public class Metrics implements MetricsMXBean {
+	private static final AtomicInteger SEQ = new AtomicInteger();
+	private static final String OTHERS = "*";
+
+	private volatile int maxHosts = 256;
+	private volatile String jmxName = "client-" + SEQ.incrementAndGet();
+	private ObjectName registered = null;
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * Set max hosts with own statistics, the rest are merged in "*" (default: 256)
+	 *
+	 * @param hosts max
+	 * @return this
+	 */
+	public Metrics setMaxHosts(final int hosts) {
+		this.maxHosts = Math.max(1, hosts);
+		return this;
+	}
+
+	/**
+	 * Set name of MBean, must be unique in JVM (default: client-N, null to not register)
+	 *
+	 * @param name of MBean
+	 * @return this
+	 */
+	public Metrics setJmxName(final String name) {
+		this.jmxName = name;
+		return this;
+	}
+
+	/**
+	 * Get statistics of all hosts
+	 *
+	 * @return snapshot of stats
+	 */
+	public RequestStats getStats() {
+		RequestStats total = Host.EMPTY;
+		for (final Host host : hosts.values()) {
+			total = total.plus(host.snapshot());
+		}
+		return total;
+	}
+
+	/**
+	 * Get statistics of a host
+	 *
+	 * @param url of host
+	 * @return snapshot of stats (empty if not recorded)
+	 */
+	public RequestStats getStats(final URL url) {
+		return getStats(HttpConnection.route(url));
+	}
+
+	private RequestStats getStats(final String route) {
+		final Host host = hosts.get(route);
+		return ((host != null) ? host.snapshot() : Host.EMPTY);
+	}
+
+	@Override
+	public long getRequests() {
+		return getStats().requests;
+	}
+
+	@Override
+	public long getErrors() {
+		return getStats().errors;
+	}
+
+	@Override
+	public long getStatus1xx() {
+		return getStats().status1xx;
+	}
+
+	@Override
+	public long getStatus2xx() {
+		return getStats().status2xx;
+	}
+
+	@Override
+	public long getStatus3xx() {
+		return getStats().status3xx;
+	}
+
+	@Override
+	public long getStatus4xx() {
+		return getStats().status4xx;
+	}
+
+	@Override
+	public long getStatus5xx() {
+		return getStats().status5xx;
+	}
+
+	@Override
+	public long getBytesSent() {
+		return getStats().bytesSent;
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return getStats().bytesReceived;
+	}
+
+	@Override
+	public long getLatencyMeanMicros() {
+		return getStats().getMeanMicros();
+	}
+
+	@Override
+	public long getLatencyP50Micros() {
+		return getStats().getPercentileMicros(0.5);
+	}
+
+	@Override
+	public long getLatencyP90Micros() {
+		return getStats().getPercentileMicros(0.9);
+	}
+
+	@Override
+	public long getLatencyP99Micros() {
+		return getStats().getPercentileMicros(0.99);
+	}
+
+	@Override
+	public long getLatencyP999Micros() {
+		return getStats().getPercentileMicros(0.999);
+	}
+
+	@Override
+	public long getLatencyMaxMicros() {
+		return getStats().maxMicros;
+	}
+
+	@Override
+	public String[] getHosts() {
+		return hosts.keySet().toArray(new String[0]);
+	}
+
+	@Override
+	public Map<String, Long> getHostStats(final String host) {
+		if (!hosts.containsKey(host)) {
+			return Collections.emptyMap();
+		}
+		final RequestStats s = getStats(host);
+		final Map<String, Long> map = new LinkedHashMap<>();
+		map.put("requests", s.requests);
+		map.put("errors", s.errors);
+		map.put("status1xx", s.status1xx);
+		map.put("status2xx", s.status2xx);
+		map.put("status3xx", s.status3xx);
+		map.put("status4xx", s.status4xx);
+		map.put("status5xx", s.status5xx);
+		map.put("bytesSent", s.bytesSent);
+		map.put("bytesReceived", s.bytesReceived);
+		map.put("latencyMeanMicros", s.getMeanMicros());
+		map.put("latencyP50Micros", s.getPercentileMicros(0.5));
+		map.put("latencyP90Micros", s.getPercentileMicros(0.9));
+		map.put("latencyP99Micros", s.getPercentileMicros(0.99));
+		map.put("latencyP999Micros", s.getPercentileMicros(0.999));
+		map.put("latencyMaxMicros", s.maxMicros);
+		return map;
+	}
+
+	/**
+	 * Record an attempt
+	 *
+	 * @param req request sent
+	 * @param res response
+	 * @param nanos duration
+	 */
+	void record(final Request req, final Response res, final long nanos) {
+		host(HttpConnection.route(req.url)).record(req, res, nanos);
+	}
+
+	private Host host(final String route) {
+		final Host host = hosts.get(route);
+		if (host != null) {
+			return host;
+		}
+		return hosts.computeIfAbsent(((hosts.size() < maxHosts) ? route : OTHERS), k -> new Host());
+	}
+
+	/**
+	 * Register MBean in platform server (if named)
+	 *
+	 * @throws IllegalArgumentException if name is invalid or already registered
+	 */
+	synchronized void register() {
+		final String name = jmxName;
+		if ((registered != null) || (name == null)) {
+			return;
+		}
+		try {
+			final ObjectName on = new ObjectName("org.javastack.jhttpcli:type=HttpClient,name=" + name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+			registered = on;
+		} catch (JMException e) {
+			throw new IllegalArgumentException("can not register MBean: " + name, e);
+		}
+	}
+
+	/**
+	 * Unregister MBean from platform server
+	 */
+	synchronized void unregister() {
+		if (registered == null) {
+			return;
+		}
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(registered);
+		} catch (JMException e) {
+			// Already unregistered
+		}
+		registered = null;
+	}
+
+	/**
+	 * Counters of a host (lock-free)
+	 */
+	private static final class Host {
+		static final RequestStats EMPTY = new RequestStats(0, new long[5], 0, 0, 0, 0, //
+				new long[Histogram.BUCKETS]);
+
+		final Histogram latency = new Histogram();
+		final LongAdder errors = new LongAdder();
+		final LongAdder[] status = new LongAdder[5];
+		final LongAdder bytesSent = new LongAdder();
+		final LongAdder bytesReceived = new LongAdder();
+		final LongAdder totalMicros = new LongAdder();
+		final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+		Host() {
+			for (int i = 0; i < status.length; i++) {
+				status[i] = new LongAdder();
+			}
+		}
+
+		void record(final Request req, final Response res, final long nanos) {
+			final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			final int code = res.code.code;
+			if (RetryPolicy.isTransportError(res) || (code < 100) || (code > 599)) {
+				errors.increment();
+			} else {
+				status[(code / 100) - 1].increment();
+			}
+			if (HttpConnection.hasBody(req.method, req.body)) {
+				bytesSent.add(req.body.size());
+			}
+			bytesReceived.add(res.body.size());
+			totalMicros.add(micros);
+			maxMicros.accumulate(micros);
+			// Last, a snapshot never counts more requests than outcomes
+			latency.record(micros);
+		}
+
+		RequestStats snapshot() {
+			final long[] buckets = new long[Histogram.BUCKETS];
+			latency.addTo(buckets);
+			final long[] counts = new long[status.length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = status[i].sum();
+			}
+			return new RequestStats(errors.sum(), counts, bytesSent.sum(), bytesReceived.sum(), //
+					totalMicros.sum(), maxMicros.get(), buckets);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.javastack.jhttpcli;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link Metrics} of a client, registered as
+ * {@code org.javastack.jhttpcli:type=HttpClient,name=<name>}. Attributes are totals of all hosts
+ *
+ * @see Metrics#setJmxName(String)
+ */
+public interface MetricsMXBean {
+	long getRequests();
+
+	long getErrors();
+
+	long getStatus1xx();
+
+	long getStatus2xx();
+
+	long getStatus3xx();
+
+	long getStatus4xx();
+
+	long getStatus5xx();
+
+	long getBytesSent();
+
+	long getBytesReceived();
+
+	long getLatencyMeanMicros();
+
+	long getLatencyP50Micros();
+
+	long getLatencyP90Micros();
+
+	long getLatencyP99Micros();
+
+	long getLatencyP999Micros();
+
+	long getLatencyMaxMicros();
+
+	/**
+	 * Get hosts with statistics
+	 *
+	 * @return scheme://host:port ("*" for hosts over limit)
+	 */
+	String[] getHosts();
+
+	/**
+	 * Get statistics of a host
+	 *
+	 * @param host scheme://host:port
+	 * @return name and value of counters and latencies (empty if unknown host)
+	 */
+	Map<String, Long> getHostStats(String host);
+}
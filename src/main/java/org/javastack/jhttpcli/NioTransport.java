@@ -0,0 +1,333 @@
+package org.javastack.jhttpcli;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * HTTP/1.1 transport over {@link java.nio.channels.SocketChannel} with pooled persistent connections, and
+ * HTTP/2 (h2c) with a multiplexed connection per host
+ */
+final class NioTransport implements Closeable {
+	static final int MAX_REDIRECTS = 20;
+	/**
+	 * Max attempts of a request refused by HTTP/2 connections
+	 */
+	private static final int MAX_H2_ATTEMPTS = 3;
+
+	final HttpClient cli;
+	private final ConnectionPool pool;
+	/**
+	 * HTTP/2 connection of each route (future completed when connected)
+	 */
+	private final HashMap<String, CompletableFuture<Http2Connection>> h2 = new HashMap<>();
+	private boolean closed = false;
+
+	NioTransport(final HttpClient cli) {
+		this.cli = cli;
+		this.pool = new ConnectionPool(this);
+	}
+
+	/**
+	 * Send request (following redirects if enabled) and read response head
+	 *
+	 * @param req to execute
+	 * @param outFile to write body response (used for If-Modified-Since)
+	 * @return exchange with body pending to read
+	 * @throws IOException if error
+	 */
+	Exchange open(final Request req, final File outFile) throws IOException {
+		URL url = req.url;
+		Request.Method method = req.method;
+		Content body = req.body;
+		final long ifModifiedSince = (((outFile != null) && (outFile.lastModified() > 0L)) //
+				? outFile.lastModified() //
+				: 0L);
+		int redirects = 0;
+		while (true) {
+			final Exchange x = send(url, method, req.hdrs, body, ifModifiedSince);
+			if (!cli.followRedirects || !isRedirect(x.status) || (redirects++ >= MAX_REDIRECTS)) {
+				return x;
+			}
+			final String location = Headers.getValue(x.hdrs, "Location");
+			if (location == null) {
+				return x;
+			}
+			final URL target = new URL(url, location);
+			if (!target.getProtocol().equalsIgnoreCase(url.getProtocol())) {
+				// Same as HttpURLConnection, don't follow protocol changes
+				return x;
+			}
+			try (final InputStream is = x.getBody()) {
+				HttpClient.drop(is);
+			} finally {
+				x.close();
+			}
+			final Request.Method redirectMethod = redirectMethod(x.status, method);
+			if (redirectMethod != method) {
+				method = redirectMethod;
+				body = Content.EMPTY;
+			}
+			url = target;
+		}
+	}
+
+	/**
+	 * Method to use in the redirected request (POST changes to GET, like HttpURLConnection)
+	 *
+	 * @param status of response
+	 * @param method of request
+	 * @return method
+	 */
+	static Request.Method redirectMethod(final int status, final Request.Method method) {
+		if (((status == 303) && (method != Request.Method.HEAD)) //
+				|| ((status != 307) && (status != 308) && (method == Request.Method.POST))) {
+			return Request.Method.GET;
+		}
+		return method;
+	}
+
+	static boolean isRedirect(final int status) {
+		switch (status) {
+			case 301:
+			case 302:
+			case 303:
+			case 307:
+			case 308:
+				return true;
+		}
+		return false;
+	}
+
+	private Exchange send(final URL url, final Request.Method method, //
+			final Map<String, List<String>> hdrs, final Content body, //
+			final long ifModifiedSince) throws IOException {
+		if ((cli.transport == HttpClient.Transport.H2C) && !HttpConnection.isSecure(url)) {
+			return sendH2(url, method, hdrs, body, ifModifiedSince);
+		}
+		while (true) {
+			final HttpConnection conn = pool.lease(url);
+			try {
+				Hedge.bind(conn);
+				return conn.exchange(url, method, hdrs, body, ifModifiedSince);
+			} catch (EOFException | SocketException e) {
+				conn.abort();
+				if (!conn.isReused() || (conn.isWritten() && !method.idempotent)) {
+					throw e;
+				}
+				// Stale persistent connection closed by peer, retry with other (a written request only if
+				// idempotent, the server may have processed it)
+			} catch (IOException | RuntimeException e) {
+				conn.abort();
+				throw e;
+			}
+		}
+	}
+
+	private Exchange sendH2(final URL url, final Request.Method method, //
+			final Map<String, List<String>> hdrs, final Content body, //
+			final long ifModifiedSince) throws IOException {
+		int attempts = 0;
+		while (true) {
+			final Http2Connection conn = leaseH2(url);
+			try {
+				return conn.exchange(url, method, hdrs, body, ifModifiedSince);
+			} catch (Http2Connection.RetryException e) {
+				if (++attempts >= MAX_H2_ATTEMPTS) {
+					throw e;
+				}
+				// Not processed by server, retry with other connection
+			}
+		}
+	}
+
+	/**
+	 * Get the HTTP/2 connection to destination, opening a new one if there is none usable (concurrent
+	 * callers wait for the same connection)
+	 *
+	 * @param url destination
+	 * @return connection
+	 * @throws IOException if error
+	 */
+	private Http2Connection leaseH2(final URL url) throws IOException {
+		final String route = HttpConnection.route(url);
+		CompletableFuture<Http2Connection> f;
+		boolean opener = false;
+		synchronized (h2) {
+			if (closed) {
+				throw new IOException("Connection pool closed");
+			}
+			f = h2.get(route);
+			if ((f != null) && f.isDone() && !f.isCompletedExceptionally() && !usable(f.join())) {
+				f = null;
+			}
+			if (f == null) {
+				f = new CompletableFuture<>();
+				h2.put(route, f);
+				opener = true;
+			}
+		}
+		if (opener) {
+			try {
+				f.complete(Http2Connection.open(this, url));
+			} catch (IOException | RuntimeException e) {
+				synchronized (h2) {
+					h2.remove(route, f);
+				}
+				f.completeExceptionally(e);
+				throw e;
+			}
+		}
+		try {
+			return f.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private boolean usable(final Http2Connection conn) {
+		if (conn.isUsable() && !conn.isExpired(System.currentTimeMillis())) {
+			return true;
+		}
+		conn.drain();
+		return false;
+	}
+
+	/**
+	 * Send requests pipelined on persistent connections (without waiting for responses, up to depth per
+	 * connection) and read responses in order. When the server closes the connection, unanswered requests
+	 * are sent again on a new connection
+	 *
+	 * @param reqs to send (same route, idempotent, without body)
+	 * @param depth max requests sent before reading responses
+	 * @return responses, null for requests not answered (the server doesn't support pipelining) or
+	 *         redirects to follow
+	 */
+	Response[] pipeline(final List<Request> reqs, final int depth) {
+		final Response[] res = new Response[reqs.size()];
+		int next = 0;
+		while (next < reqs.size()) {
+			final List<Request> batch = reqs.subList(next, Math.min(reqs.size(), next + depth));
+			final HttpConnection conn;
+			try {
+				conn = pool.lease(batch.get(0).url);
+			} catch (IOException e) {
+				return res;
+			}
+			final int start = next;
+			try {
+				conn.pipeline(batch);
+				for (final Request req : batch) {
+					res[next] = read(req, conn.readResponse(req.method));
+					next++;
+					if (!conn.keepAlive) {
+						break;
+					}
+				}
+				if (next < (start + batch.size())) {
+					// Closed by server, rest of batch is sent again
+					conn.abort();
+				}
+			} catch (IOException | RuntimeException e) {
+				conn.abort();
+				if ((next == start) && !conn.isReused()) {
+					// No response in a new connection
+					return res;
+				}
+				// Stale persistent connection or closed by peer in the middle of batch
+			}
+		}
+		return res;
+	}
+
+	private Response read(final Request req, final Exchange x) throws IOException {
+		try (final InputStream is = x.getBody()) {
+			if (cli.followRedirects && isRedirect(x.status)) {
+				HttpClient.drop(is);
+				return null;
+			}
+			if (x.code == Response.Code.NOT_MODIFIED) {
+				HttpClient.drop(is);
+				return new Response(x.code, x.hdrs, null, null);
+			}
+			return new Response(x.code, x.hdrs, //
+					HttpClient.getContent(is, cli.newContentSink(null, req.method, x.hdrs)), null);
+		}
+	}
+
+	/**
+	 * Return connection to pool (or close it if not reusable)
+	 *
+	 * @param conn to release
+	 */
+	void release(final HttpConnection conn) {
+		Hedge.unbind(conn);
+		pool.release(conn);
+	}
+
+	/**
+	 * Get statistics of connection pool
+	 *
+	 * @return snapshot of stats
+	 */
+	PoolStats getPoolStats() {
+		return pool.getStats();
+	}
+
+	/**
+	 * Close idle connections expired
+	 */
+	void evictExpired() {
+		pool.evictExpired();
+		drainH2(false);
+	}
+
+	/**
+	 * Remove HTTP/2 connections from use, they are closed when their streams finish
+	 *
+	 * @param all connections or only expired and not usable
+	 */
+	private void drainH2(final boolean all) {
+		final long now = System.currentTimeMillis();
+		final List<Http2Connection> removed = new ArrayList<>();
+		synchronized (h2) {
+			closed |= all;
+			final Iterator<CompletableFuture<Http2Connection>> it = h2.values().iterator();
+			while (it.hasNext()) {
+				final CompletableFuture<Http2Connection> f = it.next();
+				if (!f.isDone() || f.isCompletedExceptionally()) {
+					continue;
+				}
+				final Http2Connection conn = f.join();
+				if (all || !conn.isUsable() || conn.isExpired(now)) {
+					it.remove();
+					removed.add(conn);
+				}
+			}
+		}
+		removed.forEach(Http2Connection::drain);
+	}
+
+	/**
+	 * Close all idle connections (HTTP/2 connections when their streams finish)
+	 */
+	@Override
+	public void close() {
+		pool.close();
+		drainH2(true);
+	}
+}
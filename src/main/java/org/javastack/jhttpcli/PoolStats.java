@@ -0,0 +1,49 @@
+package org.javastack.jhttpcli;
+
+/**
+ * Snapshot of connection pool statistics
+ *
+ * @see HttpClient#getPoolStats()
+ */
+public class PoolStats {
+	/**
+	 * Connections in use
+	 */
+	public final int leased;
+	/**
+	 * Connections kept open waiting for reuse
+	 */
+	public final int idle;
+	/**
+	 * Requests waiting for a connection
+	 */
+	public final int pending;
+	/**
+	 * Max connections (total)
+	 */
+	public final int max;
+	/**
+	 * Connections opened since creation of pool
+	 */
+	public final long created;
+	/**
+	 * Connections closed by idle timeout, time to live or failed validation
+	 */
+	public final long evicted;
+
+	PoolStats(final int leased, final int idle, final int pending, final int max, //
+			final long created, final long evicted) {
+		this.leased = leased;
+		this.idle = idle;
+		this.pending = pending;
+		this.max = max;
+		this.created = created;
+		this.evicted = evicted;
+	}
+
+	@Override
+	public String toString() {
+		return "PoolStats[leased=" + leased + ", idle=" + idle + ", pending=" + pending + ", max=" + max //
+				+ ", created=" + created + ", evicted=" + evicted + "]";
+	}
+}
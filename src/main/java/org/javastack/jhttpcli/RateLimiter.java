@@ -0,0 +1,301 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client-side token bucket limits of requests per second, global and per host (scheme://host:port), to
+ * stay under quotas of servers instead of receiving 429. Each attempt of a request (retries included) takes
+ * a token, pipelined requests before they are queued. Buckets are lock-free (a CAS of the time the bucket
+ * is empty, GCRA). Settings are read when a bucket is created, configure before use
+ *
+ * @see HttpClient#setRateLimiter(RateLimiter)
+ */
+public class RateLimiter {
+	private static final int MAX_HOSTS = 4096;
+
+	private volatile Mode mode = Mode.WAIT;
+	private volatile long maxWaitNanos = TimeUnit.SECONDS.toNanos(30);
+	private volatile Bucket global = null;
+	private volatile Limit perHost = null;
+	private final ConcurrentHashMap<String, Limit> hostLimits = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Bucket> hosts = new ConcurrentHashMap<>();
+
+	/**
+	 * Set limit of all requests of client (default: unlimited)
+	 *
+	 * @param perSecond requests per second (0 = unlimited)
+	 * @param burst requests allowed at once
+	 * @return this
+	 */
+	public RateLimiter setGlobal(final double perSecond, final int burst) {
+		final Limit limit = Limit.of(perSecond, burst);
+		this.global = ((limit != null) ? new Bucket(limit, System.nanoTime()) : null);
+		return this;
+	}
+
+	/**
+	 * Set limit of requests to each host (default: unlimited)
+	 *
+	 * @param perSecond requests per second (0 = unlimited)
+	 * @param burst requests allowed at once
+	 * @return this
+	 */
+	public RateLimiter setPerHost(final double perSecond, final int burst) {
+		this.perHost = Limit.of(perSecond, burst);
+		hosts.clear();
+		return this;
+	}
+
+	/**
+	 * Set limit of requests to a host, instead of {@link #setPerHost(double, int)}
+	 *
+	 * @param host name
+	 * @param perSecond requests per second (0 = unlimited)
+	 * @param burst requests allowed at once
+	 * @return this
+	 */
+	public RateLimiter setHostLimit(final String host, final double perSecond, final int burst) {
+		final String key = host.toLowerCase(Locale.ROOT);
+		final Limit limit = Limit.of(perSecond, burst);
+		hostLimits.put(key, ((limit != null) ? limit : Limit.UNLIMITED));
+		hosts.clear();
+		return this;
+	}
+
+	/**
+	 * Set behavior of a request over limit (default: WAIT)
+	 *
+	 * @param mode wait or fail
+	 * @return this
+	 * @see Mode
+	 */
+	public RateLimiter setMode(final Mode mode) {
+		this.mode = mode;
+		return this;
+	}
+
+	/**
+	 * Set max wait for a token in WAIT mode, requests that would wait longer fail (default: 30s)
+	 *
+	 * @param millis max wait
+	 * @return this
+	 */
+	public RateLimiter setMaxWaitMs(final long millis) {
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+		return this;
+	}
+
+	/**
+	 * Reserve a token of host and global buckets
+	 *
+	 * @param url destination
+	 * @return nanos to wait before send or -1 if rejected
+	 */
+	long reserve(final URL url) {
+		final long now = System.nanoTime();
+		final long max = ((mode == Mode.FAIL_FAST) ? 0 : maxWaitNanos);
+		final Bucket host = host(url, now);
+		long wait = 0;
+		if (host != null) {
+			wait = host.reserve(now, max);
+			if (wait < 0) {
+				return -1;
+			}
+		}
+		final Bucket g = global;
+		if (g != null) {
+			final long w = g.reserve(now, max);
+			if (w < 0) {
+				if (host != null) {
+					host.cancel();
+				}
+				return -1;
+			}
+			wait = Math.max(wait, w);
+		}
+		return wait;
+	}
+
+	/**
+	 * Take a token, waiting in the current thread if needed
+	 *
+	 * @param url destination
+	 * @return null if allowed or failed response if rejected
+	 */
+	Response acquire(final URL url) {
+		final long wait = reserve(url);
+		if (wait < 0) {
+			return rejected(url);
+		}
+		if (wait > 0) {
+			try {
+				if (!Hedge.sleep(wait)) {
+					cancel(url);
+					return new Response(Response.Code.UNKNOWN, null, null, //
+							new InterruptedIOException("Hedged request cancelled"));
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new Response(Response.Code.UNKNOWN, null, null, //
+						new InterruptedIOException("Interrupted waiting rate limit"));
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return a token taken and not used (request not sent)
+	 *
+	 * @param url destination
+	 */
+	void cancel(final URL url) {
+		final Bucket host = hosts.get(HttpConnection.route(url));
+		if (host != null) {
+			host.cancel();
+		}
+		final Bucket g = global;
+		if (g != null) {
+			g.cancel();
+		}
+	}
+
+	/**
+	 * Response of a request rejected by limits
+	 *
+	 * @param url destination
+	 * @return failed response
+	 */
+	Response rejected(final URL url) {
+		return new Response(Response.Code.UNKNOWN, null, null, //
+				new LimitedException(HttpConnection.route(url)));
+	}
+
+	private Bucket host(final URL url, final long now) {
+		final String route = HttpConnection.route(url);
+		Bucket b = hosts.get(route);
+		if (b == null) {
+			Limit limit = hostLimits.get(url.getHost().toLowerCase(Locale.ROOT));
+			if (limit == null) {
+				limit = perHost;
+			}
+			if ((limit == null) || (limit == Limit.UNLIMITED)) {
+				return null;
+			}
+			if (hosts.size() >= MAX_HOSTS) {
+				// Full buckets are equal to new ones
+				hosts.values().removeIf(x -> x.isFull(now));
+			}
+			final Limit l = limit;
+			b = hosts.computeIfAbsent(route, k -> new Bucket(l, now));
+		}
+		return b;
+	}
+
+	/**
+	 * Behavior of a request over limit
+	 */
+	public static enum Mode {
+		/**
+		 * Wait a token up to max wait: blocking requests sleep, requests of EVENT_LOOP transport are queued
+		 * without hold a thread
+		 */
+		WAIT,
+		/**
+		 * Fail immediately with {@link LimitedException}
+		 */
+		FAIL_FAST
+	}
+
+	/**
+	 * Request rejected without being sent because rate limit is exceeded
+	 */
+	public static class LimitedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LimitedException(final String host) {
+			super("Rate limit exceeded: " + host);
+		}
+	}
+
+	private static final class Limit {
+		static final Limit UNLIMITED = new Limit(0, 0);
+
+		/**
+		 * Nanos between tokens
+		 */
+		final long interval;
+		/**
+		 * Nanos of burst
+		 */
+		final long tolerance;
+
+		private Limit(final long interval, final long tolerance) {
+			this.interval = interval;
+			this.tolerance = tolerance;
+		}
+
+		static Limit of(final double perSecond, final int burst) {
+			if (perSecond <= 0) {
+				return null;
+			}
+			final long interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+			return new Limit(interval, interval * Math.max(1, burst));
+		}
+	}
+
+	/**
+	 * Bucket as theoretical arrival time (nanoTime when the bucket has no tokens)
+	 */
+	private static final class Bucket {
+		private final Limit limit;
+		private final AtomicLong tat;
+
+		/**
+		 * Create full bucket
+		 *
+		 * @param limit rate and burst
+		 * @param now nanoTime (not later than first reserve, else the first token waits)
+		 */
+		Bucket(final Limit limit, final long now) {
+			this.limit = limit;
+			this.tat = new AtomicLong(now);
+		}
+
+		/**
+		 * Take a token
+		 *
+		 * @param now nanoTime
+		 * @param maxWait nanos
+		 * @return nanos to wait for the token or -1 if wait exceeds max (not taken)
+		 */
+		long reserve(final long now, final long maxWait) {
+			long t, next, wait;
+			do {
+				t = tat.get();
+				next = Math.max(t, now) + limit.interval;
+				wait = next - limit.tolerance - now;
+				if (wait > maxWait) {
+					return -1;
+				}
+			} while (!tat.compareAndSet(t, next));
+			return Math.max(0, wait);
+		}
+
+		/**
+		 * Return a token taken
+		 */
+		void cancel() {
+			tat.addAndGet(-limit.interval);
+		}
+
+		boolean isFull(final long now) {
+			return (tat.get() - now <= 0);
+		}
+	}
+}
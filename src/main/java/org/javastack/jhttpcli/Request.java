@@ -73,11 +73,7 @@ public class Request {
 		}
 		out.println("---BODY[" + body.type + "]");
 		try (final InputStream is = body.getInputStream()) {
-			final byte[] buf = new byte[4096];
-			int len;
-			while ((len = is.read(buf)) != -1) {
-				out.write(buf, 0, len);
-			}
+			IOUtil.transfer(is, out);
 		}
 		out.println();
 		out.println("---END");
@@ -87,11 +83,11 @@ public class Request {
 	 * Request Method
 	 */
 	public static enum Method {
-		DELETE(false, true), //
-		HEAD(false, false), //
-		GET(false, true), //
-		POST(true, true), //
-		PUT(true, true), //
+		DELETE(false, true, true), //
+		HEAD(false, false, true), //
+		GET(false, true, true), //
+		POST(true, true, false), //
+		PUT(true, true, true), //
 		;
 
 		/**
@@ -102,11 +98,17 @@ public class Request {
 		 * Can have response body?
 		 */
 		final boolean resBody;
+		/**
+		 * Is idempotent? (can be sent again or pipelined)
+		 */
+		final boolean idempotent;
 
 		Method(final boolean reqBody, //
-				final boolean resBody) {
+				final boolean resBody, //
+				final boolean idempotent) {
 			this.reqBody = reqBody;
 			this.resBody = resBody;
+			this.idempotent = idempotent;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package org.javastack.jhttpcli;
+
+/**
+ * Snapshot of request statistics of a host or all hosts
+ *
+ * @see Metrics#getStats()
+ */
+public class RequestStats {
+	/**
+	 * Requests sent (each attempt)
+	 */
+	public final long requests;
+	/**
+	 * Requests without response (connection, timeout or protocol errors)
+	 */
+	public final long errors;
+	/**
+	 * Responses 1xx (101 Switching Protocols)
+	 */
+	public final long status1xx;
+	/**
+	 * Responses 2xx
+	 */
+	public final long status2xx;
+	/**
+	 * Responses 3xx
+	 */
+	public final long status3xx;
+	/**
+	 * Responses 4xx
+	 */
+	public final long status4xx;
+	/**
+	 * Responses 5xx
+	 */
+	public final long status5xx;
+	/**
+	 * Bytes of request bodies
+	 */
+	public final long bytesSent;
+	/**
+	 * Bytes of response bodies
+	 */
+	public final long bytesReceived;
+	/**
+	 * Total latency (micros)
+	 */
+	public final long totalMicros;
+	/**
+	 * Max latency (micros)
+	 */
+	public final long maxMicros;
+	private final long[] buckets;
+
+	RequestStats(final long errors, final long[] status, final long bytesSent, final long bytesReceived, //
+			final long totalMicros, final long maxMicros, final long[] buckets) {
+		long requests = 0;
+		for (final long count : buckets) {
+			requests += count;
+		}
+		this.requests = requests;
+		this.errors = errors;
+		this.status1xx = status[0];
+		this.status2xx = status[1];
+		this.status3xx = status[2];
+		this.status4xx = status[3];
+		this.status5xx = status[4];
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.totalMicros = totalMicros;
+		this.maxMicros = maxMicros;
+		this.buckets = buckets;
+	}
+
+	/**
+	 * Get latency at a percentile (relative error under 12.5%)
+	 *
+	 * @param percentile 0-1, like 0.99
+	 * @return micros (zero without requests)
+	 */
+	public long getPercentileMicros(final double percentile) {
+		return Math.min(maxMicros, Histogram.percentile(buckets, requests, percentile));
+	}
+
+	/**
+	 * Get mean latency
+	 *
+	 * @return micros (zero without requests)
+	 */
+	public long getMeanMicros() {
+		return ((requests > 0) ? (totalMicros / requests) : 0);
+	}
+
+	/**
+	 * Sum of two snapshots
+	 *
+	 * @param o other stats
+	 * @return merged stats
+	 */
+	RequestStats plus(final RequestStats o) {
+		final long[] merged = new long[buckets.length];
+		for (int i = 0; i < merged.length; i++) {
+			merged[i] = buckets[i] + o.buckets[i];
+		}
+		return new RequestStats(errors + o.errors, new long[] {
+				status1xx + o.status1xx, status2xx + o.status2xx, status3xx + o.status3xx, //
+				status4xx + o.status4xx, status5xx + o.status5xx
+		}, bytesSent + o.bytesSent, bytesReceived + o.bytesReceived, //
+				totalMicros + o.totalMicros, Math.max(maxMicros, o.maxMicros), merged);
+	}
+
+	@Override
+	public String toString() {
+		return "RequestStats[requests=" + requests + ", errors=" + errors + ", status1xx=" + status1xx //
+				+ ", status2xx=" + status2xx + ", status3xx=" + status3xx + ", status4xx=" + status4xx //
+				+ ", status5xx=" + status5xx + ", bytesSent=" + bytesSent //
+				+ ", bytesReceived=" + bytesReceived + ", meanMicros=" + getMeanMicros() //
+				+ ", p50Micros=" + getPercentileMicros(0.5) //
+				+ ", p99Micros=" + getPercentileMicros(0.99) + ", maxMicros=" + maxMicros + "]";
+	}
+}
@@ -0,0 +1,26 @@
+package org.javastack.jhttpcli;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolver of host names, results are cached by the client
+ *
+ * @see HttpClient#setResolver(Resolver)
+ */
+@FunctionalInterface
+public interface Resolver {
+	/**
+	 * Resolver of operating system (JDK {@link InetAddress#getAllByName(String)})
+	 */
+	public static final Resolver SYSTEM = InetAddress::getAllByName;
+
+	/**
+	 * Resolve all addresses of host
+	 *
+	 * @param host name or literal address
+	 * @return addresses (at least one)
+	 * @throws UnknownHostException if host is not resolved
+	 */
+	InetAddress[] resolve(String host) throws UnknownHostException;
+}
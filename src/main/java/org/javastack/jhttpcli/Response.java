@@ -74,11 +74,7 @@ public class Response {
 		}
 		out.println("---BODY[" + body.type + "]");
 		try (final InputStream is = body.getInputStream()) {
-			final byte[] buf = new byte[4096];
-			int len;
-			while ((len = is.read(buf)) != -1) {
-				out.write(buf, 0, len);
-			}
+			IOUtil.transfer(is, out);
 		}
 		out.println();
 		out.println("---END");
@@ -237,6 +233,16 @@ public class Response {
 		 */
 		UNSUPPORTED_TYPE(415), //
 
+		/**
+		 * HTTP Status-Code 416: Range Not Satisfiable.
+		 */
+		RANGE_NOT_SATISFIABLE(416), //
+
+		/**
+		 * HTTP Status-Code 429: Too Many Requests.
+		 */
+		TOO_MANY_REQUESTS(429), //
+
 		/* 5XX: server error */
 
 		/**
@@ -346,6 +352,10 @@ public class Response {
 					return REQ_TOO_LONG;
 				case 415:
 					return UNSUPPORTED_TYPE;
+				case 416:
+					return RANGE_NOT_SATISFIABLE;
+				case 429:
+					return TOO_MANY_REQUESTS;
 				case 500:
 					return INTERNAL_ERROR;
 				case 501:
@@ -0,0 +1,27 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handler of response body in streaming, without buffering in memory or file
+ *
+ * @param <T> type of result
+ * @see HttpClient#executeStream(Request, ResponseHandler)
+ */
+@FunctionalInterface
+public interface ResponseHandler<T> {
+	/**
+	 * Handle response while body arrives
+	 * 
+	 * @param code http
+	 * @param hdrs headers
+	 * @param body live stream of body (use {@link java.nio.channels.Channels#newChannel(InputStream)} for
+	 *            a channel), connection is released when handler returns
+	 * @return result
+	 * @throws IOException if error
+	 */
+	T handle(Response.Code code, Map<String, List<String>> hdrs, InputStream body) throws IOException;
+}
@@ -0,0 +1,59 @@
+package org.javastack.jhttpcli;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket limiting retries to a fraction of requests: each request deposits a fraction of a token
+ * and each retry withdraws a whole token, so a failing host can not multiply the load (lock-free)
+ */
+final class RetryBudget {
+	/**
+	 * Balance is kept in thousandths of token
+	 */
+	private static final long UNIT = 1000;
+
+	private final long deposit;
+	private final long max;
+	private final AtomicLong balance;
+
+	/**
+	 * Create budget (full)
+	 *
+	 * @param ratio of retries per request
+	 * @param burst retries allowed without previous requests
+	 */
+	RetryBudget(final double ratio, final int burst) {
+		this.deposit = Math.max(0, Math.round(ratio * UNIT));
+		this.max = Math.max(1, burst) * UNIT;
+		this.balance = new AtomicLong(Math.max(0, burst) * UNIT);
+	}
+
+	/**
+	 * Request sent, add its fraction of token
+	 */
+	void deposit() {
+		long b;
+		do {
+			b = balance.get();
+			if (b >= max) {
+				return;
+			}
+		} while (!balance.compareAndSet(b, Math.min(max, b + deposit)));
+	}
+
+	/**
+	 * Take a token for a retry
+	 *
+	 * @return true if retry is allowed
+	 */
+	boolean withdraw() {
+		long b;
+		do {
+			b = balance.get();
+			if (b < UNIT) {
+				return false;
+			}
+		} while (!balance.compareAndSet(b, b - UNIT));
+		return true;
+	}
+}
@@ -0,0 +1,190 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Retry of failed requests with exponential backoff and full jitter. Only idempotent methods are retried by
+ * default (non-idempotent only if connection was refused, the request was not sent). Retry-After of 429
+ * and 503 is honored. Retries are limited by a budget, a fraction of requests, shared by all requests of
+ * the policy. Streams of {@link HttpClient#executeStream(Request, ResponseHandler)} are not retried
+ *
+ * @see HttpClient#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+	/**
+	 * Max shift of exponential backoff (avoid overflow)
+	 */
+	private static final int MAX_SHIFT = 30;
+
+	private volatile int maxAttempts = 3;
+	private volatile long baseDelayMillis = 100;
+	private volatile long maxDelayMillis = 10_000;
+	private volatile boolean retryNonIdempotent = false;
+	private volatile Set<Response.Code> retryOn = Collections.unmodifiableSet(EnumSet.of( //
+			Response.Code.TOO_MANY_REQUESTS, Response.Code.BAD_GATEWAY, //
+			Response.Code.UNAVAILABLE, Response.Code.GATEWAY_TIMEOUT));
+	private volatile RetryBudget budget = new RetryBudget(0.1, 10);
+
+	/**
+	 * Set max attempts of a request, including the first (default: 3)
+	 *
+	 * @param attempts max
+	 * @return this
+	 */
+	public RetryPolicy setMaxAttempts(final int attempts) {
+		this.maxAttempts = Math.max(1, attempts);
+		return this;
+	}
+
+	/**
+	 * Set backoff between attempts: a random delay up to base * 2^(attempt - 1), limited to max. A
+	 * Retry-After greater than max is not waited, the response is returned (default: 100ms, 10s)
+	 *
+	 * @param baseMillis delay of first retry
+	 * @param maxMillis max delay
+	 * @return this
+	 */
+	public RetryPolicy setBackoffMs(final long baseMillis, final long maxMillis) {
+		this.baseDelayMillis = Math.max(0, baseMillis);
+		this.maxDelayMillis = Math.max(this.baseDelayMillis, maxMillis);
+		return this;
+	}
+
+	/**
+	 * Set status codes retried (default: 429, 502, 503, 504). Errors of connection are always retried,
+	 * except unknown host and TLS errors
+	 *
+	 * @param codes to retry
+	 * @return this
+	 */
+	public RetryPolicy setRetryOn(final Response.Code... codes) {
+		final Set<Response.Code> set = EnumSet.noneOf(Response.Code.class);
+		Collections.addAll(set, codes);
+		this.retryOn = Collections.unmodifiableSet(set);
+		return this;
+	}
+
+	/**
+	 * Set retry of non-idempotent methods, like POST (default: false)
+	 *
+	 * @param b true to retry
+	 * @return this
+	 */
+	public RetryPolicy setRetryNonIdempotent(final boolean b) {
+		this.retryNonIdempotent = b;
+		return this;
+	}
+
+	/**
+	 * Set retry budget: each request allows ratio retries, with a reserve of burst retries
+	 * (default: 0.1, 10)
+	 *
+	 * @param ratio of retries per request (0.1 = 10%)
+	 * @param burst retries allowed over ratio
+	 * @return this
+	 */
+	public RetryPolicy setBudget(final double ratio, final int burst) {
+		this.budget = new RetryBudget(ratio, burst);
+		return this;
+	}
+
+	/**
+	 * Request started (adds to budget)
+	 */
+	void request() {
+		budget.deposit();
+	}
+
+	/**
+	 * Decide retry of a response
+	 *
+	 * @param req sent
+	 * @param res response
+	 * @param attempt number of attempts done
+	 * @return millis to wait before retry or -1 if not retried
+	 */
+	long delay(final Request req, final Response res, final int attempt) {
+		if (attempt >= maxAttempts) {
+			return -1;
+		}
+		long retryAfter = -1;
+		if (isTransportError(res)) {
+			if (!isRetryable(res.exception)) {
+				return -1;
+			}
+			// Refused connection: request was not sent
+			if (!req.method.idempotent && !retryNonIdempotent //
+					&& !(res.exception instanceof ConnectException)) {
+				return -1;
+			}
+		} else {
+			if (!retryOn.contains(res.code)) {
+				return -1;
+			}
+			if (!req.method.idempotent && !retryNonIdempotent) {
+				return -1;
+			}
+			if ((res.code == Response.Code.TOO_MANY_REQUESTS) || (res.code == Response.Code.UNAVAILABLE)) {
+				retryAfter = retryAfter(Headers.getValue(res.hdrs, "Retry-After"));
+			}
+		}
+		if (retryAfter > maxDelayMillis) {
+			return -1;
+		}
+		if (!budget.withdraw()) {
+			return -1;
+		}
+		if (retryAfter >= 0) {
+			return retryAfter;
+		}
+		final long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, MAX_SHIFT));
+		return ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	/**
+	 * Error without response or reading a successful response (URLCONNECTION returns error status
+	 * with exception)
+	 */
+	static boolean isTransportError(final Response res) {
+		return (res.exception != null) //
+				&& (res.hdrs.isEmpty() || ((res.code.code >= 200) && (res.code.code < 400)));
+	}
+
+	private static boolean isRetryable(final Exception e) {
+		return (e instanceof IOException) //
+				&& !(e instanceof UnknownHostException) //
+				&& !(e instanceof CircuitBreaker.OpenException) //
+				&& !(e instanceof RateLimiter.LimitedException) //
+				&& !(e instanceof SSLException);
+	}
+
+	/**
+	 * Parse Retry-After header
+	 *
+	 * @param value delay-seconds or HTTP-date
+	 * @return millis or -1 if invalid
+	 */
+	static long retryAfter(final String value) {
+		if (value == null) {
+			return -1;
+		}
+		final String v = value.trim();
+		if (!v.isEmpty() && v.chars().allMatch(Character::isDigit)) {
+			try {
+				return Math.multiplyExact(Long.parseLong(v), 1000L);
+			} catch (ArithmeticException | NumberFormatException e) {
+				return Long.MAX_VALUE;
+			}
+		}
+		final long date = HttpCache.parseDate(v);
+		return ((date > 0) ? Math.max(0, date - System.currentTimeMillis()) : -1);
+	}
+}
@@ -0,0 +1,540 @@
+package org.javastack.jhttpcli;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Download of a file in segments fetched concurrently with Range requests. Each segment is written at its
+ * offset in a preallocated part file and retried on its own, progress is kept in a sidecar of the part
+ * file to resume interrupted downloads. The part file is locked while in use, a concurrent download of
+ * the same target (in this or other process) fails. Servers without ranges get a single stream
+ */
+final class SegmentedDownload {
+	private static final int MAX_ATTEMPTS = 3;
+	private static final String PART_SUFFIX = ".part";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String VALIDATOR = "validator";
+	private static final String LENGTH = "length";
+	private static final String SEGMENTS = "segments";
+	/**
+	 * Result of probe when resumed part is not valid
+	 */
+	private static final Response RESTART = new Response(Response.Code.UNKNOWN);
+
+	private final HttpClient cli;
+	private final Request req;
+	private final Download d;
+	private final int segments;
+	private final long segmentSize;
+	private final File part;
+	private final File progress;
+	private final File lockFile;
+	private FileChannel lock = null;
+	private Segment[] layout = null;
+	/**
+	 * Strong ETag or Last-Modified (If-Range)
+	 */
+	private String validator = null;
+	private long length = -1;
+	private Map<String, List<String>> hdrs = null;
+	private RandomAccessFile raf = null;
+	private volatile boolean changed = false;
+
+	SegmentedDownload(final HttpClient cli, final Request req, final File target, final int segments, //
+			final long segmentSize) {
+		final File dir = target.getAbsoluteFile().getParentFile();
+		this.cli = cli;
+		this.req = req;
+		this.d = new Download(req, target);
+		this.segments = segments;
+		this.segmentSize = segmentSize;
+		this.part = new File(dir, "." + target.getName() + PART_SUFFIX);
+		this.progress = new File(dir, "." + target.getName() + PART_SUFFIX + Download.META_SUFFIX);
+		this.lockFile = new File(dir, "." + target.getName() + PART_SUFFIX + LOCK_SUFFIX);
+	}
+
+	/**
+	 * Start download
+	 *
+	 * @return future response (without hooks)
+	 */
+	CompletableFuture<Response> execute() {
+		final Executor executor = cli.getExecutor();
+		return CompletableFuture.supplyAsync(this::probe, executor).thenCompose(res -> {
+			if (res != null) {
+				return CompletableFuture.completedFuture(res);
+			}
+			final CompletableFuture<?>[] all = new CompletableFuture<?>[layout.length];
+			for (int i = 0; i < layout.length; i++) {
+				all[i] = fetch(layout[i], 1, executor);
+			}
+			return CompletableFuture.allOf(all).handle((v, t) -> finish(t));
+		}).whenComplete((res, t) -> unlock());
+	}
+
+	/**
+	 * First request: checks the target (304), learns length and support of ranges and fetches the first
+	 * segment
+	 *
+	 * @return response if finished or null to fetch segments
+	 */
+	private Response probe() {
+		try {
+			lock();
+		} catch (IOException e) {
+			// Part file of other download is untouched
+			return new Response(Response.Code.UNKNOWN, null, null, e);
+		}
+		try {
+			loadProgress();
+			Response res = probe(first());
+			if (res == RESTART) {
+				clear();
+				res = probe(first());
+			}
+			if (res != null) {
+				close();
+			}
+			return res;
+		} catch (IOException | RuntimeException e) {
+			return fail(e);
+		}
+	}
+
+	private Response probe(final Segment seg) throws IOException {
+		final Map<String, List<String>> h = new LinkedHashMap<>(d.request.hdrs);
+		h.put("Range", Collections.singletonList("bytes=" + seg.position() + "-" + (seg.end - 1)));
+		if (validator != null) {
+			h.put("If-Range", Collections.singletonList(validator));
+		}
+		h.put("Accept-Encoding", Collections.singletonList("identity"));
+		final Request probe = new Request(req.url, req.method, h, req.body);
+		final Response res = cli.stream(probe, (code, rh, is) -> {
+			hdrs = rh;
+			switch (code) {
+				case NOT_MODIFIED:
+					clear();
+					return new Response(code, rh, null, null);
+				case PARTIAL:
+					return partial(seg, rh, is);
+				case OK:
+					return full(rh, is);
+				case RANGE_NOT_SATISFIABLE:
+					// Empty file
+					HttpClient.drop(is);
+					return null;
+				default:
+					return new Response(code, rh, HttpClient.getContent(is, (File) null), null);
+			}
+		}, false);
+		if ((res == null) && (layout == null)) {
+			// Unknown length
+			clear();
+			return d.update(cli.send(d.request, d.temp));
+		}
+		return res;
+	}
+
+	private Response partial(final Segment seg, final Map<String, List<String>> rh, final InputStream is)
+			throws IOException {
+		final long[] range = contentRange(rh);
+		if ((range == null) || (range[2] < 0)) {
+			return null;
+		}
+		if (range[0] != seg.position()) {
+			throw new IOException("Invalid Content-Range: " + Headers.getValue(rh, "Content-Range"));
+		}
+		if (layout == null) {
+			length = range[2];
+			validator = validator(rh);
+			seg.end = Math.min(seg.end, length);
+			layout = split(seg);
+			raf = new RandomAccessFile(part, "rw");
+			raf.setLength(length);
+		} else {
+			if ((range[2] != length) || (part.length() != length)) {
+				return RESTART;
+			}
+			raf = new RandomAccessFile(part, "rw");
+		}
+		try {
+			copy(seg, is);
+			saveProgress();
+		} catch (IOException e) {
+			// Segment is retried
+		}
+		return null;
+	}
+
+	private Response full(final Map<String, List<String>> rh, final InputStream is) throws IOException {
+		layout = null;
+		progress.delete();
+		try (final OutputStream os = new FileOutputStream(part)) {
+			IOUtil.transfer(is, os);
+		}
+		final long len = HttpClient.contentLength(rh);
+		if ((len >= 0) && (part.length() != len)) {
+			part.delete();
+			throw new EOFException("Unexpected end of stream");
+		}
+		return new Response(Response.Code.OK, rh, d.commit(part, rh, cli.mapFileContent), null);
+	}
+
+	/**
+	 * First segment to fetch
+	 *
+	 * @return incomplete segment, the first bytes of file if new download
+	 */
+	private Segment first() {
+		if (layout != null) {
+			for (final Segment seg : layout) {
+				if (!seg.isComplete()) {
+					return seg;
+				}
+			}
+			// Complete, only verify
+			return new Segment(0, 1);
+		}
+		return new Segment(0, segmentSize);
+	}
+
+	private Segment[] split(final Segment first) {
+		final long rest = length - first.end;
+		final int n = (int) Math.min(segments - 1, ((rest + segmentSize - 1) / segmentSize));
+		final Segment[] s = new Segment[1 + n];
+		s[0] = first;
+		long start = first.end;
+		for (int i = 1; i <= n; i++) {
+			final long end = first.end + ((rest * i) / n);
+			s[i] = new Segment(start, end);
+			start = end;
+		}
+		return s;
+	}
+
+	private CompletableFuture<Void> fetch(final Segment seg, final int attempt, final Executor executor) {
+		return CompletableFuture.runAsync(() -> transfer(seg), executor).handle((v, t) -> {
+			if ((t == null) || seg.isComplete()) {
+				return CompletableFuture.<Void> completedFuture(null);
+			}
+			if (changed || (attempt >= MAX_ATTEMPTS)) {
+				final CompletableFuture<Void> f = new CompletableFuture<>();
+				f.completeExceptionally(t);
+				return f;
+			}
+			return fetch(seg, attempt + 1, executor);
+		}).thenCompose(f -> f);
+	}
+
+	private void transfer(final Segment seg) {
+		if (seg.isComplete()) {
+			return;
+		}
+		final Map<String, List<String>> h = new LinkedHashMap<>(req.hdrs);
+		h.put("Range", Collections.singletonList("bytes=" + seg.position() + "-" + (seg.end - 1)));
+		if (validator != null) {
+			h.put("If-Range", Collections.singletonList(validator));
+		}
+		h.put("Accept-Encoding", Collections.singletonList("identity"));
+		try {
+			cli.stream(new Request(req.url, req.method, h, req.body), (code, rh, is) -> {
+				if (code != Response.Code.PARTIAL) {
+					if (code == Response.Code.OK) {
+						// If-Range failed
+						changed = true;
+						throw new IOException("Content changed during download");
+					}
+					throw new IOException("Unexpected response: " + code);
+				}
+				final long[] range = contentRange(rh);
+				if ((range == null) || (range[0] != seg.position()) || (range[2] != length)) {
+					if ((range != null) && (range[2] != length)) {
+						changed = true;
+					}
+					throw new IOException("Invalid Content-Range: " + Headers.getValue(rh, "Content-Range"));
+				}
+				copy(seg, is);
+				return null;
+			}, false);
+			saveProgress();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void copy(final Segment seg, final InputStream is) throws IOException {
+		final FileChannel ch = raf.getChannel();
+		final byte[] buf = BufferPool.DEFAULT.acquire();
+		try {
+			while (!seg.isComplete()) {
+				final int n = is.read(buf, 0, (int) Math.min(buf.length, seg.end - seg.position()));
+				if (n == -1) {
+					throw new EOFException("Unexpected end of stream");
+				}
+				final ByteBuffer bb = ByteBuffer.wrap(buf, 0, n);
+				long pos = seg.position();
+				while (bb.hasRemaining()) {
+					pos += ch.write(bb, pos);
+				}
+				seg.done += n;
+			}
+		} finally {
+			BufferPool.DEFAULT.release(buf);
+		}
+	}
+
+	/**
+	 * All segments finished
+	 *
+	 * @param t error or null
+	 * @return response
+	 */
+	private Response finish(final Throwable t) {
+		close();
+		if (t != null) {
+			Throwable e = t;
+			while (((e instanceof CompletionException) || (e instanceof UncheckedIOException)) //
+					&& (e.getCause() != null)) {
+				e = e.getCause();
+			}
+			return fail((e instanceof Exception) ? (Exception) e : new CompletionException(e));
+		}
+		try {
+			final Map<String, List<String>> h = new LinkedHashMap<>();
+			hdrs.forEach((k, v) -> {
+				if ((k != null) && !"Content-Range".equalsIgnoreCase(k) //
+						&& !"Content-Length".equalsIgnoreCase(k)) {
+					h.put(k, v);
+				}
+			});
+			h.put("Content-Length", Collections.singletonList(String.valueOf(length)));
+			final Content body = d.commit(part, h, cli.mapFileContent);
+			progress.delete();
+			return new Response(Response.Code.OK, h, body, null);
+		} catch (IOException e) {
+			return fail(e);
+		}
+	}
+
+	private Response fail(final Exception e) {
+		close();
+		if (changed || (validator == null)) {
+			clear();
+		} else {
+			saveProgress();
+		}
+		return new Response(Response.Code.UNKNOWN, null, null, e);
+	}
+
+	private void close() {
+		IOUtil.closeSilent(raf);
+		raf = null;
+	}
+
+	/**
+	 * Lock part file until download is finished
+	 *
+	 * @throws IOException if other download of the same target is in progress
+	 */
+	private void lock() throws IOException {
+		final Path path = lockFile.toPath();
+		while (true) {
+			final FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE, //
+					StandardOpenOption.WRITE);
+			FileLock l = null;
+			try {
+				l = ch.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// Locked in this process
+			}
+			if (l == null) {
+				ch.close();
+				throw new IOException("Download in progress: " + part);
+			}
+			// The previous owner removes the lock file before unlock, a removed file is not ours
+			final byte[] token = UUID.randomUUID().toString().getBytes(StandardCharsets.ISO_8859_1);
+			ch.truncate(0).write(ByteBuffer.wrap(token), 0);
+			try {
+				if (Arrays.equals(token, Files.readAllBytes(path))) {
+					lock = ch;
+					return;
+				}
+			} catch (NoSuchFileException e) {
+				// Removed, retry
+			}
+			ch.close();
+		}
+	}
+
+	private void unlock() {
+		if (lock != null) {
+			lockFile.delete();
+			IOUtil.closeSilent(lock);
+			lock = null;
+		}
+	}
+
+	/**
+	 * Remove part file and progress
+	 */
+	private void clear() {
+		close();
+		layout = null;
+		validator = null;
+		length = -1;
+		progress.delete();
+		part.delete();
+	}
+
+	private void loadProgress() {
+		if (!progress.isFile() || !part.isFile()) {
+			return;
+		}
+		final Properties p = new Properties();
+		try (final InputStream is = new FileInputStream(progress)) {
+			p.load(is);
+			final String v = p.getProperty(VALIDATOR);
+			final long len = Long.parseLong(p.getProperty(LENGTH));
+			final int n = Integer.parseInt(p.getProperty(SEGMENTS));
+			if ((v == null) || (len != part.length()) || (n <= 0)) {
+				return;
+			}
+			final Segment[] s = new Segment[n];
+			long start = 0;
+			for (int i = 0; i < n; i++) {
+				final String[] f = p.getProperty(String.valueOf(i)).split(",");
+				s[i] = new Segment(start, Long.parseLong(f[0]));
+				s[i].done = Long.parseLong(f[1]);
+				if ((s[i].end < start) || (s[i].done < 0) || (s[i].done > (s[i].end - start))) {
+					return;
+				}
+				start = s[i].end;
+			}
+			if (start != len) {
+				return;
+			}
+			validator = v;
+			length = len;
+			layout = s;
+		} catch (IOException | RuntimeException e) {
+			// Not resumable
+		}
+	}
+
+	private synchronized void saveProgress() {
+		final Segment[] s = layout;
+		if ((s == null) || (validator == null) || changed) {
+			return;
+		}
+		final Properties p = new Properties();
+		p.setProperty(VALIDATOR, validator);
+		p.setProperty(LENGTH, String.valueOf(length));
+		p.setProperty(SEGMENTS, String.valueOf(s.length));
+		for (int i = 0; i < s.length; i++) {
+			p.setProperty(String.valueOf(i), s[i].end + "," + s[i].done);
+		}
+		final File tmp = new File(progress.getPath() + ".tmp");
+		try {
+			try (final OutputStream os = new FileOutputStream(tmp)) {
+				p.store(os, null);
+			}
+			Download.move(tmp, progress);
+		} catch (IOException e) {
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Validator for If-Range (weak ETag is not allowed)
+	 *
+	 * @param h headers of response
+	 * @return validator or null
+	 */
+	private static String validator(final Map<String, List<String>> h) {
+		final String etag = Headers.getValue(h, "ETag");
+		if ((etag != null) && !etag.startsWith("W/")) {
+			return etag;
+		}
+		return Headers.getValue(h, "Last-Modified");
+	}
+
+	/**
+	 * Parse Content-Range
+	 *
+	 * @param h headers of response
+	 * @return first byte, last byte and total length (-1 if unknown) or null if invalid
+	 */
+	static long[] contentRange(final Map<String, List<String>> h) {
+		final String value = Headers.getValue(h, "Content-Range");
+		if ((value == null) || !value.trim().regionMatches(true, 0, "bytes ", 0, 6)) {
+			return null;
+		}
+		final String v = value.trim().substring(6).trim();
+		final int dash = v.indexOf('-');
+		final int slash = v.indexOf('/');
+		if ((dash <= 0) || (slash <= dash)) {
+			return null;
+		}
+		try {
+			final String total = v.substring(slash + 1).trim();
+			return new long[] {
+					Long.parseLong(v.substring(0, dash).trim()), //
+					Long.parseLong(v.substring(dash + 1, slash).trim()), //
+					("*".equals(total) ? -1 : Long.parseLong(total))
+			};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Byte range [start, end) of file
+	 */
+	private static final class Segment {
+		final long start;
+		long end;
+		/**
+		 * Bytes written from start
+		 */
+		volatile long done = 0;
+
+		Segment(final long start, final long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		long position() {
+			return start + done;
+		}
+
+		boolean isComplete() {
+			return position() >= end;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * TLS of a client: socket factory of a shared {@link SSLContext} (sessions are resumed across
+ * connections to the same host and port) and statistics of handshakes
+ */
+final class TlsContext {
+	private final HttpClient cli;
+	private SSLSocketFactory factory = null;
+	private final AtomicLong full = new AtomicLong();
+	private final AtomicLong resumed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong fullNanos = new AtomicLong();
+	private final AtomicLong resumedNanos = new AtomicLong();
+
+	TlsContext(final HttpClient cli) {
+		this.cli = cli;
+	}
+
+	/**
+	 * Get socket factory of configured context (created on first use)
+	 *
+	 * @return factory
+	 * @throws IOException if context can not be initialized
+	 */
+	synchronized SSLSocketFactory getSocketFactory() throws IOException {
+		if (factory != null) {
+			return factory;
+		}
+		SSLContext ctx = cli.sslContext;
+		if ((ctx == null) && isCustomized()) {
+			// Own context with default trust, to not change session cache of JVM default
+			try {
+				ctx = SSLContext.getInstance("TLS");
+				ctx.init(null, null, null);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Unable to initialize SSLContext", e);
+			}
+		}
+		if (ctx == null) {
+			factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+			return factory;
+		}
+		final SSLSessionContext sessions = ctx.getClientSessionContext();
+		if (sessions != null) {
+			if (cli.tlsSessionCacheSize >= 0) {
+				sessions.setSessionCacheSize(cli.tlsSessionCacheSize);
+			}
+			if (cli.tlsSessionTimeoutSecs >= 0) {
+				sessions.setSessionTimeout(cli.tlsSessionTimeoutSecs);
+			}
+		}
+		factory = ctx.getSocketFactory();
+		return factory;
+	}
+
+	/**
+	 * Is TLS configured in client (else JVM defaults are used)
+	 *
+	 * @return true if context or session cache are set
+	 */
+	boolean isCustomized() {
+		return (cli.sslContext != null) || (cli.tlsSessionCacheSize >= 0) || (cli.tlsSessionTimeoutSecs >= 0);
+	}
+
+	/**
+	 * Configuration changed, factory is created again on next use
+	 */
+	synchronized void reset() {
+		factory = null;
+	}
+
+	/**
+	 * Layer TLS over a connected socket and do the handshake
+	 *
+	 * @param s connected socket
+	 * @param host name (for SNI, hostname verification and session cache)
+	 * @param port remote
+	 * @return TLS socket
+	 * @throws IOException if error
+	 */
+	SSLSocket handshake(final Socket s, final String host, final int port) throws IOException {
+		final SSLSocket ssl = (SSLSocket) getSocketFactory().createSocket(s, host, port, true);
+		final SSLParameters params = ssl.getSSLParameters();
+		params.setEndpointIdentificationAlgorithm("HTTPS");
+		ssl.setSSLParameters(params);
+		final long start = System.currentTimeMillis();
+		final long begin = System.nanoTime();
+		try {
+			ssl.startHandshake();
+		} catch (IOException | RuntimeException e) {
+			failed.incrementAndGet();
+			throw e;
+		}
+		final long elapsed = System.nanoTime() - begin;
+		// A resumed session keeps creation time of the full handshake (TLS 1.2 and 1.3)
+		if (ssl.getSession().getCreationTime() < start) {
+			resumed.incrementAndGet();
+			resumedNanos.addAndGet(elapsed);
+		} else {
+			full.incrementAndGet();
+			fullNanos.addAndGet(elapsed);
+		}
+		return ssl;
+	}
+
+	/**
+	 * Get statistics
+	 *
+	 * @return snapshot of stats
+	 */
+	TlsStats getStats() {
+		return new TlsStats(full.get(), resumed.get(), failed.get(), fullNanos.get(), resumedNanos.get());
+	}
+}
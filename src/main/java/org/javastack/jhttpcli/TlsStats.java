@@ -0,0 +1,45 @@
+package org.javastack.jhttpcli;
+
+/**
+ * Snapshot of TLS handshake statistics
+ *
+ * @see HttpClient#getTlsStats()
+ */
+public class TlsStats {
+	/**
+	 * Handshakes that negotiated a new session
+	 */
+	public final long fullHandshakes;
+	/**
+	 * Handshakes that resumed a cached session
+	 */
+	public final long resumedHandshakes;
+	/**
+	 * Handshakes failed (certificate, protocol or I/O errors)
+	 */
+	public final long failedHandshakes;
+	/**
+	 * Total time (nanos) of full handshakes
+	 */
+	public final long fullHandshakeNanos;
+	/**
+	 * Total time (nanos) of resumed handshakes
+	 */
+	public final long resumedHandshakeNanos;
+
+	TlsStats(final long fullHandshakes, final long resumedHandshakes, final long failedHandshakes, //
+			final long fullHandshakeNanos, final long resumedHandshakeNanos) {
+		this.fullHandshakes = fullHandshakes;
+		this.resumedHandshakes = resumedHandshakes;
+		this.failedHandshakes = failedHandshakes;
+		this.fullHandshakeNanos = fullHandshakeNanos;
+		this.resumedHandshakeNanos = resumedHandshakeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "TlsStats[fullHandshakes=" + fullHandshakes + ", resumedHandshakes=" + resumedHandshakes //
+				+ ", failedHandshakes=" + failedHandshakes + ", fullHandshakeNanos=" + fullHandshakeNanos //
+				+ ", resumedHandshakeNanos=" + resumedHandshakeNanos + "]";
+	}
+}
@@ -0,0 +1,130 @@
+package org.javastack.jhttpcli;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * Events of a call for {@link EventListener}. Blocking calls bind the trace to their thread so transports
+ * find it without passing it through the pool, calls of event loop keep it in
+ * {@link EventLoop.Call#trace}. Without listener no trace is created and {@link #current(HttpClient)} only
+ * reads a field
+ */
+final class Trace {
+	private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<>();
+
+	private final EventListener listener;
+	private final Request req;
+	private Trace previous;
+
+	private Trace(final EventListener listener, final Request req) {
+		this.listener = listener;
+		this.req = req;
+	}
+
+	/**
+	 * Start a call
+	 *
+	 * @param cli client
+	 * @param req request
+	 * @return trace or null if there is no listener
+	 */
+	static Trace start(final HttpClient cli, final Request req) {
+		final EventListener listener = cli.eventListener;
+		if (listener == null) {
+			return null;
+		}
+		final Trace trace = new Trace(listener, req);
+		listener.callStart(req, System.nanoTime());
+		return trace;
+	}
+
+	/**
+	 * Start a call bound to current thread, must be ended with {@link #end(Response)}
+	 *
+	 * @param cli client
+	 * @param req request
+	 * @return trace or null if there is no listener
+	 */
+	static Trace begin(final HttpClient cli, final Request req) {
+		final Trace trace = start(cli, req);
+		if (trace != null) {
+			// Nested calls (hedged copies stolen by caller)
+			trace.previous = CURRENT.get();
+			CURRENT.set(trace);
+		}
+		return trace;
+	}
+
+	/**
+	 * Trace of call of current thread
+	 *
+	 * @param cli client
+	 * @return trace or null
+	 */
+	static Trace current(final HttpClient cli) {
+		return ((cli.eventListener != null) ? CURRENT.get() : null);
+	}
+
+	/**
+	 * End call, unbind from current thread
+	 *
+	 * @param res response
+	 */
+	void end(final Response res) {
+		if (CURRENT.get() == this) {
+			if (previous != null) {
+				CURRENT.set(previous);
+			} else {
+				CURRENT.remove();
+			}
+		}
+		listener.callEnd(req, res, System.nanoTime());
+	}
+
+	void dnsStart(final String host) {
+		listener.dnsStart(req, host, System.nanoTime());
+	}
+
+	void dnsEnd(final String host, final InetAddress[] addresses) {
+		listener.dnsEnd(req, host, addresses, System.nanoTime());
+	}
+
+	void connectStart(final InetSocketAddress address) {
+		listener.connectStart(req, address, System.nanoTime());
+	}
+
+	void connectEnd(final InetSocketAddress address) {
+		listener.connectEnd(req, address, System.nanoTime());
+	}
+
+	void connectFailed(final InetSocketAddress address, final IOException e) {
+		listener.connectFailed(req, address, e, System.nanoTime());
+	}
+
+	void tlsStart() {
+		listener.tlsStart(req, System.nanoTime());
+	}
+
+	void tlsEnd(final SSLSession session) {
+		listener.tlsEnd(req, session, System.nanoTime());
+	}
+
+	void requestHeadersEnd(final long bytes) {
+		listener.requestHeadersEnd(req, bytes, System.nanoTime());
+	}
+
+	void requestBodyEnd(final long bytes) {
+		listener.requestBodyEnd(req, bytes, System.nanoTime());
+	}
+
+	void responseStart() {
+		listener.responseStart(req, System.nanoTime());
+	}
+
+	void responseBodyEnd(final long bytes) {
+		listener.responseBodyEnd(req, bytes, System.nanoTime());
+	}
+}
@@ -0,0 +1,167 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * States of {@link CircuitBreaker} driven by recorded outcomes
+ */
+public class CircuitBreakerTest {
+	private static final URL HOST = url("http://breaker.test/a");
+	private static final URL OTHER = url("http://other.test/");
+
+	private final List<String> changes = new CopyOnWriteArrayList<>();
+
+	@Test
+	public void closedOpensOnFailureRate() {
+		final CircuitBreaker breaker = breaker().setWindow(10, 4).setFailureRateThreshold(50);
+		call(breaker, ok());
+		call(breaker, failed());
+		call(breaker, status(Response.Code.INTERNAL_ERROR));
+		// Below minimum calls
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+		call(breaker, ok());
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+		assertRejected(breaker.acquire(HOST));
+		// Other path of same host shares the circuit, other host does not
+		assertRejected(breaker.acquire(url("http://breaker.test/b")));
+		assertNull(breaker.acquire(OTHER));
+		assertEquals(Arrays.asList("breaker.test:CLOSED>OPEN"), changes);
+	}
+
+	@Test
+	public void successesKeepCircuitClosed() {
+		final CircuitBreaker breaker = breaker().setWindow(4, 4).setFailureRateThreshold(50);
+		for (int i = 0; i < 20; i++) {
+			// One failure of four in every window
+			call(breaker, ((i % 4) == 0) ? failed() : ok());
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+		// 4xx is not a failure
+		for (int i = 0; i < 4; i++) {
+			call(breaker, status(Response.Code.NOT_FOUND));
+		}
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+	}
+
+	@Test
+	public void slowCallsOpen() {
+		final CircuitBreaker breaker = breaker().setWindow(2, 2).setSlowCall(100, 50);
+		assertNull(breaker.acquire(HOST));
+		breaker.record(HOST, ok(), TimeUnit.MILLISECONDS.toNanos(10));
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+		assertNull(breaker.acquire(HOST));
+		breaker.record(HOST, ok(), TimeUnit.MILLISECONDS.toNanos(200));
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+	}
+
+	@Test
+	public void openBecomesHalfOpenAfterOpenTime() throws InterruptedException {
+		final CircuitBreaker breaker = breaker().setWindow(1, 1).setOpenMs(50).setHalfOpenCalls(2);
+		call(breaker, failed());
+		assertRejected(breaker.acquire(HOST));
+		Thread.sleep(60);
+		// Trial calls limited
+		assertNull(breaker.acquire(HOST));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+		assertNull(breaker.acquire(HOST));
+		assertRejected(breaker.acquire(HOST));
+		// All trials must finish, one failure opens again
+		breaker.record(HOST, ok(), 0);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState(HOST));
+		breaker.record(HOST, failed(), 0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+		Thread.sleep(60);
+		call(breaker, ok());
+		call(breaker, ok());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+		assertEquals(Arrays.asList("breaker.test:CLOSED>OPEN", "breaker.test:OPEN>HALF_OPEN", //
+				"breaker.test:HALF_OPEN>OPEN", "breaker.test:OPEN>HALF_OPEN", //
+				"breaker.test:HALF_OPEN>CLOSED"), changes);
+	}
+
+	@Test
+	public void cancelReturnsHalfOpenPermit() {
+		final CircuitBreaker breaker = breaker().setWindow(1, 1).setOpenMs(0).setHalfOpenCalls(1);
+		call(breaker, failed());
+		assertNull(breaker.acquire(HOST));
+		assertRejected(breaker.acquire(HOST));
+		// Allowed call not sent (rate limited)
+		breaker.cancel(HOST);
+		assertNull(breaker.acquire(HOST));
+		breaker.record(HOST, ok(), 0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+		// Cancel in closed state and of unknown host does nothing
+		breaker.cancel(HOST);
+		breaker.cancel(OTHER);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(OTHER));
+	}
+
+	@Test
+	public void callsStartedBeforeOpenAreIgnored() throws InterruptedException {
+		final CircuitBreaker breaker = breaker().setWindow(2, 2).setOpenMs(50).setHalfOpenCalls(1);
+		// Three calls in flight
+		for (int i = 0; i < 3; i++) {
+			assertNull(breaker.acquire(HOST));
+		}
+		breaker.record(HOST, failed(), 0);
+		breaker.record(HOST, failed(), 0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+		// Late success does not close, rejected calls are not outcomes
+		breaker.record(HOST, ok(), 0);
+		final Response rejected = breaker.acquire(HOST);
+		assertRejected(rejected);
+		breaker.record(HOST, rejected, 0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState(HOST));
+		Thread.sleep(60);
+		// Window of half-open has only the trial call
+		call(breaker, ok());
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(HOST));
+	}
+
+	private CircuitBreaker breaker() {
+		return new CircuitBreaker().setListener((host, from, to) -> changes.add( //
+				host.replaceFirst("^http://", "").replaceFirst(":80$", "") + ":" + from + ">" + to));
+	}
+
+	private static void call(final CircuitBreaker breaker, final Response res) {
+		assertNull(breaker.acquire(HOST));
+		breaker.record(HOST, res, 0);
+	}
+
+	private static void assertRejected(final Response res) {
+		assertTrue(String.valueOf(res), //
+				(res != null) && (res.exception instanceof CircuitBreaker.OpenException));
+	}
+
+	private static Response ok() {
+		return status(Response.Code.OK);
+	}
+
+	private static Response status(final Response.Code code) {
+		return new Response(code, null, null, null);
+	}
+
+	private static Response failed() {
+		return new Response(Response.Code.UNKNOWN, null, null, new IOException("Connection reset"));
+	}
+
+	private static URL url(final String url) {
+		try {
+			return new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
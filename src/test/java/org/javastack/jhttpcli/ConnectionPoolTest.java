@@ -0,0 +1,255 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Leases of {@link ConnectionPool} with connections to loopback servers
+ */
+public class ConnectionPoolTest {
+	private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+	private ServerSocket server;
+	private ServerSocket other;
+	private HttpClient cli;
+	private ConnectionPool pool;
+
+	@Before
+	public void setUp() throws IOException {
+		server = listen();
+		other = listen();
+		cli = new HttpClient().setPoolTimeoutMs(5000);
+		pool = new ConnectionPool(cli.nio);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		pool.close();
+		cli.close();
+		server.close();
+		other.close();
+		for (final Socket s : accepted) {
+			s.close();
+		}
+	}
+
+	@Test
+	public void releasedConnectionIsReused() throws IOException {
+		final HttpConnection c1 = pool.lease(url(server));
+		assertStats(1, 0, 0, 1, 0);
+		pool.release(c1);
+		assertStats(0, 1, 0, 1, 0);
+		final HttpConnection c2 = pool.lease(url(server));
+		assertSame(c1, c2);
+		assertStats(1, 0, 0, 1, 0);
+		// Released twice, counted once
+		pool.release(c2);
+		pool.release(c2);
+		assertStats(0, 1, 0, 1, 0);
+	}
+
+	@Test
+	public void notReusableConnectionIsClosedOnRelease() throws IOException {
+		final HttpConnection c1 = pool.lease(url(server));
+		c1.keepAlive = false;
+		pool.release(c1);
+		assertFalse(c1.isOpen());
+		assertStats(0, 0, 0, 1, 0);
+		assertNotSame(c1, pool.lease(url(server)));
+	}
+
+	@Test
+	public void waiterOverRouteLimitGetsReleasedConnection() throws Exception {
+		cli.setMaxConnPerHost(1);
+		final HttpConnection c1 = pool.lease(url(server));
+		// Other route is not limited by this one
+		pool.release(pool.lease(url(other)));
+		final CompletableFuture<HttpConnection> waiter = leaseAsync(url(server));
+		awaitPending(1);
+		assertFalse(waiter.isDone());
+		pool.release(c1);
+		assertSame(c1, waiter.get(5, TimeUnit.SECONDS));
+		assertStats(1, 1, 0, 2, 0);
+	}
+
+	@Test
+	public void waitersAreServedInOrder() throws Exception {
+		cli.setMaxConnPerHost(1);
+		final HttpConnection c1 = pool.lease(url(server));
+		final List<Integer> order = new CopyOnWriteArrayList<>();
+		final CompletableFuture<HttpConnection> first = leaseAsync(url(server)) //
+				.thenApply(c -> record(order, 1, c));
+		awaitPending(1);
+		final CompletableFuture<HttpConnection> second = leaseAsync(url(server)) //
+				.thenApply(c -> record(order, 2, c));
+		awaitPending(2);
+		pool.release(c1);
+		pool.release(first.get(5, TimeUnit.SECONDS));
+		pool.release(second.get(5, TimeUnit.SECONDS));
+		assertEquals(2, order.size());
+		assertEquals(1, order.get(0).intValue());
+		assertEquals(2, order.get(1).intValue());
+	}
+
+	@Test
+	public void leaseTimesOutWhenRouteIsFull() throws IOException {
+		cli.setMaxConnPerHost(1).setPoolTimeoutMs(100);
+		pool.lease(url(server));
+		final long start = System.nanoTime();
+		try {
+			pool.lease(url(server));
+			fail("leased over limit");
+		} catch (SocketTimeoutException e) {
+			// Expected
+		}
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+		assertStats(1, 0, 0, 1, 0);
+	}
+
+	@Test
+	public void totalLimitClosesOldestIdle() throws IOException {
+		cli.setMaxConnTotal(1);
+		final HttpConnection c1 = pool.lease(url(server));
+		pool.release(c1);
+		final HttpConnection c2 = pool.lease(url(other));
+		assertNotSame(c1, c2);
+		assertFalse(c1.isOpen());
+		assertStats(1, 0, 0, 2, 1);
+	}
+
+	@Test
+	public void staleIdleConnectionIsEvictedOnLease() throws Exception {
+		cli.setValidateAfterInactivityMs(0);
+		final HttpConnection c1 = pool.lease(url(server));
+		// Validated only after a first exchange
+		c1.exchanges = 1;
+		pool.release(c1);
+		awaitAccepted(1);
+		accepted.get(0).close();
+		// Peer close is seen by validation (outside of lock), a new connection is opened
+		HttpConnection c2 = null;
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((c2 = pool.lease(url(server))) == c1) {
+			pool.release(c2);
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(10);
+		}
+		assertFalse(c1.isOpen());
+		assertStats(1, 0, 0, 2, 1);
+	}
+
+	@Test
+	public void expiredIdleConnectionIsEvicted() throws Exception {
+		cli.setKeepAliveMs(50);
+		final HttpConnection c1 = pool.lease(url(server));
+		pool.release(c1);
+		Thread.sleep(100);
+		pool.evictExpired();
+		assertFalse(c1.isOpen());
+		assertStats(0, 0, 0, 1, 1);
+	}
+
+	@Test
+	public void closedPoolClosesConnections() throws IOException {
+		final HttpConnection idle = pool.lease(url(server));
+		final HttpConnection leased = pool.lease(url(server));
+		pool.release(idle);
+		pool.close();
+		assertFalse(idle.isOpen());
+		assertTrue(leased.isOpen());
+		pool.release(leased);
+		assertFalse(leased.isOpen());
+		try {
+			pool.lease(url(server));
+			fail("leased from closed pool");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private static HttpConnection record(final List<Integer> order, final int id, final HttpConnection c) {
+		order.add(id);
+		return c;
+	}
+
+	private CompletableFuture<HttpConnection> leaseAsync(final URL url) {
+		final CompletableFuture<HttpConnection> f = new CompletableFuture<>();
+		final Thread t = new Thread(() -> {
+			try {
+				f.complete(pool.lease(url));
+			} catch (Throwable e) {
+				f.completeExceptionally(e);
+			}
+		}, "pool-test-waiter");
+		t.setDaemon(true);
+		t.start();
+		return f;
+	}
+
+	private void awaitPending(final int pending) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (pool.getStats().pending != pending) {
+			assertTrue("pending=" + pool.getStats().pending, System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private void awaitAccepted(final int count) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (accepted.size() < count) {
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private void assertStats(final int leased, final int idle, final int pending, final long created, //
+			final long evicted) {
+		final PoolStats stats = pool.getStats();
+		assertEquals(stats.toString(), leased, stats.leased);
+		assertEquals(stats.toString(), idle, stats.idle);
+		assertEquals(stats.toString(), pending, stats.pending);
+		assertEquals(stats.toString(), created, stats.created);
+		assertEquals(stats.toString(), evicted, stats.evicted);
+	}
+
+	private static URL url(final ServerSocket s) throws IOException {
+		return new URL("http://127.0.0.1:" + s.getLocalPort() + "/");
+	}
+
+	/**
+	 * Server accepting connections without answering
+	 */
+	private ServerSocket listen() throws IOException {
+		final ServerSocket s = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+		final Thread t = new Thread(() -> {
+			try {
+				while (true) {
+					accepted.add(s.accept());
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}, "pool-test-server");
+		t.setDaemon(true);
+		t.start();
+		return s;
+	}
+}
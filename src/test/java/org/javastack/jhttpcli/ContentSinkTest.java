@@ -0,0 +1,94 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+/**
+ * Allocation of response bodies buffered in memory
+ */
+public class ContentSinkTest {
+	private static final int SIZE = 4 * 1024 * 1024;
+	private static final int CHUNK = 8192;
+
+	@Test
+	public void sizedBodyIsReturnedWithoutCopy() throws IOException {
+		final byte[] src = source();
+		// Warm-up (class loading, pooled buffers)
+		receive(src, SIZE, new long[1]).delete();
+		final long[] allocated = new long[1];
+		final Content content = receive(src, SIZE, allocated);
+		assertEquals(SIZE, content.size());
+		// The array of declared size (allocated with the sink) is the body, nothing is copied on finish
+		assertTrue("allocated=" + allocated[0], allocated[0] < (SIZE / 16));
+		assertArrayEquals(src, read(content));
+	}
+
+	@Test
+	public void unsizedBodyIsCopiedOnce() throws IOException {
+		final byte[] src = source();
+		receive(src, -1, new long[1]).delete();
+		final long[] allocated = new long[1];
+		final Content content = receive(src, -1, allocated);
+		// Segments (pooled buffers, may be allocated when pool is empty) and a single array of final size
+		assertTrue("allocated=" + allocated[0], allocated[0] >= SIZE);
+		assertTrue("allocated=" + allocated[0], allocated[0] < ((2 * SIZE) + (SIZE / 16)));
+		assertArrayEquals(src, read(content));
+	}
+
+	private static com.sun.management.ThreadMXBean threadBean() {
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		final com.sun.management.ThreadMXBean threads = //
+				(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+		return threads;
+	}
+
+	private static byte[] source() {
+		final byte[] src = new byte[SIZE];
+		for (int i = 0; i < src.length; i++) {
+			src[i] = (byte) i;
+		}
+		return src;
+	}
+
+	/**
+	 * Receive a body in chunks
+	 *
+	 * @param src body
+	 * @param length declared or -1
+	 * @param allocated bytes allocated by current thread from first write to finish (output)
+	 * @return content
+	 */
+	private static Content receive(final byte[] src, final long length, final long[] allocated)
+			throws IOException {
+		final com.sun.management.ThreadMXBean threads = threadBean();
+		final long tid = Thread.currentThread().getId();
+		try (final ContentSink sink = new ContentSink(null, SIZE * 2, 0, false, null, length, null)) {
+			final long before = threads.getThreadAllocatedBytes(tid);
+			for (int off = 0; off < src.length; off += CHUNK) {
+				sink.write(src, off, Math.min(CHUNK, src.length - off));
+			}
+			final Content content = sink.finish();
+			allocated[0] = threads.getThreadAllocatedBytes(tid) - before;
+			return content;
+		}
+	}
+
+	private static byte[] read(final Content content) throws IOException {
+		final byte[] buf = new byte[(int) content.size()];
+		try (final InputStream is = content.getInputStream()) {
+			new DataInputStream(is).readFully(buf);
+		}
+		return buf;
+	}
+}
@@ -0,0 +1,264 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exchanges of {@link EventLoop} transport with a scripted HTTP/1.1 server in loopback
+ */
+public class EventLoopTest {
+	private final List<Socket> accepted = new CopyOnWriteArrayList<>();
+	private ServerSocket server;
+	private HttpClient cli;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+		cli = new HttpClient().setTransport(HttpClient.Transport.EVENT_LOOP).setEventLoopThreads(1) //
+				.setReadTimeoutMs(10000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cli.close();
+		server.close();
+		for (final Socket s : accepted) {
+			s.close();
+		}
+	}
+
+	@Test
+	public void keepAliveConnectionIsReused() throws Exception {
+		serve((path, out) -> {
+			write(out, "HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+			return true;
+		});
+		for (int i = 0; i < 3; i++) {
+			assertEquals("hello", body(cli.execute(new Request(url("/")))));
+		}
+		assertEquals(1, accepted.size());
+	}
+
+	@Test
+	public void chunkedBodyIsDecoded() throws Exception {
+		serve((path, out) -> {
+			write(out, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" //
+					+ "6;ext=1\r\nhello \r\n5\r\nworld\r\n0\r\nX-Trailer: 1\r\n\r\n");
+			return true;
+		});
+		for (int i = 0; i < 2; i++) {
+			assertEquals("hello world", body(cli.execute(new Request(url("/")))));
+		}
+		assertEquals(1, accepted.size());
+	}
+
+	@Test
+	public void closeDelimitedBodyIsReadUntilEof() throws Exception {
+		serve((path, out) -> {
+			write(out, "HTTP/1.1 200 OK\r\n\r\nuntil close");
+			return false;
+		});
+		for (int i = 0; i < 2; i++) {
+			assertEquals("until close", body(cli.execute(new Request(url("/")))));
+		}
+		// Connection not reused
+		assertEquals(2, accepted.size());
+	}
+
+	@Test
+	public void redirectIsFollowedInSameConnection() throws Exception {
+		serve((path, out) -> {
+			if (path.equals("/target")) {
+				write(out, "HTTP/1.1 200 OK\r\nContent-Length: 6\r\n\r\ntarget");
+			} else {
+				write(out, "HTTP/1.1 302 Found\r\nLocation: /target\r\nContent-Length: 7\r\n\r\nignored");
+			}
+			return true;
+		});
+		assertEquals("target", body(cli.execute(new Request(url("/")))));
+		assertEquals(1, accepted.size());
+	}
+
+	@Test
+	public void readTimesOut() throws Exception {
+		cli.setReadTimeoutMs(200);
+		serve((path, out) -> true);
+		final long start = System.nanoTime();
+		final Response res = cli.execute(new Request(url("/")));
+		assertTrue(String.valueOf(res.exception), res.exception instanceof SocketTimeoutException);
+		assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 5);
+	}
+
+	@Test
+	public void closeFailsCallsInFlight() throws Exception {
+		serve((path, out) -> true);
+		final List<CompletableFuture<Response>> calls = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			calls.add(cli.executeAsync(new Request(url("/"))));
+		}
+		awaitAccepted(3);
+		cli.close();
+		for (final CompletableFuture<Response> call : calls) {
+			final Response res = call.get(5, TimeUnit.SECONDS);
+			assertTrue(String.valueOf(res.exception), res.exception instanceof IOException);
+		}
+	}
+
+	@Test
+	public void largeBodyIsWrittenByExecutor() throws Exception {
+		cli.setMemoryContentLimit(64 * 1024);
+		final byte[] data = new byte[3 * 1024 * 1024];
+		new Random(1).nextBytes(data);
+		serve((path, out) -> {
+			if (path.equals("/chunked")) {
+				write(out, "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" //
+						+ Integer.toHexString(data.length) + "\r\n");
+				out.write(data);
+				write(out, "\r\n0\r\n\r\n");
+			} else {
+				write(out, "HTTP/1.1 200 OK\r\nContent-Length: " + data.length + "\r\n\r\n");
+				out.write(data);
+			}
+			return true;
+		});
+		for (final String path : new String[] { "/", "/chunked" }) {
+			final Response res = cli.execute(new Request(url(path)));
+			assertNull(res.exception);
+			final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			res.body.writeTo(bos);
+			res.body.delete();
+			assertArrayEquals(data, bos.toByteArray());
+		}
+		final File file = File.createTempFile("download-", ".tmp");
+		try {
+			file.delete();
+			final Response res = cli.download(new Request(url("/")), file);
+			assertNull(res.exception);
+			assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+		} finally {
+			file.delete();
+		}
+		assertEquals(1, accepted.size());
+	}
+
+	@Test
+	public void nextAddressIsTriedWhenConnectFails() throws Exception {
+		serve((path, out) -> {
+			write(out, "HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+			return true;
+		});
+		// Nothing listens in first address
+		final InetAddress unbound = InetAddress.getByName("127.0.0.2");
+		final InetAddress bound = server.getInetAddress();
+		cli.setConnTimeoutMs(1000).setResolver(host -> new InetAddress[] { unbound, bound });
+		final int port = server.getLocalPort();
+		assertEquals("ok", body(cli.execute(new Request(new URL("http://multi.test:" + port + "/")))));
+		cli.setResolver(host -> new InetAddress[] { unbound, unbound });
+		final Response res = cli.execute(new Request(new URL("http://none.test:" + port + "/")));
+		assertTrue(String.valueOf(res.exception), res.exception instanceof IOException);
+		assertEquals(1, res.exception.getSuppressed().length);
+	}
+
+	private URL url(final String path) throws IOException {
+		return new URL("http://127.0.0.1:" + server.getLocalPort() + path);
+	}
+
+	private static String body(final Response res) throws IOException {
+		assertNull(res.exception);
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		res.body.writeTo(bos);
+		return new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+	}
+
+	private static void write(final OutputStream out, final String s) throws IOException {
+		out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private void awaitAccepted(final int count) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (accepted.size() < count) {
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	/**
+	 * Accept connections, each one served in its own thread
+	 */
+	private void serve(final Handler handler) {
+		final Thread t = new Thread(() -> {
+			try {
+				while (true) {
+					final Socket socket = server.accept();
+					accepted.add(socket);
+					final Thread conn = new Thread(() -> serve(socket, handler), "loop-test-conn");
+					conn.setDaemon(true);
+					conn.start();
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}, "loop-test-server");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private static void serve(final Socket socket, final Handler handler) {
+		try {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), //
+					StandardCharsets.ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String path = line.split(" ")[1];
+				while ((line != null) && !line.isEmpty()) {
+					line = in.readLine();
+				}
+				final boolean keepOpen = handler.respond(path, out);
+				out.flush();
+				if (!keepOpen) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			// Closed by client
+		} finally {
+			IOUtil.closeSilent(socket);
+		}
+	}
+
+	private interface Handler {
+		/**
+		 * Write response to request
+		 *
+		 * @return false to close connection
+		 */
+		boolean respond(String path, OutputStream out) throws IOException;
+	}
+}
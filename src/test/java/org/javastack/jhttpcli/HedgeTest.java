@@ -0,0 +1,218 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Hedged requests of {@link Hedge} with a client whose attempts are scripted
+ */
+public class HedgeTest {
+	private static final URL TARGET = url("http://hedge.test/");
+
+	private final AtomicInteger calls = new AtomicInteger();
+	private final Map<String, File> files = new ConcurrentHashMap<>();
+	private final List<Thread> threads = new CopyOnWriteArrayList<>();
+
+	@After
+	public void tearDown() {
+		for (final File f : files.values()) {
+			f.delete();
+		}
+	}
+
+	@Test
+	public void firstResponseWinsAndLoserIsCancelled() throws Exception {
+		final CountDownLatch aborted = new CountDownLatch(1);
+		final HttpClient cli = client(call -> {
+			if (call == 0) {
+				// Connection of a slow copy, closed by the caller when other copy wins
+				Hedge.bind(aborted::countDown);
+				assertFalse(Hedge.sleep(TimeUnit.SECONDS.toNanos(10)));
+				assertTrue(Hedge.isCancelled());
+				return ok("slow");
+			}
+			return ok("fast");
+		}, new HedgePolicy().setDelayMs(20));
+		final long start = System.nanoTime();
+		assertEquals("fast", body(cli.execute(new Request(TARGET))));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+		assertTrue(aborted.await(5, TimeUnit.SECONDS));
+		assertEquals(2, calls.get());
+		// Body of loser is deleted when it finishes, winner is kept
+		awaitDeleted("slow");
+		assertTrue(files.get("fast").exists());
+	}
+
+	@Test
+	public void finishedLoserBodyIsDeleted() throws Exception {
+		final CountDownLatch second = new CountDownLatch(1);
+		final HttpClient cli = client(call -> {
+			if (call == 0) {
+				// Both copies finish, only one is taken
+				second.await();
+				return ok("first");
+			}
+			final Response res = ok("second");
+			second.countDown();
+			return res;
+		}, new HedgePolicy().setDelayMs(20));
+		final String winner = body(cli.execute(new Request(TARGET)));
+		awaitDeleted("first".equals(winner) ? "second" : "first");
+		assertTrue(files.get(winner).exists());
+	}
+
+	@Test
+	public void callerRunsCopyQueuedInBusyExecutor() throws Exception {
+		final List<Runnable> queued = new CopyOnWriteArrayList<>();
+		final HttpClient cli = client(call -> ok("stolen"), new HedgePolicy().setDelayMs(20));
+		// Executor never runs tasks
+		cli.setExecutor(queued::add);
+		assertEquals("stolen", body(cli.execute(new Request(TARGET))));
+		assertEquals(1, calls.get());
+		assertSame(Thread.currentThread(), threads.get(0));
+		// Copy claimed by caller is not run again
+		queued.forEach(Runnable::run);
+		assertEquals(1, calls.get());
+		// Executor rejects tasks
+		cli.setExecutor(r -> {
+			throw new RejectedExecutionException("Saturated");
+		});
+		assertEquals("stolen", body(cli.execute(new Request(TARGET))));
+		assertEquals(2, calls.get());
+		assertSame(Thread.currentThread(), threads.get(1));
+	}
+
+	@Test
+	public void budgetCapsHedges() throws Exception {
+		final Script slow = call -> {
+			Hedge.sleep(TimeUnit.MILLISECONDS.toNanos(200));
+			return ok("slow");
+		};
+		// One copy of burst, no ratio
+		final HttpClient cli = client(slow, new HedgePolicy().setDelayMs(10).setMaxHedges(3).setBudget(0, 1));
+		body(cli.execute(new Request(TARGET)));
+		assertEquals(2, calls.get());
+		body(cli.execute(new Request(TARGET)));
+		assertEquals(3, calls.get());
+		// Non-idempotent requests are not hedged
+		final HttpClient post = client(slow, new HedgePolicy().setDelayMs(10).setBudget(1, 100));
+		calls.set(0);
+		post.execute(new Request(TARGET, Request.Method.POST, null, Content.fromStringUTF8("x")));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void maxHedgesCapsCopies() throws Exception {
+		final HttpClient cli = client(call -> {
+			Hedge.sleep(TimeUnit.MILLISECONDS.toNanos(200));
+			return ok("slow");
+		}, new HedgePolicy().setDelayMs(10).setMaxHedges(2).setBudget(1, 100));
+		body(cli.execute(new Request(TARGET)));
+		assertEquals(3, calls.get());
+	}
+
+	@Test
+	public void delayIsPercentileOfLatencies() {
+		final HedgePolicy policy = new HedgePolicy().setDelayMs(100).setPercentile(0.5, 20);
+		// Fixed delay until first calculation
+		for (int i = 1; i < 64; i++) {
+			policy.record(TimeUnit.MILLISECONDS.toNanos(i));
+			assertEquals(TimeUnit.MILLISECONDS.toNanos(100), policy.delay());
+		}
+		policy.record(TimeUnit.MILLISECONDS.toNanos(64));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(33), policy.delay());
+		// Min delay
+		policy.setPercentile(0.1, 20);
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(33), policy.delay());
+		for (int i = 0; i < 64; i++) {
+			policy.record(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(20), policy.delay());
+	}
+
+	/**
+	 * Client with attempts answered by script, numbered in order of start
+	 */
+	private HttpClient client(final Script script, final HedgePolicy policy) {
+		return new HttpClient() {
+			@Override
+			Response sendRetrying(final Request target, final File outFile) {
+				final int call = calls.getAndIncrement();
+				threads.add(Thread.currentThread());
+				try {
+					return script.send(call);
+				} catch (Exception e) {
+					return new Response(Response.Code.UNKNOWN, null, null, e);
+				}
+			}
+		}.setHedgePolicy(policy);
+	}
+
+	/**
+	 * Response with body in a file, to check that it is deleted
+	 */
+	private Response ok(final String body) throws IOException {
+		final File f = File.createTempFile("hedge-test-", ".tmp");
+		Files.write(f.toPath(), body.getBytes(StandardCharsets.UTF_8));
+		files.put(body, f);
+		return new Response(Response.Code.OK, null, Content.fromFile(f), null);
+	}
+
+	/**
+	 * Wait until the response with body is created and its file deleted
+	 */
+	private void awaitDeleted(final String body) throws InterruptedException {
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!files.containsKey(body) || files.get(body).exists()) {
+			assertTrue(System.nanoTime() < deadline);
+			Thread.sleep(5);
+		}
+	}
+
+	private static String body(final Response res) throws IOException {
+		assertNull(res.exception);
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		res.body.writeTo(bos);
+		return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static URL url(final String url) {
+		try {
+			return new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private interface Script {
+		/**
+		 * Answer an attempt
+		 *
+		 * @param call number of attempt
+		 * @return response
+		 */
+		Response send(int call) throws Exception;
+	}
+}
@@ -0,0 +1,148 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * HPACK examples of RFC 7541 Appendix C
+ */
+public class HpackTest {
+	private static final String[][] REQUEST_1 = {
+			{ ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, //
+			{ ":authority", "www.example.com" }
+	};
+	private static final String[][] REQUEST_2 = {
+			{ ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, //
+			{ ":authority", "www.example.com" }, { "cache-control", "no-cache" }
+	};
+	private static final String[][] REQUEST_3 = {
+			{ ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" }, //
+			{ ":authority", "www.example.com" }, { "custom-key", "custom-value" }
+	};
+	private static final String[][] RESPONSE_1 = {
+			{ ":status", "302" }, { "cache-control", "private" }, //
+			{ "date", "Mon, 21 Oct 2013 20:13:21 GMT" }, { "location", "https://www.example.com" }
+	};
+	private static final String[][] RESPONSE_2 = {
+			{ ":status", "307" }, { "cache-control", "private" }, //
+			{ "date", "Mon, 21 Oct 2013 20:13:21 GMT" }, { "location", "https://www.example.com" }
+	};
+	private static final String[][] RESPONSE_3 = {
+			{ ":status", "200" }, { "cache-control", "private" }, //
+			{ "date", "Mon, 21 Oct 2013 20:13:22 GMT" }, { "location", "https://www.example.com" }, //
+			{ "content-encoding", "gzip" }, //
+			{ "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1" }
+	};
+	/**
+	 * Dynamic table size update to 256 (SETTINGS_HEADER_TABLE_SIZE of examples C.5 and C.6)
+	 */
+	private static final String TABLE_256 = "3fe101";
+
+	@Test
+	public void decodeRequestsWithoutHuffman() throws IOException {
+		final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		// C.3.1, C.3.2, C.3.3
+		assertDecode(decoder, "828684410f7777772e6578616d706c652e636f6d", REQUEST_1);
+		assertDecode(decoder, "828684be58086e6f2d6361636865", REQUEST_2);
+		assertDecode(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565", REQUEST_3);
+	}
+
+	@Test
+	public void decodeRequestsWithHuffman() throws IOException {
+		final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		// C.4.1, C.4.2, C.4.3
+		assertDecode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff", REQUEST_1);
+		assertDecode(decoder, "828684be5886a8eb10649cbf", REQUEST_2);
+		assertDecode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", REQUEST_3);
+	}
+
+	@Test
+	public void decodeResponsesWithoutHuffman() throws IOException {
+		final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		assertDecode(decoder, TABLE_256, new String[0][]);
+		// C.5.1, C.5.2, C.5.3 (with evictions)
+		assertDecode(decoder, "4803333032580770726976617465611d4d6f6e2c203231204f637420323031332032303a31"
+				+ "333a323120474d546e1768747470733a2f2f7777772e6578616d706c652e636f6d", RESPONSE_1);
+		assertDecode(decoder, "4803333037c1c0bf", RESPONSE_2);
+		assertDecode(decoder, "88c1611d4d6f6e2c203231204f637420323031332032303a31333a323220474d54c05a04677a"
+				+ "69707738666f6f3d4153444a4b48514b425a584f5157454f50495541585157454f49553b206d61782d61"
+				+ "67653d333630303b2076657273696f6e3d31", RESPONSE_3);
+	}
+
+	@Test
+	public void decodeResponsesWithHuffman() throws IOException {
+		final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		assertDecode(decoder, TABLE_256, new String[0][]);
+		// C.6.1, C.6.2, C.6.3 (with evictions)
+		assertDecode(decoder, "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff6e919d"
+				+ "29ad171863c78f0b97c8e9ae82ae43d3", RESPONSE_1);
+		assertDecode(decoder, "4883640effc1c0bf", RESPONSE_2);
+		assertDecode(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7"
+				+ "f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007", //
+				RESPONSE_3);
+	}
+
+	@Test
+	public void encodeRequestsWithHuffman() {
+		// Same choices of representation than C.4 (Huffman when shorter, incremental indexing)
+		final Hpack.Encoder encoder = new Hpack.Encoder();
+		assertArrayEquals(hex("828684418cf1e3c2e5f23a6ba0ab90f4ff"), encode(encoder, REQUEST_1));
+		assertArrayEquals(hex("828684be5886a8eb10649cbf"), encode(encoder, REQUEST_2));
+		assertArrayEquals(hex("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"), //
+				encode(encoder, REQUEST_3));
+	}
+
+	@Test
+	public void encodeTableSizeUpdate() throws IOException {
+		final Hpack.Encoder encoder = new Hpack.Encoder();
+		final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		encoder.setMaxTableSize(256);
+		final byte[] block = encode(encoder, REQUEST_3);
+		assertArrayEquals(hex(TABLE_256), Arrays.copyOf(block, 3));
+		assertDecode(decoder, block, REQUEST_3);
+		// Signaled once
+		assertDecode(decoder, encode(encoder, REQUEST_3), REQUEST_3);
+	}
+
+	private static byte[] encode(final Hpack.Encoder encoder, final String[][] hdrs) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.begin(out);
+		for (final String[] h : hdrs) {
+			encoder.encode(out, h[0], h[1]);
+		}
+		return out.toByteArray();
+	}
+
+	private static void assertDecode(final Hpack.Decoder decoder, final String block, //
+			final String[][] expected) throws IOException {
+		assertDecode(decoder, hex(block), expected);
+	}
+
+	private static void assertDecode(final Hpack.Decoder decoder, final byte[] block, //
+			final String[][] expected) throws IOException {
+		final List<String[]> hdrs = new ArrayList<>();
+		decoder.decode(block, block.length, (name, value) -> hdrs.add(new String[] {
+				name, value
+		}));
+		assertEquals(expected.length, hdrs.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertArrayEquals(expected[i], hdrs.get(i));
+		}
+	}
+
+	private static byte[] hex(final String s) {
+		final byte[] b = new byte[s.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(s.substring(2 * i, (2 * i) + 2), 16);
+		}
+		return b;
+	}
+}
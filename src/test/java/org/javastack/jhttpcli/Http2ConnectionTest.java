@@ -0,0 +1,246 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exchanges of {@link Http2Connection} with a scripted h2c server in loopback
+ */
+public class Http2ConnectionTest {
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PING = 0x6;
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+
+	private ServerSocket server;
+	private HttpClient cli;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		cli = new HttpClient().setTransport(HttpClient.Transport.H2C).setReadTimeoutMs(10000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cli.close();
+		server.close();
+	}
+
+	@Test
+	public void exchangeWithControlFrames() throws Exception {
+		final CompletableFuture<byte[][]> blocks = serve(peer -> {
+			peer.handshake();
+			// Table size and ping, acks queued by reader thread and written by executor
+			peer.frame(SETTINGS, 0, 0, new byte[] {
+					0, 1, 0, 0, 1, 0
+			});
+			peer.frame(PING, 0, 0, "pingpong".getBytes(StandardCharsets.ISO_8859_1));
+			final Frame h1 = peer.until(HEADERS);
+			peer.until(SETTINGS, FLAG_ACK);
+			final Frame ack = peer.until(PING, FLAG_ACK);
+			assertEquals("pingpong", new String(ack.payload, StandardCharsets.ISO_8859_1));
+			peer.respond(h1.stream, "200", "hello");
+			final Frame h2 = peer.until(HEADERS);
+			peer.respond(h2.stream, "200", "again");
+			return new byte[][] {
+					h1.payload, h2.payload
+			};
+		});
+		final Response r1 = cli.execute(new Request(url("/one")));
+		assertEquals(200, r1.code.code);
+		assertEquals("hello", r1.body.toStringUTF8());
+		final Response r2 = cli.execute(new Request(url("/two")));
+		assertEquals("again", r2.body.toStringUTF8());
+		final byte[][] b = blocks.get(10, TimeUnit.SECONDS);
+		final Map<String, String> hdrs = decode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), b[0], b[1]);
+		assertEquals("/two", hdrs.get(":path"));
+		assertEquals("GET", hdrs.get(":method"));
+		// Encoder applied the table size of peer after the ack
+		assertTrue((b[0][0] == 0x3f) || (b[1][0] == 0x3f));
+	}
+
+	@Test
+	public void responseBeforeRequestBody() throws Exception {
+		final byte[] body = new byte[1024 * 1024];
+		final CompletableFuture<byte[][]> served = serve(peer -> {
+			peer.handshake();
+			final Frame h = peer.until(HEADERS);
+			// Body exceeds initial window (65535), rejected without reading it
+			peer.respond(h.stream, "413", "too large");
+			peer.frame(RST_STREAM, 0, h.stream, new byte[4]);
+			peer.drain();
+			return null;
+		});
+		final Response res = cli.execute(new Request(url("/upload"), Request.Method.POST, null, //
+				Content.fromBytes(body)));
+		assertNull(res.exception);
+		assertEquals(413, res.code.code);
+		assertEquals("too large", res.body.toStringUTF8());
+		cli.close();
+		served.get(10, TimeUnit.SECONDS);
+	}
+
+	private URL url(final String path) throws IOException {
+		return new URL("http://127.0.0.1:" + server.getLocalPort() + path);
+	}
+
+	private static Map<String, String> decode(final Hpack.Decoder decoder, final byte[]... blocks)
+			throws IOException {
+		final Map<String, String> hdrs = new HashMap<>();
+		for (final byte[] block : blocks) {
+			decoder.decode(block, block.length, hdrs::put);
+		}
+		return hdrs;
+	}
+
+	private <T> CompletableFuture<T> serve(final Script<T> script) {
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final Thread t = new Thread(() -> {
+			try (final Peer peer = new Peer(server.accept())) {
+				result.complete(script.run(peer));
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}, "h2c-test-server");
+		t.setDaemon(true);
+		t.start();
+		return result;
+	}
+
+	private interface Script<T> {
+		T run(Peer peer) throws Exception;
+	}
+
+	private static final class Frame {
+		final int type;
+		final int flags;
+		final int stream;
+		final byte[] payload;
+
+		Frame(final int type, final int flags, final int stream, final byte[] payload) {
+			this.type = type;
+			this.flags = flags;
+			this.stream = stream;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * Server side of connection (header blocks in a single frame)
+	 */
+	private static final class Peer implements Closeable {
+		private final Socket socket;
+		private final DataInputStream in;
+		private final OutputStream out;
+		private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+		Peer(final Socket socket) throws IOException {
+			this.socket = socket;
+			this.socket.setSoTimeout(10000);
+			this.in = new DataInputStream(socket.getInputStream());
+			this.out = socket.getOutputStream();
+		}
+
+		void handshake() throws IOException {
+			final byte[] preface = new byte[24];
+			in.readFully(preface);
+			assertArrayEquals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1), //
+					preface);
+			until(SETTINGS);
+			frame(SETTINGS, 0, 0, new byte[0]);
+		}
+
+		Frame read() throws IOException {
+			final byte[] head = new byte[9];
+			in.readFully(head);
+			final int len = ((head[0] & 0xFF) << 16) | ((head[1] & 0xFF) << 8) | (head[2] & 0xFF);
+			final int stream = ((head[5] & 0x7F) << 24) | ((head[6] & 0xFF) << 16) | ((head[7] & 0xFF) << 8)
+					| (head[8] & 0xFF);
+			final byte[] payload = new byte[len];
+			in.readFully(payload);
+			return new Frame(head[3] & 0xFF, head[4] & 0xFF, stream, payload);
+		}
+
+		Frame until(final int type) throws IOException {
+			return until(type, 0);
+		}
+
+		/**
+		 * Read until a frame of type with flags
+		 */
+		Frame until(final int type, final int flags) throws IOException {
+			while (true) {
+				final Frame f = read();
+				if ((f.type == type) && ((f.flags & flags) == flags)) {
+					return f;
+				}
+			}
+		}
+
+		/**
+		 * Read until client closes connection
+		 */
+		void drain() throws IOException {
+			try {
+				while (true) {
+					read();
+				}
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+
+		void respond(final int stream, final String status, final String body) throws IOException {
+			final ByteArrayOutputStream block = new ByteArrayOutputStream();
+			encoder.begin(block);
+			encoder.encode(block, ":status", status);
+			encoder.encode(block, "content-type", "text/plain");
+			frame(HEADERS, FLAG_END_HEADERS, stream, block.toByteArray());
+			frame(DATA, FLAG_END_STREAM, stream, body.getBytes(StandardCharsets.ISO_8859_1));
+		}
+
+		void frame(final int type, final int flags, final int stream, final byte[] payload)
+				throws IOException {
+			final byte[] f = Arrays.copyOf(new byte[] {
+					(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length, //
+					(byte) type, (byte) flags, //
+					(byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream
+			}, 9 + payload.length);
+			System.arraycopy(payload, 0, f, 9, payload.length);
+			out.write(f);
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Freshness, validation and tiers of {@link HttpCache}, with responses built in memory
+ */
+public class HttpCacheTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("cache-test-").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		final File[] files = dir.listFiles();
+		if (files != null) {
+			for (final File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void maxAgeResponseIsFresh() throws IOException {
+		final HttpCache cache = new HttpCache(1024);
+		assertEquals("hello", body(exchange(cache, get("/a"), ok("hello", "Cache-Control", "max-age=60"))));
+		final HttpCache.Lookup hit = cache.lookup(get("/a"));
+		assertNotNull(hit.response);
+		assertEquals("hello", body(hit.response));
+		// Request asks for a fresher response
+		final HttpCache.Lookup stale = cache.lookup(get("/a", "Cache-Control", "max-age=0"));
+		assertNull(stale.response);
+		assertStats(cache.getStats(), 1, 2, 0, 0);
+	}
+
+	@Test
+	public void expiresGivesLifetime() throws IOException {
+		final HttpCache cache = new HttpCache(1024);
+		final long now = System.currentTimeMillis();
+		exchange(cache, get("/future"), ok("a", "Date", date(now), "Expires", date(now + 60000)));
+		exchange(cache, get("/past"), ok("b", "Date", date(now), "Expires", date(now - 1000)));
+		exchange(cache, get("/invalid"), ok("c", "Expires", "0"));
+		assertNotNull(cache.lookup(get("/future")).response);
+		// Expired without validators, not stored
+		assertNull(cache.lookup(get("/past")).response);
+		assertNull(cache.lookup(get("/invalid")).response);
+		assertEquals(1, cache.getStats().memoryEntries);
+	}
+
+	@Test
+	public void varyMatchesRequestHeaders() throws IOException {
+		final HttpCache cache = new HttpCache(1024);
+		exchange(cache, get("/v", "Accept-Language", "en"), //
+				ok("english", "Cache-Control", "max-age=60", "Vary", "Accept-Language"));
+		assertEquals("english", body(cache.lookup(get("/v", "Accept-Language", "en")).response));
+		assertNull(cache.lookup(get("/v", "Accept-Language", "fr")).response);
+		assertNull(cache.lookup(get("/v")).response);
+		// Vary: * is never stored
+		exchange(cache, get("/star"), ok("any", "Cache-Control", "max-age=60", "Vary", "*"));
+		assertNull(cache.lookup(get("/star")).response);
+		assertStats(cache.getStats(), 1, 5, 0, 0);
+	}
+
+	@Test
+	public void staleEntryIsRevalidated() throws IOException {
+		final HttpCache cache = new HttpCache(1024);
+		final String modified = date(System.currentTimeMillis() - 60000);
+		exchange(cache, get("/r"), ok("stored", "Cache-Control", "no-cache", "ETag", "\"v1\"", //
+				"Last-Modified", modified));
+		final HttpCache.Lookup lookup = cache.lookup(get("/r"));
+		assertNull(lookup.response);
+		assertEquals("\"v1\"", Headers.getValue(lookup.request.hdrs, "If-None-Match"));
+		assertEquals(modified, Headers.getValue(lookup.request.hdrs, "If-Modified-Since"));
+		final Response res = lookup.update(new Response(Response.Code.NOT_MODIFIED, //
+				headers("Cache-Control", "max-age=60", "ETag", "\"v1\""), null, null));
+		// Body of stored response, headers of 304
+		assertEquals(Response.Code.OK, res.code);
+		assertEquals("stored", body(res));
+		assertEquals("max-age=60", Headers.getValue(res.hdrs, "Cache-Control"));
+		// Refreshed entry is fresh
+		assertEquals("stored", body(cache.lookup(get("/r")).response));
+		assertStats(cache.getStats(), 1, 1, 1, 1);
+	}
+
+	@Test
+	public void modifiedResponseReplacesStaleEntry() throws IOException {
+		final HttpCache cache = new HttpCache(1024);
+		exchange(cache, get("/m"), ok("old", "Cache-Control", "max-age=0", "ETag", "\"v1\""));
+		final HttpCache.Lookup lookup = cache.lookup(get("/m"));
+		assertEquals("new", body(lookup.update(ok("new", "Cache-Control", "max-age=60", "ETag", "\"v2\""))));
+		assertEquals("new", body(cache.lookup(get("/m")).response));
+		assertEquals(1, cache.getStats().memoryEntries);
+	}
+
+	@Test
+	public void notModifiedOfUserConditionalIsNotStored() throws IOException {
+		final HttpCache cache = new HttpCache(1024);
+		// Stored variant does not match, request is sent with conditional of user
+		exchange(cache, get("/u", "Accept", "a"), ok("a", "Cache-Control", "max-age=60", "Vary", "Accept"));
+		final Request req = get("/u", "Accept", "b", "If-None-Match", "\"user\"");
+		final HttpCache.Lookup lookup = cache.lookup(req);
+		assertNull(lookup.response);
+		assertSame(req, lookup.request);
+		final Response notModified = new Response(Response.Code.NOT_MODIFIED, //
+				headers("Cache-Control", "max-age=60", "ETag", "\"user\""), null, null);
+		// Returned as is (there is no stored body to answer), key is removed
+		assertSame(notModified, lookup.update(notModified));
+		assertNull(cache.lookup(get("/u", "Accept", "a")).response);
+		final CacheStats stats = cache.getStats();
+		assertEquals(0, stats.memoryEntries);
+		assertEquals(0, stats.notModified);
+	}
+
+	@Test
+	public void unsafeMethodInvalidatesEntry() throws IOException {
+		final HttpCache cache = new HttpCache(1024);
+		exchange(cache, get("/p"), ok("x", "Cache-Control", "max-age=60"));
+		final Request post = new Request(url("/p"), Request.Method.POST, null, Content.fromStringUTF8("y"));
+		exchange(cache, post, ok("done"));
+		assertNull(cache.lookup(get("/p")).response);
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvicted() throws IOException {
+		final HttpCache cache = new HttpCache(10);
+		exchange(cache, get("/1"), ok("1111", "Cache-Control", "max-age=60"));
+		exchange(cache, get("/2"), ok("2222", "Cache-Control", "max-age=60"));
+		// Access makes first entry the most recently used
+		assertNotNull(cache.lookup(get("/1")).response);
+		exchange(cache, get("/3"), ok("3333", "Cache-Control", "max-age=60"));
+		final CacheStats stats = cache.getStats();
+		assertEquals(2, stats.memoryEntries);
+		assertEquals(8, stats.memoryBytes);
+		assertNotNull(cache.lookup(get("/1")).response);
+		assertNull(cache.lookup(get("/2")).response);
+		assertNotNull(cache.lookup(get("/3")).response);
+	}
+
+	@Test
+	public void largeBodyIsStoredInDiskTier() throws IOException {
+		final File old = new File(dir, "old.jhttpcli-cache");
+		assertTrue(old.createNewFile());
+		final HttpCache cache = new HttpCache(1024, dir, 150).setMaxMemoryEntrySize(16);
+		// Files of previous instance are deleted
+		assertFalse(old.exists());
+		final String large = repeat('a', 100);
+		exchange(cache, get("/d1"), ok(large, "Cache-Control", "max-age=60"));
+		CacheStats stats = cache.getStats();
+		assertEquals(0, stats.memoryEntries);
+		assertEquals(1, stats.diskEntries);
+		assertEquals(100, stats.diskBytes);
+		assertEquals(1, dir.listFiles().length);
+		final Response hit = cache.lookup(get("/d1")).response;
+		assertEquals(Content.Type.FILE, hit.body.type);
+		assertEquals(large, body(hit));
+		hit.body.delete();
+		// Over max size of disk tier, oldest entry and its file are removed
+		exchange(cache, get("/d2"), ok(repeat('b', 100), "Cache-Control", "max-age=60"));
+		stats = cache.getStats();
+		assertEquals(1, stats.diskEntries);
+		assertEquals(100, stats.diskBytes);
+		assertEquals(1, dir.listFiles().length);
+		assertNull(cache.lookup(get("/d1")).response);
+		final Response other = cache.lookup(get("/d2")).response;
+		assertEquals(repeat('b', 100), body(other));
+		other.body.delete();
+		cache.clear();
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	/**
+	 * Execute request through cache with response of server
+	 */
+	private static Response exchange(final HttpCache cache, final Request req, final Response res) {
+		final HttpCache.Lookup lookup = cache.lookup(req);
+		assertNull(lookup.response);
+		return lookup.update(res);
+	}
+
+	private static void assertStats(final CacheStats stats, final long hits, final long misses, //
+			final long revalidations, final long notModified) {
+		assertEquals(stats.toString(), hits, stats.hits);
+		assertEquals(stats.toString(), misses, stats.misses);
+		assertEquals(stats.toString(), revalidations, stats.revalidations);
+		assertEquals(stats.toString(), notModified, stats.notModified);
+	}
+
+	private static URL url(final String path) {
+		try {
+			return new URL("http://cache.test" + path);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Request get(final String path, final String... hdrs) {
+		return new Request(url(path), Request.Method.GET, headers(hdrs), null);
+	}
+
+	private static Response ok(final String body, final String... hdrs) {
+		return new Response(Response.Code.OK, headers(hdrs), Content.fromStringUTF8(body), null);
+	}
+
+	private static Map<String, List<String>> headers(final String... pairs) {
+		final Map<String, List<String>> hdrs = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for (int i = 0; i < pairs.length; i += 2) {
+			hdrs.put(pairs[i], Collections.singletonList(pairs[i + 1]));
+		}
+		return hdrs;
+	}
+
+	private static String date(final long millis) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis) //
+				.atZone(ZoneOffset.UTC));
+	}
+
+	private static String repeat(final char c, final int count) {
+		final StringBuilder sb = new StringBuilder(count);
+		for (int i = 0; i < count; i++) {
+			sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static String body(final Response res) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		res.body.writeTo(bos);
+		return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
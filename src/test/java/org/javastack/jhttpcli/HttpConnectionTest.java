@@ -0,0 +1,184 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Framing of HTTP/1.1 requests and responses of {@link HttpConnection}
+ */
+public class HttpConnectionTest {
+	private ServerSocket server;
+	private HttpClient cli;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		cli = new HttpClient().setTransport(HttpClient.Transport.NIO).setReadTimeoutMs(10000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		cli.close();
+		server.close();
+	}
+
+	@Test
+	public void headerValueWithLineBreakIsRejected() throws IOException {
+		final URL url = new URL("http://localhost/");
+		for (final String value : Arrays.asList("a\r\nX-Injected: 1", "a\nb", "a\0b")) {
+			try {
+				HttpConnection.requestHead(url, Request.Method.GET, headers("X-Test", value), //
+						Content.EMPTY, 0L);
+				fail("accepted: " + value);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+		for (final String name : Arrays.asList("X Test", "X-Test:", "", "X\r\nY")) {
+			try {
+				HttpConnection.requestHead(url, Request.Method.GET, headers(name, "v"), Content.EMPTY, 0L);
+				fail("accepted: " + name);
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void nullHeaderValueIsSkipped() {
+		final Map<String, List<String>> hdrs = Collections.singletonMap("X-Test", //
+				Arrays.asList(null, "v"));
+		final String head = new String(HttpConnection.requestHead(url(), Request.Method.GET, hdrs, //
+				Content.EMPTY, 0L), StandardCharsets.ISO_8859_1);
+		assertFalse(head, head.contains("null"));
+		assertTrue(head, head.contains("X-Test: v\r\n"));
+	}
+
+	@Test
+	public void injectionIsNotSent() throws Exception {
+		final Response res = cli.execute(new Request(url(), Request.Method.GET, //
+				headers("X-Test", "a\r\n\r\nGET /other HTTP/1.1"), Content.EMPTY));
+		assertTrue(String.valueOf(res.exception), res.exception instanceof IllegalArgumentException);
+	}
+
+	@Test
+	public void chunkedIsLastTransferCoding() {
+		assertTrue(Headers.isChunked(headers("Transfer-Encoding", "chunked")));
+		assertTrue(Headers.isChunked(headers("transfer-encoding", "gzip, Chunked")));
+		assertFalse(Headers.isChunked(headers("Transfer-Encoding", "chunked, gzip")));
+		assertFalse(Headers.isChunked(headers("Content-Length", "1")));
+	}
+
+	@Test
+	public void chunkedAfterOtherCodingKeepsConnection() throws Exception {
+		final byte[] gzip = gzip("hello");
+		final CompletableFuture<Integer> served = serve(socket -> {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), //
+					StandardCharsets.ISO_8859_1));
+			final OutputStream out = socket.getOutputStream();
+			int requests = 0;
+			while (readHead(in)) {
+				requests++;
+				final ByteArrayOutputStream res = new ByteArrayOutputStream();
+				res.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip, chunked\r\n\r\n" //
+						+ Integer.toHexString(gzip.length) + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+				res.write(gzip);
+				res.write("\r\n0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+				out.write(res.toByteArray());
+				out.flush();
+			}
+			return requests;
+		});
+		for (int i = 0; i < 2; i++) {
+			final Response res = cli.execute(new Request(url()));
+			assertNull(res.exception);
+			final ByteArrayOutputStream body = new ByteArrayOutputStream();
+			res.body.writeTo(body);
+			assertArrayEquals(gzip, body.toByteArray());
+		}
+		cli.close();
+		// Both requests in the same connection (server accepts only one)
+		assertEquals(2, served.get(10, TimeUnit.SECONDS).intValue());
+	}
+
+	private URL url() {
+		try {
+			return new URL("http://127.0.0.1:" + server.getLocalPort() + "/");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Map<String, List<String>> headers(final String name, final String value) {
+		return Collections.singletonMap(name, Collections.singletonList(value));
+	}
+
+	private static byte[] gzip(final String text) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (final GZIPOutputStream gz = new GZIPOutputStream(bos)) {
+			gz.write(text.getBytes(StandardCharsets.ISO_8859_1));
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Read request head (without body)
+	 *
+	 * @return false if connection closed
+	 */
+	private static boolean readHead(final BufferedReader in) throws IOException {
+		String line = in.readLine();
+		if (line == null) {
+			return false;
+		}
+		while ((line != null) && !line.isEmpty()) {
+			line = in.readLine();
+		}
+		return true;
+	}
+
+	private <T> CompletableFuture<T> serve(final Script<T> script) {
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final Thread t = new Thread(() -> {
+			try (final Socket socket = server.accept()) {
+				socket.setSoTimeout(10000);
+				result.complete(script.run(socket));
+			} catch (Throwable e) {
+				result.completeExceptionally(e);
+			}
+		}, "http-test-server");
+		t.setDaemon(true);
+		t.start();
+		return result;
+	}
+
+	private interface Script<T> {
+		T run(Socket socket) throws Exception;
+	}
+}
@@ -0,0 +1,117 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Token buckets of {@link RateLimiter}, global and per host
+ */
+public class RateLimiterTest {
+	private static final URL A = url("http://a.test/");
+	private static final URL B = url("http://b.test/");
+
+	@Test
+	public void burstThenRate() {
+		// A token each 100ms, three at once
+		final RateLimiter limiter = new RateLimiter().setPerHost(10, 3);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(0, limiter.reserve(A));
+		}
+		final long wait = limiter.reserve(A);
+		assertTrue("wait=" + wait, (wait > TimeUnit.MILLISECONDS.toNanos(50)) //
+				&& (wait <= TimeUnit.MILLISECONDS.toNanos(100)));
+		// Reserved tokens queue up
+		assertTrue(limiter.reserve(A) > wait);
+	}
+
+	@Test
+	public void hostsHaveOwnBuckets() {
+		final RateLimiter limiter = new RateLimiter().setPerHost(1, 1);
+		assertEquals(0, limiter.reserve(A));
+		assertTrue(limiter.reserve(A) > 0);
+		assertEquals(0, limiter.reserve(B));
+		// Override of a host, unlimited
+		limiter.setHostLimit("B.test", 0, 0);
+		for (int i = 0; i < 10; i++) {
+			assertEquals(0, limiter.reserve(B));
+		}
+	}
+
+	@Test
+	public void globalLimitsAllHosts() {
+		final RateLimiter limiter = new RateLimiter().setGlobal(1, 1);
+		assertEquals(0, limiter.reserve(A));
+		assertTrue(limiter.reserve(B) > 0);
+	}
+
+	@Test
+	public void failFastRejects() {
+		final RateLimiter limiter = new RateLimiter().setMode(RateLimiter.Mode.FAIL_FAST).setPerHost(1, 1);
+		assertNull(limiter.acquire(A));
+		assertEquals(-1, limiter.reserve(A));
+		final Response res = limiter.acquire(A);
+		assertTrue(String.valueOf(res), res.exception instanceof RateLimiter.LimitedException);
+		assertNull(limiter.acquire(B));
+	}
+
+	@Test
+	public void rejectedByGlobalReturnsHostToken() {
+		final RateLimiter limiter = new RateLimiter().setMode(RateLimiter.Mode.FAIL_FAST).setPerHost(1, 2) //
+				.setGlobal(1, 1);
+		assertEquals(0, limiter.reserve(A));
+		assertEquals(-1, limiter.reserve(A));
+		// Second token of host was not spent by rejected request
+		limiter.setGlobal(1000, 1000);
+		assertEquals(0, limiter.reserve(A));
+		assertEquals(-1, limiter.reserve(A));
+	}
+
+	@Test
+	public void waitIsLimitedByMaxWait() {
+		final RateLimiter limiter = new RateLimiter().setMaxWaitMs(150).setPerHost(10, 1);
+		assertEquals(0, limiter.reserve(A));
+		assertTrue(limiter.reserve(A) > 0);
+		// Would wait 200ms
+		assertEquals(-1, limiter.reserve(A));
+		assertTrue(limiter.acquire(A).exception instanceof RateLimiter.LimitedException);
+	}
+
+	@Test
+	public void acquireWaitsForToken() {
+		final RateLimiter limiter = new RateLimiter().setPerHost(20, 1);
+		final long start = System.nanoTime();
+		for (int i = 0; i < 3; i++) {
+			assertNull(limiter.acquire(A));
+		}
+		// Two waits of 50ms
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+	}
+
+	@Test
+	public void cancelRefundsToken() {
+		final RateLimiter limiter = new RateLimiter().setMode(RateLimiter.Mode.FAIL_FAST).setPerHost(1, 1) //
+				.setGlobal(1, 1);
+		assertEquals(0, limiter.reserve(A));
+		// Request not sent, token of host and global returned
+		limiter.cancel(A);
+		assertEquals(0, limiter.reserve(A));
+		assertEquals(-1, limiter.reserve(A));
+		limiter.cancel(A);
+		assertEquals(0, limiter.reserve(A));
+	}
+
+	private static URL url(final String url) {
+		try {
+			return new URL(url);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
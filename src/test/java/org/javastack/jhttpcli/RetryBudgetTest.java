@@ -0,0 +1,92 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Token bucket of {@link RetryBudget}
+ */
+public class RetryBudgetTest {
+	@Test
+	public void burstThenRatioOfRequests() {
+		final RetryBudget budget = new RetryBudget(0.1, 3);
+		assertEquals(3, drain(budget));
+		for (int i = 0; i < 9; i++) {
+			budget.deposit();
+		}
+		assertFalse(budget.withdraw());
+		budget.deposit();
+		assertTrue(budget.withdraw());
+		assertFalse(budget.withdraw());
+	}
+
+	@Test
+	public void balanceIsCappedAtBurst() {
+		final RetryBudget budget = new RetryBudget(1, 2);
+		assertEquals(2, drain(budget));
+		for (int i = 0; i < 100; i++) {
+			budget.deposit();
+		}
+		assertEquals(2, drain(budget));
+	}
+
+	@Test
+	public void withoutBurstOnlyRequestsGiveRetries() {
+		final RetryBudget budget = new RetryBudget(0.5, 0);
+		assertFalse(budget.withdraw());
+		budget.deposit();
+		assertFalse(budget.withdraw());
+		budget.deposit();
+		assertTrue(budget.withdraw());
+		// Zero ratio never refills
+		final RetryBudget none = new RetryBudget(0, 1);
+		assertTrue(none.withdraw());
+		none.deposit();
+		assertFalse(none.withdraw());
+	}
+
+	@Test
+	public void concurrentWithdrawsNeverExceedBalance() throws InterruptedException {
+		final RetryBudget budget = new RetryBudget(0, 1000);
+		final AtomicInteger granted = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			final Thread thread = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (int i = 0; i < 200; i++) {
+					if (budget.withdraw()) {
+						granted.incrementAndGet();
+					}
+				}
+			}, "budget-test");
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1000, granted.get());
+	}
+
+	private static int drain(final RetryBudget budget) {
+		int n = 0;
+		while (budget.withdraw()) {
+			n++;
+		}
+		return n;
+	}
+}
@@ -0,0 +1,147 @@
+package org.javastack.jhttpcli;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+
+import javax.net.ssl.SSLException;
+
+import org.junit.Test;
+
+/**
+ * Decisions of {@link RetryPolicy}: attempts, methods, status codes, backoff and Retry-After
+ */
+public class RetryPolicyTest {
+	@Test
+	public void backoffIsRandomUpToExponentialCap() {
+		final RetryPolicy policy = new RetryPolicy().setMaxAttempts(10).setBackoffMs(100, 1000) //
+				.setBudget(1, 10000);
+		for (int attempt = 1; attempt <= 6; attempt++) {
+			final long cap = Math.min(1000, 100L << (attempt - 1));
+			long max = 0;
+			for (int i = 0; i < 200; i++) {
+				final long delay = policy.delay(get(), status(Response.Code.UNAVAILABLE), attempt);
+				assertTrue("attempt=" + attempt + " delay=" + delay, (delay >= 0) && (delay <= cap));
+				max = Math.max(max, delay);
+			}
+			// Full jitter covers the whole range
+			assertTrue("attempt=" + attempt + " max=" + max, max > (cap / 2));
+		}
+	}
+
+	@Test
+	public void maxAttemptsIncludesFirst() {
+		final RetryPolicy policy = new RetryPolicy().setMaxAttempts(3);
+		assertTrue(policy.delay(get(), status(Response.Code.UNAVAILABLE), 2) >= 0);
+		assertEquals(-1, policy.delay(get(), status(Response.Code.UNAVAILABLE), 3));
+		assertEquals(-1, new RetryPolicy().setMaxAttempts(1) //
+				.delay(get(), status(Response.Code.UNAVAILABLE), 1));
+	}
+
+	@Test
+	public void onlyIdempotentMethodsAreRetried() {
+		final RetryPolicy policy = new RetryPolicy();
+		assertTrue(policy.delay(request(Request.Method.PUT), status(Response.Code.BAD_GATEWAY), 1) >= 0);
+		assertTrue(policy.delay(request(Request.Method.DELETE), error(new IOException("reset")), 1) >= 0);
+		assertEquals(-1, policy.delay(request(Request.Method.POST), status(Response.Code.BAD_GATEWAY), 1));
+		assertEquals(-1, policy.delay(request(Request.Method.POST), //
+				error(new SocketTimeoutException("Read timed out")), 1));
+		// Refused connection, request was not sent
+		assertTrue(policy.delay(request(Request.Method.POST), //
+				error(new ConnectException("Connection refused")), 1) >= 0);
+		policy.setRetryNonIdempotent(true);
+		assertTrue(policy.delay(request(Request.Method.POST), status(Response.Code.BAD_GATEWAY), 1) >= 0);
+	}
+
+	@Test
+	public void onlyRetryableStatusAndErrorsAreRetried() {
+		final RetryPolicy policy = new RetryPolicy();
+		assertEquals(-1, policy.delay(get(), status(Response.Code.INTERNAL_ERROR), 1));
+		assertEquals(-1, policy.delay(get(), status(Response.Code.NOT_FOUND), 1));
+		assertEquals(-1, policy.delay(get(), error(new UnknownHostException("none")), 1));
+		assertEquals(-1, policy.delay(get(), error(new SSLException("handshake")), 1));
+		assertTrue(policy.delay(get(), status(Response.Code.GATEWAY_TIMEOUT), 1) >= 0);
+		policy.setRetryOn(Response.Code.INTERNAL_ERROR);
+		assertTrue(policy.delay(get(), status(Response.Code.INTERNAL_ERROR), 1) >= 0);
+		assertEquals(-1, policy.delay(get(), status(Response.Code.GATEWAY_TIMEOUT), 1));
+	}
+
+	@Test
+	public void retryAfterIsHonoredFor429And503() {
+		final RetryPolicy policy = new RetryPolicy().setBackoffMs(10, 10000);
+		assertEquals(2000, policy.delay(get(), status(Response.Code.UNAVAILABLE, "2"), 1));
+		final long date = policy.delay(get(), status(Response.Code.TOO_MANY_REQUESTS, //
+				DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.now().plusSeconds(5) //
+						.atZone(ZoneOffset.UTC))), 1);
+		assertTrue("delay=" + date, (date > 3000) && (date <= 5000));
+		// Longer than max delay, response is returned
+		assertEquals(-1, policy.delay(get(), status(Response.Code.UNAVAILABLE, "60"), 1));
+		// Ignored for other codes and when invalid
+		assertTrue(policy.delay(get(), status(Response.Code.BAD_GATEWAY, "5"), 1) <= 10);
+		assertTrue(policy.delay(get(), status(Response.Code.UNAVAILABLE, "soon"), 1) <= 10);
+	}
+
+	@Test
+	public void retryAfterIsParsed() {
+		assertEquals(-1, RetryPolicy.retryAfter(null));
+		assertEquals(-1, RetryPolicy.retryAfter("later"));
+		assertEquals(0, RetryPolicy.retryAfter(" 0 "));
+		assertEquals(120000, RetryPolicy.retryAfter("120"));
+		assertEquals(Long.MAX_VALUE, RetryPolicy.retryAfter("99999999999999999999"));
+		assertEquals(0, RetryPolicy.retryAfter("Thu, 01 Jan 1970 00:00:01 GMT"));
+	}
+
+	@Test
+	public void budgetLimitsRetries() {
+		final RetryPolicy policy = new RetryPolicy().setBudget(0.5, 2);
+		assertTrue(policy.delay(get(), status(Response.Code.UNAVAILABLE), 1) >= 0);
+		assertTrue(policy.delay(get(), status(Response.Code.UNAVAILABLE), 1) >= 0);
+		assertEquals(-1, policy.delay(get(), status(Response.Code.UNAVAILABLE), 1));
+		// Two requests give a retry
+		policy.request();
+		assertEquals(-1, policy.delay(get(), status(Response.Code.UNAVAILABLE), 1));
+		policy.request();
+		assertTrue(policy.delay(get(), status(Response.Code.UNAVAILABLE), 1) >= 0);
+		// Not retried for other reasons, budget is not spent
+		policy.request();
+		policy.request();
+		assertEquals(-1, policy.delay(get(), status(Response.Code.NOT_FOUND), 1));
+		assertTrue(policy.delay(get(), status(Response.Code.UNAVAILABLE), 1) >= 0);
+	}
+
+	private static Request get() {
+		return request(Request.Method.GET);
+	}
+
+	private static Request request(final Request.Method method) {
+		try {
+			return new Request(new URL("http://retry.test/"), method);
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static Response status(final Response.Code code) {
+		return new Response(code, Collections.singletonMap("Server", Collections.singletonList("test")), //
+				null, null);
+	}
+
+	private static Response status(final Response.Code code, final String retryAfter) {
+		return new Response(code, Collections.singletonMap("Retry-After", //
+				Collections.singletonList(retryAfter)), null, null);
+	}
+
+	private static Response error(final IOException e) {
+		return new Response(Response.Code.UNKNOWN, null, null, e);
+	}
+}